@@ -0,0 +1,29 @@
+package com.hwlcn.cache;
+
+public class ExpiringCacheManager extends AbstractCacheManager {
+
+    private int maxEntries = ExpiringMapCache.DEFAULT_MAX_ENTRIES;
+
+    private long timeToLive = ExpiringMapCache.DEFAULT_TIME_TO_LIVE;
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    @Override
+    protected Cache createCache(String name) {
+        return new ExpiringMapCache<Object, Object>(name, maxEntries, timeToLive);
+    }
+}
@@ -0,0 +1,170 @@
+package com.hwlcn.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded {@link Cache} whose entries expire a fixed time after they were put.  When the cache is full the least
+ * recently used entry is evicted.
+ */
+public class ExpiringMapCache<K, V> implements Cache<K, V> {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000L;
+
+    private final String name;
+
+    private final int maxEntries;
+
+    private final long timeToLive;
+
+    private final Map<K, TimedValue<V>> map;
+
+    public ExpiringMapCache(String name) {
+        this(name, DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE);
+    }
+
+    public ExpiringMapCache(String name, final int maxEntries, long timeToLive) {
+        if (name == null) {
+            throw new IllegalArgumentException("Cache name cannot be null.");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be greater than zero.");
+        }
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("timeToLive must be greater than zero.");
+        }
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.map = new LinkedHashMap<K, TimedValue<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, TimedValue<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public V get(K key) throws CacheException {
+        synchronized (map) {
+            TimedValue<V> entry = map.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired(System.currentTimeMillis())) {
+                map.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    public V put(K key, V value) throws CacheException {
+        return put(key, value, timeToLive);
+    }
+
+    /**
+     * Puts an entry that expires after the given number of milliseconds instead of the cache's default
+     * time to live.
+     */
+    public V put(K key, V value, long timeToLive) throws CacheException {
+        TimedValue<V> entry = new TimedValue<V>(value, System.currentTimeMillis() + timeToLive);
+        synchronized (map) {
+            TimedValue<V> previous = map.put(key, entry);
+            return previous != null ? previous.value : null;
+        }
+    }
+
+    public V remove(K key) throws CacheException {
+        synchronized (map) {
+            TimedValue<V> previous = map.remove(key);
+            return previous != null ? previous.value : null;
+        }
+    }
+
+    public void clear() throws CacheException {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            purgeExpired();
+            return map.size();
+        }
+    }
+
+    public Set<K> keys() {
+        synchronized (map) {
+            purgeExpired();
+            if (map.isEmpty()) {
+                return Collections.emptySet();
+            }
+            return Collections.unmodifiableSet(new LinkedHashSet<K>(map.keySet()));
+        }
+    }
+
+    public Collection<V> values() {
+        synchronized (map) {
+            purgeExpired();
+            if (map.isEmpty()) {
+                return Collections.emptySet();
+            }
+            List<V> values = new ArrayList<V>(map.size());
+            for (TimedValue<V> entry : map.values()) {
+                values.add(entry.value);
+            }
+            return Collections.unmodifiableList(values);
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<TimedValue<V>> i = map.values().iterator(); i.hasNext(); ) {
+            if (i.next().isExpired(now)) {
+                i.remove();
+            }
+        }
+    }
+
+    public String toString() {
+        return new StringBuilder("ExpiringMapCache '")
+                .append(name).append("' (")
+                .append(size())
+                .append(" entries)")
+                .toString();
+    }
+
+    private static final class TimedValue<V> {
+
+        private final V value;
+
+        private final long expiresAt;
+
+        private TimedValue(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
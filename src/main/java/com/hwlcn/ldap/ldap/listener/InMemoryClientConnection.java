@@ -0,0 +1,740 @@
+package com.hwlcn.ldap.ldap.listener;
+
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.asn1.ASN1Buffer;
+import com.hwlcn.ldap.asn1.ASN1OctetString;
+import com.hwlcn.ldap.asn1.ASN1StreamReader;
+import com.hwlcn.ldap.ldap.protocol.AddRequestProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.AddResponseProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.BindRequestProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.BindResponseProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.CompareRequestProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.CompareResponseProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.DeleteRequestProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.DeleteResponseProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.ExtendedResponseProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.LDAPMessage;
+import com.hwlcn.ldap.ldap.protocol.ModifyDNRequestProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.ModifyDNResponseProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.ModifyRequestProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.ModifyResponseProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.ProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.SearchRequestProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.SearchResultDoneProtocolOp;
+import com.hwlcn.ldap.ldap.protocol.SearchResultEntryProtocolOp;
+import com.hwlcn.ldap.ldap.sdk.Attribute;
+import com.hwlcn.ldap.ldap.sdk.Control;
+import com.hwlcn.ldap.ldap.sdk.DN;
+import com.hwlcn.ldap.ldap.sdk.Entry;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.ldap.ldap.sdk.RDN;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.ldap.ldap.sdk.SearchScope;
+import com.hwlcn.ldap.ldap.sdk.controls.SimplePagedResultsControl;
+import com.hwlcn.ldap.util.Debug;
+import com.hwlcn.ldap.util.StaticUtils;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.ldap.listener.ListenerMessages.*;
+import static com.hwlcn.ldap.ldap.protocol.LDAPMessage.*;
+
+
+
+/**
+ * Serves one client of an {@link InMemoryDirectoryServer}.  Requests are read
+ * with the SDK's own protocol op classes and processed in the order they
+ * arrive; responses are written through a reusable {@link ASN1Buffer} and
+ * flushed once per operation.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+final class InMemoryClientConnection
+      implements Runnable
+{
+  private static final int OUTPUT_BUFFER_SIZE = 65536;
+
+  private static final String ATTR_ALL_USER = "*";
+
+  private static final String ATTR_NO_ATTRIBUTES = "1.1";
+
+  private static final List<String> NO_REFERRALS = null;
+
+  /**
+   * The maximum number of paged searches whose result sets are kept for a
+   * connection.  The least recently used one is discarded beyond that.
+   */
+  private static final int MAX_PAGED_SEARCHES = 16;
+
+
+  private final InMemoryDirectoryServer server;
+
+  private final InMemoryDataStore dataStore;
+
+  private final Socket socket;
+
+  private final ASN1StreamReader reader;
+
+  private final OutputStream outputStream;
+
+  private final ASN1Buffer buffer;
+
+  private DN authenticatedDN;
+
+  private final Map<Integer,PagedSearch> pagedSearches;
+
+  private int nextPagedSearchID;
+
+
+
+  InMemoryClientConnection(final InMemoryDirectoryServer server,
+                           final InMemoryDataStore dataStore,
+                           final Socket socket, final int maxMessageSize)
+       throws IOException
+  {
+    this.server    = server;
+    this.dataStore = dataStore;
+    this.socket    = socket;
+
+    socket.setTcpNoDelay(true);
+    reader = new ASN1StreamReader(
+         new BufferedInputStream(socket.getInputStream(), OUTPUT_BUFFER_SIZE),
+         maxMessageSize);
+    outputStream = new BufferedOutputStream(socket.getOutputStream(),
+         OUTPUT_BUFFER_SIZE);
+    buffer = new ASN1Buffer();
+    authenticatedDN = DN.NULL_DN;
+
+    nextPagedSearchID = 0;
+    pagedSearches = new LinkedHashMap<Integer,PagedSearch>(
+         MAX_PAGED_SEARCHES + 1, 0.75f, true)
+    {
+      private static final long serialVersionUID = 6185203478470632384L;
+
+      @Override()
+      protected boolean removeEldestEntry(
+           final Map.Entry<Integer,PagedSearch> eldest)
+      {
+        return (size() > MAX_PAGED_SEARCHES);
+      }
+    };
+  }
+
+
+
+  DN getAuthenticatedDN()
+  {
+    return authenticatedDN;
+  }
+
+
+
+  public void run()
+  {
+    try
+    {
+      while (true)
+      {
+        final LDAPMessage message = LDAPMessage.readFrom(reader, true);
+        if ((message == null) || (! processMessage(message)))
+        {
+          return;
+        }
+        server.operationCompleted();
+      }
+    }
+    catch (final Exception e)
+    {
+      // the client went away or sent something undecodable
+      Debug.debugException(e);
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+
+
+  void close()
+  {
+    try
+    {
+      reader.close();
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+    }
+
+    try
+    {
+      socket.close();
+    }
+    catch (final Exception e)
+    {
+      Debug.debugException(e);
+    }
+
+    server.connectionClosed(this);
+  }
+
+
+
+  /**
+   * Processes one request.
+   *
+   * @return  {@code false} if the connection should be closed.
+   */
+  private boolean processMessage(final LDAPMessage message)
+          throws IOException
+  {
+    final int messageID = message.getMessageID();
+    switch (message.getProtocolOpType())
+    {
+      case PROTOCOL_OP_TYPE_UNBIND_REQUEST:
+        return false;
+
+      case PROTOCOL_OP_TYPE_ABANDON_REQUEST:
+        // requests are processed synchronously, so there is never anything
+        // left to abandon
+        return true;
+
+      case PROTOCOL_OP_TYPE_BIND_REQUEST:
+        processBind(messageID, message.getBindRequestProtocolOp(),
+             message.getControls());
+        return true;
+
+      case PROTOCOL_OP_TYPE_SEARCH_REQUEST:
+        processSearch(messageID, message.getSearchRequestProtocolOp(),
+             message.getControls());
+        return true;
+
+      case PROTOCOL_OP_TYPE_ADD_REQUEST:
+        processAdd(messageID, message.getAddRequestProtocolOp(),
+             message.getControls());
+        return true;
+
+      case PROTOCOL_OP_TYPE_DELETE_REQUEST:
+        processDelete(messageID, message.getDeleteRequestProtocolOp(),
+             message.getControls());
+        return true;
+
+      case PROTOCOL_OP_TYPE_MODIFY_REQUEST:
+        processModify(messageID, message.getModifyRequestProtocolOp(),
+             message.getControls());
+        return true;
+
+      case PROTOCOL_OP_TYPE_MODIFY_DN_REQUEST:
+        processModifyDN(messageID, message.getModifyDNRequestProtocolOp(),
+             message.getControls());
+        return true;
+
+      case PROTOCOL_OP_TYPE_COMPARE_REQUEST:
+        processCompare(messageID, message.getCompareRequestProtocolOp(),
+             message.getControls());
+        return true;
+
+      case PROTOCOL_OP_TYPE_EXTENDED_REQUEST:
+        sendResponse(messageID, new ExtendedResponseProtocolOp(
+             ResultCode.UNWILLING_TO_PERFORM.intValue(), null,
+             ERR_MEM_HANDLER_EXTENDED_OP_NOT_SUPPORTED.get(
+                  message.getExtendedRequestProtocolOp().getOID()),
+             NO_REFERRALS, null, null));
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+
+
+  private void processBind(final int messageID,
+                           final BindRequestProtocolOp request,
+                           final List<Control> controls)
+          throws IOException
+  {
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String diagnosticMessage = null;
+    try
+    {
+      assertNoCriticalControls(controls, null);
+      if (request.getCredentialsType() !=
+          BindRequestProtocolOp.CRED_TYPE_SIMPLE)
+      {
+        throw new LDAPException(ResultCode.AUTH_METHOD_NOT_SUPPORTED,
+             ERR_MEM_HANDLER_BIND_SIMPLE_ONLY.get());
+      }
+
+      final DN bindDN = new DN(request.getBindDN());
+      final ASN1OctetString password = request.getSimplePassword();
+      authenticatedDN = DN.NULL_DN;
+      if (bindDN.isNullDN() && (password.getValueLength() == 0))
+      {
+        // anonymous
+      }
+      else if (server.isValidPassword(bindDN, password))
+      {
+        authenticatedDN = bindDN;
+      }
+      else
+      {
+        throw new LDAPException(ResultCode.INVALID_CREDENTIALS,
+             ERR_MEM_HANDLER_BIND_INVALID_CREDENTIALS.get(
+                  request.getBindDN()));
+      }
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      resultCode = le.getResultCode();
+      diagnosticMessage = le.getMessage();
+    }
+
+    sendResponse(messageID, new BindResponseProtocolOp(resultCode.intValue(),
+         null, diagnosticMessage, NO_REFERRALS, null));
+  }
+
+
+
+  private void processSearch(final int messageID,
+                             final SearchRequestProtocolOp request,
+                             final List<Control> controls)
+          throws IOException
+  {
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String matchedDN = null;
+    String diagnosticMessage = null;
+    Control responseControl = null;
+    try
+    {
+      final SimplePagedResultsControl pagedRequest =
+           getPagedResultsControl(controls);
+
+      // A paged search is evaluated once, on its first page, and later pages
+      // are read from that result set, so that paging is linear in the number
+      // of entries and is not disturbed by concurrent changes.
+      PagedSearch pagedSearch = null;
+      int pagedSearchID = -1;
+      if ((pagedRequest != null) &&
+          (pagedRequest.getCookie().getValueLength() > 0))
+      {
+        pagedSearchID = decodeCookie(pagedRequest.getCookie());
+        pagedSearch = pagedSearches.get(pagedSearchID);
+        if (pagedSearch == null)
+        {
+          throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+               ERR_MEM_HANDLER_UNKNOWN_PAGED_RESULTS_COOKIE.get());
+        }
+      }
+
+      final List<Entry> matches;
+      if (pagedSearch != null)
+      {
+        matches = pagedSearch.entries;
+      }
+      else
+      {
+        final DN baseDN = new DN(request.getBaseDN());
+        final SearchScope scope = request.getScope();
+        if (baseDN.isNullDN() && (scope.intValue() == 0))
+        {
+          matches = new ArrayList<Entry>(1);
+          final Entry rootDSE = server.getRootDSE();
+          if (request.getFilter().matchesEntry(rootDSE))
+          {
+            matches.add(rootDSE);
+          }
+        }
+        else
+        {
+          matches = dataStore.search(baseDN, scope, request.getFilter());
+        }
+      }
+
+      final int first = (pagedSearch == null) ? 0 : pagedSearch.nextIndex;
+      int last = matches.size();
+      if (pagedRequest != null)
+      {
+        if (pagedRequest.getSize() > 0)
+        {
+          last = Math.min(last, first + pagedRequest.getSize());
+        }
+        else if (pagedSearch != null)
+        {
+          // A page size of zero abandons the paged search.
+          last = first;
+          pagedSearches.remove(pagedSearchID);
+          pagedSearch = null;
+        }
+      }
+
+      final int sizeLimit = request.getSizeLimit();
+      if ((sizeLimit > 0) && (last - first > sizeLimit))
+      {
+        last = first + sizeLimit;
+        resultCode = ResultCode.SIZE_LIMIT_EXCEEDED;
+      }
+
+      final Set<String> requested = getRequestedAttributes(request);
+      for (int i = first; i < last; i++)
+      {
+        final Entry e = matches.get(i);
+        sendMessage(messageID, new SearchResultEntryProtocolOp(e.getDN(),
+             selectAttributes(e, requested, request.typesOnly())), null,
+             false);
+      }
+
+      if (pagedRequest != null)
+      {
+        ASN1OctetString cookie = new ASN1OctetString();
+        if ((last < matches.size()) && (last > first))
+        {
+          if (pagedSearch == null)
+          {
+            pagedSearchID = nextPagedSearchID++;
+            pagedSearch = new PagedSearch(matches);
+            pagedSearches.put(pagedSearchID, pagedSearch);
+          }
+          pagedSearch.nextIndex = last;
+          cookie = encodeCookie(pagedSearchID);
+        }
+        else if (pagedSearch != null)
+        {
+          pagedSearches.remove(pagedSearchID);
+        }
+        responseControl =
+             new SimplePagedResultsControl(matches.size(), cookie, false);
+      }
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      resultCode = le.getResultCode();
+      matchedDN = le.getMatchedDN();
+      diagnosticMessage = le.getMessage();
+    }
+
+    sendMessage(messageID, new SearchResultDoneProtocolOp(
+         resultCode.intValue(), matchedDN, diagnosticMessage, NO_REFERRALS),
+         responseControl, true);
+  }
+
+
+
+  private void processAdd(final int messageID,
+                          final AddRequestProtocolOp request,
+                          final List<Control> controls)
+          throws IOException
+  {
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String matchedDN = null;
+    String diagnosticMessage = null;
+    try
+    {
+      assertNoCriticalControls(controls, null);
+      dataStore.add(new Entry(request.getDN(), request.getAttributes()));
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      resultCode = le.getResultCode();
+      matchedDN = le.getMatchedDN();
+      diagnosticMessage = le.getMessage();
+    }
+
+    sendResponse(messageID, new AddResponseProtocolOp(resultCode.intValue(),
+         matchedDN, diagnosticMessage, NO_REFERRALS));
+  }
+
+
+
+  private void processDelete(final int messageID,
+                             final DeleteRequestProtocolOp request,
+                             final List<Control> controls)
+          throws IOException
+  {
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String matchedDN = null;
+    String diagnosticMessage = null;
+    try
+    {
+      assertNoCriticalControls(controls, null);
+      dataStore.delete(new DN(request.getDN()));
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      resultCode = le.getResultCode();
+      matchedDN = le.getMatchedDN();
+      diagnosticMessage = le.getMessage();
+    }
+
+    sendResponse(messageID, new DeleteResponseProtocolOp(
+         resultCode.intValue(), matchedDN, diagnosticMessage, NO_REFERRALS));
+  }
+
+
+
+  private void processModify(final int messageID,
+                             final ModifyRequestProtocolOp request,
+                             final List<Control> controls)
+          throws IOException
+  {
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String matchedDN = null;
+    String diagnosticMessage = null;
+    try
+    {
+      assertNoCriticalControls(controls, null);
+      dataStore.modify(new DN(request.getDN()), request.getModifications());
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      resultCode = le.getResultCode();
+      matchedDN = le.getMatchedDN();
+      diagnosticMessage = le.getMessage();
+    }
+
+    sendResponse(messageID, new ModifyResponseProtocolOp(
+         resultCode.intValue(), matchedDN, diagnosticMessage, NO_REFERRALS));
+  }
+
+
+
+  private void processModifyDN(final int messageID,
+                               final ModifyDNRequestProtocolOp request,
+                               final List<Control> controls)
+          throws IOException
+  {
+    ResultCode resultCode = ResultCode.SUCCESS;
+    String matchedDN = null;
+    String diagnosticMessage = null;
+    try
+    {
+      assertNoCriticalControls(controls, null);
+      final String newSuperior = request.getNewSuperiorDN();
+      dataStore.modifyDN(new DN(request.getDN()),
+           new RDN(request.getNewRDN()), request.deleteOldRDN(),
+           (newSuperior == null) ? null : new DN(newSuperior));
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      resultCode = le.getResultCode();
+      matchedDN = le.getMatchedDN();
+      diagnosticMessage = le.getMessage();
+    }
+
+    sendResponse(messageID, new ModifyDNResponseProtocolOp(
+         resultCode.intValue(), matchedDN, diagnosticMessage, NO_REFERRALS));
+  }
+
+
+
+  private void processCompare(final int messageID,
+                              final CompareRequestProtocolOp request,
+                              final List<Control> controls)
+          throws IOException
+  {
+    ResultCode resultCode;
+    String matchedDN = null;
+    String diagnosticMessage = null;
+    try
+    {
+      assertNoCriticalControls(controls, null);
+      resultCode = dataStore.compare(new DN(request.getDN()),
+           request.getAttributeName(), request.getAssertionValue())
+           ? ResultCode.COMPARE_TRUE
+           : ResultCode.COMPARE_FALSE;
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      resultCode = le.getResultCode();
+      matchedDN = le.getMatchedDN();
+      diagnosticMessage = le.getMessage();
+    }
+
+    sendResponse(messageID, new CompareResponseProtocolOp(
+         resultCode.intValue(), matchedDN, diagnosticMessage, NO_REFERRALS));
+  }
+
+
+
+  private static SimplePagedResultsControl getPagedResultsControl(
+                      final List<Control> controls)
+          throws LDAPException
+  {
+    assertNoCriticalControls(controls,
+         SimplePagedResultsControl.PAGED_RESULTS_OID);
+    for (final Control c : controls)
+    {
+      if (SimplePagedResultsControl.PAGED_RESULTS_OID.equals(c.getOID()))
+      {
+        return new SimplePagedResultsControl(c.getOID(), c.isCritical(),
+             c.getValue());
+      }
+    }
+    return null;
+  }
+
+
+
+  private static void assertNoCriticalControls(final List<Control> controls,
+                                               final String supportedOID)
+          throws LDAPException
+  {
+    for (final Control c : controls)
+    {
+      if (c.isCritical() && (! c.getOID().equals(supportedOID)))
+      {
+        throw new LDAPException(ResultCode.UNAVAILABLE_CRITICAL_EXTENSION,
+             ERR_MEM_HANDLER_UNSUPPORTED_CRITICAL_CONTROL.get(c.getOID()));
+      }
+    }
+  }
+
+
+
+  /**
+   * The paged results cookie is the identifier of the paged search in
+   * {@link #pagedSearches}.
+   */
+  private static ASN1OctetString encodeCookie(final int pagedSearchID)
+  {
+    return new ASN1OctetString(new byte[]
+    {
+      (byte) (pagedSearchID >>> 24), (byte) (pagedSearchID >>> 16),
+      (byte) (pagedSearchID >>> 8), (byte) pagedSearchID
+    });
+  }
+
+
+
+  private static int decodeCookie(final ASN1OctetString cookie)
+          throws LDAPException
+  {
+    final byte[] b = cookie.getValue();
+    if (b.length != 4)
+    {
+      throw new LDAPException(ResultCode.PROTOCOL_ERROR,
+           ERR_MEM_HANDLER_MALFORMED_PAGED_RESULTS_COOKIE.get());
+    }
+    return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) |
+         ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+  }
+
+
+
+  /**
+   * Returns the lower-cased names of the requested attributes, or
+   * {@code null} if all user attributes were requested.
+   */
+  private static Set<String> getRequestedAttributes(
+                                  final SearchRequestProtocolOp request)
+  {
+    final List<String> attributes = request.getAttributes();
+    if (attributes.isEmpty())
+    {
+      return null;
+    }
+
+    final HashSet<String> names = new HashSet<String>(attributes.size());
+    for (final String name : attributes)
+    {
+      if (ATTR_ALL_USER.equals(name))
+      {
+        return null;
+      }
+      names.add(StaticUtils.toLowerCase(name));
+    }
+    names.remove(ATTR_NO_ATTRIBUTES);
+    return names;
+  }
+
+
+
+  private static List<Attribute> selectAttributes(final Entry entry,
+                                                  final Set<String> requested,
+                                                  final boolean typesOnly)
+  {
+    final ArrayList<Attribute> attributes =
+         new ArrayList<Attribute>(entry.getAttributes().size());
+    for (final Attribute a : entry.getAttributes())
+    {
+      if ((requested != null) &&
+          (! requested.contains(StaticUtils.toLowerCase(a.getBaseName()))))
+      {
+        continue;
+      }
+      attributes.add(typesOnly ? new Attribute(a.getName()) : a);
+    }
+    return attributes;
+  }
+
+
+
+  private void sendResponse(final int messageID, final ProtocolOp response)
+          throws IOException
+  {
+    sendMessage(messageID, response, null, true);
+  }
+
+
+
+  private void sendMessage(final int messageID, final ProtocolOp protocolOp,
+                           final Control control, final boolean flush)
+          throws IOException
+  {
+    buffer.clear();
+    if (control == null)
+    {
+      new LDAPMessage(messageID, protocolOp).writeTo(buffer);
+    }
+    else
+    {
+      new LDAPMessage(messageID, protocolOp, control).writeTo(buffer);
+    }
+    buffer.writeTo(outputStream);
+    if (flush)
+    {
+      outputStream.flush();
+    }
+  }
+
+
+
+  /**
+   * The result set of a paged search in progress and the position of the
+   * next page within it.
+   */
+  private static final class PagedSearch
+  {
+    private final List<Entry> entries;
+
+    private int nextIndex;
+
+
+
+    private PagedSearch(final List<Entry> entries)
+    {
+      this.entries = entries;
+      nextIndex = 0;
+    }
+  }
+}
@@ -0,0 +1,683 @@
+package com.hwlcn.ldap.ldap.listener;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.asn1.ASN1OctetString;
+import com.hwlcn.ldap.ldap.matchingrules.MatchingRule;
+import com.hwlcn.ldap.ldap.sdk.Attribute;
+import com.hwlcn.ldap.ldap.sdk.DN;
+import com.hwlcn.ldap.ldap.sdk.Entry;
+import com.hwlcn.ldap.ldap.sdk.Filter;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.ldap.ldap.sdk.Modification;
+import com.hwlcn.ldap.ldap.sdk.RDN;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.ldap.ldap.sdk.SearchScope;
+import com.hwlcn.ldap.util.Debug;
+import com.hwlcn.ldap.util.StaticUtils;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.ldap.listener.ListenerMessages.*;
+
+
+
+/**
+ * The entries of an {@link InMemoryDirectoryServer}, with an index of each
+ * entry's immediate children and equality indexes on a configurable set of
+ * attributes.
+ * <BR><BR>
+ * Stored entries are never modified in place: every write replaces the entry
+ * with an updated copy.  Reads therefore run without locking, while writes
+ * are serialized so that the entry map and the indexes change together.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+final class InMemoryDataStore
+{
+  private final List<DN> baseDNs;
+
+  private final Set<String> indexedAttributes;
+
+  private final ConcurrentHashMap<DN,Entry> entries;
+
+  private final ConcurrentHashMap<DN,Set<DN>> children;
+
+  // attribute name -> normalized value -> DNs of the entries holding it
+  private final ConcurrentHashMap<String,ConcurrentHashMap<String,Set<DN>>>
+       indexes;
+
+  private final ReentrantLock writeLock;
+
+
+
+  InMemoryDataStore(final List<DN> baseDNs,
+                    final Set<String> indexedAttributes)
+  {
+    this.baseDNs = Collections.unmodifiableList(new ArrayList<DN>(baseDNs));
+
+    final HashSet<String> names = new HashSet<String>(indexedAttributes.size());
+    for (final String name : indexedAttributes)
+    {
+      names.add(StaticUtils.toLowerCase(name));
+    }
+    this.indexedAttributes = Collections.unmodifiableSet(names);
+
+    entries  = new ConcurrentHashMap<DN,Entry>(1024);
+    children = new ConcurrentHashMap<DN,Set<DN>>(1024);
+    indexes  =
+         new ConcurrentHashMap<String,ConcurrentHashMap<String,Set<DN>>>();
+    for (final String name : names)
+    {
+      indexes.put(name, new ConcurrentHashMap<String,Set<DN>>(1024));
+    }
+
+    writeLock = new ReentrantLock();
+  }
+
+
+
+  List<DN> getBaseDNs()
+  {
+    return baseDNs;
+  }
+
+
+
+  Set<String> getIndexedAttributes()
+  {
+    return indexedAttributes;
+  }
+
+
+
+  int size()
+  {
+    return entries.size();
+  }
+
+
+
+  Entry getEntry(final DN dn)
+  {
+    return entries.get(dn);
+  }
+
+
+
+  void clear()
+  {
+    writeLock.lock();
+    try
+    {
+      entries.clear();
+      children.clear();
+      for (final Map<String,Set<DN>> index : indexes.values())
+      {
+        index.clear();
+      }
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+
+
+  void add(final Entry entry)
+       throws LDAPException
+  {
+    final DN dn = entry.getParsedDN();
+    final Entry copy = entry.duplicate();
+
+    writeLock.lock();
+    try
+    {
+      if (entries.containsKey(dn))
+      {
+        throw new LDAPException(ResultCode.ENTRY_ALREADY_EXISTS,
+             ERR_MEM_HANDLER_ADD_ALREADY_EXISTS.get(dn));
+      }
+
+      final DN parentDN = dn.getParent();
+      if (! baseDNs.contains(dn))
+      {
+        if (! isWithinBaseDN(dn))
+        {
+          throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+               ERR_MEM_HANDLER_ADD_OUTSIDE_BASE_DNS.get(dn));
+        }
+        if ((parentDN == null) || (! entries.containsKey(parentDN)))
+        {
+          throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+               ERR_MEM_HANDLER_ADD_MISSING_PARENT.get(dn, parentDN),
+               getMatchedDN(dn), null);
+        }
+      }
+
+      entries.put(dn, copy);
+      if (parentDN != null)
+      {
+        getChildren(parentDN, true).add(dn);
+      }
+      index(copy, dn);
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+
+
+  void delete(final DN dn)
+       throws LDAPException
+  {
+    writeLock.lock();
+    try
+    {
+      final Entry entry = getExistingEntry(dn);
+      final Set<DN> childDNs = children.get(dn);
+      if ((childDNs != null) && (! childDNs.isEmpty()))
+      {
+        throw new LDAPException(ResultCode.NOT_ALLOWED_ON_NONLEAF,
+             ERR_MEM_HANDLER_DELETE_HAS_SUBORDINATES.get(dn));
+      }
+
+      entries.remove(dn);
+      children.remove(dn);
+      final DN parentDN = dn.getParent();
+      if (parentDN != null)
+      {
+        final Set<DN> siblings = children.get(parentDN);
+        if (siblings != null)
+        {
+          siblings.remove(dn);
+        }
+      }
+      unindex(entry, dn);
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+
+
+  void modify(final DN dn, final List<Modification> modifications)
+       throws LDAPException
+  {
+    writeLock.lock();
+    try
+    {
+      final Entry entry = getExistingEntry(dn);
+      final Entry updated =
+           Entry.applyModifications(entry, false, modifications);
+      assertRDNValuesPresent(updated);
+
+      entries.put(dn, updated);
+      unindex(entry, dn);
+      index(updated, dn);
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+
+
+  /**
+   * Renames or moves a leaf entry.  Entries that have subordinates are
+   * rejected.
+   */
+  void modifyDN(final DN dn, final RDN newRDN, final boolean deleteOldRDN,
+                final DN newSuperiorDN)
+       throws LDAPException
+  {
+    writeLock.lock();
+    try
+    {
+      final Entry entry = getExistingEntry(dn);
+      final Set<DN> childDNs = children.get(dn);
+      if ((childDNs != null) && (! childDNs.isEmpty()))
+      {
+        throw new LDAPException(ResultCode.NOT_ALLOWED_ON_NONLEAF,
+             ERR_MEM_HANDLER_MOD_DN_HAS_SUBORDINATES.get(dn));
+      }
+
+      final DN oldParentDN = dn.getParent();
+      final DN newParentDN =
+           (newSuperiorDN == null) ? oldParentDN : newSuperiorDN;
+      final DN newDN = new DN(newRDN, newParentDN);
+      if (entries.containsKey(newDN))
+      {
+        throw new LDAPException(ResultCode.ENTRY_ALREADY_EXISTS,
+             ERR_MEM_HANDLER_MOD_DN_TARGET_ALREADY_EXISTS.get(dn,
+                  newDN));
+      }
+      if ((newParentDN == null) || (! entries.containsKey(newParentDN)))
+      {
+        throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+             ERR_MEM_HANDLER_MOD_DN_PARENT_DOESNT_EXIST.get(dn,
+                  newDN),
+             getMatchedDN(newDN), null);
+      }
+
+      final Entry updated = entry.duplicate();
+      updated.setDN(newDN);
+      if (deleteOldRDN)
+      {
+        final RDN oldRDN = dn.getRDN();
+        final String[] names = oldRDN.getAttributeNames();
+        final byte[][] values = oldRDN.getByteArrayAttributeValues();
+        for (int i = 0; i < names.length; i++)
+        {
+          updated.removeAttributeValue(names[i], values[i]);
+        }
+      }
+      final String[] names = newRDN.getAttributeNames();
+      final byte[][] values = newRDN.getByteArrayAttributeValues();
+      for (int i = 0; i < names.length; i++)
+      {
+        updated.addAttribute(names[i], values[i]);
+      }
+
+      entries.remove(dn);
+      children.remove(dn);
+      if (oldParentDN != null)
+      {
+        final Set<DN> siblings = children.get(oldParentDN);
+        if (siblings != null)
+        {
+          siblings.remove(dn);
+        }
+      }
+      unindex(entry, dn);
+
+      entries.put(newDN, updated);
+      getChildren(newParentDN, true).add(newDN);
+      index(updated, newDN);
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+
+
+  boolean compare(final DN dn, final String attributeName,
+                  final ASN1OctetString assertionValue)
+       throws LDAPException
+  {
+    final Entry entry = getExistingEntry(dn);
+    return entry.hasAttributeValue(attributeName, assertionValue.getValue());
+  }
+
+
+
+  /**
+   * Returns the entries within the given scope that match the filter.  When
+   * the filter can be answered from an equality index only the indexed
+   * candidates are examined; otherwise the scope is walked through the
+   * child index.
+   */
+  List<Entry> search(final DN baseDN, final SearchScope scope,
+                     final Filter filter)
+       throws LDAPException
+  {
+    if (! entries.containsKey(baseDN))
+    {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+           ERR_MEM_HANDLER_SEARCH_BASE_DOES_NOT_EXIST.get(baseDN),
+           getMatchedDN(baseDN), null);
+    }
+
+    final ArrayList<Entry> matches = new ArrayList<Entry>();
+    final Set<DN> candidates = getIndexCandidates(filter);
+    if (candidates != null)
+    {
+      for (final DN dn : candidates)
+      {
+        final Entry entry = entries.get(dn);
+        if ((entry != null) && isInScope(dn, baseDN, scope) &&
+            matches(filter, entry))
+        {
+          matches.add(entry);
+        }
+      }
+      return matches;
+    }
+
+    switch (scope.intValue())
+    {
+      case 0:
+        addIfMatches(baseDN, filter, matches);
+        break;
+
+      case 1:
+        final Set<DN> childDNs = children.get(baseDN);
+        if (childDNs != null)
+        {
+          for (final DN dn : childDNs)
+          {
+            addIfMatches(dn, filter, matches);
+          }
+        }
+        break;
+
+      default:
+        final ArrayList<DN> stack = new ArrayList<DN>();
+        stack.add(baseDN);
+        final boolean includeBase = (scope.intValue() != 3);
+        while (! stack.isEmpty())
+        {
+          final DN dn = stack.remove(stack.size() - 1);
+          if (includeBase || (! dn.equals(baseDN)))
+          {
+            addIfMatches(dn, filter, matches);
+          }
+          final Set<DN> subordinates = children.get(dn);
+          if (subordinates != null)
+          {
+            stack.addAll(subordinates);
+          }
+        }
+        break;
+    }
+
+    return matches;
+  }
+
+
+
+  private void addIfMatches(final DN dn, final Filter filter,
+                            final List<Entry> matches)
+  {
+    final Entry entry = entries.get(dn);
+    if ((entry != null) && matches(filter, entry))
+    {
+      matches.add(entry);
+    }
+  }
+
+
+
+  private static boolean matches(final Filter filter, final Entry entry)
+  {
+    try
+    {
+      return filter.matchesEntry(entry);
+    }
+    catch (final LDAPException le)
+    {
+      // an undefined comparison does not fail the whole search
+      Debug.debugException(le);
+      return false;
+    }
+  }
+
+
+
+  private static boolean isInScope(final DN dn, final DN baseDN,
+                                   final SearchScope scope)
+  {
+    switch (scope.intValue())
+    {
+      case 0:
+        return dn.equals(baseDN);
+      case 1:
+        return baseDN.equals(dn.getParent());
+      case 3:
+        return dn.isDescendantOf(baseDN, false);
+      default:
+        return dn.isDescendantOf(baseDN, true);
+    }
+  }
+
+
+
+  /**
+   * Returns the DNs that may match the filter according to the equality
+   * indexes, or {@code null} if the filter cannot be narrowed down that way.
+   * Candidates are always re-checked against the full filter.
+   */
+  private Set<DN> getIndexCandidates(final Filter filter)
+  {
+    switch (filter.getFilterType())
+    {
+      case Filter.FILTER_TYPE_EQUALITY:
+        final String name = StaticUtils.toLowerCase(
+             Attribute.getBaseName(filter.getAttributeName()));
+        final Map<String,Set<DN>> index = indexes.get(name);
+        if (index == null)
+        {
+          return null;
+        }
+        final String key = normalize(
+             MatchingRule.selectEqualityMatchingRule(name, null),
+             filter.getRawAssertionValue());
+        if (key == null)
+        {
+          return null;
+        }
+        final Set<DN> dns = index.get(key);
+        return (dns == null) ? Collections.<DN>emptySet() : dns;
+
+      case Filter.FILTER_TYPE_AND:
+        Set<DN> smallest = null;
+        for (final Filter component : filter.getComponents())
+        {
+          final Set<DN> componentDNs = getIndexCandidates(component);
+          if ((componentDNs != null) &&
+              ((smallest == null) || (componentDNs.size() < smallest.size())))
+          {
+            smallest = componentDNs;
+          }
+        }
+        return smallest;
+
+      case Filter.FILTER_TYPE_OR:
+        final Filter[] components = filter.getComponents();
+        if (components.length == 0)
+        {
+          return null;
+        }
+        final HashSet<DN> union = new HashSet<DN>();
+        for (final Filter component : components)
+        {
+          final Set<DN> componentDNs = getIndexCandidates(component);
+          if (componentDNs == null)
+          {
+            return null;
+          }
+          union.addAll(componentDNs);
+        }
+        return union;
+
+      default:
+        return null;
+    }
+  }
+
+
+
+  private void index(final Entry entry, final DN dn)
+  {
+    for (final Attribute a : entry.getAttributes())
+    {
+      final ConcurrentHashMap<String,Set<DN>> index =
+           indexes.get(StaticUtils.toLowerCase(a.getBaseName()));
+      if (index == null)
+      {
+        continue;
+      }
+
+      for (final ASN1OctetString value : a.getRawValues())
+      {
+        final String key = normalizeForIndex(a.getMatchingRule(), value);
+        Set<DN> dns = index.get(key);
+        if (dns == null)
+        {
+          dns = newDNSet();
+          index.put(key, dns);
+        }
+        dns.add(dn);
+      }
+    }
+  }
+
+
+
+  private void unindex(final Entry entry, final DN dn)
+  {
+    for (final Attribute a : entry.getAttributes())
+    {
+      final ConcurrentHashMap<String,Set<DN>> index =
+           indexes.get(StaticUtils.toLowerCase(a.getBaseName()));
+      if (index == null)
+      {
+        continue;
+      }
+
+      for (final ASN1OctetString value : a.getRawValues())
+      {
+        final String key = normalizeForIndex(a.getMatchingRule(), value);
+        final Set<DN> dns = index.get(key);
+        if (dns != null)
+        {
+          dns.remove(dn);
+          if (dns.isEmpty())
+          {
+            index.remove(key);
+          }
+        }
+      }
+    }
+  }
+
+
+
+  private static String normalize(final MatchingRule matchingRule,
+                                  final ASN1OctetString value)
+  {
+    try
+    {
+      return matchingRule.normalize(value).stringValue();
+    }
+    catch (final LDAPException le)
+    {
+      Debug.debugException(le);
+      return null;
+    }
+  }
+
+
+
+  private static String normalizeForIndex(final MatchingRule matchingRule,
+                                          final ASN1OctetString value)
+  {
+    final String normalized = normalize(matchingRule, value);
+    return (normalized == null) ? value.stringValue() : normalized;
+  }
+
+
+
+  private Set<DN> getChildren(final DN parentDN, final boolean create)
+  {
+    Set<DN> dns = children.get(parentDN);
+    if ((dns == null) && create)
+    {
+      dns = newDNSet();
+      children.put(parentDN, dns);
+    }
+    return dns;
+  }
+
+
+
+  private static Set<DN> newDNSet()
+  {
+    return Collections.newSetFromMap(new ConcurrentHashMap<DN,Boolean>(4));
+  }
+
+
+
+  private Entry getExistingEntry(final DN dn)
+       throws LDAPException
+  {
+    final Entry entry = entries.get(dn);
+    if (entry == null)
+    {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT,
+           ERR_MEM_HANDLER_NO_SUCH_ENTRY.get(dn),
+           getMatchedDN(dn), null);
+    }
+    return entry;
+  }
+
+
+
+  private String getMatchedDN(final DN dn)
+  {
+    DN parentDN = dn.getParent();
+    while (parentDN != null)
+    {
+      if (entries.containsKey(parentDN))
+      {
+        return parentDN.toString();
+      }
+      parentDN = parentDN.getParent();
+    }
+    return null;
+  }
+
+
+
+  private boolean isWithinBaseDN(final DN dn)
+  {
+    for (final DN baseDN : baseDNs)
+    {
+      if (dn.isDescendantOf(baseDN, true))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+
+  private static void assertRDNValuesPresent(final Entry entry)
+       throws LDAPException
+  {
+    final RDN rdn = entry.getRDN();
+    if (rdn == null)
+    {
+      return;
+    }
+
+    final String[] names = rdn.getAttributeNames();
+    final byte[][] values = rdn.getByteArrayAttributeValues();
+    for (int i = 0; i < names.length; i++)
+    {
+      if (! entry.hasAttributeValue(names[i], values[i]))
+      {
+        throw new LDAPException(ResultCode.NOT_ALLOWED_ON_RDN,
+             ERR_MEM_HANDLER_MOD_REMOVES_RDN_VALUE.get(entry.getDN(),
+                  names[i], rdn.getAttributeValues()[i]));
+      }
+    }
+  }
+}
@@ -0,0 +1,651 @@
+package com.hwlcn.ldap.ldap.listener;
+
+
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.asn1.ASN1OctetString;
+import com.hwlcn.ldap.ldap.sdk.Attribute;
+import com.hwlcn.ldap.ldap.sdk.DN;
+import com.hwlcn.ldap.ldap.sdk.Entry;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnection;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnectionPool;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.ldap.ldap.sdk.controls.SimplePagedResultsControl;
+import com.hwlcn.ldap.ldif.LDIFException;
+import com.hwlcn.ldap.ldif.LDIFReader;
+import com.hwlcn.ldap.util.Debug;
+import com.hwlcn.ldap.util.LDAPSDKThreadFactory;
+import com.hwlcn.ldap.util.StaticUtils;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.ldap.listener.ListenerMessages.*;
+import static com.hwlcn.ldap.util.Validator.*;
+
+
+
+/**
+ * This class provides an embeddable LDAPv3 directory server that keeps all of
+ * its data in memory.  It is intended as a stand-in for a real directory in
+ * integration tests and as a target for load and connection pool benchmarks.
+ * <BR><BR>
+ * The server supports simple bind, search (including the simple paged results
+ * control), add, delete, modify, modify DN of leaf entries and compare.  Each
+ * client connection is served by its own thread.  Entries are held in
+ * concurrent maps with an index of each entry's children and equality indexes
+ * on the attributes given at construction time, so searches never block and
+ * equality filters on indexed attributes do not scan.  A paged search is
+ * evaluated once, when its first page is requested, and its later pages are
+ * read from that result set.  There is no schema checking and no access
+ * control.
+ * <BR><BR>
+ * <H2>Example</H2>
+ * <PRE>
+ *   InMemoryDirectoryServer server =
+ *        new InMemoryDirectoryServer("dc=example,dc=com");
+ *   server.addAdditionalBindCredentials("cn=Directory Manager", "password");
+ *   server.importFromLDIF(true, "test-data.ldif");
+ *   server.startListening();
+ *
+ *   LDAPConnection conn = server.getConnection();
+ *   ...
+ *   server.shutDown(true);
+ * </PRE>
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class InMemoryDirectoryServer
+{
+  /**
+   * The attributes that are indexed for equality unless others are given.
+   */
+  public static final List<String> DEFAULT_INDEXED_ATTRIBUTES =
+       Collections.unmodifiableList(Arrays.asList("objectClass", "uid", "cn",
+            "ou", "mail", "member", "uniqueMember", "memberOf"));
+
+  private static final int DEFAULT_MAX_MESSAGE_SIZE = 20971520;
+
+  private static final int LISTEN_BACKLOG = 512;
+
+
+  private final InMemoryDataStore dataStore;
+
+  private final Entry rootDSE;
+
+  private final ConcurrentHashMap<DN,byte[]> additionalBindCredentials;
+
+  private final Set<InMemoryClientConnection> connections;
+
+  private final AtomicLong operationCount;
+
+  private final AtomicLong connectionCount;
+
+  private volatile InetAddress listenAddress;
+
+  private volatile int listenPort;
+
+  private volatile int maxConnections;
+
+  private volatile int maxMessageSize;
+
+  private ServerSocket serverSocket;
+
+  private Thread acceptThread;
+
+  private ExecutorService connectionThreads;
+
+
+
+  /**
+   * Creates a server for the given base DNs that indexes
+   * {@link #DEFAULT_INDEXED_ATTRIBUTES}.
+   */
+  public InMemoryDirectoryServer(final String... baseDNs)
+         throws LDAPException
+  {
+    this(DEFAULT_INDEXED_ATTRIBUTES, baseDNs);
+  }
+
+
+
+  public InMemoryDirectoryServer(final Collection<String> indexedAttributes,
+                                 final String... baseDNs)
+         throws LDAPException
+  {
+    ensureNotNull(indexedAttributes, baseDNs);
+    ensureTrue(baseDNs.length > 0,
+         "InMemoryDirectoryServer requires at least one base DN.");
+
+    final ArrayList<DN> dns = new ArrayList<DN>(baseDNs.length);
+    for (final String baseDN : baseDNs)
+    {
+      dns.add(new DN(baseDN));
+    }
+
+    dataStore = new InMemoryDataStore(dns,
+         new LinkedHashSet<String>(indexedAttributes));
+    rootDSE = new Entry(DN.NULL_DN,
+         new Attribute("objectClass", "top", "ds-root-dse"),
+         new Attribute("namingContexts", baseDNs),
+         new Attribute("supportedControl",
+              SimplePagedResultsControl.PAGED_RESULTS_OID),
+         new Attribute("supportedLDAPVersion", "3"),
+         new Attribute("vendorName", "hwlcn"));
+
+    additionalBindCredentials = new ConcurrentHashMap<DN,byte[]>();
+    connections = Collections.newSetFromMap(
+         new ConcurrentHashMap<InMemoryClientConnection,Boolean>());
+    operationCount = new AtomicLong(0L);
+    connectionCount = new AtomicLong(0L);
+    listenPort = 0;
+    maxConnections = 0;
+    maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+  }
+
+
+
+  public List<DN> getBaseDNs()
+  {
+    return dataStore.getBaseDNs();
+  }
+
+
+
+  public Set<String> getIndexedAttributes()
+  {
+    return dataStore.getIndexedAttributes();
+  }
+
+
+
+  /**
+   * Sets the address to listen on; {@code null}, the default, listens on all
+   * interfaces.  Takes effect on the next call to {@link #startListening}.
+   */
+  public void setListenAddress(final InetAddress listenAddress)
+  {
+    this.listenAddress = listenAddress;
+  }
+
+
+
+  /**
+   * Sets the port to listen on; zero, the default, picks a free port.  Takes
+   * effect on the next call to {@link #startListening}.
+   */
+  public void setListenPort(final int listenPort)
+  {
+    this.listenPort = listenPort;
+  }
+
+
+
+  /**
+   * Sets the maximum number of concurrent client connections; further
+   * connections are closed as soon as they are accepted.  Zero, the default,
+   * means no limit.
+   */
+  public void setMaxConnections(final int maxConnections)
+  {
+    this.maxConnections = maxConnections;
+  }
+
+
+
+  public void setMaxMessageSize(final int maxMessageSize)
+  {
+    this.maxMessageSize = maxMessageSize;
+  }
+
+
+
+  /**
+   * Allows simple binds as the given DN with the given password, whether or
+   * not an entry with that DN exists.  Binds as any other DN are checked
+   * against the entry's {@code userPassword} values.
+   */
+  public void addAdditionalBindCredentials(final String dn,
+                                           final String password)
+         throws LDAPException
+  {
+    ensureNotNull(dn, password);
+    additionalBindCredentials.put(new DN(dn),
+         StaticUtils.getBytes(password));
+  }
+
+
+
+  /**
+   * Starts accepting client connections.
+   *
+   * @throws  LDAPException  If the server is already listening or the server
+   *                         socket cannot be created.
+   */
+  public synchronized void startListening()
+         throws LDAPException
+  {
+    if (serverSocket != null)
+    {
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_DS_ALREADY_LISTENING.get(serverSocket.getLocalPort()));
+    }
+
+    final ServerSocket socket;
+    try
+    {
+      socket = new ServerSocket();
+      socket.setReuseAddress(true);
+      socket.bind(new InetSocketAddress(listenAddress, listenPort),
+           LISTEN_BACKLOG);
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_DS_CANNOT_LISTEN.get(listenPort,
+                StaticUtils.getExceptionMessage(ioe)), ioe);
+    }
+
+    serverSocket = socket;
+    connectionThreads = Executors.newCachedThreadPool(
+         new LDAPSDKThreadFactory("In-Memory Directory Server Connection",
+              true));
+    acceptThread = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        acceptConnections(socket, connectionThreads);
+      }
+    }, "In-Memory Directory Server Listener on port " +
+         socket.getLocalPort());
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+
+
+  private void acceptConnections(final ServerSocket socket,
+                                 final ExecutorService executor)
+  {
+    while (! socket.isClosed())
+    {
+      final Socket s;
+      try
+      {
+        s = socket.accept();
+      }
+      catch (final IOException ioe)
+      {
+        // shutDown closed the server socket
+        Debug.debugException(ioe);
+        return;
+      }
+
+      final int max = maxConnections;
+      if ((max > 0) && (connections.size() >= max))
+      {
+        closeQuietly(s);
+        continue;
+      }
+
+      try
+      {
+        final InMemoryClientConnection connection =
+             new InMemoryClientConnection(this, dataStore, s, maxMessageSize);
+        connections.add(connection);
+        connectionCount.incrementAndGet();
+        executor.execute(connection);
+      }
+      catch (final Exception e)
+      {
+        Debug.debugException(e);
+        closeQuietly(s);
+      }
+    }
+  }
+
+
+
+  /**
+   * Stops accepting connections.
+   *
+   * @param  closeExistingConnections  Whether to also disconnect the clients
+   *                                   that are currently connected.
+   */
+  public void shutDown(final boolean closeExistingConnections)
+  {
+    final ServerSocket socket;
+    final Thread thread;
+    final ExecutorService executor;
+    synchronized (this)
+    {
+      socket = serverSocket;
+      thread = acceptThread;
+      executor = connectionThreads;
+      serverSocket = null;
+      acceptThread = null;
+      connectionThreads = null;
+    }
+
+    if (socket == null)
+    {
+      return;
+    }
+
+    try
+    {
+      socket.close();
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+    }
+
+    try
+    {
+      thread.join();
+    }
+    catch (final InterruptedException ie)
+    {
+      Debug.debugException(ie);
+      Thread.currentThread().interrupt();
+    }
+
+    if (closeExistingConnections)
+    {
+      for (final InMemoryClientConnection c :
+           new ArrayList<InMemoryClientConnection>(connections))
+      {
+        c.close();
+      }
+    }
+    executor.shutdown();
+  }
+
+
+
+  private static void closeQuietly(final Socket s)
+  {
+    try
+    {
+      s.close();
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+    }
+  }
+
+
+
+  /**
+   * Returns the port the server is listening on, or the configured port if it
+   * is not listening.
+   */
+  public synchronized int getListenPort()
+  {
+    return (serverSocket == null) ? listenPort : serverSocket.getLocalPort();
+  }
+
+
+
+  /**
+   * Opens a new, unauthenticated connection to this server.
+   */
+  public LDAPConnection getConnection()
+         throws LDAPException
+  {
+    final int port = getListenPort();
+    if (port <= 0)
+    {
+      throw new LDAPException(ResultCode.CONNECT_ERROR,
+           ERR_MEM_DS_NOT_LISTENING.get());
+    }
+
+    final InetAddress address = listenAddress;
+    final String host = ((address == null) || address.isAnyLocalAddress())
+         ? "127.0.0.1"
+         : address.getHostAddress();
+    return new LDAPConnection(host, port);
+  }
+
+
+
+  /**
+   * Creates a pool of unauthenticated connections to this server.
+   */
+  public LDAPConnectionPool getConnectionPool(final int maxConnections)
+         throws LDAPException
+  {
+    return new LDAPConnectionPool(getConnection(), 1, maxConnections);
+  }
+
+
+
+  public void add(final Entry entry)
+         throws LDAPException
+  {
+    ensureNotNull(entry);
+    dataStore.add(entry);
+  }
+
+
+
+  public void add(final String... ldifLines)
+         throws LDIFException, LDAPException
+  {
+    add(new Entry(ldifLines));
+  }
+
+
+
+  /**
+   * Returns a copy of the entry with the given DN, or {@code null} if there
+   * is no such entry.
+   */
+  public Entry getEntry(final String dn)
+         throws LDAPException
+  {
+    final Entry entry = dataStore.getEntry(new DN(dn));
+    return (entry == null) ? null : entry.duplicate();
+  }
+
+
+
+  public int countEntries()
+  {
+    return dataStore.size();
+  }
+
+
+
+  public void clear()
+  {
+    dataStore.clear();
+  }
+
+
+
+  /**
+   * Adds every entry in the given LDIF file.
+   *
+   * @param  clear  Whether to remove all existing entries first.
+   * @param  path   The path of the LDIF file.
+   *
+   * @return  The number of entries added.
+   */
+  public int importFromLDIF(final boolean clear, final String path)
+         throws LDAPException
+  {
+    final LDIFReader reader;
+    try
+    {
+      reader = new LDIFReader(path);
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_DS_INIT_FROM_LDIF_CANNOT_CREATE_READER.get(path,
+                StaticUtils.getExceptionMessage(ioe)), ioe);
+    }
+
+    return importFromLDIF(clear, reader);
+  }
+
+
+
+  /**
+   * Adds every entry read from the given reader, which is closed afterwards.
+   * Parents must appear before their children.
+   *
+   * @return  The number of entries added.
+   */
+  public int importFromLDIF(final boolean clear, final LDIFReader reader)
+         throws LDAPException
+  {
+    ensureNotNull(reader);
+    if (clear)
+    {
+      dataStore.clear();
+    }
+
+    int count = 0;
+    try
+    {
+      Entry entry;
+      while ((entry = reader.readEntry()) != null)
+      {
+        dataStore.add(entry);
+        count++;
+      }
+      return count;
+    }
+    catch (final IOException ioe)
+    {
+      Debug.debugException(ioe);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_DS_INIT_FROM_LDIF_READ_ERROR.get(count,
+                StaticUtils.getExceptionMessage(ioe)), ioe);
+    }
+    catch (final LDIFException le)
+    {
+      Debug.debugException(le);
+      throw new LDAPException(ResultCode.LOCAL_ERROR,
+           ERR_MEM_DS_INIT_FROM_LDIF_PARSE_ERROR.get(count,
+                StaticUtils.getExceptionMessage(le)), le);
+    }
+    finally
+    {
+      try
+      {
+        reader.close();
+      }
+      catch (final IOException ioe)
+      {
+        Debug.debugException(ioe);
+      }
+    }
+  }
+
+
+
+  /**
+   * Returns the number of operations processed since the server was created.
+   */
+  public long getOperationCount()
+  {
+    return operationCount.get();
+  }
+
+
+
+  /**
+   * Returns the number of client connections accepted since the server was
+   * created.
+   */
+  public long getTotalConnectionCount()
+  {
+    return connectionCount.get();
+  }
+
+
+
+  public int getActiveConnectionCount()
+  {
+    return connections.size();
+  }
+
+
+
+  Entry getRootDSE()
+  {
+    return rootDSE;
+  }
+
+
+
+  boolean isValidPassword(final DN dn, final ASN1OctetString password)
+  {
+    if (password.getValueLength() == 0)
+    {
+      return false;
+    }
+
+    final byte[] passwordBytes = password.getValue();
+    final byte[] additional = additionalBindCredentials.get(dn);
+    if (additional != null)
+    {
+      return Arrays.equals(additional, passwordBytes);
+    }
+
+    final Entry entry = dataStore.getEntry(dn);
+    if (entry == null)
+    {
+      return false;
+    }
+    final Attribute userPassword = entry.getAttribute("userPassword");
+    if (userPassword == null)
+    {
+      return false;
+    }
+    for (final byte[] value : userPassword.getValueByteArrays())
+    {
+      if (Arrays.equals(value, passwordBytes))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+
+  void operationCompleted()
+  {
+    operationCount.incrementAndGet();
+  }
+
+
+
+  void connectionClosed(final InMemoryClientConnection connection)
+  {
+    connections.remove(connection);
+  }
+}
@@ -0,0 +1,305 @@
+package com.hwlcn.ldap.ldap.loadgen;
+
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.hwlcn.core.annotation.Mutable;
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.util.Validator.*;
+
+
+
+/**
+ * This class provides a fixed-size histogram of operation latencies with
+ * microsecond resolution.  Latencies below 64 microseconds are counted
+ * exactly; larger values fall into log-linear buckets, 32 per power of two, so
+ * any reported percentile is within about three percent of the true value no
+ * matter how wide the spread.  Recording is a single atomic increment and
+ * never allocates, so many threads can share one histogram.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class LatencyHistogram
+{
+  // Values below this are counted in a bucket of their own.
+  private static final int LINEAR_BUCKETS = 64;
+
+  // The number of bits of precision kept for larger values.
+  private static final int SUB_BUCKET_BITS = 5;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // The exponent of the smallest value that is not counted exactly.
+  private static final int FIRST_EXPONENT = 6;
+
+  // Values above 2^41 microseconds (about 25 days) share the last bucket.
+  private static final int LAST_EXPONENT = 41;
+
+  private static final int NUM_BUCKETS =
+       LINEAR_BUCKETS + ((LAST_EXPONENT - FIRST_EXPONENT + 1) * SUB_BUCKETS);
+
+
+
+  // The number of values recorded in each bucket.
+  private final AtomicLongArray buckets;
+
+  // The number of values recorded.
+  private final AtomicLong count;
+
+  // The sum of all values recorded, in microseconds.
+  private final AtomicLong totalMicros;
+
+  // The largest value recorded, in microseconds.
+  private final AtomicLong maxMicros;
+
+
+
+  /**
+   * Creates a new empty histogram.
+   */
+  public LatencyHistogram()
+  {
+    buckets     = new AtomicLongArray(NUM_BUCKETS);
+    count       = new AtomicLong(0L);
+    totalMicros = new AtomicLong(0L);
+    maxMicros   = new AtomicLong(0L);
+  }
+
+
+
+  /**
+   * Records one operation that took the given number of nanoseconds.
+   *
+   * @param  durationNanos  The duration of the operation in nanoseconds.
+   */
+  public void recordNanos(final long durationNanos)
+  {
+    recordMicros(durationNanos / 1000L);
+  }
+
+
+
+  /**
+   * Records one operation that took the given number of microseconds.
+   *
+   * @param  durationMicros  The duration of the operation in microseconds.
+   *                         Negative values are recorded as zero.
+   */
+  public void recordMicros(final long durationMicros)
+  {
+    final long micros = Math.max(0L, durationMicros);
+    buckets.incrementAndGet(bucketIndex(micros));
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+
+    long max = maxMicros.get();
+    while ((micros > max) && (! maxMicros.compareAndSet(max, micros)))
+    {
+      max = maxMicros.get();
+    }
+  }
+
+
+
+  /**
+   * Moves everything recorded in this histogram into the provided histogram
+   * and resets this one.  Values recorded concurrently end up in one of the
+   * two histograms, never in both and never in neither.
+   *
+   * @param  target  The histogram to receive the values.  It may be
+   *                 {@code null} if the values should simply be discarded.
+   *
+   * @return  A copy of the values that were moved, which will not change.
+   */
+  public LatencyHistogram drainTo(final LatencyHistogram target)
+  {
+    final LatencyHistogram snapshot = new LatencyHistogram();
+
+    long n = 0L;
+    for (int i=0; i < NUM_BUCKETS; i++)
+    {
+      if (buckets.get(i) == 0L)
+      {
+        continue;
+      }
+
+      final long c = buckets.getAndSet(i, 0L);
+      snapshot.buckets.set(i, c);
+      n += c;
+      if (target != null)
+      {
+        target.buckets.addAndGet(i, c);
+      }
+    }
+
+    // The count is derived from what was actually moved so that the
+    // percentiles of a snapshot always agree with its count.
+    count.addAndGet(-n);
+    snapshot.count.set(n);
+
+    final long total = totalMicros.getAndSet(0L);
+    snapshot.totalMicros.set(total);
+
+    final long max = maxMicros.getAndSet(0L);
+    snapshot.maxMicros.set(max);
+
+    if (target != null)
+    {
+      target.count.addAndGet(n);
+      target.totalMicros.addAndGet(total);
+
+      long targetMax = target.maxMicros.get();
+      while ((max > targetMax) &&
+             (! target.maxMicros.compareAndSet(targetMax, max)))
+      {
+        targetMax = target.maxMicros.get();
+      }
+    }
+
+    return snapshot;
+  }
+
+
+
+  /**
+   * Retrieves the number of values recorded.
+   *
+   * @return  The number of values recorded.
+   */
+  public long getCount()
+  {
+    return count.get();
+  }
+
+
+
+  /**
+   * Retrieves the largest value recorded.
+   *
+   * @return  The largest value recorded in microseconds, or zero if the
+   *          histogram is empty.
+   */
+  public long getMaxMicros()
+  {
+    return maxMicros.get();
+  }
+
+
+
+  /**
+   * Retrieves the average of the values recorded.
+   *
+   * @return  The average value in microseconds, or zero if the histogram is
+   *          empty.
+   */
+  public double getMeanMicros()
+  {
+    final long n = count.get();
+    if (n <= 0L)
+    {
+      return 0.0d;
+    }
+
+    return ((double) totalMicros.get()) / n;
+  }
+
+
+
+  /**
+   * Retrieves the value below which the given fraction of the recorded values
+   * fall.  The result is the upper bound of the bucket holding that value,
+   * capped at the largest value recorded.
+   *
+   * @param  fraction  The fraction of values, between 0.0 and 1.0, so that
+   *                   0.99 requests the 99th percentile.
+   *
+   * @return  The requested percentile in microseconds, or zero if the
+   *          histogram is empty.
+   */
+  public long getPercentileMicros(final double fraction)
+  {
+    ensureTrue((fraction >= 0.0d) && (fraction <= 1.0d),
+         "LatencyHistogram.fraction must be between 0.0 and 1.0.");
+
+    long n = 0L;
+    final long[] counts = new long[NUM_BUCKETS];
+    for (int i=0; i < NUM_BUCKETS; i++)
+    {
+      counts[i] = buckets.get(i);
+      n += counts[i];
+    }
+
+    if (n == 0L)
+    {
+      return 0L;
+    }
+
+    final long rank = Math.max(1L, (long) Math.ceil(fraction * n));
+    long seen = 0L;
+    for (int i=0; i < NUM_BUCKETS; i++)
+    {
+      seen += counts[i];
+      if (seen >= rank)
+      {
+        return Math.min(bucketUpperBound(i), maxMicros.get());
+      }
+    }
+
+    return maxMicros.get();
+  }
+
+
+
+  /**
+   * Retrieves the index of the bucket that holds the given value.
+   *
+   * @param  micros  The non-negative value to place.
+   *
+   * @return  The index of the bucket that holds the given value.
+   */
+  private static int bucketIndex(final long micros)
+  {
+    if (micros < LINEAR_BUCKETS)
+    {
+      return (int) micros;
+    }
+
+    final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > LAST_EXPONENT)
+    {
+      return NUM_BUCKETS - 1;
+    }
+
+    final int subBucket =
+         (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    return LINEAR_BUCKETS + ((exponent - FIRST_EXPONENT) * SUB_BUCKETS) +
+         subBucket;
+  }
+
+
+
+  /**
+   * Retrieves the largest value that would be placed in the given bucket.
+   *
+   * @param  index  The index of the bucket.
+   *
+   * @return  The largest value that would be placed in the given bucket.
+   */
+  private static long bucketUpperBound(final int index)
+  {
+    if (index < LINEAR_BUCKETS)
+    {
+      return index;
+    }
+
+    final int offset = index - LINEAR_BUCKETS;
+    final int exponent = FIRST_EXPONENT + (offset / SUB_BUCKETS);
+    final long subBucket = offset % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1L) << (exponent - SUB_BUCKET_BITS)) -
+         1L;
+  }
+}
@@ -0,0 +1,605 @@
+package com.hwlcn.ldap.ldap.loadgen;
+
+
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.hwlcn.core.annotation.Mutable;
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnectionPool;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.ldap.util.ColumnFormatter;
+import com.hwlcn.ldap.util.FixedRateBarrier;
+import com.hwlcn.ldap.util.FormattableColumn;
+import com.hwlcn.ldap.util.HorizontalAlignment;
+import com.hwlcn.ldap.util.ObjectPair;
+import com.hwlcn.ldap.util.OutputFormat;
+import com.hwlcn.ldap.util.ResultCodeCounter;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.util.Validator.*;
+
+
+
+/**
+ * This class drives a weighted mix of {@link LoadOperation}s against a
+ * directory server through an {@link LDAPConnectionPool}, using a fixed number
+ * of threads and, optionally, a target overall rate enforced with a
+ * {@link FixedRateBarrier}.  At the end of every reporting interval it writes
+ * one line with the throughput, error rate, latency percentiles and result
+ * code distribution for that interval, as aligned columns, CSV or JSON, and
+ * when the run ends it writes the same figures for the run as a whole.
+ * <BR><BR>
+ * <H2>Example</H2>
+ * <PRE>
+ *   LoadGenerator generator = new LoadGenerator(pool,
+ *        LoadOperation.search(8, "dc=example,dc=com", SearchScope.SUB,
+ *             "(uid=user.[1-1000000])", "cn", "mail"),
+ *        LoadOperation.bind(1,
+ *             "uid=user.[1-1000000],ou=People,dc=example,dc=com", "password"),
+ *        LoadOperation.modify(1,
+ *             "uid=user.[1-1000000],ou=People,dc=example,dc=com",
+ *             "description", "load test [1-1000000]"));
+ *   generator.setNumThreads(16);
+ *   generator.setTargetRate(5000);
+ *   generator.setNumIntervals(12);
+ *   generator.setReportFormat(LoadGenerator.ReportFormat.CSV);
+ *   LoadStatistics total = generator.run();
+ * </PRE>
+ * Latency is measured from the moment a thread starts an operation, so when
+ * the server cannot keep up with the target rate the shortfall shows up as
+ * reduced throughput rather than as added latency.
+ */
+@Mutable()
+@ThreadSafety(level=ThreadSafetyLevel.MOSTLY_NOT_THREADSAFE)
+public final class LoadGenerator
+{
+  /**
+   * The formats in which a load generator can report its results.
+   */
+  public enum ReportFormat
+  {
+    /**
+     * Aligned columns for reading in a terminal.
+     */
+    COLUMNS,
+
+
+
+    /**
+     * Comma-separated values with a single header line.
+     */
+    CSV,
+
+
+
+    /**
+     * One JSON object per line.
+     */
+    JSON;
+  }
+
+
+
+  // The pool used to process operations.
+  private final LDAPConnectionPool pool;
+
+  // The operations in the mix.
+  private final LoadOperation[] operations;
+
+  // The running total of the operation weights, parallel to operations.
+  private final int[] cumulativeWeights;
+
+  // Set once the run should end early.
+  private final CountDownLatch stopLatch;
+
+  // Set once run has been called.
+  private final AtomicBoolean started;
+
+  // The statistics for each interval completed so far.
+  private final List<LoadStatistics> intervalStatistics;
+
+  // The barrier pacing the workers, if the run has a target rate.
+  private volatile FixedRateBarrier barrier;
+
+  // The configuration, which may not be changed once the run starts.
+  private int numThreads = 1;
+  private int targetRate = 0;
+  private int intervalDurationSeconds = 5;
+  private int numIntervals = 0;
+  private int warmUpIntervals = 0;
+  private ReportFormat reportFormat = ReportFormat.COLUMNS;
+  private PrintStream out = System.out;
+
+
+
+  /**
+   * Creates a new load generator.
+   *
+   * @param  pool        The connection pool to use.  It should have at least
+   *                     as many connections as there will be threads.
+   * @param  operations  The operations in the mix.  At least one must be
+   *                     given.
+   */
+  public LoadGenerator(final LDAPConnectionPool pool,
+                       final LoadOperation... operations)
+  {
+    this(pool, (operations == null) ? null : Arrays.asList(operations));
+  }
+
+
+
+  /**
+   * Creates a new load generator.
+   *
+   * @param  pool        The connection pool to use.  It should have at least
+   *                     as many connections as there will be threads.
+   * @param  operations  The operations in the mix.  At least one must be
+   *                     given.
+   */
+  public LoadGenerator(final LDAPConnectionPool pool,
+                       final List<LoadOperation> operations)
+  {
+    ensureNotNull(pool, operations);
+    ensureFalse(operations.isEmpty(),
+         "LoadGenerator.operations must not be empty.");
+
+    this.pool       = pool;
+    this.operations = operations.toArray(new LoadOperation[operations.size()]);
+
+    cumulativeWeights = new int[this.operations.length];
+    int total = 0;
+    for (int i=0; i < this.operations.length; i++)
+    {
+      ensureNotNull(this.operations[i]);
+      total += this.operations[i].getWeight();
+      cumulativeWeights[i] = total;
+    }
+
+    stopLatch          = new CountDownLatch(1);
+    started            = new AtomicBoolean(false);
+    intervalStatistics = Collections.synchronizedList(
+         new ArrayList<LoadStatistics>());
+  }
+
+
+
+  /**
+   * Specifies the number of threads that will issue operations concurrently.
+   * The default is one.
+   *
+   * @param  numThreads  The number of threads.  It must be greater than zero.
+   */
+  public void setNumThreads(final int numThreads)
+  {
+    ensureTrue(numThreads > 0,
+         "LoadGenerator.numThreads must be greater than zero.");
+    ensureNotStarted();
+    this.numThreads = numThreads;
+  }
+
+
+
+  /**
+   * Specifies the total number of operations per second to aim for across all
+   * threads.  The default of zero issues operations as fast as the threads can
+   * process them.  A run that was started with a target rate may have it
+   * changed while running, to step the load up or down without restarting.
+   *
+   * @param  targetRate  The target number of operations per second, or zero
+   *                     for no limit.
+   */
+  public void setTargetRate(final int targetRate)
+  {
+    ensureTrue(targetRate >= 0,
+         "LoadGenerator.targetRate must not be negative.");
+    if (started.get())
+    {
+      final FixedRateBarrier b = barrier;
+      ensureTrue((b != null) && (targetRate > 0),
+           "LoadGenerator.targetRate may only be changed while running if " +
+                "the run was started with a target rate.");
+      b.setRate(1000L, targetRate);
+    }
+    this.targetRate = targetRate;
+  }
+
+
+
+  /**
+   * Specifies the length of each reporting interval.  The default is five
+   * seconds.
+   *
+   * @param  intervalDurationSeconds  The length of each reporting interval in
+   *                                  seconds.  It must be greater than zero.
+   */
+  public void setIntervalDurationSeconds(final int intervalDurationSeconds)
+  {
+    ensureTrue(intervalDurationSeconds > 0,
+         "LoadGenerator.intervalDurationSeconds must be greater than zero.");
+    ensureNotStarted();
+    this.intervalDurationSeconds = intervalDurationSeconds;
+  }
+
+
+
+  /**
+   * Specifies the number of reporting intervals after which the run ends,
+   * including any warm-up intervals.  The default of zero runs until
+   * {@link #stop} is called.
+   *
+   * @param  numIntervals  The number of intervals to run, or zero to run
+   *                       until stopped.
+   */
+  public void setNumIntervals(final int numIntervals)
+  {
+    ensureTrue(numIntervals >= 0,
+         "LoadGenerator.numIntervals must not be negative.");
+    ensureNotStarted();
+    this.numIntervals = numIntervals;
+  }
+
+
+
+  /**
+   * Specifies the number of intervals at the start of the run that are
+   * reported but left out of the totals, to let connection pools, caches and
+   * the JIT settle.  The default is zero.
+   *
+   * @param  warmUpIntervals  The number of warm-up intervals.
+   */
+  public void setWarmUpIntervals(final int warmUpIntervals)
+  {
+    ensureTrue(warmUpIntervals >= 0,
+         "LoadGenerator.warmUpIntervals must not be negative.");
+    ensureNotStarted();
+    this.warmUpIntervals = warmUpIntervals;
+  }
+
+
+
+  /**
+   * Specifies the format of the report.  The default is
+   * {@link ReportFormat#COLUMNS}.
+   *
+   * @param  reportFormat  The format of the report.
+   */
+  public void setReportFormat(final ReportFormat reportFormat)
+  {
+    ensureNotNull(reportFormat);
+    ensureNotStarted();
+    this.reportFormat = reportFormat;
+  }
+
+
+
+  /**
+   * Specifies where the report is written.  The default is standard output.
+   *
+   * @param  out  The stream to which the report is written, or {@code null}
+   *              if nothing should be written.
+   */
+  public void setOutput(final PrintStream out)
+  {
+    ensureNotStarted();
+    this.out = out;
+  }
+
+
+
+  /**
+   * Runs the load until the configured number of intervals has elapsed or
+   * {@link #stop} is called, writing one report line per interval.  A load
+   * generator can only be run once.
+   *
+   * @return  The statistics for the whole run, excluding warm-up intervals.
+   *
+   * @throws  InterruptedException  If the calling thread is interrupted.  The
+   *                                worker threads are stopped first.
+   */
+  public LoadStatistics run()
+         throws InterruptedException
+  {
+    ensureTrue(started.compareAndSet(false, true),
+         "LoadGenerator.run may only be called once.");
+
+    final LatencyHistogram intervalLatencies = new LatencyHistogram();
+    final LatencyHistogram totalLatencies = new LatencyHistogram();
+    final ResultCodeCounter intervalResultCodes = new ResultCodeCounter();
+    final ResultCodeCounter totalResultCodes = new ResultCodeCounter();
+
+    final FixedRateBarrier barrier;
+    if (targetRate > 0)
+    {
+      barrier = new FixedRateBarrier(1000L, targetRate);
+    }
+    else
+    {
+      barrier = null;
+    }
+    this.barrier = barrier;
+
+    final ColumnFormatter formatter = createFormatter();
+    if ((out != null) && (formatter != null))
+    {
+      for (final String line :
+           formatter.getHeaderLines(reportFormat == ReportFormat.COLUMNS))
+      {
+        out.println(line);
+      }
+    }
+
+    final AtomicBoolean stopWorkers = new AtomicBoolean(false);
+    final Thread[] workers = new Thread[numThreads];
+    final long seed = System.nanoTime();
+    for (int i=0; i < numThreads; i++)
+    {
+      workers[i] = new Thread(new Worker(new Random(seed + i), barrier,
+           stopWorkers, intervalLatencies, intervalResultCodes),
+           "LoadGenerator Worker " + (i+1));
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+
+    final long intervalNanos =
+         TimeUnit.SECONDS.toNanos(intervalDurationSeconds);
+    long totalNanos = 0L;
+    long intervalStart = System.nanoTime();
+    try
+    {
+      for (int i=1; (numIntervals == 0) || (i <= numIntervals); i++)
+      {
+        final long remaining =
+             intervalStart + intervalNanos - System.nanoTime();
+        final boolean stopped = ((remaining > 0L) &&
+             stopLatch.await(remaining, TimeUnit.NANOSECONDS)) ||
+             (stopLatch.getCount() == 0L);
+
+        final long now = System.nanoTime();
+        final boolean warmUp = (i <= warmUpIntervals);
+        final List<ObjectPair<ResultCode,Long>> rcCounts =
+             intervalResultCodes.getCounts(true);
+        final LatencyHistogram latencies =
+             intervalLatencies.drainTo(warmUp ? null : totalLatencies);
+        if (! warmUp)
+        {
+          totalNanos += (now - intervalStart);
+          for (final ObjectPair<ResultCode,Long> p : rcCounts)
+          {
+            totalResultCodes.increment(p.getFirst(),
+                 (int) Math.min(Integer.MAX_VALUE, p.getSecond()));
+          }
+        }
+
+        final LoadStatistics stats =
+             new LoadStatistics(i, now - intervalStart, latencies, rcCounts);
+        intervalStatistics.add(stats);
+        report(formatter, stats);
+
+        intervalStart = now;
+        if (stopped)
+        {
+          break;
+        }
+      }
+    }
+    finally
+    {
+      stopWorkers.set(true);
+      if (barrier != null)
+      {
+        barrier.shutdownRequested();
+      }
+      for (final Thread t : workers)
+      {
+        t.join();
+      }
+    }
+
+    final LoadStatistics total = new LoadStatistics(0, totalNanos,
+         totalLatencies, totalResultCodes.getCounts(false));
+    report(formatter, total);
+    return total;
+  }
+
+
+
+  /**
+   * Asks a running load generator to end the current interval early and then
+   * stop.  It has no effect if the run has already ended.
+   */
+  public void stop()
+  {
+    stopLatch.countDown();
+  }
+
+
+
+  /**
+   * Retrieves the statistics for every interval completed so far, including
+   * warm-up intervals.
+   *
+   * @return  The statistics for every interval completed so far.
+   */
+  public List<LoadStatistics> getIntervalStatistics()
+  {
+    synchronized (intervalStatistics)
+    {
+      return Collections.unmodifiableList(
+           new ArrayList<LoadStatistics>(intervalStatistics));
+    }
+  }
+
+
+
+  /**
+   * Ensures that the run has not started yet.
+   */
+  private void ensureNotStarted()
+  {
+    ensureFalse(started.get(),
+         "LoadGenerator configuration may not be changed once it is running.");
+  }
+
+
+
+  /**
+   * Picks the next operation to run according to the weights of the mix.
+   *
+   * @param  random  The random number generator of the calling thread.
+   *
+   * @return  The next operation to run.
+   */
+  private LoadOperation selectOperation(final Random random)
+  {
+    if (operations.length == 1)
+    {
+      return operations[0];
+    }
+
+    final int r = random.nextInt(cumulativeWeights[operations.length - 1]);
+    for (int i=0; i < operations.length; i++)
+    {
+      if (r < cumulativeWeights[i])
+      {
+        return operations[i];
+      }
+    }
+
+    return operations[operations.length - 1];
+  }
+
+
+
+  /**
+   * Creates the formatter for column and CSV reports.
+   *
+   * @return  The formatter, or {@code null} for JSON reports.
+   */
+  private ColumnFormatter createFormatter()
+  {
+    final OutputFormat format;
+    switch (reportFormat)
+    {
+      case CSV:
+        format = OutputFormat.CSV;
+        break;
+      case COLUMNS:
+        format = OutputFormat.COLUMNS;
+        break;
+      default:
+        return null;
+    }
+
+    return new ColumnFormatter(true, null, format, " ",
+         new FormattableColumn(8, HorizontalAlignment.RIGHT, "Interval"),
+         new FormattableColumn(10, HorizontalAlignment.RIGHT, "Ops/Sec"),
+         new FormattableColumn(10, HorizontalAlignment.RIGHT, "Errors/Sec"),
+         new FormattableColumn(9, HorizontalAlignment.RIGHT, "Avg ms"),
+         new FormattableColumn(9, HorizontalAlignment.RIGHT, "P50 ms"),
+         new FormattableColumn(9, HorizontalAlignment.RIGHT, "P90 ms"),
+         new FormattableColumn(9, HorizontalAlignment.RIGHT, "P99 ms"),
+         new FormattableColumn(9, HorizontalAlignment.RIGHT, "P99.9 ms"),
+         new FormattableColumn(9, HorizontalAlignment.RIGHT, "Max ms"),
+         new FormattableColumn(20, HorizontalAlignment.LEFT, "Result Codes"));
+  }
+
+
+
+  /**
+   * Writes one line of the report.
+   *
+   * @param  formatter  The formatter for column and CSV reports, or
+   *                    {@code null} for JSON reports.
+   * @param  stats      The statistics to report.
+   */
+  private void report(final ColumnFormatter formatter,
+                      final LoadStatistics stats)
+  {
+    if (out == null)
+    {
+      return;
+    }
+
+    if (formatter == null)
+    {
+      out.println(stats.toJSON());
+    }
+    else
+    {
+      out.println(formatter.formatRow(
+           stats.isSummary()
+                ? "total"
+                : String.valueOf(stats.getIntervalNumber()),
+           LoadStatistics.format(stats.getOperationsPerSecond()),
+           LoadStatistics.format(stats.getErrorsPerSecond()),
+           LoadStatistics.format(stats.getMeanLatencyMicros() / 1000.0d),
+           LoadStatistics.millis(stats.getP50LatencyMicros()),
+           LoadStatistics.millis(stats.getP90LatencyMicros()),
+           LoadStatistics.millis(stats.getP99LatencyMicros()),
+           LoadStatistics.millis(stats.getP999LatencyMicros()),
+           LoadStatistics.millis(stats.getMaxLatencyMicros()),
+           stats.getResultCodeSummary()));
+    }
+    out.flush();
+  }
+
+
+
+  /**
+   * The loop run by each worker thread.
+   */
+  private final class Worker
+          implements Runnable
+  {
+    private final Random random;
+
+    private final FixedRateBarrier barrier;
+
+    private final AtomicBoolean stop;
+
+    private final LatencyHistogram latencies;
+
+    private final ResultCodeCounter resultCodes;
+
+
+
+    private Worker(final Random random, final FixedRateBarrier barrier,
+                   final AtomicBoolean stop, final LatencyHistogram latencies,
+                   final ResultCodeCounter resultCodes)
+    {
+      this.random      = random;
+      this.barrier     = barrier;
+      this.stop        = stop;
+      this.latencies   = latencies;
+      this.resultCodes = resultCodes;
+    }
+
+
+
+    public void run()
+    {
+      while (! stop.get())
+      {
+        if ((barrier != null) && barrier.await())
+        {
+          break;
+        }
+
+        final LoadOperation op = selectOperation(random);
+        final long start = System.nanoTime();
+        final ResultCode resultCode = op.execute(pool);
+        latencies.recordNanos(System.nanoTime() - start);
+        resultCodes.increment(resultCode);
+      }
+    }
+  }
+}
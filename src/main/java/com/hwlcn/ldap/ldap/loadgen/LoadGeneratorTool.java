@@ -0,0 +1,355 @@
+package com.hwlcn.ldap.ldap.loadgen;
+
+
+
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnection;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnectionPool;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.ldap.ldap.sdk.SearchScope;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.util.Debug.*;
+
+
+
+/**
+ * This class provides a command-line front end for {@link LoadGenerator}.
+ * Arguments are given as {@code --name value} pairs:
+ * <UL>
+ *   <LI>{@code --hostname}, {@code --port} -- the server to load.  The
+ *       defaults are {@code localhost} and {@code 389}.</LI>
+ *   <LI>{@code --bindDN}, {@code --bindPassword} -- the credentials used by
+ *       the pooled connections.  Connections are unauthenticated if these are
+ *       omitted.</LI>
+ *   <LI>{@code --numThreads}, {@code --ratePerSecond},
+ *       {@code --intervalDurationSeconds}, {@code --numIntervals},
+ *       {@code --warmUpIntervals} -- see the corresponding
+ *       {@link LoadGenerator} setters.</LI>
+ *   <LI>{@code --outputFormat} -- {@code columns}, {@code csv} or
+ *       {@code json}.</LI>
+ *   <LI>{@code --searchWeight}, {@code --baseDN}, {@code --scope}
+ *       ({@code base}, {@code one} or {@code sub}), {@code --filter},
+ *       {@code --attributes} (comma-separated) -- the search part of the
+ *       mix.</LI>
+ *   <LI>{@code --bindWeight}, {@code --authDN}, {@code --authPassword} --
+ *       the bind part of the mix.</LI>
+ *   <LI>{@code --modifyWeight}, {@code --entryDN}, {@code --attribute},
+ *       {@code --value} -- the modify part of the mix.</LI>
+ * </UL>
+ * The base DN, filter, DNs, passwords and values are {@code ValuePattern}s.
+ * At least one weight must be given.  For example:
+ * <PRE>
+ *   java com.hwlcn.ldap.ldap.loadgen.LoadGeneratorTool --hostname ds1
+ *        --numThreads 16 --ratePerSecond 5000 --outputFormat csv
+ *        --searchWeight 9 --baseDN dc=example,dc=com --filter
+ *        "(uid=user.[1-1000000])" --modifyWeight 1 --entryDN
+ *        "uid=user.[1-1000000],ou=People,dc=example,dc=com"
+ *        --attribute description --value "updated [1-1000000]"
+ * </PRE>
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class LoadGeneratorTool
+{
+  /**
+   * Prevents this class from being instantiated.
+   */
+  private LoadGeneratorTool()
+  {
+    // No implementation required.
+  }
+
+
+
+  /**
+   * Runs the tool with the provided arguments and exits with zero if the run
+   * completed, or non-zero if it could not be started.
+   *
+   * @param  args  The command-line arguments.
+   */
+  public static void main(final String... args)
+  {
+    final int exitCode = run(System.out, System.err, args);
+    if (exitCode != 0)
+    {
+      System.exit(exitCode);
+    }
+  }
+
+
+
+  /**
+   * Runs the tool with the provided arguments.
+   *
+   * @param  out   The stream to which the report is written.
+   * @param  err   The stream to which errors are written.
+   * @param  args  The command-line arguments.
+   *
+   * @return  Zero if the run completed, or non-zero if it could not be
+   *          started.
+   */
+  public static int run(final PrintStream out, final PrintStream err,
+                        final String... args)
+  {
+    final Map<String,String> arguments = new HashMap<String,String>();
+    for (int i=0; i < args.length; i += 2)
+    {
+      if ((! args[i].startsWith("--")) || (i+1 >= args.length))
+      {
+        err.println("Expected '--name value' but got '" + args[i] + "'.");
+        return 1;
+      }
+      arguments.put(args[i].substring(2), args[i+1]);
+    }
+
+    final LoadGenerator generator;
+    LDAPConnectionPool pool = null;
+    boolean setupComplete = false;
+    try
+    {
+      final List<LoadOperation> mix = createOperations(arguments);
+      if (mix.isEmpty())
+      {
+        err.println("At least one of --searchWeight, --bindWeight or " +
+             "--modifyWeight must be given.");
+        return 1;
+      }
+
+      final int numThreads = getInt(arguments, "numThreads", 1);
+      final int rate = getInt(arguments, "ratePerSecond", 0);
+      final int intervalSeconds =
+           getInt(arguments, "intervalDurationSeconds", 5);
+      final int numIntervals = getInt(arguments, "numIntervals", 0);
+      final int warmUpIntervals = getInt(arguments, "warmUpIntervals", 0);
+      final LoadGenerator.ReportFormat format =
+           LoadGenerator.ReportFormat.valueOf(
+                get(arguments, "outputFormat", "columns").toUpperCase(
+                     Locale.ENGLISH));
+      if ((numThreads <= 0) || (rate < 0) || (intervalSeconds <= 0) ||
+          (numIntervals < 0) || (warmUpIntervals < 0))
+      {
+        throw new IllegalArgumentException("--numThreads and " +
+             "--intervalDurationSeconds must be positive and the other " +
+             "numeric arguments must not be negative.");
+      }
+
+      final LDAPConnection connection = new LDAPConnection(
+           get(arguments, "hostname", "localhost"),
+           getInt(arguments, "port", 389), arguments.get("bindDN"),
+           arguments.get("bindPassword"));
+      pool = new LDAPConnectionPool(connection, numThreads, numThreads);
+
+      generator = new LoadGenerator(pool, mix);
+      generator.setNumThreads(numThreads);
+      generator.setTargetRate(rate);
+      generator.setIntervalDurationSeconds(intervalSeconds);
+      generator.setNumIntervals(numIntervals);
+      generator.setWarmUpIntervals(warmUpIntervals);
+      generator.setReportFormat(format);
+      generator.setOutput(out);
+      setupComplete = true;
+    }
+    catch (final LDAPException le)
+    {
+      debugException(le);
+      err.println("Unable to connect to the server:  " + le.getMessage());
+      return 1;
+    }
+    catch (final ParseException pe)
+    {
+      debugException(pe);
+      err.println("Unable to parse a value pattern:  " + pe.getMessage());
+      return 1;
+    }
+    catch (final IllegalArgumentException iae)
+    {
+      debugException(iae);
+      err.println("Invalid argument value:  " + iae.getMessage());
+      return 1;
+    }
+    finally
+    {
+      if ((! setupComplete) && (pool != null))
+      {
+        pool.close();
+      }
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread()
+    {
+      @Override()
+      public void run()
+      {
+        generator.stop();
+      }
+    });
+
+    try
+    {
+      generator.run();
+      return 0;
+    }
+    catch (final InterruptedException ie)
+    {
+      debugException(ie);
+      Thread.currentThread().interrupt();
+      return 1;
+    }
+    finally
+    {
+      pool.close();
+    }
+  }
+
+
+
+  /**
+   * Creates the operations in the mix from the provided arguments.
+   *
+   * @param  arguments  The parsed arguments.
+   *
+   * @return  The operations in the mix.
+   *
+   * @throws  ParseException  If a value pattern cannot be parsed.
+   */
+  private static List<LoadOperation> createOperations(
+                                          final Map<String,String> arguments)
+          throws ParseException
+  {
+    final List<LoadOperation> mix = new ArrayList<LoadOperation>(3);
+
+    final int searchWeight = getInt(arguments, "searchWeight", 0);
+    if (searchWeight > 0)
+    {
+      final String attrs = arguments.get("attributes");
+      mix.add(LoadOperation.search(searchWeight,
+           get(arguments, "baseDN", ""), getScope(arguments),
+           get(arguments, "filter", "(objectClass=*)"),
+           (attrs == null) ? new String[0] : attrs.split(",")));
+    }
+
+    final int bindWeight = getInt(arguments, "bindWeight", 0);
+    if (bindWeight > 0)
+    {
+      mix.add(LoadOperation.bind(bindWeight, require(arguments, "authDN"),
+           require(arguments, "authPassword")));
+    }
+
+    final int modifyWeight = getInt(arguments, "modifyWeight", 0);
+    if (modifyWeight > 0)
+    {
+      mix.add(LoadOperation.modify(modifyWeight, require(arguments, "entryDN"),
+           get(arguments, "attribute", "description"),
+           require(arguments, "value")));
+    }
+
+    return mix;
+  }
+
+
+
+  /**
+   * Retrieves the search scope from the provided arguments.
+   *
+   * @param  arguments  The parsed arguments.
+   *
+   * @return  The search scope.
+   */
+  private static SearchScope getScope(final Map<String,String> arguments)
+  {
+    final String scope = get(arguments, "scope", "sub");
+    if (scope.equalsIgnoreCase("base"))
+    {
+      return SearchScope.BASE;
+    }
+    else if (scope.equalsIgnoreCase("one"))
+    {
+      return SearchScope.ONE;
+    }
+    else if (scope.equalsIgnoreCase("sub"))
+    {
+      return SearchScope.SUB;
+    }
+
+    throw new IllegalArgumentException("Unknown scope '" + scope + "'.");
+  }
+
+
+
+  /**
+   * Retrieves the value of an argument, or a default if it was not given.
+   *
+   * @param  arguments     The parsed arguments.
+   * @param  name          The name of the argument.
+   * @param  defaultValue  The value to use if the argument was not given.
+   *
+   * @return  The value of the argument.
+   */
+  private static String get(final Map<String,String> arguments,
+                            final String name, final String defaultValue)
+  {
+    final String value = arguments.get(name);
+    return (value == null) ? defaultValue : value;
+  }
+
+
+
+  /**
+   * Retrieves the value of a mandatory argument.
+   *
+   * @param  arguments  The parsed arguments.
+   * @param  name       The name of the argument.
+   *
+   * @return  The value of the argument.
+   */
+  private static String require(final Map<String,String> arguments,
+                                final String name)
+  {
+    final String value = arguments.get(name);
+    if (value == null)
+    {
+      throw new IllegalArgumentException("--" + name + " is required.");
+    }
+    return value;
+  }
+
+
+
+  /**
+   * Retrieves the integer value of an argument, or a default if it was not
+   * given.
+   *
+   * @param  arguments     The parsed arguments.
+   * @param  name          The name of the argument.
+   * @param  defaultValue  The value to use if the argument was not given.
+   *
+   * @return  The value of the argument.
+   */
+  private static int getInt(final Map<String,String> arguments,
+                            final String name, final int defaultValue)
+  {
+    final String value = arguments.get(name);
+    if (value == null)
+    {
+      return defaultValue;
+    }
+
+    try
+    {
+      return Integer.parseInt(value);
+    }
+    catch (final NumberFormatException nfe)
+    {
+      debugException(nfe);
+      throw new IllegalArgumentException("--" + name + " must be an integer.");
+    }
+  }
+}
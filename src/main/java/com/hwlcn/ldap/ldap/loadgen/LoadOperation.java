@@ -0,0 +1,332 @@
+package com.hwlcn.ldap.ldap.loadgen;
+
+
+
+import java.text.ParseException;
+
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnectionPool;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.ldap.ldap.sdk.Modification;
+import com.hwlcn.ldap.ldap.sdk.ModificationType;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.ldap.ldap.sdk.SearchRequest;
+import com.hwlcn.ldap.ldap.sdk.SearchScope;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+import com.hwlcn.ldap.util.ValuePattern;
+
+import static com.hwlcn.ldap.util.Debug.*;
+import static com.hwlcn.ldap.util.Validator.*;
+
+
+
+/**
+ * This class defines one kind of operation in the mix run by a
+ * {@link LoadGenerator}, along with its relative weight.  The DNs, filters and
+ * values used by each invocation are taken from {@link ValuePattern}s, so a
+ * pattern such as {@code uid=user.[1-1000000],ou=People,dc=example,dc=com}
+ * spreads the load across a million entries.
+ * <BR><BR>
+ * Instances are created with the {@link #search}, {@link #bind} and
+ * {@link #modify} factory methods, or by subclassing.  An operation is
+ * invoked concurrently by every thread of the load generator.
+ */
+@ThreadSafety(level=ThreadSafetyLevel.INTERFACE_THREADSAFE)
+public abstract class LoadOperation
+{
+  // The name used for this operation in reports.
+  private final String name;
+
+  // The relative weight of this operation in the mix.
+  private final int weight;
+
+
+
+  /**
+   * Creates a new load operation.
+   *
+   * @param  name    The name used for this operation in reports.  It must not
+   *                 be {@code null}.
+   * @param  weight  The relative weight of this operation in the mix.  It must
+   *                 be greater than zero.
+   */
+  protected LoadOperation(final String name, final int weight)
+  {
+    ensureNotNull(name);
+    ensureTrue(weight > 0, "LoadOperation.weight must be greater than zero.");
+
+    this.name   = name;
+    this.weight = weight;
+  }
+
+
+
+  /**
+   * Creates an operation that searches with a base DN and filter generated
+   * from the given patterns.
+   *
+   * @param  weight         The relative weight of the operation in the mix.
+   * @param  baseDNPattern  The value pattern for the search base DN.
+   * @param  scope          The scope for the search.
+   * @param  filterPattern  The value pattern for the search filter.
+   * @param  attributes     The attributes to request.  If none are given, all
+   *                        user attributes are returned.
+   *
+   * @return  The search operation.
+   *
+   * @throws  ParseException  If either pattern cannot be parsed.
+   */
+  public static LoadOperation search(final int weight,
+                                     final String baseDNPattern,
+                                     final SearchScope scope,
+                                     final String filterPattern,
+                                     final String... attributes)
+         throws ParseException
+  {
+    ensureNotNull(baseDNPattern, scope, filterPattern);
+    return new SearchOperation(weight, new ValuePattern(baseDNPattern), scope,
+         new ValuePattern(filterPattern), attributes);
+  }
+
+
+
+  /**
+   * Creates an operation that performs a simple bind with a DN and password
+   * generated from the given patterns.  The bind is processed on a pooled
+   * connection whose authentication is restored afterwards, so binds never
+   * change the identity used by the other operations.
+   *
+   * @param  weight           The relative weight of the operation in the mix.
+   * @param  bindDNPattern    The value pattern for the bind DN.
+   * @param  passwordPattern  The value pattern for the password.
+   *
+   * @return  The bind operation.
+   *
+   * @throws  ParseException  If either pattern cannot be parsed.
+   */
+  public static LoadOperation bind(final int weight, final String bindDNPattern,
+                                   final String passwordPattern)
+         throws ParseException
+  {
+    ensureNotNull(bindDNPattern, passwordPattern);
+    return new BindOperation(weight, new ValuePattern(bindDNPattern),
+         new ValuePattern(passwordPattern));
+  }
+
+
+
+  /**
+   * Creates an operation that replaces the values of an attribute in an entry,
+   * with the DN and new value generated from the given patterns.
+   *
+   * @param  weight          The relative weight of the operation in the mix.
+   * @param  dnPattern       The value pattern for the DN of the target entry.
+   * @param  attributeName   The name of the attribute to replace.
+   * @param  valuePattern    The value pattern for the new value.
+   *
+   * @return  The modify operation.
+   *
+   * @throws  ParseException  If either pattern cannot be parsed.
+   */
+  public static LoadOperation modify(final int weight, final String dnPattern,
+                                     final String attributeName,
+                                     final String valuePattern)
+         throws ParseException
+  {
+    ensureNotNull(dnPattern, attributeName, valuePattern);
+    return new ModifyOperation(weight, new ValuePattern(dnPattern),
+         attributeName, new ValuePattern(valuePattern));
+  }
+
+
+
+  /**
+   * Retrieves the name used for this operation in reports.
+   *
+   * @return  The name used for this operation in reports.
+   */
+  public final String getName()
+  {
+    return name;
+  }
+
+
+
+  /**
+   * Retrieves the relative weight of this operation in the mix.
+   *
+   * @return  The relative weight of this operation in the mix.
+   */
+  public final int getWeight()
+  {
+    return weight;
+  }
+
+
+
+  /**
+   * Processes one invocation of this operation.  Failures are reported
+   * through the result code rather than thrown, so that they are counted
+   * like any other outcome.
+   *
+   * @param  pool  The connection pool to use.
+   *
+   * @return  The result code of the operation.
+   */
+  public final ResultCode execute(final LDAPConnectionPool pool)
+  {
+    try
+    {
+      return process(pool);
+    }
+    catch (final LDAPException le)
+    {
+      debugException(le);
+      return le.getResultCode();
+    }
+    catch (final RuntimeException re)
+    {
+      debugException(re);
+      return ResultCode.LOCAL_ERROR;
+    }
+  }
+
+
+
+  /**
+   * Processes one invocation of this operation.
+   *
+   * @param  pool  The connection pool to use.
+   *
+   * @return  The result code of the operation.
+   *
+   * @throws  LDAPException  If the operation did not succeed.
+   */
+  protected abstract ResultCode process(final LDAPConnectionPool pool)
+            throws LDAPException;
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public String toString()
+  {
+    return "LoadOperation(name='" + name + "', weight=" + weight + ')';
+  }
+
+
+
+  /**
+   * A search with a generated base DN and filter.
+   */
+  private static final class SearchOperation
+          extends LoadOperation
+  {
+    private final ValuePattern baseDN;
+
+    private final SearchScope scope;
+
+    private final ValuePattern filter;
+
+    private final String[] attributes;
+
+
+
+    private SearchOperation(final int weight, final ValuePattern baseDN,
+                            final SearchScope scope, final ValuePattern filter,
+                            final String... attributes)
+    {
+      super("search", weight);
+
+      this.baseDN     = baseDN;
+      this.scope      = scope;
+      this.filter     = filter;
+      this.attributes = (attributes == null) ? new String[0] : attributes;
+    }
+
+
+
+    @Override()
+    protected ResultCode process(final LDAPConnectionPool pool)
+              throws LDAPException
+    {
+      return pool.search(new SearchRequest(baseDN.nextValue(), scope,
+           filter.nextValue(), attributes)).getResultCode();
+    }
+  }
+
+
+
+  /**
+   * A simple bind with a generated DN and password.
+   */
+  private static final class BindOperation
+          extends LoadOperation
+  {
+    private final ValuePattern bindDN;
+
+    private final ValuePattern password;
+
+
+
+    private BindOperation(final int weight, final ValuePattern bindDN,
+                          final ValuePattern password)
+    {
+      super("bind", weight);
+
+      this.bindDN   = bindDN;
+      this.password = password;
+    }
+
+
+
+    @Override()
+    protected ResultCode process(final LDAPConnectionPool pool)
+              throws LDAPException
+    {
+      return pool.bindAndRevertAuthentication(bindDN.nextValue(),
+           password.nextValue()).getResultCode();
+    }
+  }
+
+
+
+  /**
+   * A replace of one attribute with a generated value in a generated entry.
+   */
+  private static final class ModifyOperation
+          extends LoadOperation
+  {
+    private final ValuePattern dn;
+
+    private final String attributeName;
+
+    private final ValuePattern value;
+
+
+
+    private ModifyOperation(final int weight, final ValuePattern dn,
+                            final String attributeName,
+                            final ValuePattern value)
+    {
+      super("modify", weight);
+
+      this.dn            = dn;
+      this.attributeName = attributeName;
+      this.value         = value;
+    }
+
+
+
+    @Override()
+    protected ResultCode process(final LDAPConnectionPool pool)
+              throws LDAPException
+    {
+      return pool.modify(dn.nextValue(), new Modification(
+           ModificationType.REPLACE, attributeName, value.nextValue())).
+           getResultCode();
+    }
+  }
+}
@@ -0,0 +1,410 @@
+package com.hwlcn.ldap.ldap.loadgen;
+
+
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.hwlcn.core.annotation.NotMutable;
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.ldap.util.ObjectPair;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+
+
+/**
+ * This class holds what a {@link LoadGenerator} measured over one reporting
+ * interval, or over the whole run: the number of operations completed, the
+ * latency distribution and how often each result code was returned.
+ */
+@NotMutable()
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class LoadStatistics
+{
+  // The interval number, starting at one, or zero for a whole run.
+  private final int intervalNumber;
+
+  // The length of time covered, in nanoseconds.
+  private final long durationNanos;
+
+  // The number of operations completed.
+  private final long operationCount;
+
+  // The number of operations that did not succeed.
+  private final long errorCount;
+
+  // The mean latency in microseconds.
+  private final double meanMicros;
+
+  // Latency percentiles in microseconds.
+  private final long p50Micros;
+  private final long p90Micros;
+  private final long p99Micros;
+  private final long p999Micros;
+
+  // The maximum latency in microseconds.
+  private final long maxMicros;
+
+  // The number of times each result code was returned, most frequent first.
+  private final List<ObjectPair<ResultCode,Long>> resultCodes;
+
+
+
+  /**
+   * Creates a new set of statistics.
+   *
+   * @param  intervalNumber  The interval number, or zero for a whole run.
+   * @param  durationNanos   The length of time covered, in nanoseconds.
+   * @param  latencies       The latencies recorded over that time.
+   * @param  resultCodes     The number of times each result code was returned.
+   */
+  LoadStatistics(final int intervalNumber, final long durationNanos,
+                 final LatencyHistogram latencies,
+                 final List<ObjectPair<ResultCode,Long>> resultCodes)
+  {
+    this.intervalNumber = intervalNumber;
+    this.durationNanos  = durationNanos;
+    this.resultCodes    = Collections.unmodifiableList(resultCodes);
+
+    operationCount = latencies.getCount();
+    meanMicros     = latencies.getMeanMicros();
+    p50Micros      = latencies.getPercentileMicros(0.5d);
+    p90Micros      = latencies.getPercentileMicros(0.9d);
+    p99Micros      = latencies.getPercentileMicros(0.99d);
+    p999Micros     = latencies.getPercentileMicros(0.999d);
+    maxMicros      = latencies.getMaxMicros();
+
+    long errors = 0L;
+    for (final ObjectPair<ResultCode,Long> p : resultCodes)
+    {
+      if (p.getFirst() != ResultCode.SUCCESS)
+      {
+        errors += p.getSecond();
+      }
+    }
+    errorCount = errors;
+  }
+
+
+
+  /**
+   * Retrieves the number of the interval these statistics cover.
+   *
+   * @return  The number of the interval, starting at one, or zero if these
+   *          statistics cover a whole run.
+   */
+  public int getIntervalNumber()
+  {
+    return intervalNumber;
+  }
+
+
+
+  /**
+   * Indicates whether these statistics cover a whole run rather than a single
+   * interval.
+   *
+   * @return  {@code true} if these statistics cover a whole run.
+   */
+  public boolean isSummary()
+  {
+    return (intervalNumber == 0);
+  }
+
+
+
+  /**
+   * Retrieves the length of time covered by these statistics.
+   *
+   * @return  The length of time covered, in nanoseconds.
+   */
+  public long getDurationNanos()
+  {
+    return durationNanos;
+  }
+
+
+
+  /**
+   * Retrieves the number of operations completed.
+   *
+   * @return  The number of operations completed.
+   */
+  public long getOperationCount()
+  {
+    return operationCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of operations that did not succeed.
+   *
+   * @return  The number of operations that did not succeed.
+   */
+  public long getErrorCount()
+  {
+    return errorCount;
+  }
+
+
+
+  /**
+   * Retrieves the average number of operations completed per second.
+   *
+   * @return  The average number of operations completed per second.
+   */
+  public double getOperationsPerSecond()
+  {
+    return perSecond(operationCount);
+  }
+
+
+
+  /**
+   * Retrieves the average number of failed operations per second.
+   *
+   * @return  The average number of failed operations per second.
+   */
+  public double getErrorsPerSecond()
+  {
+    return perSecond(errorCount);
+  }
+
+
+
+  /**
+   * Retrieves the mean operation latency.
+   *
+   * @return  The mean operation latency in microseconds.
+   */
+  public double getMeanLatencyMicros()
+  {
+    return meanMicros;
+  }
+
+
+
+  /**
+   * Retrieves the median operation latency.
+   *
+   * @return  The median operation latency in microseconds.
+   */
+  public long getP50LatencyMicros()
+  {
+    return p50Micros;
+  }
+
+
+
+  /**
+   * Retrieves the 90th percentile operation latency.
+   *
+   * @return  The 90th percentile operation latency in microseconds.
+   */
+  public long getP90LatencyMicros()
+  {
+    return p90Micros;
+  }
+
+
+
+  /**
+   * Retrieves the 99th percentile operation latency.
+   *
+   * @return  The 99th percentile operation latency in microseconds.
+   */
+  public long getP99LatencyMicros()
+  {
+    return p99Micros;
+  }
+
+
+
+  /**
+   * Retrieves the 99.9th percentile operation latency.
+   *
+   * @return  The 99.9th percentile operation latency in microseconds.
+   */
+  public long getP999LatencyMicros()
+  {
+    return p999Micros;
+  }
+
+
+
+  /**
+   * Retrieves the largest operation latency.
+   *
+   * @return  The largest operation latency in microseconds.
+   */
+  public long getMaxLatencyMicros()
+  {
+    return maxMicros;
+  }
+
+
+
+  /**
+   * Retrieves the number of times each result code was returned.
+   *
+   * @return  The number of times each result code was returned, most frequent
+   *          first.
+   */
+  public List<ObjectPair<ResultCode,Long>> getResultCodeCounts()
+  {
+    return resultCodes;
+  }
+
+
+
+  /**
+   * Retrieves the result code distribution in a compact form suitable for a
+   * single CSV or column field, such as {@code 0=9876;32=12}.
+   *
+   * @return  The result code distribution in a compact form.
+   */
+  public String getResultCodeSummary()
+  {
+    final StringBuilder buffer = new StringBuilder();
+    for (final ObjectPair<ResultCode,Long> p : resultCodes)
+    {
+      if (buffer.length() > 0)
+      {
+        buffer.append(';');
+      }
+      buffer.append(p.getFirst().intValue());
+      buffer.append('=');
+      buffer.append(p.getSecond());
+    }
+    return buffer.toString();
+  }
+
+
+
+  /**
+   * Retrieves a single-line JSON object representation of these statistics.
+   * Latencies are given in milliseconds.
+   *
+   * @return  A JSON object representation of these statistics.
+   */
+  public String toJSON()
+  {
+    final StringBuilder buffer = new StringBuilder();
+    buffer.append("{\"interval\":");
+    if (isSummary())
+    {
+      buffer.append("\"total\"");
+    }
+    else
+    {
+      buffer.append(intervalNumber);
+    }
+    buffer.append(",\"durationSeconds\":");
+    buffer.append(format(durationNanos / 1000000000.0d));
+    buffer.append(",\"operations\":");
+    buffer.append(operationCount);
+    buffer.append(",\"operationsPerSecond\":");
+    buffer.append(format(getOperationsPerSecond()));
+    buffer.append(",\"errors\":");
+    buffer.append(errorCount);
+    buffer.append(",\"errorsPerSecond\":");
+    buffer.append(format(getErrorsPerSecond()));
+    buffer.append(",\"latencyMillis\":{\"mean\":");
+    buffer.append(format(meanMicros / 1000.0d));
+    buffer.append(",\"p50\":");
+    buffer.append(millis(p50Micros));
+    buffer.append(",\"p90\":");
+    buffer.append(millis(p90Micros));
+    buffer.append(",\"p99\":");
+    buffer.append(millis(p99Micros));
+    buffer.append(",\"p99.9\":");
+    buffer.append(millis(p999Micros));
+    buffer.append(",\"max\":");
+    buffer.append(millis(maxMicros));
+    buffer.append("},\"resultCodes\":{");
+
+    boolean first = true;
+    for (final ObjectPair<ResultCode,Long> p : resultCodes)
+    {
+      if (! first)
+      {
+        buffer.append(',');
+      }
+      first = false;
+
+      // Result code names are fixed ASCII strings without quotes, so no
+      // escaping is needed.
+      buffer.append('"');
+      buffer.append(p.getFirst().intValue());
+      buffer.append(' ');
+      buffer.append(p.getFirst().getName());
+      buffer.append("\":");
+      buffer.append(p.getSecond());
+    }
+
+    buffer.append("}}");
+    return buffer.toString();
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override()
+  public String toString()
+  {
+    return "LoadStatistics" + toJSON();
+  }
+
+
+
+  /**
+   * Converts the given count to a rate over the duration of these statistics.
+   *
+   * @param  count  The count to convert.
+   *
+   * @return  The count per second.
+   */
+  private double perSecond(final long count)
+  {
+    if (durationNanos <= 0L)
+    {
+      return 0.0d;
+    }
+
+    return (count * 1000000000.0d) / durationNanos;
+  }
+
+
+
+  /**
+   * Formats a microsecond value as milliseconds.
+   *
+   * @param  micros  The value in microseconds.
+   *
+   * @return  The value in milliseconds with three decimal places.
+   */
+  static String millis(final long micros)
+  {
+    return format(micros / 1000.0d);
+  }
+
+
+
+  /**
+   * Formats a decimal value with three decimal places regardless of the
+   * default locale, as both CSV and JSON require.
+   *
+   * @param  d  The value to format.
+   *
+   * @return  The formatted value.
+   */
+  static String format(final double d)
+  {
+    return String.format(Locale.US, "%.3f", d);
+  }
+}
@@ -8,7 +8,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -687,11 +686,10 @@ public final class AddRequest
       final long timeout = getResponseTimeoutMillis(connection);
       if (timeout > 0L)
       {
-        final Timer timer = connection.getTimer();
         final AsyncTimeoutTimerTask timerTask =
              new AsyncTimeoutTimerTask(helper);
-        timer.schedule(timerTask, timeout);
-        asyncRequestID.setTimerTask(timerTask);
+        asyncRequestID.setTimeout(connection.getTimer().schedule(timerTask,
+             timeout, TimeUnit.MILLISECONDS));
       }
     }
     try
@@ -11,6 +11,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.hwlcn.ldap.util.Debug;
+import com.hwlcn.ldap.util.HashedWheelTimer;
 import com.hwlcn.core.annotation.NotMutable;
 import com.hwlcn.ldap.util.StaticUtils;
 import com.hwlcn.core.annotation.ThreadSafety;
@@ -65,7 +66,7 @@ public final class AsyncRequestID
 
   private final LDAPConnection connection;
 
-  private volatile AsyncTimeoutTimerTask timerTask;
+  private volatile HashedWheelTimer.Timeout timeout;
 
 
 
@@ -77,7 +78,7 @@ public final class AsyncRequestID
     resultQueue     = new ArrayBlockingQueue<LDAPResult>(1);
     cancelRequested = new AtomicBoolean(false);
     result          = new AtomicReference<LDAPResult>();
-    timerTask       = null;
+    timeout         = null;
   }
 
 
@@ -101,10 +102,15 @@ public final class AsyncRequestID
     try
     {
       cancelRequested.set(true);
-      result.compareAndSet(null,
+      final LDAPResult canceledResult =
            new LDAPResult(messageID, ResultCode.USER_CANCELED,
                 INFO_ASYNC_REQUEST_USER_CANCELED.get(), null,
-                StaticUtils.NO_STRINGS, StaticUtils.NO_CONTROLS));
+                StaticUtils.NO_STRINGS, StaticUtils.NO_CONTROLS);
+      result.compareAndSet(null, canceledResult);
+
+      // Wake any thread already waiting in get(), since the server does not
+      // respond to an abandoned request.
+      setResult(canceledResult);
 
       connection.abandon(this);
     }
@@ -138,7 +144,8 @@ public final class AsyncRequestID
       return true;
     }
 
-    final LDAPResult newResult = resultQueue.poll();
+    // Leave the result in the queue for a thread that may be waiting in get().
+    final LDAPResult newResult = resultQueue.peek();
     if (newResult != null)
     {
       result.set(newResult);
@@ -204,9 +211,16 @@ public final class AsyncRequestID
 
 
 
-  void setTimerTask(final AsyncTimeoutTimerTask timerTask)
+  void setTimeout(final HashedWheelTimer.Timeout timeout)
   {
-    this.timerTask = timerTask;
+    this.timeout = timeout;
+
+    // the response may have arrived before the timeout was registered
+    if ((! resultQueue.isEmpty()) || (result.get() != null))
+    {
+      timeout.cancel();
+      this.timeout = null;
+    }
   }
 
 
@@ -215,12 +229,11 @@ public final class AsyncRequestID
   {
     resultQueue.offer(result);
 
-    final AsyncTimeoutTimerTask t = timerTask;
+    final HashedWheelTimer.Timeout t = timeout;
     if (t != null)
     {
       t.cancel();
-      connection.getTimer().purge();
-      timerTask = null;
+      timeout = null;
     }
   }
 
@@ -2,8 +2,6 @@ package com.hwlcn.ldap.ldap.sdk;
 
 
 
-import java.util.TimerTask;
-
 import com.hwlcn.ldap.ldap.protocol.LDAPResponse;
 import com.hwlcn.ldap.util.Debug;
 import com.hwlcn.ldap.util.StaticUtils;
@@ -12,7 +10,7 @@ import static com.hwlcn.ldap.ldap.sdk.LDAPMessages.*;
 
 
 final class AsyncTimeoutTimerTask
-      extends TimerTask
+      implements Runnable
 {
   private final CommonAsyncHelper helper;
 
@@ -23,7 +21,6 @@ final class AsyncTimeoutTimerTask
     this.helper = helper;
   }
 
-  @Override()
   public void run()
   {
     final long waitTimeNanos = System.nanoTime() - helper.getCreateTimeNanos();
@@ -6,7 +6,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -52,10 +54,20 @@ public final class Attribute
 
 
 
+  private static volatile int normalizedValueCacheThreshold = 10;
+
+  private static volatile int largeAttributeThreshold = 1000;
+
+
+
   private final ASN1OctetString[] values;
 
   private int hashCode = -1;
 
+  private transient volatile NormalizedValues normalizedValues;
+
+  private transient volatile IndexVersion valueIndex;
+
   private final MatchingRule matchingRule;
 
   private final String name;
@@ -267,6 +279,17 @@ public final class Attribute
 
 
 
+  private Attribute(final String name, final MatchingRule matchingRule,
+                    final ASN1OctetString[] values,
+                    final IndexVersion valueIndex)
+  {
+    this(name, matchingRule, values);
+
+    this.valueIndex = valueIndex;
+  }
+
+
+
 
   public Attribute(final String name, final Schema schema,
                    final String... values)
@@ -310,6 +333,15 @@ public final class Attribute
 
     final MatchingRule matchingRule = attr1.matchingRule;
 
+    if (attr1.isLarge())
+    {
+      final Attribute merged = attr1.addIndexedValues(attr2.values);
+      if (merged != null)
+      {
+        return merged;
+      }
+    }
+
     ASN1OctetString[] mergedValues =
          new ASN1OctetString[attr1.values.length + attr2.values.length];
     System.arraycopy(attr1.values, 0, mergedValues, 0, attr1.values.length);
@@ -317,24 +349,7 @@ public final class Attribute
     int pos = attr1.values.length;
     for (final ASN1OctetString s2 : attr2.values)
     {
-      boolean found = false;
-      for (final ASN1OctetString s1 : attr1.values)
-      {
-        try
-        {
-          if (matchingRule.valuesMatch(s1, s2))
-          {
-            found = true;
-            break;
-          }
-        }
-        catch (Exception e)
-        {
-          debugException(e);
-        }
-      }
-
-      if (! found)
+      if (! attr1.hasValue(s2, matchingRule))
       {
         mergedValues[pos++] = s2;
       }
@@ -380,6 +395,15 @@ public final class Attribute
       mr = matchingRule;
     }
 
+    if ((mr == attr1.matchingRule) && attr1.isLarge())
+    {
+      final Attribute reduced = attr1.removeIndexedValues(attr2.values);
+      if (reduced != null)
+      {
+        return reduced;
+      }
+    }
+
     final ArrayList<ASN1OctetString> newValues =
          new ArrayList<ASN1OctetString>(Arrays.asList(attr1.values));
 
@@ -781,6 +805,34 @@ public final class Attribute
 
   boolean hasValue(final ASN1OctetString value, final MatchingRule matchingRule)
   {
+    final IndexVersion iv = valueIndex;
+    final NormalizedValues nv =
+         (iv == null) ? getCachedNormalizedValues(matchingRule) : null;
+    if ((iv != null) || (nv != null))
+    {
+      try
+      {
+        final ASN1OctetString normalizedValue = matchingRule.normalize(value);
+        if (iv != null)
+        {
+          final Boolean found =
+               iv.index.contains(iv.version, matchingRule, normalizedValue);
+          if (found != null)
+          {
+            return found;
+          }
+          return hasValue(value, matchingRule, normalizedValue);
+        }
+
+        return nv.normalizedSet.contains(normalizedValue) ||
+             nv.unnormalizedSet.contains(value);
+      }
+      catch (final LDAPException le)
+      {
+        debugException(le);
+      }
+    }
+
     for (final ASN1OctetString existingValue : values)
     {
       try
@@ -809,6 +861,343 @@ public final class Attribute
   }
 
 
+
+  /**
+   * Retrieves the number of values an attribute must have before the first
+   * value lookup with a given matching rule normalizes all of its values once
+   * and keeps them in a hash set, so that later lookups with that rule cost a
+   * single normalization instead of one per value.
+   *
+   * @return  The threshold, or zero or less if normalized values are never
+   *          cached.
+   */
+  public static int getNormalizedValueCacheThreshold()
+  {
+    return normalizedValueCacheThreshold;
+  }
+
+
+
+  /**
+   * Specifies the number of values an attribute must have for its normalized
+   * values to be cached.  The default is ten.  The cache roughly doubles the
+   * memory held by a large attribute, so applications that hold many large
+   * attributes they rarely search may want a higher threshold.
+   *
+   * @param  threshold  The threshold, or zero or less to disable caching.
+   *                    Attributes that have already built a cache keep it.
+   */
+  public static void setNormalizedValueCacheThreshold(final int threshold)
+  {
+    normalizedValueCacheThreshold = threshold;
+  }
+
+
+
+  /**
+   * Retrieves the normalized form of each value of this attribute, in the
+   * same order as {@link #getRawValues}.  Values that cannot be normalized
+   * with the given rule are returned as they are.  The result is cached if
+   * this attribute is large enough.
+   *
+   * @param  matchingRule  The matching rule to normalize with.
+   *
+   * @return  The normalized values.  The array must not be altered.
+   */
+  ASN1OctetString[] getNormalizedValues(final MatchingRule matchingRule)
+  {
+    final NormalizedValues nv = getCachedNormalizedValues(matchingRule);
+    if (nv != null)
+    {
+      return nv.normalized;
+    }
+
+    return new NormalizedValues(matchingRule, values).normalized;
+  }
+
+
+
+  /**
+   * Looks a value up by its normalized form, if this attribute is large
+   * enough to have a value index or cached normalized values and all of its
+   * values could be normalized.
+   *
+   * @param  value         The value to look for.
+   * @param  matchingRule  The matching rule to normalize with.
+   *
+   * @return  Whether the attribute has the value, or {@code null} if that
+   *          cannot be answered without comparing values one by one.
+   *
+   * @throws  LDAPException  If the value cannot be normalized.
+   */
+  Boolean hasNormalizedValue(final ASN1OctetString value,
+                             final MatchingRule matchingRule)
+          throws LDAPException
+  {
+    final IndexVersion iv = valueIndex;
+    if (iv != null)
+    {
+      final Boolean found = iv.index.contains(iv.version, matchingRule,
+           matchingRule.normalize(value));
+      if (found != null)
+      {
+        return found;
+      }
+    }
+
+    final NormalizedValues nv = getCachedNormalizedValues(matchingRule);
+    if ((nv == null) || (! nv.unnormalizedSet.isEmpty()))
+    {
+      return null;
+    }
+
+    return nv.normalizedSet.contains(matchingRule.normalize(value));
+  }
+
+
+
+  private boolean hasValue(final ASN1OctetString value,
+                           final MatchingRule matchingRule,
+                           final ASN1OctetString normalizedValue)
+  {
+    final NormalizedValues nv = getCachedNormalizedValues(matchingRule);
+    if (nv != null)
+    {
+      return nv.normalizedSet.contains(normalizedValue) ||
+           nv.unnormalizedSet.contains(value);
+    }
+
+    for (final ASN1OctetString existingValue : values)
+    {
+      try
+      {
+        if (matchingRule.valuesMatch(existingValue, value))
+        {
+          return true;
+        }
+      }
+      catch (final LDAPException le)
+      {
+        debugException(le);
+
+        if (existingValue.equals(value))
+        {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+
+
+  /**
+   * Retrieves the number of values an attribute must have before values are
+   * added to and removed from it through a hash index of its normalized
+   * values rather than by comparing against every value.
+   *
+   * @return  The threshold, or zero or less if no index is used.
+   */
+  public static int getLargeAttributeThreshold()
+  {
+    return largeAttributeThreshold;
+  }
+
+
+
+  /**
+   * Specifies the number of values an attribute must have for value updates
+   * to go through a hash index.  The default is 1000.
+   * <BR><BR>
+   * {@link #mergeAttributes} and {@link #removeValues}, and with them
+   * {@link Entry#addAttribute(Attribute)},
+   * {@link Entry#removeAttributeValue(String, String)} and
+   * {@link Entry#applyModifications(Entry, boolean, Modification...)}, build
+   * the index the first time a large attribute is updated and hand it on to
+   * the attribute they return, so that a group with hundreds of thousands of
+   * members is normalized once rather than on every member added or removed.
+   * Each update then costs one normalization per value added or removed plus
+   * a copy of the value references.
+   *
+   * @param  threshold  The threshold, or zero or less to disable the index.
+   */
+  public static void setLargeAttributeThreshold(final int threshold)
+  {
+    largeAttributeThreshold = threshold;
+  }
+
+
+
+  private boolean isLarge()
+  {
+    final int threshold = largeAttributeThreshold;
+    return ((threshold > 0) && (values.length >= threshold));
+  }
+
+
+
+  /**
+   * Takes over the value index of this attribute for an attribute derived
+   * from it, building a new index if this attribute has none or has already
+   * handed its index on.
+   *
+   * @return  The index and the version the derived attribute owns, or
+   *          {@code null} if the values of this attribute cannot be indexed.
+   */
+  private IndexVersion claimValueIndex()
+  {
+    final IndexVersion iv = valueIndex;
+    if ((iv != null) && iv.index.claim(iv.version))
+    {
+      return new IndexVersion(iv.index, iv.version + 1);
+    }
+
+    final ValueIndex index = ValueIndex.create(matchingRule, values);
+    if (index == null)
+    {
+      return null;
+    }
+
+    return new IndexVersion(index, index.version);
+  }
+
+
+
+  private ASN1OctetString[] normalizeAll(final ASN1OctetString[] rawValues)
+  {
+    final ASN1OctetString[] normalized = new ASN1OctetString[rawValues.length];
+    for (int i=0; i < rawValues.length; i++)
+    {
+      try
+      {
+        normalized[i] = matchingRule.normalize(rawValues[i]);
+      }
+      catch (final LDAPException le)
+      {
+        debugException(le);
+        return null;
+      }
+    }
+
+    return normalized;
+  }
+
+
+
+  private Attribute addIndexedValues(final ASN1OctetString[] newValues)
+  {
+    final ASN1OctetString[] normalized = normalizeAll(newValues);
+    if (normalized == null)
+    {
+      return null;
+    }
+
+    final IndexVersion iv = claimValueIndex();
+    if (iv == null)
+    {
+      return null;
+    }
+
+    final ArrayList<ASN1OctetString> added =
+         new ArrayList<ASN1OctetString>(newValues.length);
+    synchronized (iv.index)
+    {
+      for (int i=0; i < newValues.length; i++)
+      {
+        if (! iv.index.values.containsKey(normalized[i]))
+        {
+          iv.index.values.put(normalized[i], newValues[i]);
+          added.add(newValues[i]);
+        }
+      }
+    }
+
+    final ASN1OctetString[] merged =
+         new ASN1OctetString[values.length + added.size()];
+    System.arraycopy(values, 0, merged, 0, values.length);
+    for (int i=0; i < added.size(); i++)
+    {
+      merged[values.length + i] = added.get(i);
+    }
+
+    return new Attribute(name, matchingRule, merged, iv);
+  }
+
+
+
+  private Attribute removeIndexedValues(final ASN1OctetString[] oldValues)
+  {
+    final ASN1OctetString[] normalized = normalizeAll(oldValues);
+    if (normalized == null)
+    {
+      return null;
+    }
+
+    final IndexVersion iv = claimValueIndex();
+    if (iv == null)
+    {
+      return null;
+    }
+
+    // The index holds the same value instances as the array, so the values
+    // to drop can be found by identity.
+    final Set<ASN1OctetString> removed = Collections.newSetFromMap(
+         new IdentityHashMap<ASN1OctetString,Boolean>(oldValues.length));
+    synchronized (iv.index)
+    {
+      for (final ASN1OctetString n : normalized)
+      {
+        final ASN1OctetString raw = iv.index.values.remove(n);
+        if (raw != null)
+        {
+          removed.add(raw);
+        }
+      }
+    }
+
+    if (removed.isEmpty())
+    {
+      return new Attribute(name, matchingRule, values, iv);
+    }
+
+    final ASN1OctetString[] remaining =
+         new ASN1OctetString[values.length - removed.size()];
+    int pos = 0;
+    for (final ASN1OctetString v : values)
+    {
+      if (! removed.contains(v))
+      {
+        remaining[pos++] = v;
+      }
+    }
+
+    return new Attribute(name, matchingRule, remaining, iv);
+  }
+
+
+
+  private NormalizedValues getCachedNormalizedValues(
+                                final MatchingRule matchingRule)
+  {
+    final int threshold = normalizedValueCacheThreshold;
+    if ((threshold <= 0) || (values.length < threshold))
+    {
+      return null;
+    }
+
+    // Only the most recently used rule is kept.  Nearly every lookup uses
+    // the attribute's own equality rule, so one slot is enough.
+    NormalizedValues nv = normalizedValues;
+    if ((nv == null) || (nv.matchingRule != matchingRule))
+    {
+      nv = new NormalizedValues(matchingRule, values);
+      normalizedValues = nv;
+    }
+
+    return nv;
+  }
+
+
   public void writeTo(final ASN1Buffer buffer)
   {
     final ASN1BufferSequence attrSequence = buffer.beginSequence();
@@ -1034,6 +1423,13 @@ public final class Attribute
 
     if (values.length > 10)
     {
+      final NormalizedValues nv1 = normalizedValues;
+      final NormalizedValues nv2 = a.normalizedValues;
+      if ((nv1 != null) && (nv2 != null) && nv1.isComplete(matchingRule) &&
+          nv2.isComplete(matchingRule))
+      {
+        return nv1.normalizedSet.equals(nv2.normalizedSet);
+      }
 
       final HashSet<ASN1OctetString> unNormalizedValues =
            new HashSet<ASN1OctetString>(values.length);
@@ -1152,4 +1548,185 @@ public final class Attribute
 
     buffer.append("})");
   }
+
+
+
+  /**
+   * The values of an attribute normalized with one matching rule.
+   */
+  private static final class NormalizedValues
+  {
+    private final MatchingRule matchingRule;
+
+    // Parallel to the attribute values; a value that could not be
+    // normalized appears as it is.
+    private final ASN1OctetString[] normalized;
+
+    private final HashSet<ASN1OctetString> normalizedSet;
+
+    // The raw form of the values that could not be normalized, which only
+    // ever match a value that is byte-for-byte the same.
+    private final Set<ASN1OctetString> unnormalizedSet;
+
+
+
+    private NormalizedValues(final MatchingRule matchingRule,
+                             final ASN1OctetString[] values)
+    {
+      this.matchingRule = matchingRule;
+
+      normalized    = new ASN1OctetString[values.length];
+      normalizedSet = new HashSet<ASN1OctetString>(
+           Math.max(16, (int) (values.length / 0.75f) + 1));
+
+      Set<ASN1OctetString> unnormalized = Collections.emptySet();
+      for (int i=0; i < values.length; i++)
+      {
+        try
+        {
+          normalized[i] = matchingRule.normalize(values[i]);
+          normalizedSet.add(normalized[i]);
+        }
+        catch (final LDAPException le)
+        {
+          debugException(le);
+          normalized[i] = values[i];
+          if (unnormalized.isEmpty())
+          {
+            unnormalized = new HashSet<ASN1OctetString>();
+          }
+          unnormalized.add(values[i]);
+        }
+      }
+      unnormalizedSet = unnormalized;
+    }
+
+
+
+    /**
+     * Indicates whether these are the values normalized with the given rule,
+     * all values could be normalized and no two of them are equivalent, so
+     * that the normalized set alone represents the attribute.
+     */
+    private boolean isComplete(final MatchingRule matchingRule)
+    {
+      return (this.matchingRule == matchingRule) &&
+           unnormalizedSet.isEmpty() &&
+           (normalizedSet.size() == normalized.length);
+    }
+  }
+
+
+
+  /**
+   * A hash index from normalized value to value, shared by a chain of
+   * attributes each derived from the one before by adding or removing
+   * values.  Only the newest attribute in the chain may use it; the version
+   * tells an attribute whether it is still the newest.
+   */
+  private static final class ValueIndex
+  {
+    private final MatchingRule matchingRule;
+
+    private final HashMap<ASN1OctetString,ASN1OctetString> values;
+
+    private int version;
+
+
+
+    private ValueIndex(final MatchingRule matchingRule, final int size)
+    {
+      this.matchingRule = matchingRule;
+
+      values  = new HashMap<ASN1OctetString,ASN1OctetString>(
+           Math.max(16, (int) (size / 0.75f) + 1));
+      version = 1;
+    }
+
+
+
+    /**
+     * Builds an index over the given values.
+     *
+     * @return  The index, or {@code null} if a value cannot be normalized or
+     *          two values are equivalent, since the index could not then
+     *          stand in for comparing values one by one.
+     */
+    private static ValueIndex create(final MatchingRule matchingRule,
+                                     final ASN1OctetString[] values)
+    {
+      final ValueIndex index = new ValueIndex(matchingRule, values.length);
+      for (final ASN1OctetString v : values)
+      {
+        try
+        {
+          if (index.values.put(matchingRule.normalize(v), v) != null)
+          {
+            return null;
+          }
+        }
+        catch (final LDAPException le)
+        {
+          debugException(le);
+          return null;
+        }
+      }
+
+      return index;
+    }
+
+
+
+    private synchronized boolean claim(final int currentVersion)
+    {
+      if (version != currentVersion)
+      {
+        return false;
+      }
+
+      version++;
+      return true;
+    }
+
+
+
+    /**
+     * Looks up a normalized value on behalf of the attribute with the given
+     * version.
+     *
+     * @return  Whether the value is present, or {@code null} if the index
+     *          has moved on to a newer attribute or uses another rule.
+     */
+    private synchronized Boolean contains(final int attributeVersion,
+                                          final MatchingRule rule,
+                                          final ASN1OctetString normalized)
+    {
+      if ((version != attributeVersion) || (rule != matchingRule))
+      {
+        return null;
+      }
+
+      return values.containsKey(normalized);
+    }
+  }
+
+
+
+  /**
+   * A value index together with the version owned by one attribute.
+   */
+  private static final class IndexVersion
+  {
+    private final ValueIndex index;
+
+    private final int version;
+
+
+
+    private IndexVersion(final ValueIndex index, final int version)
+    {
+      this.index   = index;
+      this.version = version;
+    }
+  }
 }
@@ -2,7 +2,6 @@ package com.hwlcn.ldap.ldap.sdk;
 
 
 
-import java.util.Timer;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -429,11 +428,10 @@ public final class CompareRequest
       final long timeout = getResponseTimeoutMillis(connection);
       if (timeout > 0L)
       {
-        final Timer timer = connection.getTimer();
         final AsyncTimeoutTimerTask timerTask =
              new AsyncTimeoutTimerTask(compareHelper);
-        timer.schedule(timerTask, timeout);
-        asyncRequestID.setTimerTask(timerTask);
+        asyncRequestID.setTimeout(connection.getTimer().schedule(timerTask,
+             timeout, TimeUnit.MILLISECONDS));
       }
     }
 
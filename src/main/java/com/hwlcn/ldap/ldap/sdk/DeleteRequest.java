@@ -2,7 +2,6 @@ package com.hwlcn.ldap.ldap.sdk;
 
 
 
-import java.util.Timer;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -232,11 +231,10 @@ public final class DeleteRequest
       final long timeout = getResponseTimeoutMillis(connection);
       if (timeout > 0L)
       {
-        final Timer timer = connection.getTimer();
         final AsyncTimeoutTimerTask timerTask =
              new AsyncTimeoutTimerTask(helper);
-        timer.schedule(timerTask, timeout);
-        asyncRequestID.setTimerTask(timerTask);
+        asyncRequestID.setTimeout(connection.getTimer().schedule(timerTask,
+             timeout, TimeUnit.MILLISECONDS));
       }
     }
 
@@ -932,30 +932,25 @@ public class Entry
 
             if (reversible ||
                     ((targetRDN != null) && targetRDN.hasAttribute(targetAttr.getName()))) {
+                final MatchingRule matchingRule = sourceAttr.getMatchingRule();
                 final ASN1OctetString[] sourceValueArray = sourceAttr.getRawValues();
+                final ASN1OctetString[] sourceNormalized =
+                        sourceAttr.getNormalizedValues(matchingRule);
                 final LinkedHashMap<ASN1OctetString, ASN1OctetString> sourceValues =
                         new LinkedHashMap<ASN1OctetString, ASN1OctetString>(
                                 sourceValueArray.length);
-                for (final ASN1OctetString s : sourceValueArray) {
-                    try {
-                        sourceValues.put(sourceAttr.getMatchingRule().normalize(s), s);
-                    } catch (final Exception e) {
-                        debugException(e);
-                        sourceValues.put(s, s);
-                    }
+                for (int i = 0; i < sourceValueArray.length; i++) {
+                    sourceValues.put(sourceNormalized[i], sourceValueArray[i]);
                 }
 
                 final ASN1OctetString[] targetValueArray = targetAttr.getRawValues();
+                final ASN1OctetString[] targetNormalized =
+                        targetAttr.getNormalizedValues(matchingRule);
                 final LinkedHashMap<ASN1OctetString, ASN1OctetString> targetValues =
                         new LinkedHashMap<ASN1OctetString, ASN1OctetString>(
                                 targetValueArray.length);
-                for (final ASN1OctetString s : targetValueArray) {
-                    try {
-                        targetValues.put(sourceAttr.getMatchingRule().normalize(s), s);
-                    } catch (final Exception e) {
-                        debugException(e);
-                        targetValues.put(s, s);
-                    }
+                for (int i = 0; i < targetValueArray.length; i++) {
+                    targetValues.put(targetNormalized[i], targetValueArray[i]);
                 }
 
                 final Iterator<Map.Entry<ASN1OctetString, ASN1OctetString>>
@@ -2,26 +2,45 @@ package com.hwlcn.ldap.ldap.sdk;
 
 
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.logging.Level;
 
 import com.hwlcn.ldap.asn1.ASN1OctetString;
+import com.hwlcn.ldap.ldap.matchingrules.AcceptAllSimpleMatchingRule;
 import com.hwlcn.ldap.ldap.matchingrules.MatchingRule;
+import com.hwlcn.ldap.ldap.matchingrules.NumericStringMatchingRule;
 import com.hwlcn.ldap.ldap.sdk.controls.SortKey;
 import com.hwlcn.ldap.ldap.sdk.schema.Schema;
+import com.hwlcn.ldap.ldif.LDIFException;
+import com.hwlcn.ldap.ldif.LDIFReader;
+import com.hwlcn.ldap.ldif.LDIFWriter;
 import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.util.DebugType;
+import com.hwlcn.ldap.util.LDAPSDKThreadFactory;
+import com.hwlcn.ldap.util.LDAPSDKUsageException;
 import com.hwlcn.ldap.util.ThreadSafetyLevel;
+import com.hwlcn.ldap.util.parallel.ParallelProcessor;
+import com.hwlcn.ldap.util.parallel.Processor;
+import com.hwlcn.ldap.util.parallel.Result;
 
 import static com.hwlcn.ldap.util.Debug.*;
 import static com.hwlcn.ldap.util.StaticUtils.*;
+import static com.hwlcn.ldap.util.Validator.*;
 
 
 
@@ -34,12 +53,16 @@ import static com.hwlcn.ldap.util.StaticUtils.*;
  * <BR><BR>
  * This class provides a client-side alternative to the use of the
  * {@link com.hwlcn.ldap.ldap.sdk.controls.ServerSideSortRequestControl}.
- * Client-side sorting is most appropriate for small result sets, as it requires
- * all entries to be held in memory at the same time.  It is a good alternative
- * to server-side sorting when the overhead of sorting should be distributed
- * across client systems rather than on the server, and in cases in which the
- * target directory server does not support the use of the server-side sort
- * request control.
+ * Client-side sorting is a good alternative to server-side sorting when the
+ * overhead of sorting should be distributed across client systems rather than
+ * on the server, and in cases in which the target directory server does not
+ * support the use of the server-side sort request control.
+ * <BR><BR>
+ * The sort keys of each entry are extracted and normalized only once per
+ * sort, and the in-memory sort may be spread across several threads.  Result
+ * sets too large to hold in memory may be sorted from an {@link EntrySource}
+ * to an {@link LDIFWriter}, in which case sorted runs are spilled to
+ * temporary LDIF files and then merged.
  * <BR><BR>
  * For best results, a {@link com.hwlcn.ldap.ldap.sdk.schema.Schema} object may be used to provide an
  * indication as to which matching rules should be used to perform the ordering.
@@ -65,13 +88,27 @@ public final class EntrySorter
 
 
 
+  // The smallest number of entries worth handing to another thread.
+  private static final int MIN_ENTRIES_PER_THREAD = 1000;
+
+  // The largest number of runs merged at once during an external sort.
+  private static final int MAX_MERGE_RUNS = 64;
+
+  // The sort key value used for an entry whose value cannot be normalized.
+  // It is compared by identity.
+  private static final ASN1OctetString INVALID_KEY = new ASN1OctetString();
+
+
+
   private final boolean sortByHierarchy;
 
   private final List<SortKey> sortKeys;
 
   private final Schema schema;
 
- public EntrySorter()
+
+
+  public EntrySorter()
   {
     this(true, null, Collections.<SortKey>emptyList());
   }
@@ -117,181 +154,720 @@ public final class EntrySorter
 
 
 
+  /**
+   * Sorts the provided entries in the calling thread.
+   *
+   * @param  entries  The entries to sort.
+   *
+   * @return  A sorted set containing the entries.  Entries that compare as
+   *          equal (that is, entries with the same DN) are included only
+   *          once.
+   */
   public SortedSet<Entry> sort(final Collection<? extends Entry> entries)
   {
-    final TreeSet<Entry> entrySet = new TreeSet<Entry>(this);
-    entrySet.addAll(entries);
-    return entrySet;
+    try
+    {
+      return sort(entries, 1);
+    }
+    catch (InterruptedException ie)
+    {
+      // This cannot happen, since no other threads are used.
+      debugException(ie);
+      throw new LDAPSDKUsageException(getExceptionMessage(ie), ie);
+    }
   }
 
 
-  public int compare(final Entry e1, final Entry e2)
+
+  /**
+   * Sorts the provided entries using up to the given number of threads.  The
+   * sort keys of each entry are extracted and normalized only once, and the
+   * entries are split into one slice per thread that is keyed and sorted in
+   * parallel before the slices are merged.
+   *
+   * @param  entries     The entries to sort.
+   * @param  numThreads  The maximum number of threads to use, including the
+   *                     calling thread.  It must be at least one.
+   *
+   * @return  A sorted set containing the entries.  Entries that compare as
+   *          equal (that is, entries with the same DN) are included only
+   *          once.
+   *
+   * @throws  InterruptedException  If the calling thread is interrupted while
+   *                                waiting for the other threads.
+   */
+  public SortedSet<Entry> sort(final Collection<? extends Entry> entries,
+                               final int numThreads)
+         throws InterruptedException
   {
-    DN parsedDN1 = null;
-    DN parsedDN2 = null;
+    ensureNotNull(entries);
+    ensureTrue(numThreads >= 1, "EntrySorter.numThreads must be at least 1.");
 
-    if (sortByHierarchy)
+    final RecordComparator comparator = new RecordComparator();
+    final SortRecord[] records = sortRecords(
+         entries.toArray(new Entry[entries.size()]), comparator, numThreads);
+
+    // A TreeSet built from another sorted set with the same comparator is
+    // filled in linear time rather than by inserting each entry.
+    return new TreeSet<Entry>(new SortedRecordView(records));
+  }
+
+
+
+  /**
+   * Sorts all entries read from the given source and writes them to the
+   * given LDIF writer, holding no more than the given number of entries in
+   * memory at once.  Each batch of entries is sorted in memory using up to
+   * {@code numThreads} threads and written to a temporary LDIF file, and the
+   * files are then merged.  If all of the entries fit into a single batch,
+   * no temporary file is written.
+   * <BR><BR>
+   * The entry source and the LDIF writer are not closed by this method.
+   *
+   * @param  source              The source of the entries to sort.
+   * @param  writer              The writer to which the sorted entries are
+   *                             written.
+   * @param  maxEntriesInMemory  The maximum number of entries to sort in
+   *                             memory at once.  It must be at least two.
+   * @param  tempDirectory       The directory in which to create the
+   *                             temporary files, or {@code null} to use the
+   *                             default temporary directory.
+   * @param  numThreads          The maximum number of threads to use for
+   *                             each in-memory sort, including the calling
+   *                             thread.  It must be at least one.
+   *
+   * @return  The number of entries written.  Entries that compare as equal
+   *          (that is, entries with the same DN) are written only once.
+   *
+   * @throws  EntrySourceException  If a problem occurs while reading from the
+   *                                entry source.
+   *
+   * @throws  IOException  If a problem occurs while writing the output or a
+   *                       temporary file.
+   *
+   * @throws  InterruptedException  If the calling thread is interrupted while
+   *                                waiting for the other threads.
+   */
+  public long sort(final EntrySource source, final LDIFWriter writer,
+                   final int maxEntriesInMemory, final File tempDirectory,
+                   final int numThreads)
+         throws EntrySourceException, IOException, InterruptedException
+  {
+    ensureNotNull(source, writer);
+    ensureTrue(maxEntriesInMemory >= 2,
+         "EntrySorter.maxEntriesInMemory must be at least 2.");
+    ensureTrue(numThreads >= 1, "EntrySorter.numThreads must be at least 1.");
+
+    final RecordComparator comparator = new RecordComparator();
+    final LinkedList<File> runs = new LinkedList<File>();
+    try
     {
-      try
+      final ArrayList<Entry> batch = new ArrayList<Entry>();
+      boolean moreEntries = true;
+      while (moreEntries)
       {
-        parsedDN1 = e1.getParsedDN();
-        parsedDN2 = e2.getParsedDN();
+        batch.clear();
+        while (batch.size() < maxEntriesInMemory)
+        {
+          final Entry e = source.nextEntry();
+          if (e == null)
+          {
+            moreEntries = false;
+            break;
+          }
+          batch.add(e);
+        }
 
-        if (parsedDN1.isAncestorOf(parsedDN2, false))
+        if (batch.isEmpty() && (! runs.isEmpty()))
         {
-          return -1;
+          break;
+        }
+
+        final SortRecord[] records = sortRecords(
+             batch.toArray(new Entry[batch.size()]), comparator, numThreads);
+        if (runs.isEmpty() && (! moreEntries))
+        {
+          for (final SortRecord r : records)
+          {
+            writer.writeEntry(r.entry);
+          }
+          return records.length;
+        }
+
+        final File run = createRunFile(tempDirectory);
+        runs.add(run);
+
+        final LDIFWriter runWriter = new LDIFWriter(run);
+        try
+        {
+          for (final SortRecord r : records)
+          {
+            runWriter.writeEntry(r.entry);
+          }
         }
-        else if (parsedDN2.isAncestorOf(parsedDN1, false))
+        finally
         {
-          return 1;
+          runWriter.close();
         }
       }
-      catch (LDAPException le)
+      batch.clear();
+
+      // Merge the runs in order, a bounded number at a time, until they can
+      // all be merged into the output at once.
+      while (runs.size() > MAX_MERGE_RUNS)
       {
-        debugException(le);
+        final ArrayList<File> group = new ArrayList<File>(MAX_MERGE_RUNS);
+        for (int i=0; i < MAX_MERGE_RUNS; i++)
+        {
+          group.add(runs.removeFirst());
+        }
+
+        final File merged = createRunFile(tempDirectory);
+        runs.add(merged);
+
+        final LDIFWriter mergeWriter = new LDIFWriter(merged);
+        try
+        {
+          mergeRuns(group, mergeWriter, comparator);
+        }
+        finally
+        {
+          mergeWriter.close();
+          deleteRuns(group);
+        }
       }
+
+      return mergeRuns(runs, writer, comparator);
+    }
+    finally
+    {
+      deleteRuns(runs);
     }
+  }
 
-    for (final SortKey k : sortKeys)
+
+
+  /**
+   * Creates the sort records for the provided entries, sorts them, and
+   * removes any that compare as equal to an earlier record.
+   *
+   * @param  entries     The entries to sort.
+   * @param  comparator  The comparator to use.
+   * @param  numThreads  The maximum number of threads to use.
+   *
+   * @return  The sorted records.
+   *
+   * @throws  InterruptedException  If the calling thread is interrupted while
+   *                                waiting for the other threads.
+   */
+  private static SortRecord[] sortRecords(final Entry[] entries,
+                                          final RecordComparator comparator,
+                                          final int numThreads)
+          throws InterruptedException
+  {
+    final SortRecord[] records = new SortRecord[entries.length];
+    final int numSlices = Math.max(1,
+         Math.min(numThreads, entries.length / MIN_ENTRIES_PER_THREAD));
+
+    final ArrayList<int[]> slices = new ArrayList<int[]>(numSlices);
+    for (int i=0; i < numSlices; i++)
     {
-      final String attrName = k.getAttributeName();
-      final Attribute a1 = e1.getAttribute(attrName);
-      final Attribute a2 = e2.getAttribute(attrName);
+      slices.add(new int[]
+      {
+        (int) (((long) entries.length * i) / numSlices),
+        (int) (((long) entries.length * (i+1)) / numSlices)
+      });
+    }
+
+    if (numSlices == 1)
+    {
+      sortSlice(entries, records, 0, entries.length, comparator);
+    }
+    else
+    {
+      final ParallelProcessor<int[],Object> processor =
+           new ParallelProcessor<int[],Object>(new Processor<int[],Object>()
+           {
+             public Object process(final int[] slice)
+             {
+               sortSlice(entries, records, slice[0], slice[1], comparator);
+               return null;
+             }
+           },
+           new LDAPSDKThreadFactory("EntrySorter Worker", true), numSlices,
+           1);
 
-      if ((a1 == null) || (! a1.hasValue()))
+      try
       {
-        if ((a2 == null) || (! a2.hasValue()))
+        for (final Result<int[],Object> r : processor.processAll(slices))
         {
-          continue;
+          final Throwable t = r.getFailureCause();
+          if (t instanceof RuntimeException)
+          {
+            throw (RuntimeException) t;
+          }
+          else if (t instanceof Error)
+          {
+            throw (Error) t;
+          }
+        }
+      }
+      finally
+      {
+        processor.shutdown();
+      }
+    }
+
+    return mergeSlices(records, slices, comparator);
+  }
+
+
+
+  /**
+   * Creates the sort records for a slice of the provided entries and sorts
+   * that slice.
+   *
+   * @param  entries     The entries being sorted.
+   * @param  records     The array in which to place the records.
+   * @param  from        The index of the first entry in the slice.
+   * @param  to          The index after the last entry in the slice.
+   * @param  comparator  The comparator to use.
+   */
+  private static void sortSlice(final Entry[] entries,
+                                final SortRecord[] records, final int from,
+                                final int to,
+                                final RecordComparator comparator)
+  {
+    for (int i=from; i < to; i++)
+    {
+      records[i] = comparator.createRecord(entries[i]);
+    }
+
+    Arrays.sort(records, from, to, comparator);
+  }
+
+
+
+  /**
+   * Merges sorted slices of the given array, dropping any record that
+   * compares as equal to the record before it.  Ties between slices go to
+   * the earlier slice, so that, as with {@code TreeSet.addAll}, the first of
+   * a set of equal entries is the one that is kept.
+   *
+   * @param  records     The array containing the sorted slices.
+   * @param  slices      The bounds of the slices, in order.
+   * @param  comparator  The comparator to use.
+   *
+   * @return  The merged records.
+   */
+  private static SortRecord[] mergeSlices(final SortRecord[] records,
+                                          final List<int[]> slices,
+                                          final RecordComparator comparator)
+  {
+    final int numSlices = slices.size();
+    final int[] positions = new int[numSlices];
+    for (int i=0; i < numSlices; i++)
+    {
+      positions[i] = slices.get(i)[0];
+    }
+
+    final SortRecord[] merged = new SortRecord[records.length];
+    int count = 0;
+    while (true)
+    {
+      int next = -1;
+      for (int i=0; i < numSlices; i++)
+      {
+        if ((positions[i] < slices.get(i)[1]) &&
+            ((next < 0) ||
+             (comparator.compare(records[positions[i]],
+                  records[positions[next]]) < 0)))
+        {
+          next = i;
+        }
+      }
+
+      if (next < 0)
+      {
+        break;
+      }
+
+      final SortRecord r = records[positions[next]++];
+      if ((count == 0) || (comparator.compare(merged[count-1], r) != 0))
+      {
+        merged[count++] = r;
+      }
+    }
+
+    if (count == merged.length)
+    {
+      return merged;
+    }
+
+    final SortRecord[] trimmed = new SortRecord[count];
+    System.arraycopy(merged, 0, trimmed, 0, count);
+    return trimmed;
+  }
+
+
+
+  /**
+   * Merges sorted LDIF runs into the given writer, dropping any entry that
+   * compares as equal to the entry before it.  Ties between runs go to the
+   * earlier run.
+   *
+   * @param  runs        The files containing the runs, in order.
+   * @param  writer      The writer to which the merged entries are written.
+   * @param  comparator  The comparator to use.
+   *
+   * @return  The number of entries written.
+   *
+   * @throws  IOException  If a problem occurs while reading a run or writing
+   *                       the output.
+   */
+  private static long mergeRuns(final List<File> runs, final LDIFWriter writer,
+                                final RecordComparator comparator)
+          throws IOException
+  {
+    final PriorityQueue<RunReader> queue =
+         new PriorityQueue<RunReader>(Math.max(1, runs.size()));
+    try
+    {
+      int runNumber = 0;
+      for (final File run : runs)
+      {
+        final RunReader reader =
+             new RunReader(run, runNumber++, comparator);
+        if (reader.advance())
+        {
+          queue.add(reader);
         }
         else
         {
-          return 1;
+          reader.close();
         }
       }
-      else
+
+      long count = 0L;
+      SortRecord last = null;
+      while (! queue.isEmpty())
       {
-        if ((a2 == null) || (! a2.hasValue()))
+        final RunReader reader = queue.poll();
+        final SortRecord r = reader.current;
+        if ((last == null) || (comparator.compare(last, r) != 0))
         {
-          return -1;
+          writer.writeEntry(r.entry);
+          last = r;
+          count++;
+        }
+
+        if (reader.advance())
+        {
+          queue.add(reader);
+        }
+        else
+        {
+          reader.close();
         }
       }
 
+      return count;
+    }
+    finally
+    {
+      for (final RunReader reader : queue)
+      {
+        try
+        {
+          reader.close();
+        }
+        catch (IOException ioe)
+        {
+          debugException(ioe);
+        }
+      }
+    }
+  }
 
-      final MatchingRule matchingRule = MatchingRule.selectOrderingMatchingRule(
-           attrName, k.getMatchingRuleID(), schema);
-      if (k.reverseOrder())
+
+
+  /**
+   * Creates a temporary file to hold a sorted run.
+   *
+   * @param  tempDirectory  The directory in which to create the file, or
+   *                        {@code null} for the default temporary directory.
+   *
+   * @return  The new file.
+   *
+   * @throws  IOException  If the file cannot be created.
+   */
+  private static File createRunFile(final File tempDirectory)
+          throws IOException
+  {
+    return File.createTempFile("EntrySorter-", ".ldif", tempDirectory);
+  }
+
+
+
+  /**
+   * Deletes the given run files, ignoring any that cannot be deleted.
+   *
+   * @param  runs  The run files to delete.
+   */
+  private static void deleteRuns(final Collection<File> runs)
+  {
+    for (final File f : runs)
+    {
+      if (! f.delete())
+      {
+        debug(Level.WARNING, DebugType.OTHER,
+             "Unable to delete EntrySorter run file " + f.getAbsolutePath());
+      }
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}
+   */
+  public int compare(final Entry e1, final Entry e2)
+  {
+    final RecordComparator comparator = new RecordComparator();
+    return comparator.compare(comparator.createRecord(e1),
+         comparator.createRecord(e2));
+  }
+
+
+
+  /**
+   * This class holds an entry along with its parsed DN and the normalized
+   * value of each of its sort keys, so that they are computed once per entry
+   * rather than once per comparison.
+   */
+  private static final class SortRecord
+  {
+    // The entry.
+    private final Entry entry;
+
+    // The parsed DN of the entry, or null if the DN cannot be parsed.
+    private final DN parsedDN;
+
+    // The normalized value to use for each sort key, null if the entry has
+    // no value for it, or INVALID_KEY if the value to use cannot be
+    // normalized.
+    private final ASN1OctetString[] keys;
+
+
+
+    /**
+     * Creates a new sort record.
+     *
+     * @param  entry     The entry.
+     * @param  parsedDN  The parsed DN, or {@code null}.
+     * @param  keys      The normalized sort key values.
+     */
+    private SortRecord(final Entry entry, final DN parsedDN,
+                       final ASN1OctetString[] keys)
+    {
+      this.entry    = entry;
+      this.parsedDN = parsedDN;
+      this.keys     = keys;
+    }
+  }
+
+
+
+  /**
+   * This class compares sort records using the criteria of this sorter.  The
+   * ordering matching rule for each sort key is selected once, when the
+   * comparator is created.
+   */
+  private final class RecordComparator
+          implements Comparator<SortRecord>
+  {
+    // The ordering matching rule for each sort key.
+    private final MatchingRule[] matchingRules;
+
+    // Indicates, for each sort key, whether the matching rule orders values
+    // by the unsigned bytes of their normalized forms, so that normalized
+    // values can be compared without going through the matching rule.
+    private final boolean[] byteOrdered;
+
+
+
+    /**
+     * Creates a new record comparator.
+     */
+    private RecordComparator()
+    {
+      matchingRules = new MatchingRule[sortKeys.size()];
+      byteOrdered   = new boolean[matchingRules.length];
+
+      for (int i=0; i < matchingRules.length; i++)
+      {
+        final SortKey k = sortKeys.get(i);
+        matchingRules[i] = MatchingRule.selectOrderingMatchingRule(
+             k.getAttributeName(), k.getMatchingRuleID(), schema);
+        byteOrdered[i] =
+             ((matchingRules[i] instanceof AcceptAllSimpleMatchingRule) ||
+              (matchingRules[i] instanceof NumericStringMatchingRule));
+      }
+    }
+
+
+
+    /**
+     * Creates the sort record for the given entry.  For each sort key, the
+     * lowest value (or the highest, for a reverse-order key) is the one used.
+     * Values that cannot be normalized are skipped, and if no value can be
+     * normalized the key is marked as invalid.
+     *
+     * @param  entry  The entry.
+     *
+     * @return  The sort record for the entry.
+     */
+    private SortRecord createRecord(final Entry entry)
+    {
+      DN parsedDN;
+      try
       {
-        ASN1OctetString v1 = null;
-        for (final ASN1OctetString s : a1.getRawValues())
+        parsedDN = entry.getParsedDN();
+      }
+      catch (LDAPException le)
+      {
+        debugException(le);
+        parsedDN = null;
+      }
+
+      final ASN1OctetString[] keys = new ASN1OctetString[matchingRules.length];
+      for (int i=0; i < keys.length; i++)
+      {
+        final SortKey k = sortKeys.get(i);
+        final Attribute a = entry.getAttribute(k.getAttributeName());
+        if ((a == null) || (! a.hasValue()))
         {
-          if (v1 == null)
-          {
-            v1 = s;
-          }
-          else
-          {
-            try
-            {
-              if (matchingRule.compareValues(s, v1) > 0)
-              {
-                v1 = s;
-              }
-            }
-            catch (LDAPException le)
-            {
-              debugException(le);
-            }
-          }
+          continue;
         }
 
-        ASN1OctetString v2 = null;
-        for (final ASN1OctetString s : a2.getRawValues())
+        keys[i] = INVALID_KEY;
+        for (final ASN1OctetString v : a.getRawValues())
         {
-          if (v2 == null)
-          {
-            v2 = s;
-          }
-          else
+          try
           {
-            try
+            final ASN1OctetString n = matchingRules[i].normalize(v);
+            if (keys[i] == INVALID_KEY)
             {
-              if (matchingRule.compareValues(s, v2) > 0)
-              {
-                v2 = s;
-              }
+              keys[i] = n;
+              continue;
             }
-            catch (LDAPException le)
+
+            final int c = compareKeys(i, n, keys[i]);
+            if (k.reverseOrder() ? (c > 0) : (c < 0))
             {
-              debugException(le);
+              keys[i] = n;
             }
           }
+          catch (LDAPException le)
+          {
+            debugException(le);
+          }
         }
+      }
 
-        try
+      return new SortRecord(entry, parsedDN, keys);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int compare(final SortRecord r1, final SortRecord r2)
+    {
+      final DN parsedDN1 = r1.parsedDN;
+      final DN parsedDN2 = r2.parsedDN;
+
+      // Entries with fewer RDNs come first, so that every entry follows its
+      // ancestors.  Ordering by depth rather than only putting ancestors
+      // before their descendants keeps the ordering transitive when there
+      // are sort keys.  Entries whose DNs cannot be parsed form a depth of
+      // their own after all others.  Without sort keys, the DN ordering below
+      // already puts ancestors first.
+      if (sortByHierarchy && (matchingRules.length > 0))
+      {
+        if (parsedDN1 == null)
         {
-          final int value = matchingRule.compareValues(v2, v1);
-          if (value != 0)
+          if (parsedDN2 != null)
           {
-            return value;
+            return 1;
           }
         }
-        catch (LDAPException le)
+        else if (parsedDN2 == null)
         {
-          debugException(le);
+          return -1;
+        }
+        else
+        {
+          final int depth1 = parsedDN1.getRDNs().length;
+          final int depth2 = parsedDN2.getRDNs().length;
+          if (depth1 != depth2)
+          {
+            return (depth1 - depth2);
+          }
         }
       }
-      else
+
+      for (int i=0; i < matchingRules.length; i++)
       {
-        ASN1OctetString v1 = null;
-        for (final ASN1OctetString s : a1.getRawValues())
+        final ASN1OctetString k1 = r1.keys[i];
+        final ASN1OctetString k2 = r2.keys[i];
+
+        if (k1 == null)
         {
-          if (v1 == null)
+          if (k2 == null)
           {
-            v1 = s;
+            continue;
           }
           else
           {
-            try
-            {
-              if (matchingRule.compareValues(s, v1) < 0)
-              {
-                v1 = s;
-              }
-            }
-            catch (LDAPException le)
-            {
-              debugException(le);
-            }
+            return 1;
           }
         }
+        else if (k2 == null)
+        {
+          return -1;
+        }
 
-        ASN1OctetString v2 = null;
-        for (final ASN1OctetString s : a2.getRawValues())
+        // Values that cannot be normalized come after all valid values.
+        if (k1 == INVALID_KEY)
         {
-          if (v2 == null)
+          if (k2 == INVALID_KEY)
           {
-            v2 = s;
+            continue;
           }
           else
           {
-            try
-            {
-              if (matchingRule.compareValues(s, v2) < 0)
-              {
-                v2 = s;
-              }
-            }
-            catch (LDAPException le)
-            {
-              debugException(le);
-            }
+            return 1;
           }
         }
+        else if (k2 == INVALID_KEY)
+        {
+          return -1;
+        }
 
         try
         {
-          final int value = matchingRule.compareValues(v1, v2);
+          final int value;
+          if (sortKeys.get(i).reverseOrder())
+          {
+            value = compareKeys(i, k2, k1);
+          }
+          else
+          {
+            value = compareKeys(i, k1, k2);
+          }
+
           if (value != 0)
           {
             return value;
@@ -302,28 +878,312 @@ public final class EntrySorter
           debugException(le);
         }
       }
+
+      // Entries whose DNs cannot be parsed come after all others.
+      if (parsedDN1 != null)
+      {
+        if (parsedDN2 != null)
+        {
+          return parsedDN1.compareTo(parsedDN2);
+        }
+        else
+        {
+          return -1;
+        }
+      }
+      else if (parsedDN2 != null)
+      {
+        return 1;
+      }
+
+      final String lowerDN1 = toLowerCase(r1.entry.getDN());
+      final String lowerDN2 = toLowerCase(r2.entry.getDN());
+      return lowerDN1.compareTo(lowerDN2);
     }
 
-try
+
+
+    /**
+     * Compares two normalized values of the given sort key.
+     *
+     * @param  keyIndex  The index of the sort key.
+     * @param  n1        The first normalized value.
+     * @param  n2        The second normalized value.
+     *
+     * @return  A negative value, zero or a positive value if the first value
+     *          is ordered before, with or after the second.
+     *
+     * @throws  LDAPException  If the matching rule cannot order the values.
+     */
+    private int compareKeys(final int keyIndex, final ASN1OctetString n1,
+                            final ASN1OctetString n2)
+            throws LDAPException
     {
-      if (parsedDN1 == null)
+      if (! byteOrdered[keyIndex])
       {
-        parsedDN1 = e1.getParsedDN();
+        return matchingRules[keyIndex].compareValues(n1, n2);
       }
 
-      if (parsedDN2 == null)
+      final byte[] b1 = n1.getValue();
+      final byte[] b2 = n2.getValue();
+      final int minLength = Math.min(b1.length, b2.length);
+      for (int i=0; i < minLength; i++)
       {
-        parsedDN2 = e2.getParsedDN();
+        final int difference = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+        if (difference != 0)
+        {
+          return difference;
+        }
       }
 
-      return parsedDN1.compareTo(parsedDN2);
+      return b1.length - b2.length;
     }
-    catch (LDAPException le)
+  }
+
+
+
+  /**
+   * This class reads the entries of a sorted run back from its temporary
+   * file during a merge.  Readers are ordered by their current entry, and
+   * then by the position of their run.
+   */
+  private static final class RunReader
+          implements Comparable<RunReader>
+  {
+    // The reader for the run file.
+    private final LDIFReader reader;
+
+    // The position of the run among those being merged.
+    private final int runNumber;
+
+    // The comparator to use.
+    private final RecordComparator comparator;
+
+    // The record for the current entry of the run.
+    private SortRecord current;
+
+
+
+    /**
+     * Creates a new run reader.
+     *
+     * @param  run         The run file.
+     * @param  runNumber   The position of the run among those being merged.
+     * @param  comparator  The comparator to use.
+     *
+     * @throws  IOException  If the file cannot be opened.
+     */
+    private RunReader(final File run, final int runNumber,
+                      final RecordComparator comparator)
+            throws IOException
     {
-      debugException(le);
-      final String lowerDN1 = toLowerCase(e1.getDN());
-      final String lowerDN2 = toLowerCase(e2.getDN());
-      return lowerDN1.compareTo(lowerDN2);
+      this.runNumber  = runNumber;
+      this.comparator = comparator;
+
+      reader = new LDIFReader(run);
+    }
+
+
+
+    /**
+     * Reads the next entry of the run.
+     *
+     * @return  {@code true} if an entry was read, or {@code false} if the end
+     *          of the run was reached.
+     *
+     * @throws  IOException  If the entry cannot be read.
+     */
+    private boolean advance()
+            throws IOException
+    {
+      final Entry e;
+      try
+      {
+        e = reader.readEntry();
+      }
+      catch (LDIFException le)
+      {
+        debugException(le);
+        throw new IOException(getExceptionMessage(le), le);
+      }
+
+      if (e == null)
+      {
+        current = null;
+        return false;
+      }
+
+      current = comparator.createRecord(e);
+      return true;
+    }
+
+
+
+    /**
+     * Closes the run file.
+     *
+     * @throws  IOException  If the file cannot be closed.
+     */
+    private void close()
+            throws IOException
+    {
+      reader.close();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int compareTo(final RunReader r)
+    {
+      final int c = comparator.compare(current, r.current);
+      if (c != 0)
+      {
+        return c;
+      }
+
+      return (runNumber - r.runNumber);
+    }
+  }
+
+
+
+  /**
+   * This class presents an array of sorted records as a sorted set of their
+   * entries.  It supports only what is needed to copy it into another sorted
+   * set.
+   */
+  private final class SortedRecordView
+          extends AbstractSet<Entry>
+          implements SortedSet<Entry>
+  {
+    // The sorted records.
+    private final SortRecord[] records;
+
+
+
+    /**
+     * Creates a new view of the given records.
+     *
+     * @param  records  The sorted records, none of which compare as equal.
+     */
+    private SortedRecordView(final SortRecord[] records)
+    {
+      this.records = records;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Comparator<? super Entry> comparator()
+    {
+      return EntrySorter.this;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public Iterator<Entry> iterator()
+    {
+      return new Iterator<Entry>()
+      {
+        private int next = 0;
+
+        public boolean hasNext()
+        {
+          return (next < records.length);
+        }
+
+        public Entry next()
+        {
+          if (next >= records.length)
+          {
+            throw new NoSuchElementException();
+          }
+          return records[next++].entry;
+        }
+
+        public void remove()
+        {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override()
+    public int size()
+    {
+      return records.length;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Entry first()
+    {
+      if (records.length == 0)
+      {
+        throw new NoSuchElementException();
+      }
+      return records[0].entry;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Entry last()
+    {
+      if (records.length == 0)
+      {
+        throw new NoSuchElementException();
+      }
+      return records[records.length - 1].entry;
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public SortedSet<Entry> subSet(final Entry fromElement,
+                                   final Entry toElement)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public SortedSet<Entry> headSet(final Entry toElement)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public SortedSet<Entry> tailSet(final Entry fromElement)
+    {
+      throw new UnsupportedOperationException();
     }
   }
 
@@ -2383,6 +2383,13 @@ attrNameLoop:
 
         MatchingRule matchingRule =
              MatchingRule.selectEqualityMatchingRule(attrName, schema);
+        final Boolean found =
+             a.hasNormalizedValue(assertionValue, matchingRule);
+        if (found != null)
+        {
+          return found;
+        }
+
         for (final ASN1OctetString v : a.getRawValues())
         {
           if (matchingRule.valuesMatch(v, assertionValue))
@@ -197,4 +197,13 @@ public final class InternalSDKHelper
   {
     return connection.getLastBindRequest();
   }
+
+
+
+
+  @InternalUseOnly()
+  public static void clearLastBindRequest(final LDAPConnection connection)
+  {
+    connection.clearLastBindRequest();
+  }
 }
@@ -4,7 +4,7 @@ package com.hwlcn.ldap.ldap.sdk;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Timer;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -21,6 +21,7 @@ import com.hwlcn.ldap.ldap.protocol.UnbindRequestProtocolOp;
 import com.hwlcn.ldap.ldap.sdk.schema.Schema;
 import com.hwlcn.ldap.ldif.LDIFException;
 import com.hwlcn.ldap.util.DebugType;
+import com.hwlcn.ldap.util.HashedWheelTimer;
 import com.hwlcn.ldap.util.SynchronizedSocketFactory;
 import com.hwlcn.ldap.util.SynchronizedSSLSocketFactory;
 import com.hwlcn.core.annotation.ThreadSafety;
@@ -174,6 +175,9 @@ public final class LDAPConnection
 
   private static final AtomicLong NEXT_CONNECTION_ID = new AtomicLong(0L);
 
+  private static final AtomicReference<HashedWheelTimer> TIMEOUT_TIMER =
+       new AtomicReference<HashedWheelTimer>();
+
   private static final SocketFactory DEFAULT_SOCKET_FACTORY =
                                           SocketFactory.getDefault();
 
@@ -222,8 +226,6 @@ public final class LDAPConnection
 
   private String reconnectAddress;
 
-  private Timer timer;
-
   public LDAPConnection()
   {
     this(null, null);
@@ -289,7 +291,6 @@ public final class LDAPConnection
     connectionName       = null;
     connectionPoolName   = null;
     cachedSchema         = null;
-    timer                = null;
 
     referralConnector = this.connectionOptions.getReferralConnector();
     if (referralConnector == null)
@@ -1945,12 +1946,6 @@ public final class LDAPConnection
     }
 
     cachedSchema = null;
-
-    if (timer != null)
-    {
-      timer.cancel();
-      timer = null;
-    }
   }
 
 
@@ -1987,14 +1982,57 @@ public final class LDAPConnection
   }
 
 
-  synchronized Timer getTimer()
+  HashedWheelTimer getTimer()
   {
-    if (timer == null)
+    return getTimeoutTimer();
+  }
+
+
+
+  /**
+   * Retrieves the timer that enforces response timeouts for asynchronous
+   * operations on all connections, creating it with the default tick and wheel
+   * size if necessary.
+   *
+   * @return  The shared response timeout timer.
+   */
+  public static HashedWheelTimer getTimeoutTimer()
+  {
+    HashedWheelTimer t = TIMEOUT_TIMER.get();
+    if (t == null)
     {
-      timer = new Timer("Timer thread for " + toString(), true);
+      final HashedWheelTimer newTimer = new HashedWheelTimer(
+           "LDAP SDK Response Timeout Timer",
+           LDAPConnectionOptions.DEFAULT_TIMEOUT_TIMER_TICK_MILLIS,
+           TimeUnit.MILLISECONDS,
+           LDAPConnectionOptions.DEFAULT_TIMEOUT_TIMER_WHEEL_SIZE);
+      if (TIMEOUT_TIMER.compareAndSet(null, newTimer))
+      {
+        t = newTimer;
+      }
+      else
+      {
+        t = TIMEOUT_TIMER.get();
+      }
     }
 
-    return timer;
+    return t;
+  }
+
+
+
+  /**
+   * Replaces the timer that enforces response timeouts for asynchronous
+   * operations on all connections, e.g. to use a finer tick or a larger wheel.
+   * Timeouts already scheduled on the previous timer still fire there; the
+   * previous timer is not stopped.
+   *
+   * @param  timer  The timer to use.  It must not be {@code null}.
+   */
+  public static void setTimeoutTimer(final HashedWheelTimer timer)
+  {
+    ensureNotNull(timer);
+    TIMEOUT_TIMER.set(timer);
   }
 
 
@@ -2049,6 +2087,13 @@ public final class LDAPConnection
 
 
 
+  void clearLastBindRequest()
+  {
+    lastBindRequest = null;
+  }
+
+
+
   LDAPConnectionInternals getConnectionInternals(
                                final boolean throwIfDisconnected)
        throws LDAPException
@@ -61,6 +61,10 @@ public final class LDAPConnectionOptions {
 
     static final long DEFAULT_RESPONSE_TIMEOUT_MILLIS = 300000L;
 
+    static final long DEFAULT_TIMEOUT_TIMER_TICK_MILLIS = 100L;
+
+    static final int DEFAULT_TIMEOUT_TIMER_WHEEL_SIZE = 512;
+
     static final boolean DEFAULT_ALLOW_CONCURRENT_SOCKET_FACTORY_USE;
 
     static {
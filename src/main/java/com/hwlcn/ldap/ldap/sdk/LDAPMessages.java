@@ -1333,6 +1333,34 @@ public enum LDAPMessages
 
 
 
+  /**
+   * The provided search request already includes a simple paged results control.  The search request provided to a paged search entry source must not include that control, since the entry source adds its own.
+   */
+  ERR_PAGED_ENTRY_SOURCE_REQUEST_HAS_CONTROL("The provided search request already includes a simple paged results control.  The search request provided to a paged search entry source must not include that control, since the entry source adds its own."),
+
+
+
+  /**
+   * Partitioned search processing was interrupted while waiting for the partition searches to complete.
+   */
+  ERR_PARTITIONED_SEARCH_INTERRUPTED("Partitioned search processing was interrupted while waiting for the partition searches to complete."),
+
+
+
+  /**
+   * An unexpected error occurred while searching partition {0}:  {1}
+   */
+  ERR_PARTITIONED_SEARCH_PARTITION_FAILED("An unexpected error occurred while searching partition {0}:  {1}"),
+
+
+
+  /**
+   * The search matched more than the size limit of {0,number,0} entries.
+   */
+  ERR_PARTITIONED_SEARCH_SIZE_LIMIT_EXCEEDED("The search matched more than the size limit of {0,number,0} entries."),
+
+
+
   /**
    * This connection pool has been closed.
    */
@@ -1627,6 +1655,27 @@ public enum LDAPMessages
 
 
 
+  /**
+   * The search request provided to a virtual list view cursor must not have a search result listener, a server-side sort request control or a virtual list view request control.
+   */
+  ERR_VLV_CURSOR_INVALID_REQUEST("The search request provided to a virtual list view cursor must not have a search result listener, a server-side sort request control or a virtual list view request control."),
+
+
+
+  /**
+   * The server did not return a virtual list view response control, which may indicate that it does not support virtual list view searches.
+   */
+  ERR_VLV_CURSOR_NO_RESPONSE_CONTROL("The server did not return a virtual list view response control, which may indicate that it does not support virtual list view searches."),
+
+
+
+  /**
+   * The server could not return the requested window of the virtual list view:  {0}
+   */
+  ERR_VLV_CURSOR_WINDOW_FAILED("The server could not return the requested window of the virtual list view:  {0}"),
+
+
+
   /**
    * The asynchronous operation encountered a client-side timeout after waiting {0,number,0} milliseconds for a response to arrive.
    */
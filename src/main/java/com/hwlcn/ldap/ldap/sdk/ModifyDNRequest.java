@@ -2,7 +2,6 @@ package com.hwlcn.ldap.ldap.sdk;
 
 
 
-import java.util.Timer;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -426,11 +425,10 @@ public final class ModifyDNRequest
       final long timeout = getResponseTimeoutMillis(connection);
       if (timeout > 0L)
       {
-        final Timer timer = connection.getTimer();
         final AsyncTimeoutTimerTask timerTask =
              new AsyncTimeoutTimerTask(helper);
-        timer.schedule(timerTask, timeout);
-        asyncRequestID.setTimerTask(timerTask);
+        asyncRequestID.setTimeout(connection.getTimer().schedule(timerTask,
+             timeout, TimeUnit.MILLISECONDS));
       }
     }
     try
@@ -6,7 +6,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Timer;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -500,11 +499,10 @@ public final class ModifyRequest
       final long timeout = getResponseTimeoutMillis(connection);
       if (timeout > 0L)
       {
-        final Timer timer = connection.getTimer();
         final AsyncTimeoutTimerTask timerTask =
              new AsyncTimeoutTimerTask(helper);
-        timer.schedule(timerTask, timeout);
-        asyncRequestID.setTimerTask(timerTask);
+        asyncRequestID.setTimeout(connection.getTimer().schedule(timerTask,
+             timeout, TimeUnit.MILLISECONDS));
       }
     }
 
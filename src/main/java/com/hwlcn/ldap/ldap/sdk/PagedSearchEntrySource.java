@@ -0,0 +1,446 @@
+package com.hwlcn.ldap.ldap.sdk;
+
+
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hwlcn.ldap.asn1.ASN1OctetString;
+import com.hwlcn.ldap.ldap.sdk.controls.SimplePagedResultsControl;
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.ldap.sdk.LDAPMessages.*;
+import static com.hwlcn.ldap.util.Debug.*;
+import static com.hwlcn.ldap.util.Validator.*;
+
+
+
+/**
+ * This class provides an {@link EntrySource} that reads all entries matching
+ * a search from an LDAP directory server one page at a time, using the
+ * {@link SimplePagedResultsControl}.  The cookie returned with each page is
+ * used to request the next one, so that callers do not need to write the
+ * paging loop themselves.
+ * <BR><BR>
+ * Pages are retrieved by a background thread that requests the next page as
+ * soon as the previous one has arrived, while the caller is still processing
+ * earlier entries, so that the round trip to the server is hidden behind that
+ * processing.  The thread stops once a configurable number of pages is
+ * waiting to be read, so no more than that number of pages, plus the page
+ * being read and the page being retrieved, is held in memory at once.  If the
+ * entry source is closed before all pages have been read, the server is told
+ * to release the rest of the results.
+ * <BR><BR>
+ * All of the pages of a search must be retrieved over the same connection,
+ * since servers such as OpenLDAP only accept a paged results cookie on the
+ * connection that issued it.  To use a connection from an
+ * {@link LDAPConnectionPool}, check it out with
+ * {@link LDAPConnectionPool#getConnection()}, and release it only after the
+ * entry source has been closed.  Do not pass the pool itself, because it may
+ * send each page over a different connection.
+ * <H2>Example</H2>
+ * The following example iterates across all entries containing the
+ * {@code person} object class, 500 entries per page:
+ * <PRE>
+ *   SearchRequest searchRequest = new SearchRequest("dc=example,dc=com",
+ *        SearchScope.SUB, "(objectClass=person)");
+ *   PagedSearchEntrySource entrySource =
+ *        new PagedSearchEntrySource(connection, searchRequest, 500);
+ *
+ *   try
+ *   {
+ *     while (true)
+ *     {
+ *       try
+ *       {
+ *         Entry entry = entrySource.nextEntry();
+ *         if (entry == null)
+ *         {
+ *           // There are no more entries to be read.
+ *           break;
+ *         }
+ *         else
+ *         {
+ *           // Do something with the entry here.
+ *         }
+ *       }
+ *       catch (SearchResultReferenceEntrySourceException e)
+ *       {
+ *         // The directory server returned a search result reference.
+ *         SearchResultReference searchReference = e.getSearchReference();
+ *       }
+ *       catch (EntrySourceException e)
+ *       {
+ *         // The search failed, so no more entries will be returned.
+ *         break;
+ *       }
+ *     }
+ *   }
+ *   finally
+ *   {
+ *     entrySource.close();
+ *   }
+ * </PRE>
+ */
+@ThreadSafety(level=ThreadSafetyLevel.NOT_THREADSAFE)
+public final class PagedSearchEntrySource
+       extends EntrySource
+{
+
+  private static final String END_OF_RESULTS = "END OF RESULTS";
+
+
+
+  private final AtomicBoolean closed;
+
+  private final AtomicInteger pagesRetrieved;
+
+  private final int pageSize;
+
+  private final LDAPInterface connection;
+
+  private final LinkedBlockingQueue<Object> queue;
+
+  private final SearchRequest searchRequest;
+
+  private boolean endOfResults;
+
+  private int entryPos;
+
+  private int referencePos;
+
+  private volatile SearchResult lastResult;
+
+  private List<SearchResultEntry> pageEntries;
+
+  private List<SearchResultReference> pageReferences;
+
+
+
+  /**
+   * Creates a new paged search entry source that keeps up to two pages
+   * waiting to be read.
+   *
+   * @param  connection     The connection to use to process the search.  All
+   *                        pages are retrieved over it, so it must not be a
+   *                        connection pool.
+   * @param  searchRequest  The search request to process.  It must not have
+   *                        a search result listener or a simple paged results
+   *                        control.
+   * @param  pageSize       The maximum number of entries to request in each
+   *                        page.
+   *
+   * @throws  LDAPException  If the search request cannot be used.
+   */
+  public PagedSearchEntrySource(final LDAPInterface connection,
+                                final SearchRequest searchRequest,
+                                final int pageSize)
+         throws LDAPException
+  {
+    this(connection, searchRequest, pageSize, 2);
+  }
+
+
+
+  /**
+   * Creates a new paged search entry source.
+   *
+   * @param  connection     The connection to use to process the search.  All
+   *                        pages are retrieved over it, so it must not be a
+   *                        connection pool.
+   * @param  searchRequest  The search request to process.  It must not have
+   *                        a search result listener or a simple paged results
+   *                        control.
+   * @param  pageSize       The maximum number of entries to request in each
+   *                        page.
+   * @param  prefetchPages  The maximum number of retrieved pages that may be
+   *                        waiting to be read before the next page is
+   *                        requested.
+   *
+   * @throws  LDAPException  If the search request cannot be used.
+   */
+  public PagedSearchEntrySource(final LDAPInterface connection,
+                                final SearchRequest searchRequest,
+                                final int pageSize, final int prefetchPages)
+         throws LDAPException
+  {
+    ensureNotNull(connection, searchRequest);
+    ensureTrue(pageSize > 0,
+         "PagedSearchEntrySource.pageSize must be greater than 0.");
+    ensureTrue(prefetchPages > 0,
+         "PagedSearchEntrySource.prefetchPages must be greater than 0.");
+
+    if (searchRequest.getSearchResultListener() != null)
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+                              ERR_LDAP_ENTRY_SOURCE_REQUEST_HAS_LISTENER.get());
+    }
+
+    if (searchRequest.hasControl(SimplePagedResultsControl.PAGED_RESULTS_OID))
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+                              ERR_PAGED_ENTRY_SOURCE_REQUEST_HAS_CONTROL.get());
+    }
+
+    this.connection    = connection;
+    this.pageSize      = pageSize;
+    this.searchRequest = searchRequest.duplicate();
+
+    closed         = new AtomicBoolean(false);
+    pagesRetrieved = new AtomicInteger(0);
+    queue          = new LinkedBlockingQueue<Object>(prefetchPages);
+    endOfResults   = false;
+
+    final Thread t = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        retrievePages();
+      }
+    }, "PagedSearchEntrySource for " + searchRequest.getBaseDN());
+    t.setDaemon(true);
+    t.start();
+  }
+
+
+
+  /**
+   * {@inheritDoc}  Search result references are returned as
+   * {@link SearchResultReferenceEntrySourceException}s after the entries of
+   * the page in which they were received.  If the search fails, an
+   * {@code EntrySourceException} that does not allow reading to continue is
+   * thrown once all entries retrieved before the failure have been returned.
+   */
+  @Override()
+  public Entry nextEntry()
+         throws EntrySourceException
+  {
+    while (true)
+    {
+      if (closed.get())
+      {
+        return null;
+      }
+
+      if ((pageEntries != null) && (entryPos < pageEntries.size()))
+      {
+        return pageEntries.get(entryPos++);
+      }
+
+      if ((pageReferences != null) && (referencePos < pageReferences.size()))
+      {
+        throw new SearchResultReferenceEntrySourceException(
+             pageReferences.get(referencePos++));
+      }
+
+      if (endOfResults)
+      {
+        return null;
+      }
+
+      final Object o;
+      try
+      {
+        o = queue.poll(10L, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ie)
+      {
+        debugException(ie);
+        continue;
+      }
+
+      if (o == null)
+      {
+        continue;
+      }
+      else if (o == END_OF_RESULTS)
+      {
+        endOfResults = true;
+        return null;
+      }
+      else if (o instanceof SearchResult)
+      {
+        final SearchResult page = (SearchResult) o;
+        pageEntries    = page.getSearchEntries();
+        pageReferences = page.getSearchReferences();
+        entryPos       = 0;
+        referencePos   = 0;
+      }
+      else
+      {
+        endOfResults = true;
+        throw (EntrySourceException) o;
+      }
+    }
+  }
+
+
+
+  /**
+   * {@inheritDoc}  If there are pages that have not yet been retrieved, the
+   * server is asked to release the rest of the results.
+   */
+  @Override()
+  public void close()
+  {
+    if (closed.compareAndSet(false, true))
+    {
+      queue.clear();
+      pageEntries    = null;
+      pageReferences = null;
+    }
+  }
+
+
+
+  /**
+   * Retrieves the number of pages retrieved from the server so far.
+   *
+   * @return  The number of pages retrieved from the server so far.
+   */
+  public int getPagesRetrieved()
+  {
+    return pagesRetrieved.get();
+  }
+
+
+
+  /**
+   * Retrieves the result of the most recent page request.  Once all entries
+   * have been read, this is the result of the search as a whole.
+   *
+   * @return  The result of the most recent page request, or {@code null} if
+   *          no page has been retrieved yet.
+   */
+  public SearchResult getSearchResult()
+  {
+    return lastResult;
+  }
+
+
+
+  /**
+   * Requests pages from the server and adds them to the queue until the last
+   * page has been retrieved, the search fails, or the entry source is closed.
+   */
+  private void retrievePages()
+  {
+    ASN1OctetString cookie = null;
+    while (true)
+    {
+      if (closed.get())
+      {
+        releaseResults(cookie);
+        return;
+      }
+
+      final SearchResult result;
+      final SimplePagedResultsControl responseControl;
+      try
+      {
+        result = connection.search(createPageRequest(pageSize, cookie));
+        responseControl = SimplePagedResultsControl.get(result);
+      }
+      catch (LDAPException le)
+      {
+        debugException(le);
+        if (le instanceof LDAPSearchException)
+        {
+          lastResult = ((LDAPSearchException) le).getSearchResult();
+        }
+        addToQueue(new EntrySourceException(false, le));
+        return;
+      }
+
+      lastResult = result;
+      pagesRetrieved.incrementAndGet();
+      addToQueue(result);
+
+      // A server that does not return the control has ignored the request
+      // for paging and returned all of the entries at once.
+      if ((responseControl == null) ||
+          (! responseControl.moreResultsToReturn()))
+      {
+        addToQueue(END_OF_RESULTS);
+        return;
+      }
+
+      cookie = responseControl.getCookie();
+    }
+  }
+
+
+
+  /**
+   * Creates the search request for a page.
+   *
+   * @param  size    The page size to request.
+   * @param  cookie  The cookie from the previous page, or {@code null} for
+   *                 the first page.
+   *
+   * @return  The search request for the page.
+   */
+  private SearchRequest createPageRequest(final int size,
+                                          final ASN1OctetString cookie)
+  {
+    final SearchRequest r = searchRequest.duplicate();
+    r.addControl(new SimplePagedResultsControl(size, cookie, false));
+    return r;
+  }
+
+
+
+  /**
+   * Tells the server that no more pages will be requested, by requesting a
+   * page of size zero, so that it can release the rest of the results.
+   *
+   * @param  cookie  The cookie from the last page retrieved, or {@code null}
+   *                 if no page has been retrieved.
+   */
+  private void releaseResults(final ASN1OctetString cookie)
+  {
+    if (cookie == null)
+    {
+      return;
+    }
+
+    try
+    {
+      connection.search(createPageRequest(0, cookie));
+    }
+    catch (LDAPException le)
+    {
+      debugException(le);
+    }
+  }
+
+
+
+  /**
+   * Adds the given object to the queue, waiting for space, unless the entry
+   * source is closed first.
+   *
+   * @param  o  The object to add.
+   */
+  private void addToQueue(final Object o)
+  {
+    while (! closed.get())
+    {
+      try
+      {
+        if (queue.offer(o, 100L, TimeUnit.MILLISECONDS))
+        {
+          return;
+        }
+      }
+      catch (InterruptedException ie)
+      {
+        debugException(ie);
+      }
+    }
+  }
+}
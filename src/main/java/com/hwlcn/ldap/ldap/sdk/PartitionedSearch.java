@@ -0,0 +1,671 @@
+package com.hwlcn.ldap.ldap.sdk;
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.util.LDAPSDKThreadFactory;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.ldap.sdk.LDAPMessages.*;
+import static com.hwlcn.ldap.util.Debug.*;
+import static com.hwlcn.ldap.util.StaticUtils.*;
+import static com.hwlcn.ldap.util.Validator.*;
+
+
+
+/**
+ * This class processes a single large search as a number of smaller searches
+ * that are run concurrently on different connections from an
+ * {@link LDAPConnectionPool}, so that the work is spread across several
+ * server threads instead of being served by one.  The entries and references
+ * returned by all of the smaller searches are passed to one
+ * {@link SearchResultListener}, whose methods are never invoked by more than
+ * one thread at a time.  The order in which entries are returned is not
+ * defined.  Each search is sent asynchronously on a connection of its own,
+ * so that once one fails or the size limit of the original search is
+ * reached, the searches still in progress are abandoned instead of being
+ * left to run to completion on the server.  The pool must therefore not use
+ * connections in synchronous mode.
+ * <BR><BR>
+ * A search may be partitioned in one of two ways:
+ * <UL>
+ *   <LI>By the immediate subordinates of the base entry.  A whole-subtree
+ *       search is split into a search of the base entry, a one-level search
+ *       below it, and a subordinate-subtree search below each subordinate
+ *       that has subordinates of its own (those for which the server returns
+ *       {@code hasSubordinates: FALSE} are skipped).  This suits trees whose
+ *       entries are spread over several branches.  If the server does not
+ *       provide {@code hasSubordinates}, every subordinate gets its own
+ *       search, so flat containers are better partitioned by filter.</LI>
+ *   <LI>By filter.  The search is run once for each of a set of partition
+ *       filters, combined with the search filter.  The partition filters
+ *       must not overlap and must together match every entry, for example
+ *       {@code (uid=a*)} through {@code (uid=z*)} together with an
+ *       {@code (!(uid=...))} filter for the remainder.  This suits flat
+ *       containers with a large number of leaf entries.</LI>
+ * </UL>
+ * <H2>Example</H2>
+ * The following example exports all entries below {@code ou=users} using
+ * eight concurrent searches:
+ * <PRE>
+ *   PartitionedSearch partitionedSearch = new PartitionedSearch(pool, 8);
+ *   SearchResult result = partitionedSearch.search(
+ *        new SearchRequest("ou=users,dc=example,dc=com", SearchScope.SUB,
+ *             "(objectClass=*)"),
+ *        listener);
+ * </PRE>
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class PartitionedSearch
+{
+
+  private static final String ATTR_HAS_SUBORDINATES = "hasSubordinates";
+
+
+
+  private final int numThreads;
+
+  private final LDAPConnectionPool pool;
+
+
+
+  /**
+   * Creates a new partitioned search facility.
+   *
+   * @param  pool        The connection pool to use to process the searches.
+   *                     It should allow at least {@code numThreads}
+   *                     connections.
+   * @param  numThreads  The maximum number of searches to run at once.
+   */
+  public PartitionedSearch(final LDAPConnectionPool pool,
+                           final int numThreads)
+  {
+    ensureNotNull(pool);
+    ensureTrue(numThreads > 0,
+         "PartitionedSearch.numThreads must be greater than 0.");
+
+    this.pool       = pool;
+    this.numThreads = numThreads;
+  }
+
+
+
+  /**
+   * Processes the given search, partitioned by the immediate subordinates of
+   * its base entry.  Searches with a scope other than whole subtree or
+   * subordinate subtree are processed as a single search.
+   *
+   * @param  searchRequest  The search to process.  Its search result
+   *                        listener, if any, is not used.
+   * @param  listener       The listener to which all entries and references
+   *                        are passed.
+   *
+   * @return  The combined result of the searches.
+   *
+   * @throws  LDAPSearchException  If the subordinates of the base entry
+   *                               cannot be listed, or any of the searches
+   *                               fails.  No further partitions are started
+   *                               after a failure and those in progress are
+   *                               abandoned, but entries already returned
+   *                               will have been passed to the listener.
+   */
+  public SearchResult search(final SearchRequest searchRequest,
+                             final SearchResultListener listener)
+         throws LDAPSearchException
+  {
+    ensureNotNull(searchRequest, listener);
+
+    final int scope = searchRequest.getScope().intValue();
+    if ((scope != SearchScope.SUB_INT_VALUE) &&
+        (scope != SearchScope.SUBORDINATE_SUBTREE_INT_VALUE))
+    {
+      final List<SearchRequest> partitions = new ArrayList<SearchRequest>(1);
+      partitions.add(searchRequest);
+      return processPartitions(searchRequest, partitions, listener);
+    }
+
+    final String baseDN = searchRequest.getBaseDN();
+    final List<SearchRequest> partitions = new ArrayList<SearchRequest>();
+    if (scope == SearchScope.SUB_INT_VALUE)
+    {
+      partitions.add(createPartition(searchRequest, baseDN, SearchScope.BASE,
+           searchRequest.getFilter()));
+    }
+    partitions.add(createPartition(searchRequest, baseDN, SearchScope.ONE,
+         searchRequest.getFilter()));
+
+    final SearchRequest listRequest = new SearchRequest(null,
+         searchRequest.getControls(), baseDN, SearchScope.ONE,
+         searchRequest.getDereferencePolicy(), 0,
+         searchRequest.getTimeLimitSeconds(), false,
+         Filter.createPresenceFilter("objectClass"), ATTR_HAS_SUBORDINATES);
+    final SearchResult listResult = pool.search(listRequest);
+    for (final SearchResultEntry e : listResult.getSearchEntries())
+    {
+      final String hasSubordinates =
+           e.getAttributeValue(ATTR_HAS_SUBORDINATES);
+      if ((hasSubordinates == null) ||
+          (! hasSubordinates.equalsIgnoreCase("false")))
+      {
+        partitions.add(createPartition(searchRequest, e.getDN(),
+             SearchScope.SUBORDINATE_SUBTREE, searchRequest.getFilter()));
+      }
+    }
+
+    return processPartitions(searchRequest, partitions, listener);
+  }
+
+
+
+  /**
+   * Processes the given search once for each of the provided partition
+   * filters, each combined with the search filter.
+   *
+   * @param  searchRequest     The search to process.  Its search result
+   *                           listener, if any, is not used.
+   * @param  listener          The listener to which all entries and
+   *                           references are passed.
+   * @param  partitionFilters  The partition filters.  They must not overlap
+   *                           and must together match every entry, or
+   *                           entries will be returned more than once or not
+   *                           at all.
+   *
+   * @return  The combined result of the searches.
+   *
+   * @throws  LDAPSearchException  If any of the searches fails.  No further
+   *                               partitions are started after a failure and
+   *                               those in progress are abandoned, but
+   *                               entries already returned will have been
+   *                               passed to the listener.
+   */
+  public SearchResult search(final SearchRequest searchRequest,
+                             final SearchResultListener listener,
+                             final Filter... partitionFilters)
+         throws LDAPSearchException
+  {
+    ensureNotNull(searchRequest, listener, partitionFilters);
+    ensureFalse(partitionFilters.length == 0,
+         "PartitionedSearch.partitionFilters must not be empty.");
+
+    final List<SearchRequest> partitions =
+         new ArrayList<SearchRequest>(partitionFilters.length);
+    for (final Filter f : partitionFilters)
+    {
+      partitions.add(createPartition(searchRequest,
+           searchRequest.getBaseDN(), searchRequest.getScope(),
+           Filter.createANDFilter(searchRequest.getFilter(), f)));
+    }
+
+    return processPartitions(searchRequest, partitions, listener);
+  }
+
+
+
+  /**
+   * Creates the search request for a partition, with the settings of the
+   * original request and without a listener.
+   *
+   * @param  searchRequest  The original search request.
+   * @param  baseDN         The base DN of the partition.
+   * @param  scope          The scope of the partition.
+   * @param  filter         The filter of the partition.
+   *
+   * @return  The search request for the partition.
+   */
+  private static SearchRequest createPartition(
+                                    final SearchRequest searchRequest,
+                                    final String baseDN,
+                                    final SearchScope scope,
+                                    final Filter filter)
+  {
+    return new SearchRequest(null, searchRequest.getControls(), baseDN, scope,
+         searchRequest.getDereferencePolicy(), searchRequest.getSizeLimit(),
+         searchRequest.getTimeLimitSeconds(), searchRequest.typesOnly(),
+         filter, searchRequest.getAttributes());
+  }
+
+
+
+  /**
+   * Runs the searches of all partitions, up to {@code numThreads} at a time,
+   * and combines their results.
+   *
+   * @param  searchRequest  The original search request.
+   * @param  partitions     The search requests of the partitions.
+   * @param  listener       The listener to which all entries and references
+   *                        are passed.
+   *
+   * @return  The combined result of the searches.
+   *
+   * @throws  LDAPSearchException  If any of the searches fails.
+   */
+  private SearchResult processPartitions(final SearchRequest searchRequest,
+                                         final List<SearchRequest> partitions,
+                                         final SearchResultListener listener)
+          throws LDAPSearchException
+  {
+    final MergingListener mergingListener =
+         new MergingListener(listener, searchRequest.getSizeLimit());
+    final AtomicReference<LDAPSearchException> failure =
+         new AtomicReference<LDAPSearchException>();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(
+         Math.min(numThreads, partitions.size()),
+         new LDAPSDKThreadFactory("PartitionedSearch Worker", true));
+    try
+    {
+      final List<Future<?>> futures =
+           new ArrayList<Future<?>>(partitions.size());
+      for (final SearchRequest p : partitions)
+      {
+        final SearchRequest r = p.duplicate();
+        futures.add(executor.submit(new Runnable()
+        {
+          public void run()
+          {
+            if (! mergingListener.isStopped())
+            {
+              processPartition(r, mergingListener, failure);
+            }
+          }
+        }));
+      }
+
+      for (final Future<?> f : futures)
+      {
+        f.get();
+      }
+    }
+    catch (InterruptedException ie)
+    {
+      debugException(ie);
+      Thread.currentThread().interrupt();
+      mergingListener.stop();
+      throw new LDAPSearchException(ResultCode.LOCAL_ERROR,
+           ERR_PARTITIONED_SEARCH_INTERRUPTED.get(), ie);
+    }
+    catch (ExecutionException ee)
+    {
+      // The tasks catch everything they can expect, so this is unexpected.
+      debugException(ee);
+      mergingListener.stop();
+      throw new LDAPSearchException(ResultCode.LOCAL_ERROR,
+           getExceptionMessage(ee.getCause()), ee.getCause());
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    final LDAPSearchException lse = failure.get();
+    if (lse != null)
+    {
+      throw new LDAPSearchException(new SearchResult(-1, lse.getResultCode(),
+           lse.getDiagnosticMessage(), lse.getMatchedDN(),
+           lse.getReferralURLs(), mergingListener.getEntryCount(),
+           mergingListener.getReferenceCount(), lse.getResponseControls()));
+    }
+
+    if (mergingListener.sizeLimitExceeded())
+    {
+      throw new LDAPSearchException(new SearchResult(-1,
+           ResultCode.SIZE_LIMIT_EXCEEDED,
+           ERR_PARTITIONED_SEARCH_SIZE_LIMIT_EXCEEDED.get(
+                searchRequest.getSizeLimit()),
+           null, null, mergingListener.getEntryCount(),
+           mergingListener.getReferenceCount(), null));
+    }
+
+    return new SearchResult(-1, ResultCode.SUCCESS, null, null, null,
+         mergingListener.getEntryCount(), mergingListener.getReferenceCount(),
+         null);
+  }
+
+
+
+  /**
+   * Runs the search of one partition on a connection of its own, and waits
+   * for it to complete.  The search is sent asynchronously so that it can be
+   * abandoned if processing is stopped while it is running.
+   *
+   * @param  partition        The search request of the partition.
+   * @param  mergingListener  The listener to which entries and references are
+   *                          passed, and with which the outstanding request
+   *                          is registered.
+   * @param  failure          The first failure of any partition.
+   */
+  private void processPartition(final SearchRequest partition,
+                                final MergingListener mergingListener,
+                                final AtomicReference<LDAPSearchException>
+                                           failure)
+  {
+    final LDAPConnection connection;
+    try
+    {
+      connection = pool.getConnection();
+    }
+    catch (LDAPException le)
+    {
+      debugException(le);
+      failure.compareAndSet(null, new LDAPSearchException(le));
+      mergingListener.stop();
+      return;
+    }
+
+    boolean connectionUsable = true;
+    AsyncRequestID requestID = null;
+    try
+    {
+      requestID = connection.asyncSearch(new SearchRequest(mergingListener,
+           partition.getControls(), partition.getBaseDN(),
+           partition.getScope(), partition.getDereferencePolicy(),
+           partition.getSizeLimit(), partition.getTimeLimitSeconds(),
+           partition.typesOnly(), partition.getFilter(),
+           partition.getAttributes()));
+      if (! mergingListener.addOutstandingRequest(requestID))
+      {
+        requestID.cancel(true);
+        return;
+      }
+
+      final LDAPResult result = requestID.get();
+      if (requestID.isCancelled() ||
+          (result.getResultCode() == ResultCode.SUCCESS))
+      {
+        return;
+      }
+
+      if (result.getResultCode() == ResultCode.TIMEOUT)
+      {
+        // The server has not finished, so tell it to stop.
+        requestID.cancel(true);
+      }
+
+      connectionUsable = ResultCode.isConnectionUsable(result.getResultCode());
+      failure.compareAndSet(null,
+           new LDAPSearchException(new LDAPException(result)));
+      mergingListener.stop();
+    }
+    catch (LDAPException le)
+    {
+      debugException(le);
+      connectionUsable = ResultCode.isConnectionUsable(le.getResultCode());
+      failure.compareAndSet(null, new LDAPSearchException(le));
+      mergingListener.stop();
+    }
+    catch (InterruptedException ie)
+    {
+      // The search as a whole is being abandoned.
+      debugException(ie);
+      if (requestID != null)
+      {
+        requestID.cancel(true);
+      }
+    }
+    catch (RuntimeException re)
+    {
+      debugException(re);
+      connectionUsable = false;
+      failure.compareAndSet(null, new LDAPSearchException(
+           ResultCode.LOCAL_ERROR,
+           ERR_PARTITIONED_SEARCH_PARTITION_FAILED.get(
+                partition.getBaseDN(), getExceptionMessage(re)),
+           re));
+      mergingListener.stop();
+    }
+    finally
+    {
+      if (requestID != null)
+      {
+        mergingListener.removeOutstandingRequest(requestID);
+
+        // Entries that the server sends for an abandoned search before it
+        // notices the abandon request are discarded by the connection.
+        connection.deregisterResponseAcceptor(requestID.getMessageID());
+      }
+
+      if (connectionUsable)
+      {
+        pool.releaseConnection(connection);
+      }
+      else
+      {
+        pool.releaseDefunctConnection(connection);
+      }
+    }
+  }
+
+
+
+  /**
+   * This class passes the entries and references of all partitions to one
+   * listener, one at a time, and enforces the size limit of the original
+   * search across all partitions.  It also keeps track of the partition
+   * searches in progress, so that they can be abandoned when processing is
+   * stopped rather than left to run to completion on the server.
+   */
+  private static final class MergingListener
+          implements AsyncSearchResultListener
+  {
+    private static final long serialVersionUID = -2364860342811727421L;
+
+
+
+    private final AtomicBoolean stopped;
+
+    private final int sizeLimit;
+
+    private int entryCount;
+
+    private int referenceCount;
+
+    private boolean sizeLimitExceeded;
+
+    private final Set<AsyncRequestID> outstandingRequests;
+
+    private final SearchResultListener listener;
+
+
+
+    /**
+     * Creates a new merging listener.
+     *
+     * @param  listener   The listener to which entries and references are
+     *                    passed.
+     * @param  sizeLimit  The maximum number of entries to pass on, or zero
+     *                    for no limit.
+     */
+    private MergingListener(final SearchResultListener listener,
+                            final int sizeLimit)
+    {
+      this.listener  = listener;
+      this.sizeLimit = sizeLimit;
+
+      stopped             = new AtomicBoolean(false);
+      // Request IDs are only unique within a connection, and the partitions
+      // run on different connections, so they are compared by identity.
+      outstandingRequests = Collections.newSetFromMap(
+           new IdentityHashMap<AsyncRequestID,Boolean>());
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void searchEntryReturned(final SearchResultEntry searchEntry)
+    {
+      synchronized (this)
+      {
+        if (stopped.get())
+        {
+          return;
+        }
+
+        if ((sizeLimit == 0) || (entryCount < sizeLimit))
+        {
+          entryCount++;
+          listener.searchEntryReturned(searchEntry);
+          return;
+        }
+
+        sizeLimitExceeded = true;
+      }
+
+      stop();
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void searchReferenceReturned(
+                                  final SearchResultReference searchReference)
+    {
+      if (stopped.get())
+      {
+        return;
+      }
+
+      referenceCount++;
+      listener.searchReferenceReturned(searchReference);
+    }
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void searchResultReceived(final AsyncRequestID requestID,
+                                     final SearchResult searchResult)
+    {
+      // The result is retrieved from the request ID by the partition task.
+    }
+
+
+
+    /**
+     * Registers a partition search that is in progress.
+     *
+     * @param  requestID  The request ID of the search.
+     *
+     * @return  {@code true} if the search was registered, or {@code false}
+     *          if processing has already been stopped and the search should
+     *          be abandoned by the caller.
+     */
+    private boolean addOutstandingRequest(final AsyncRequestID requestID)
+    {
+      synchronized (outstandingRequests)
+      {
+        if (stopped.get())
+        {
+          return false;
+        }
+
+        outstandingRequests.add(requestID);
+        return true;
+      }
+    }
+
+
+
+    /**
+     * Removes a partition search that has completed.
+     *
+     * @param  requestID  The request ID of the search.
+     */
+    private void removeOutstandingRequest(final AsyncRequestID requestID)
+    {
+      synchronized (outstandingRequests)
+      {
+        outstandingRequests.remove(requestID);
+      }
+    }
+
+
+
+    /**
+     * Stops passing on entries and references and starting partitions, and
+     * abandons the partition searches in progress.
+     */
+    private void stop()
+    {
+      final List<AsyncRequestID> toAbandon;
+      synchronized (outstandingRequests)
+      {
+        if (! stopped.compareAndSet(false, true))
+        {
+          return;
+        }
+
+        toAbandon = new ArrayList<AsyncRequestID>(outstandingRequests);
+      }
+
+      for (final AsyncRequestID requestID : toAbandon)
+      {
+        requestID.cancel(true);
+      }
+    }
+
+
+
+    /**
+     * Indicates whether processing has been stopped.
+     *
+     * @return  {@code true} if processing has been stopped.
+     */
+    private boolean isStopped()
+    {
+      return stopped.get();
+    }
+
+
+
+    /**
+     * Retrieves the number of entries passed on.
+     *
+     * @return  The number of entries passed on.
+     */
+    private synchronized int getEntryCount()
+    {
+      return entryCount;
+    }
+
+
+
+    /**
+     * Retrieves the number of references passed on.
+     *
+     * @return  The number of references passed on.
+     */
+    private synchronized int getReferenceCount()
+    {
+      return referenceCount;
+    }
+
+
+
+    /**
+     * Indicates whether more entries than the size limit were returned.
+     *
+     * @return  {@code true} if the size limit was exceeded.
+     */
+    private synchronized boolean sizeLimitExceeded()
+    {
+      return sizeLimitExceeded;
+    }
+  }
+}
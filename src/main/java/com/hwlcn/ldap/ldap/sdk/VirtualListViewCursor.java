@@ -0,0 +1,418 @@
+package com.hwlcn.ldap.ldap.sdk;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hwlcn.ldap.asn1.ASN1OctetString;
+import com.hwlcn.ldap.ldap.sdk.controls.ServerSideSortRequestControl;
+import com.hwlcn.ldap.ldap.sdk.controls.SortKey;
+import com.hwlcn.ldap.ldap.sdk.controls.VirtualListViewRequestControl;
+import com.hwlcn.ldap.ldap.sdk.controls.VirtualListViewResponseControl;
+import com.hwlcn.core.annotation.ThreadSafety;
+import com.hwlcn.ldap.util.ThreadSafetyLevel;
+
+import static com.hwlcn.ldap.ldap.sdk.LDAPMessages.*;
+import static com.hwlcn.ldap.util.Validator.*;
+
+
+
+/**
+ * This class provides random access to fixed-size pages of the sorted results
+ * of a search, using the
+ * {@link com.hwlcn.ldap.ldap.sdk.controls.VirtualListViewRequestControl}
+ * together with the
+ * {@link com.hwlcn.ldap.ldap.sdk.controls.ServerSideSortRequestControl}, so
+ * that a page can be displayed without retrieving the entries before it.
+ * Each page is retrieved in the same window as the pages on either side of
+ * it, and recently used pages are cached, so that moving forwards or
+ * backwards through the results usually needs no round trip to the server.
+ * <BR><BR>
+ * Pages are numbered from zero and all pages but the last hold exactly
+ * {@code pageSize} entries.  A page may also be located by an assertion
+ * value, in which case it is the page containing the first entry whose value
+ * for the primary sort key is greater than or equal to that value.  The cache
+ * is discarded whenever the server reports a different number of entries
+ * than before, since the positions of the entries may then have changed.
+ * <BR><BR>
+ * <H2>Example</H2>
+ * The following example displays the third page of 50 users below an OU,
+ * sorted by {@code cn}, and then the page containing the first user whose
+ * name starts with "M":
+ * <PRE>
+ *   VirtualListViewCursor cursor = new VirtualListViewCursor(connection,
+ *        new SearchRequest("ou=Sales,dc=example,dc=com", SearchScope.ONE,
+ *             "(objectClass=person)", "cn"),
+ *        50, new SortKey("cn"));
+ *   List&lt;SearchResultEntry&gt; page = cursor.getPage(2);
+ *   List&lt;SearchResultEntry&gt; mPage = cursor.getPage(cursor.findPage("M"));
+ * </PRE>
+ */
+@ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class VirtualListViewCursor
+{
+
+  private final int maxCachedPages;
+
+  private final int pageSize;
+
+  private final LDAPInterface connection;
+
+  private final Map<Integer,List<SearchResultEntry>> cache;
+
+  private final SearchRequest searchRequest;
+
+  private final ServerSideSortRequestControl sortRequest;
+
+  private int contentCount;
+
+  private ASN1OctetString contextID;
+
+
+
+  /**
+   * Creates a new virtual list view cursor that caches up to eight pages.
+   *
+   * @param  connection     The connection to use to process the searches.
+   * @param  searchRequest  The search request to process.  It must not have
+   *                        a search result listener, a server-side sort
+   *                        request control or a virtual list view request
+   *                        control.
+   * @param  pageSize       The number of entries in each page.
+   * @param  sortKeys       The sort keys used to order the entries.  At least
+   *                        one must be given.
+   *
+   * @throws  LDAPException  If the search request cannot be used.
+   */
+  public VirtualListViewCursor(final LDAPInterface connection,
+                               final SearchRequest searchRequest,
+                               final int pageSize, final SortKey... sortKeys)
+         throws LDAPException
+  {
+    this(connection, searchRequest, pageSize, 8, sortKeys);
+  }
+
+
+
+  /**
+   * Creates a new virtual list view cursor.
+   *
+   * @param  connection      The connection to use to process the searches.
+   * @param  searchRequest   The search request to process.  It must not have
+   *                         a search result listener, a server-side sort
+   *                         request control or a virtual list view request
+   *                         control.
+   * @param  pageSize        The number of entries in each page.
+   * @param  maxCachedPages  The maximum number of pages to cache.  It must be
+   *                         at least three, so that the pages on either side
+   *                         of a requested page can be kept.
+   * @param  sortKeys        The sort keys used to order the entries.  At
+   *                         least one must be given.
+   *
+   * @throws  LDAPException  If the search request cannot be used.
+   */
+  public VirtualListViewCursor(final LDAPInterface connection,
+                               final SearchRequest searchRequest,
+                               final int pageSize, final int maxCachedPages,
+                               final SortKey... sortKeys)
+         throws LDAPException
+  {
+    ensureNotNull(connection, searchRequest, sortKeys);
+    ensureTrue(pageSize > 0,
+         "VirtualListViewCursor.pageSize must be greater than 0.");
+    ensureTrue(maxCachedPages >= 3,
+         "VirtualListViewCursor.maxCachedPages must be at least 3.");
+    ensureTrue(sortKeys.length > 0,
+         "VirtualListViewCursor.sortKeys must not be empty.");
+
+    if ((searchRequest.getSearchResultListener() != null) ||
+        searchRequest.hasControl(
+             ServerSideSortRequestControl.SERVER_SIDE_SORT_REQUEST_OID) ||
+        searchRequest.hasControl(
+             VirtualListViewRequestControl.VIRTUAL_LIST_VIEW_REQUEST_OID))
+    {
+      throw new LDAPException(ResultCode.PARAM_ERROR,
+                              ERR_VLV_CURSOR_INVALID_REQUEST.get());
+    }
+
+    this.connection     = connection;
+    this.pageSize       = pageSize;
+    this.maxCachedPages = maxCachedPages;
+    this.searchRequest  = searchRequest.duplicate();
+
+    sortRequest  = new ServerSideSortRequestControl(sortKeys);
+    contentCount = -1;
+    contextID    = null;
+    cache = new LinkedHashMap<Integer,List<SearchResultEntry>>(
+         maxCachedPages + 1, 0.75f, true)
+    {
+      private static final long serialVersionUID = -4133096591727404017L;
+
+      @Override()
+      protected boolean removeEldestEntry(
+           final Map.Entry<Integer,List<SearchResultEntry>> eldest)
+      {
+        return (size() > VirtualListViewCursor.this.maxCachedPages);
+      }
+    };
+  }
+
+
+
+  /**
+   * Retrieves the entries in the given page.  If the page is not cached, it
+   * is retrieved from the server along with the pages on either side of it
+   * that are not cached either.
+   *
+   * @param  pageIndex  The zero-based index of the page to retrieve.
+   *
+   * @return  The entries in the page, which will be empty if the page is
+   *          beyond the end of the results.
+   *
+   * @throws  LDAPException  If a problem occurs while retrieving the page.
+   */
+  public synchronized List<SearchResultEntry> getPage(final int pageIndex)
+         throws LDAPException
+  {
+    ensureTrue(pageIndex >= 0,
+         "VirtualListViewCursor.pageIndex must not be negative.");
+
+    List<SearchResultEntry> page = cache.get(pageIndex);
+    if (page != null)
+    {
+      return page;
+    }
+
+    // The offset is computed in a long, since a page far beyond the end would
+    // otherwise overflow to a negative offset before the content count is
+    // known.  No result set can have more entries than fit in an int.
+    final long targetOffset = (((long) pageIndex) * pageSize) + 1L;
+    if ((targetOffset > Integer.MAX_VALUE) ||
+        ((contentCount >= 0) && (targetOffset > contentCount)))
+    {
+      return Collections.emptyList();
+    }
+
+    final int beforeCount;
+    if ((pageIndex == 0) || cache.containsKey(pageIndex - 1))
+    {
+      beforeCount = 0;
+    }
+    else
+    {
+      beforeCount = pageSize;
+    }
+
+    final int afterCount;
+    if (cache.containsKey(pageIndex + 1))
+    {
+      afterCount = pageSize - 1;
+    }
+    else
+    {
+      afterCount = (2 * pageSize) - 1;
+    }
+
+    retrieveWindow(new VirtualListViewRequestControl(
+         (int) targetOffset, beforeCount, afterCount, 0, contextID));
+
+    page = cache.get(pageIndex);
+    if (page == null)
+    {
+      return Collections.emptyList();
+    }
+    return page;
+  }
+
+
+
+  /**
+   * Determines which page contains the first entry whose value for the
+   * primary sort key is greater than or equal to the given value.  The
+   * window retrieved to find it covers the whole of that page, so retrieving
+   * that page afterward needs no further round trip to the server.
+   *
+   * @param  assertionValue  The value to look for.
+   *
+   * @return  The zero-based index of the page containing the entry.  If all
+   *          entries sort before the given value, this is the index of the
+   *          last page.
+   *
+   * @throws  LDAPException  If a problem occurs while searching.
+   */
+  public synchronized int findPage(final String assertionValue)
+         throws LDAPException
+  {
+    ensureNotNull(assertionValue);
+
+    final int targetPosition = retrieveWindow(
+         new VirtualListViewRequestControl(assertionValue, pageSize - 1,
+              pageSize - 1, contextID));
+    if (targetPosition <= 0)
+    {
+      return 0;
+    }
+
+    // When every entry sorts before the value, the server may report a
+    // position just past the last entry, which may begin a page of its own.
+    final int pageIndex = ((targetPosition - 1) / pageSize);
+    final int pageCount = getPageCount();
+    if (pageCount >= 0)
+    {
+      return Math.max(0, Math.min(pageIndex, pageCount - 1));
+    }
+
+    return pageIndex;
+  }
+
+
+
+  /**
+   * Retrieves the number of entries in the results, as last reported by the
+   * server.
+   *
+   * @return  The number of entries in the results, or -1 if no page has been
+   *          retrieved yet.
+   */
+  public synchronized int getContentCount()
+  {
+    return contentCount;
+  }
+
+
+
+  /**
+   * Retrieves the number of pages in the results, as last reported by the
+   * server.
+   *
+   * @return  The number of pages in the results, or -1 if no page has been
+   *          retrieved yet.
+   */
+  public synchronized int getPageCount()
+  {
+    if (contentCount < 0)
+    {
+      return -1;
+    }
+
+    return ((contentCount + pageSize - 1) / pageSize);
+  }
+
+
+
+  /**
+   * Retrieves the number of entries in each page.
+   *
+   * @return  The number of entries in each page.
+   */
+  public int getPageSize()
+  {
+    return pageSize;
+  }
+
+
+
+  /**
+   * Discards all cached pages, so that the next request for any page goes
+   * to the server.
+   */
+  public synchronized void invalidate()
+  {
+    cache.clear();
+    contentCount = -1;
+    contextID    = null;
+  }
+
+
+
+  /**
+   * Retrieves a window of entries from the server and caches each page that
+   * the window covers completely.
+   *
+   * @param  vlvRequest  The virtual list view request control for the
+   *                     window.
+   *
+   * @return  The position of the target entry reported by the server.
+   *
+   * @throws  LDAPException  If a problem occurs while retrieving the window.
+   */
+  private int retrieveWindow(final VirtualListViewRequestControl vlvRequest)
+          throws LDAPException
+  {
+    final Control[] requestControls = searchRequest.getControls();
+    final Control[] controls =
+         Arrays.copyOf(requestControls, requestControls.length + 2);
+    controls[requestControls.length]     = sortRequest;
+    controls[requestControls.length + 1] = vlvRequest;
+
+    final SearchResult result = connection.search(
+         searchRequest.duplicate(controls));
+
+    final VirtualListViewResponseControl vlvResponse =
+         VirtualListViewResponseControl.get(result);
+    if (vlvResponse == null)
+    {
+      throw new LDAPException(ResultCode.CONTROL_NOT_FOUND,
+                              ERR_VLV_CURSOR_NO_RESPONSE_CONTROL.get());
+    }
+
+    if (vlvResponse.getResultCode() != ResultCode.SUCCESS)
+    {
+      throw new LDAPException(vlvResponse.getResultCode(),
+           ERR_VLV_CURSOR_WINDOW_FAILED.get(
+                vlvResponse.getResultCode().getName()));
+    }
+
+    if (vlvResponse.getContentCount() != contentCount)
+    {
+      cache.clear();
+      contentCount = vlvResponse.getContentCount();
+    }
+    contextID = vlvResponse.getContextID();
+
+    final int targetPosition = vlvResponse.getTargetPosition();
+    final List<SearchResultEntry> entries = result.getSearchEntries();
+    if (entries.isEmpty() || (targetPosition <= 0))
+    {
+      return targetPosition;
+    }
+
+    // The server returns up to beforeCount entries ending just before the
+    // target, so the window starts that many positions before it.
+    final int firstPosition = targetPosition -
+         Math.min(vlvRequest.getBeforeCount(), targetPosition - 1);
+    final int lastPosition = firstPosition + entries.size() - 1;
+
+    int pageIndex = (firstPosition - 1) / pageSize;
+    while (true)
+    {
+      final int pageStart = (pageIndex * pageSize) + 1;
+      if (pageStart > lastPosition)
+      {
+        break;
+      }
+
+      final int pageEnd = Math.min(pageStart + pageSize - 1, contentCount);
+      if (pageEnd < pageStart)
+      {
+        break;
+      }
+
+      if ((pageStart >= firstPosition) && (pageEnd <= lastPosition))
+      {
+        cache.put(pageIndex, Collections.unmodifiableList(
+             new ArrayList<SearchResultEntry>(entries.subList(
+                  pageStart - firstPosition, pageEnd - firstPosition + 1))));
+      }
+
+      pageIndex++;
+    }
+
+    return targetPosition;
+  }
+}
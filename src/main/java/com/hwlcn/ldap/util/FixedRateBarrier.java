@@ -1,4 +1,3 @@
-
 package com.hwlcn.ldap.util;
 
 
@@ -6,158 +5,202 @@ package com.hwlcn.ldap.util;
 import com.hwlcn.core.annotation.ThreadSafety;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.logging.Level;
-
-import static com.hwlcn.ldap.util.Debug.*;
-
-
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+/**
+ * This class limits the rate at which threads pass through it, for tools such
+ * as load generators and bulk importers that need to issue work at a steady
+ * target rate.  It is a token bucket that keeps only the time at which the
+ * next permit becomes available: every call to {@link #await} reserves its
+ * permits with a single compare-and-set on that time and then parks until the
+ * reserved moment, so there is no lock, permits are spaced to the nanosecond
+ * rather than released in bursts at each millisecond, and any number of
+ * threads can share one barrier.
+ * <BR><BR>
+ * When threads fall behind, or the barrier is idle, up to a configurable
+ * number of burst credits accumulate and are handed out without waiting, so
+ * that short stalls are made up instead of being lost.  The rate may be
+ * changed at any time with {@link #setRate}; permits already reserved keep
+ * the spacing they were given.
+ */
 @ThreadSafety(level=ThreadSafetyLevel.COMPLETELY_THREADSAFE)
 public final class FixedRateBarrier
        implements Serializable
 {
 
-  private static final long serialVersionUID = -3490156685189909611L;
+  private static final long serialVersionUID = 2361597924364398416L;
 
 
-  private static final long minSleepMillis;
+  // Waits shorter than this are spun with Thread.yield rather than parked,
+  // since parking cannot wake up with this precision.
+  private static final long SPIN_THRESHOLD_NANOS = 20000L;
 
-  static
-  {
+  // The longest single park, so that waiting threads notice a shutdown.
+  private static final long MAX_PARK_NANOS = 100000000L;
 
+  // The default burst allowance, as a length of time at the target rate.
+  private static final long DEFAULT_BURST_NANOS = 10000000L;
 
-    final List<Long> minSleepMillisMeasurements = new ArrayList<Long>();
 
-    for (int i = 0; i < 11; i++)
-    {
-      final long timeBefore = System.currentTimeMillis();
-      try
-      {
-        Thread.sleep(1);
-      }
-      catch (InterruptedException e)
-      {
-        debugException(e);
-      }
-      final long sleepMillis = System.currentTimeMillis() - timeBefore;
-      minSleepMillisMeasurements.add(sleepMillis);
-    }
+  // The time from which all other times are measured, in System.nanoTime
+  // units.  Keeping the other times relative lets them be held as doubles
+  // without losing precision.
+  private final long originNanos;
 
-    Collections.sort(minSleepMillisMeasurements);
-    final long medianSleepMillis = minSleepMillisMeasurements.get(
-            minSleepMillisMeasurements.size()/2);
+  // The time, relative to the origin, at which the next permit becomes
+  // available, held as the bits of a double so that fractional spacing does
+  // not accumulate rounding error.
+  private final AtomicLong nextPermitTime;
 
-    minSleepMillis = Math.max(medianSleepMillis, 1);
+  // The number of nanoseconds between permits.
+  private volatile double nanosPerPermit;
 
-    final String message = "Calibrated FixedRateBarrier to use " +
-          "minSleepMillis=" + minSleepMillis + ".  " +
-          "Minimum sleep measurements = " + minSleepMillisMeasurements;
-    debug(Level.INFO, DebugType.OTHER, message);
-  }
-
-  private final long intervalDurationNanos;
+  // The number of permits that may be granted back-to-back once the barrier
+  // has fallen behind or been idle.
+  private volatile int burstPermits;
 
-  private final double millisBetweenIterations;
+  private volatile boolean shutdownRequested = false;
 
-  private final int perInterval;
 
-  private volatile boolean shutdownRequested = false;
 
-  private long countInThisInterval = 0;
-  private long intervalStartNanos = 0;
+  /**
+   * Creates a new barrier that lets through {@code perInterval} permits in
+   * each interval of the given length, with burst credits for ten
+   * milliseconds at that rate (and at least one).
+   *
+   * @param  intervalDurationMs  The length of the interval in milliseconds.
+   * @param  perInterval         The number of permits per interval.
+   */
+  public FixedRateBarrier(final long intervalDurationMs, final int perInterval)
+  {
+    this(intervalDurationMs, perInterval,
+         defaultBurstPermits(intervalDurationMs, perInterval));
+  }
 
-  private long intervalEndNanos = 0;
 
 
-  public FixedRateBarrier(final long intervalDurationMs, final int perInterval)
+  /**
+   * Creates a new barrier that lets through {@code perInterval} permits in
+   * each interval of the given length.
+   *
+   * @param  intervalDurationMs  The length of the interval in milliseconds.
+   * @param  perInterval         The number of permits per interval.
+   * @param  burstPermits        The number of permits that may be granted
+   *                             without spacing after the barrier has fallen
+   *                             behind or been idle.  Zero spaces every
+   *                             permit evenly and forgoes any that are missed.
+   */
+  public FixedRateBarrier(final long intervalDurationMs, final int perInterval,
+                          final int burstPermits)
   {
-    Validator.ensureTrue(intervalDurationMs > 0,
-         "FixedRateBarrier.intervalDurationMs must be at least 1.");
-    Validator.ensureTrue(perInterval > 0,
-         "FixedRateBarrier.perInterval must be at least 1.");
+    this(nanosPerPermit(intervalDurationMs, perInterval), burstPermits);
+  }
+
 
-    this.perInterval = perInterval;
 
-    intervalDurationNanos = 1000L * 1000L * intervalDurationMs;
+  /**
+   * Creates a new barrier with the given spacing.
+   *
+   * @param  nanosPerPermit  The number of nanoseconds between permits.
+   * @param  burstPermits    The number of burst credits.
+   */
+  private FixedRateBarrier(final double nanosPerPermit, final int burstPermits)
+  {
+    Validator.ensureTrue(burstPermits >= 0,
+         "FixedRateBarrier.burstPermits must not be negative.");
+
+    this.nanosPerPermit = nanosPerPermit;
+    this.burstPermits   = burstPermits;
 
-    millisBetweenIterations = (double)intervalDurationMs/(double)perInterval;
+    originNanos    = System.nanoTime();
+    nextPermitTime = new AtomicLong(Double.doubleToRawLongBits(0.0d));
   }
 
 
 
-  public synchronized boolean await()
+  /**
+   * Waits until the next permit is available.
+   *
+   * @return  {@code true} if shutdown has been requested, in which case the
+   *          caller should stop, or {@code false} if a permit was granted.
+   */
+  public boolean await()
   {
-    while (!shutdownRequested)
-    {
-      final long now = System.nanoTime();
+    return await(1);
+  }
 
-      if ((intervalStartNanos == 0) ||
-          (now < intervalStartNanos))
-      {
-        intervalStartNanos = now;
-        intervalEndNanos = intervalStartNanos + intervalDurationNanos;
-      }
-      else if (now >= intervalEndNanos)
-      {
-        countInThisInterval = 0;
 
-        if (now < (intervalEndNanos + intervalDurationNanos))
-        {
 
-          intervalStartNanos = now;
-        }
-        else
-        {
+  /**
+   * Waits until the given number of permits is available, as when a batch of
+   * entries is written at once.
+   *
+   * @param  count  The number of permits to take.  It must be greater than
+   *                zero.
+   *
+   * @return  {@code true} if shutdown has been requested, in which case the
+   *          caller should stop, or {@code false} if the permits were granted.
+   */
+  public boolean await(final int count)
+  {
+    Validator.ensureTrue(count > 0,
+         "FixedRateBarrier.count must be greater than zero.");
 
-          intervalStartNanos = intervalEndNanos;
-        }
-        intervalEndNanos = intervalStartNanos + intervalDurationNanos;
-      }
+    if (shutdownRequested)
+    {
+      return true;
+    }
 
-      final long intervalRemaining = intervalEndNanos - now;
-      if (intervalRemaining <= 0)
-      {
+    final double now = System.nanoTime() - originNanos;
+    final double spacing = nanosPerPermit;
+    final double earliest = now - (burstPermits * spacing);
 
-        continue;
+    double grantTime;
+    while (true)
+    {
+      final long current = nextPermitTime.get();
+      grantTime = Math.max(Double.longBitsToDouble(current), earliest);
+      final double next = grantTime + (count * spacing);
+      if (nextPermitTime.compareAndSet(current,
+               Double.doubleToRawLongBits(next)))
+      {
+        break;
       }
+    }
+
+    return waitUntil(originNanos + (long) Math.ceil(grantTime));
+  }
 
-      final double intervalFractionRemaining =
-           (double) intervalRemaining / intervalDurationNanos;
 
-      final double expectedRemaining = intervalFractionRemaining * perInterval;
-      final long actualRemaining = perInterval - countInThisInterval;
 
-      if (actualRemaining >= expectedRemaining)
+  /**
+   * Waits until the given time.
+   *
+   * @param  deadline  The time to wait for, in System.nanoTime units.
+   *
+   * @return  The value of {@link #shutdownRequested}.
+   */
+  private boolean waitUntil(final long deadline)
+  {
+    while (! shutdownRequested)
+    {
+      final long remaining = deadline - System.nanoTime();
+      if (remaining <= 0L)
       {
-        countInThisInterval++;
         break;
       }
+      else if (remaining <= SPIN_THRESHOLD_NANOS)
+      {
+        Thread.yield();
+      }
       else
       {
-
-
-        final double gapIterations = expectedRemaining - actualRemaining;
-        final double remainingMillis =
-                millisBetweenIterations * gapIterations;
-
-        if (remainingMillis >= minSleepMillis)
-        {
-          try
-          {
-            Thread.sleep((long)remainingMillis);
-          }
-          catch (InterruptedException e)
-          {
-            debugException(e);
-          }
-        }
-        else
-        {
-          Thread.yield();
-        }
+        LockSupport.parkNanos(
+             Math.min(remaining - SPIN_THRESHOLD_NANOS, MAX_PARK_NANOS));
       }
     }
 
@@ -165,6 +208,66 @@ public final class FixedRateBarrier
   }
 
 
+
+  /**
+   * Changes the rate of this barrier.  Permits reserved before the change
+   * keep their times; later permits are spaced at the new rate.
+   *
+   * @param  intervalDurationMs  The length of the interval in milliseconds.
+   * @param  perInterval         The number of permits per interval.
+   */
+  public void setRate(final long intervalDurationMs, final int perInterval)
+  {
+    nanosPerPermit = nanosPerPermit(intervalDurationMs, perInterval);
+  }
+
+
+
+  /**
+   * Retrieves the rate of this barrier.
+   *
+   * @return  The number of permits granted per second.
+   */
+  public double getPermitsPerSecond()
+  {
+    return TimeUnit.SECONDS.toNanos(1L) / nanosPerPermit;
+  }
+
+
+
+  /**
+   * Changes the number of burst credits.
+   *
+   * @param  burstPermits  The number of permits that may be granted without
+   *                       spacing after the barrier has fallen behind or been
+   *                       idle.
+   */
+  public void setBurstPermits(final int burstPermits)
+  {
+    Validator.ensureTrue(burstPermits >= 0,
+         "FixedRateBarrier.burstPermits must not be negative.");
+    this.burstPermits = burstPermits;
+  }
+
+
+
+  /**
+   * Retrieves the number of burst credits.
+   *
+   * @return  The number of permits that may be granted without spacing after
+   *          the barrier has fallen behind or been idle.
+   */
+  public int getBurstPermits()
+  {
+    return burstPermits;
+  }
+
+
+
+  /**
+   * Requests that all threads waiting on this barrier, and any that call
+   * {@link #await} later, return immediately with {@code true}.
+   */
   public void shutdownRequested()
   {
     shutdownRequested = true;
@@ -175,4 +278,59 @@ public final class FixedRateBarrier
   {
     return shutdownRequested;
   }
+
+
+
+  /**
+   * Replaces a deserialized barrier with a fresh one at the same rate, since
+   * System.nanoTime values mean nothing in another JVM.
+   *
+   * @return  The barrier to use in place of the deserialized one.
+   */
+  private Object readResolve()
+  {
+    final FixedRateBarrier b =
+         new FixedRateBarrier(nanosPerPermit, burstPermits);
+    b.shutdownRequested = shutdownRequested;
+    return b;
+  }
+
+
+
+  /**
+   * Validates a rate and converts it to the spacing between permits.
+   *
+   * @param  intervalDurationMs  The length of the interval in milliseconds.
+   * @param  perInterval         The number of permits per interval.
+   *
+   * @return  The number of nanoseconds between permits.
+   */
+  private static double nanosPerPermit(final long intervalDurationMs,
+                                       final int perInterval)
+  {
+    Validator.ensureTrue(intervalDurationMs > 0,
+         "FixedRateBarrier.intervalDurationMs must be at least 1.");
+    Validator.ensureTrue(perInterval > 0,
+         "FixedRateBarrier.perInterval must be at least 1.");
+
+    return ((double) TimeUnit.MILLISECONDS.toNanos(intervalDurationMs)) /
+         perInterval;
+  }
+
+
+
+  /**
+   * Computes the default number of burst credits for a rate.
+   *
+   * @param  intervalDurationMs  The length of the interval in milliseconds.
+   * @param  perInterval         The number of permits per interval.
+   *
+   * @return  The default number of burst credits.
+   */
+  private static int defaultBurstPermits(final long intervalDurationMs,
+                                         final int perInterval)
+  {
+    final double spacing = nanosPerPermit(intervalDurationMs, perInterval);
+    return (int) Math.max(1L, (long) (DEFAULT_BURST_NANOS / spacing));
+  }
 }
@@ -0,0 +1,380 @@
+package com.hwlcn.ldap.util;
+
+
+import com.hwlcn.core.annotation.ThreadSafety;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A timer for large numbers of short-lived timeouts that are usually cancelled
+ * before they fire, such as per-request response timeouts.  Timeouts are hashed
+ * into a fixed ring of buckets by their deadline; a single daemon thread
+ * advances one bucket per tick and runs whatever has expired, so both
+ * scheduling and cancelling are constant-time queue operations and a timeout
+ * fires at most one tick late.
+ * <p/>
+ * Tasks run on the timer thread and must not block.
+ */
+@ThreadSafety(level = ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+public final class HashedWheelTimer {
+
+    private static final int STATE_INIT = 0;
+
+    private static final int STATE_STARTED = 1;
+
+    private static final int STATE_STOPPED = 2;
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+
+    private final String threadName;
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final long startTime;
+
+    private final AtomicInteger state;
+
+    private final AtomicLong pendingCount;
+
+    private final Queue<Timeout> scheduledTimeouts;
+
+    private final Queue<Timeout> cancelledTimeouts;
+
+    private volatile Thread workerThread;
+
+
+    public HashedWheelTimer(final String threadName, final long tickDuration,
+                            final TimeUnit unit, final int wheelSize) {
+        Validator.ensureNotNull(threadName, unit);
+        Validator.ensureTrue(tickDuration > 0L,
+                "HashedWheelTimer.tickDuration must be greater than zero.");
+        Validator.ensureTrue((wheelSize > 0) && (wheelSize <= (1 << 30)),
+                "HashedWheelTimer.wheelSize must be between 1 and 2^30.");
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.threadName = threadName;
+        tickNanos = unit.toNanos(tickDuration);
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        startTime = System.nanoTime();
+        state = new AtomicInteger(STATE_INIT);
+        pendingCount = new AtomicLong(0L);
+        scheduledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    }
+
+
+    public long getTickDuration(final TimeUnit unit) {
+        return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    public int getWheelSize() {
+        return wheel.length;
+    }
+
+
+    /**
+     * Returns the number of timeouts that have been scheduled but have neither
+     * fired nor been cancelled.
+     */
+    public long getPendingTimeouts() {
+        return pendingCount.get();
+    }
+
+
+    /**
+     * Schedules {@code task} to run once after the given delay.  The timer
+     * thread is started on first use.
+     */
+    public Timeout schedule(final Runnable task, final long delay,
+                            final TimeUnit unit) {
+        Validator.ensureNotNull(task, unit);
+        start();
+
+        final long deadline =
+                System.nanoTime() + Math.max(0L, unit.toNanos(delay)) - startTime;
+        final Timeout timeout = new Timeout(this, task, deadline);
+        pendingCount.incrementAndGet();
+        scheduledTimeouts.add(timeout);
+        return timeout;
+    }
+
+
+    private void start() {
+        final int s = state.get();
+        if (s == STATE_STARTED) {
+            return;
+        }
+        if (s == STATE_STOPPED) {
+            throw new IllegalStateException(
+                    "HashedWheelTimer " + threadName + " has been stopped.");
+        }
+        if (state.compareAndSet(STATE_INIT, STATE_STARTED)) {
+            final Thread t = new Thread(new Worker(), threadName);
+            t.setDaemon(true);
+            workerThread = t;
+            t.start();
+        }
+    }
+
+
+    /**
+     * Stops the timer thread.  Timeouts that have not fired yet are discarded.
+     */
+    public void stop() {
+        if (state.getAndSet(STATE_STOPPED) == STATE_STARTED) {
+            final Thread t = workerThread;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+    }
+
+
+    @Override()
+    public String toString() {
+        return "HashedWheelTimer(name='" + threadName + "', tickMillis=" +
+                getTickDuration(TimeUnit.MILLISECONDS) + ", wheelSize=" +
+                wheel.length + ", pending=" + pendingCount.get() + ')';
+    }
+
+
+    private final class Worker
+            implements Runnable {
+
+        public void run() {
+            long tick = (System.nanoTime() - startTime) / tickNanos;
+            while (state.get() == STATE_STARTED) {
+                final long now = waitForNextTick(tick);
+                if (now < 0L) {
+                    break;
+                }
+
+                removeCancelledTimeouts();
+                transferScheduledTimeouts(tick);
+                wheel[(int) (tick & mask)].expireTimeouts(now);
+                tick++;
+            }
+        }
+
+
+        private long waitForNextTick(final long tick) {
+            final long deadline = tickNanos * (tick + 1L);
+            while (true) {
+                final long current = System.nanoTime() - startTime;
+                final long sleepNanos = deadline - current;
+                if (sleepNanos <= 0L) {
+                    return current;
+                }
+
+                try {
+                    Thread.sleep(sleepNanos / 1000000L,
+                            (int) (sleepNanos % 1000000L));
+                } catch (final InterruptedException ie) {
+                    Debug.debugException(ie);
+                    if (state.get() == STATE_STOPPED) {
+                        return -1L;
+                    }
+                }
+            }
+        }
+
+
+        private void removeCancelledTimeouts() {
+            Timeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                final Bucket bucket = timeout.bucket;
+                if (bucket != null) {
+                    bucket.remove(timeout);
+                }
+            }
+        }
+
+
+        private void transferScheduledTimeouts(final long tick) {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                final Timeout timeout = scheduledTimeouts.poll();
+                if (timeout == null) {
+                    return;
+                }
+                if (timeout.state.get() != Timeout.ST_INIT) {
+                    continue;
+                }
+
+                final long calculated = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                final long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+    }
+
+
+    /**
+     * A handle on a scheduled task.
+     */
+    @ThreadSafety(level = ThreadSafetyLevel.COMPLETELY_THREADSAFE)
+    public static final class Timeout {
+
+        private static final int ST_INIT = 0;
+
+        private static final int ST_CANCELLED = 1;
+
+        private static final int ST_EXPIRED = 2;
+
+
+        private final HashedWheelTimer timer;
+
+        private final long deadline;
+
+        private final AtomicInteger state;
+
+        private volatile Runnable task;
+
+        // the fields below are only touched by the timer thread
+        private long remainingRounds;
+
+        private Bucket bucket;
+
+        private Timeout next;
+
+        private Timeout prev;
+
+
+        private Timeout(final HashedWheelTimer timer, final Runnable task,
+                        final long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+            state = new AtomicInteger(ST_INIT);
+        }
+
+
+        /**
+         * Cancels the task if it has not run yet.
+         *
+         * @return {@code true} if this call cancelled the task.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+
+            // release whatever the task references now rather than when its
+            // bucket next comes round
+            task = null;
+            timer.pendingCount.decrementAndGet();
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+
+        private void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            timer.pendingCount.decrementAndGet();
+            final Runnable r = task;
+            task = null;
+            try {
+                r.run();
+            } catch (final Throwable t) {
+                Debug.debugException(t);
+            }
+        }
+    }
+
+
+    /**
+     * A doubly-linked list of the timeouts hashed to one slot of the wheel,
+     * owned by the timer thread.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+
+        private Timeout tail;
+
+
+        private void add(final Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+
+        private Timeout remove(final Timeout timeout) {
+            final Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+                if (timeout == tail) {
+                    tail = null;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+
+        private void expireTimeouts(final long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.state.get() != Timeout.ST_INIT) {
+                    timeout = remove(timeout);
+                } else if ((timeout.remainingRounds <= 0L) &&
+                        (timeout.deadline <= now)) {
+                    final Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+}
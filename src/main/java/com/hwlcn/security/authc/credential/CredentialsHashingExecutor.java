@@ -0,0 +1,235 @@
+package com.hwlcn.security.authc.credential;
+
+import com.hwlcn.security.authc.AuthenticationException;
+import com.hwlcn.security.util.Destroyable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs CPU-bound credential hashing on a dedicated, bounded thread pool so that a burst of logins cannot occupy
+ * every container thread.  When the queue is full, or a hash does not complete within
+ * {@link #getTimeout() timeout} milliseconds, an {@link AuthenticationException} is thrown instead of blocking.
+ * <p/>
+ * This bounds how long a caller waits and how much work can be queued, but it does not free the calling thread:
+ * {@link #execute(Callable)} still blocks until the hash completes or the timeout expires.  A task that times out
+ * is cancelled, and removed from the queue if it has not started yet so that it no longer takes up a queue slot,
+ * but a hash that is already running cannot be stopped and keeps its pool thread busy until it completes.
+ */
+public class CredentialsHashingExecutor implements Destroyable {
+
+    private static final Logger log = LoggerFactory.getLogger(CredentialsHashingExecutor.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    public static final long DEFAULT_TIMEOUT = 10 * 1000L;
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private long timeout = DEFAULT_TIMEOUT;
+
+    private volatile ThreadPoolExecutor executor;
+
+    private final AtomicLong completedCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    private final AtomicLong totalHashNanos = new AtomicLong();
+
+    private final AtomicLong maxHashNanos = new AtomicLong();
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1.");
+        }
+        this.threads = threads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1.");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Runs the given hashing task on the pool and waits for its result.
+     *
+     * @throws AuthenticationException if the pool is saturated, the task timed out or the caller was interrupted.
+     */
+    public <T> T execute(final Callable<T> task) throws AuthenticationException {
+        Callable<T> timed = new Callable<T>() {
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    recordHashTime(System.nanoTime() - start);
+                }
+            }
+        };
+
+        Future<T> future;
+        try {
+            future = getExecutor().submit(timed);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            throw new AuthenticationException("Credential verification is overloaded (" + getQueueDepth() +
+                    " requests queued).  Please try again later.", e);
+        }
+
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            cancel(future);
+            timedOutCount.incrementAndGet();
+            throw new AuthenticationException("Credential verification did not complete within " + timeout + " ms.", e);
+        } catch (InterruptedException e) {
+            cancel(future);
+            Thread.currentThread().interrupt();
+            throw new AuthenticationException("Interrupted while waiting for credential verification.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AuthenticationException("Credential verification failed.", cause);
+        }
+    }
+
+    private void cancel(Future<?> future) {
+        future.cancel(true);
+        //a task cancelled while still queued would otherwise hold its queue slot until a worker dequeued it:
+        ThreadPoolExecutor executor = this.executor;
+        if (executor != null && future instanceof Runnable) {
+            executor.remove((Runnable) future);
+        }
+    }
+
+    private void recordHashTime(long nanos) {
+        completedCount.incrementAndGet();
+        totalHashNanos.addAndGet(nanos);
+        long max = maxHashNanos.get();
+        while (nanos > max && !maxHashNanos.compareAndSet(max, nanos)) {
+            max = maxHashNanos.get();
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        ThreadPoolExecutor executor = this.executor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = this.executor;
+                if (executor == null) {
+                    executor = createExecutor();
+                    this.executor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    protected ThreadPoolExecutor createExecutor() {
+        final String prefix = "CredentialsHashing-" + POOL_COUNT.incrementAndGet() + "-";
+        final AtomicInteger threadCount = new AtomicInteger();
+        log.debug("Creating credentials hashing pool with {} thread(s) and a queue of {}.", threads, queueCapacity);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public int getQueueDepth() {
+        ThreadPoolExecutor executor = this.executor;
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    public int getActiveCount() {
+        ThreadPoolExecutor executor = this.executor;
+        return executor != null ? executor.getActiveCount() : 0;
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    public long getAverageHashTimeNanos() {
+        long completed = completedCount.get();
+        return completed > 0 ? totalHashNanos.get() / completed : 0L;
+    }
+
+    public long getMaxHashTimeNanos() {
+        return maxHashNanos.get();
+    }
+
+    public void destroy() throws Exception {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName())
+                .append(" [threads=").append(threads)
+                .append(", queued=").append(getQueueDepth())
+                .append(", completed=").append(getCompletedCount())
+                .append(", rejected=").append(getRejectedCount())
+                .append(", timedOut=").append(getTimedOutCount())
+                .append(", avgHashMicros=").append(getAverageHashTimeNanos() / 1000)
+                .append("]")
+                .toString();
+    }
+}
@@ -10,6 +10,8 @@ import com.hwlcn.security.crypto.hash.Hash;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.Callable;
+
 
 public class DefaultPasswordService implements HashingPasswordService {
 
@@ -24,6 +26,8 @@ public class DefaultPasswordService implements HashingPasswordService {
 
     private volatile boolean hashFormatWarned;
 
+    private CredentialsHashingExecutor hashingExecutor;
+
     public DefaultPasswordService() {
         this.hashFormatWarned = false;
 
@@ -49,7 +53,7 @@ public class DefaultPasswordService implements HashingPasswordService {
             return null;
         }
         HashRequest request = createHashRequest(plaintextBytes);
-        return hashService.computeHash(request);
+        return computeHash(request);
     }
 
     public boolean passwordsMatch(Object plaintext, Hash saved) {
@@ -65,11 +69,24 @@ public class DefaultPasswordService implements HashingPasswordService {
 
         HashRequest request = buildHashRequest(plaintextBytes, saved);
 
-        Hash computed = this.hashService.computeHash(request);
+        Hash computed = computeHash(request);
 
         return saved.equals(computed);
     }
 
+    protected Hash computeHash(final HashRequest request) {
+        CredentialsHashingExecutor executor = getHashingExecutor();
+        if (executor == null) {
+            return this.hashService.computeHash(request);
+        }
+        final HashService hashService = this.hashService;
+        return executor.execute(new Callable<Hash>() {
+            public Hash call() {
+                return hashService.computeHash(request);
+            }
+        });
+    }
+
     protected void checkHashFormatDurability() {
 
         if (!this.hashFormatWarned) {
@@ -118,7 +135,7 @@ public class DefaultPasswordService implements HashingPasswordService {
         }
 
         HashRequest request = createHashRequest(plaintextBytes);
-        Hash computed = this.hashService.computeHash(request);
+        Hash computed = computeHash(request);
         String formatted = this.hashFormat.format(computed);
 
         return saved.equals(formatted);
@@ -140,6 +157,14 @@ public class DefaultPasswordService implements HashingPasswordService {
         this.hashService = hashService;
     }
 
+    public CredentialsHashingExecutor getHashingExecutor() {
+        return hashingExecutor;
+    }
+
+    public void setHashingExecutor(CredentialsHashingExecutor hashingExecutor) {
+        this.hashingExecutor = hashingExecutor;
+    }
+
     public HashFormat getHashFormat() {
         return hashFormat;
     }
@@ -10,6 +10,8 @@ import com.hwlcn.security.crypto.hash.Hash;
 import com.hwlcn.security.crypto.hash.SimpleHash;
 import com.hwlcn.security.util.StringUtils;
 
+import java.util.concurrent.Callable;
+
 
 public class HashedCredentialsMatcher extends SimpleCredentialsMatcher {
 
@@ -18,6 +20,8 @@ public class HashedCredentialsMatcher extends SimpleCredentialsMatcher {
     private boolean hashSalted;
     private boolean storedCredentialsHexEncoded;
 
+    private CredentialsHashingExecutor hashingExecutor;
+
     public HashedCredentialsMatcher() {
         this.hashAlgorithm = null;
         this.hashSalted = false;
@@ -50,6 +54,18 @@ public class HashedCredentialsMatcher extends SimpleCredentialsMatcher {
     }
 
 
+    public CredentialsHashingExecutor getHashingExecutor() {
+        return hashingExecutor;
+    }
+
+    /**
+     * Sets an executor on which submitted credentials are hashed, isolating the hashing load from the calling
+     * (typically servlet container) thread.  When {@code null} (the default) hashing runs on the calling thread.
+     */
+    public void setHashingExecutor(CredentialsHashingExecutor hashingExecutor) {
+        this.hashingExecutor = hashingExecutor;
+    }
+
     public int getHashIterations() {
         return hashIterations;
     }
@@ -82,7 +98,19 @@ public class HashedCredentialsMatcher extends SimpleCredentialsMatcher {
 
 
     @Override
-    public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+    public boolean doCredentialsMatch(final AuthenticationToken token, final AuthenticationInfo info) {
+        CredentialsHashingExecutor executor = getHashingExecutor();
+        if (executor != null) {
+            return executor.execute(new Callable<Boolean>() {
+                public Boolean call() {
+                    return doCredentialsMatchInternal(token, info);
+                }
+            });
+        }
+        return doCredentialsMatchInternal(token, info);
+    }
+
+    private boolean doCredentialsMatchInternal(AuthenticationToken token, AuthenticationInfo info) {
         Object tokenHashedCredentials = hashProvidedCredentials(token, info);
         Object accountCredentials = getCredentials(info);
         return equals(tokenHashedCredentials, accountCredentials);
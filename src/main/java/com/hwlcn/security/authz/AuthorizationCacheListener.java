@@ -0,0 +1,12 @@
+package com.hwlcn.security.authz;
+
+import com.hwlcn.security.subject.PrincipalCollection;
+
+/**
+ * Notified when a realm drops its cached authorization data for a subject, so that merged views built on top of it
+ * can be dropped too.
+ */
+public interface AuthorizationCacheListener {
+
+    void onAuthorizationCacheCleared(PrincipalCollection principals);
+}
@@ -0,0 +1,94 @@
+package com.hwlcn.security.authz;
+
+import com.hwlcn.security.authz.permission.PermissionResolver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The roles and resolved permissions of one subject, merged from every realm, so that a check is a set lookup or a
+ * single pass over the permissions instead of a round through each realm.  String permission checks are remembered
+ * per snapshot, since the same handful of strings is checked over and over.
+ */
+public class AuthorizationSnapshot {
+
+    private static final int MAX_REMEMBERED_CHECKS = 1024;
+
+    private final Set<String> roles;
+    private final List<Permission> permissions;
+    private final PermissionResolver permissionResolver;
+    private final Map<String, Boolean> stringChecks;
+
+    public AuthorizationSnapshot(Collection<String> roles, Collection<Permission> permissions,
+                                 PermissionResolver permissionResolver) {
+        this.roles = roles != null && !roles.isEmpty() ?
+                Collections.unmodifiableSet(new HashSet<String>(roles)) : Collections.<String>emptySet();
+        this.permissions = permissions != null && !permissions.isEmpty() ?
+                Collections.unmodifiableList(new ArrayList<Permission>(new LinkedHashSet<Permission>(permissions))) :
+                Collections.<Permission>emptyList();
+        this.permissionResolver = permissionResolver;
+        this.stringChecks = new ConcurrentHashMap<String, Boolean>();
+    }
+
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    public List<Permission> getPermissions() {
+        return permissions;
+    }
+
+    public boolean hasRole(String roleIdentifier) {
+        return roleIdentifier != null && roles.contains(roleIdentifier);
+    }
+
+    public boolean isPermitted(Permission permission) {
+        for (Permission perm : permissions) {
+            if (perm.implies(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isPermitted(String permission) {
+        Boolean permitted = stringChecks.get(permission);
+        if (permitted == null) {
+            permitted = isPermitted(permissionResolver.resolvePermission(permission));
+            if (stringChecks.size() < MAX_REMEMBERED_CHECKS) {
+                stringChecks.put(permission, permitted);
+            }
+        }
+        return permitted;
+    }
+
+    public boolean[] isPermitted(String... permissions) {
+        boolean[] result = new boolean[permissions != null ? permissions.length : 0];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = isPermitted(permissions[i]);
+        }
+        return result;
+    }
+
+    public boolean[] isPermitted(List<Permission> permissions) {
+        boolean[] result = new boolean[permissions != null ? permissions.size() : 0];
+        int i = 0;
+        if (permissions != null) {
+            for (Permission permission : permissions) {
+                result[i++] = isPermitted(permission);
+            }
+        }
+        return result;
+    }
+
+    public String toString() {
+        return "AuthorizationSnapshot [roles=" + roles + ", permissions=" + permissions.size() + "]";
+    }
+}
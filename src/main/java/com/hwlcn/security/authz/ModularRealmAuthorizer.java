@@ -1,23 +1,48 @@
 package com.hwlcn.security.authz;
 
+import com.hwlcn.cache.Cache;
+import com.hwlcn.cache.ExpiringMapCache;
+import com.hwlcn.security.authc.LogoutAware;
 import com.hwlcn.security.authz.permission.PermissionResolver;
 import com.hwlcn.security.authz.permission.RolePermissionResolverAware;
 import com.hwlcn.security.authz.permission.PermissionResolverAware;
 import com.hwlcn.security.authz.permission.RolePermissionResolver;
+import com.hwlcn.security.realm.AuthorizingRealm;
 import com.hwlcn.security.realm.Realm;
 import com.hwlcn.security.subject.PrincipalCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 
-public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAware, RolePermissionResolverAware {
+public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAware, RolePermissionResolverAware,
+        LogoutAware, AuthorizationCacheListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ModularRealmAuthorizer.class);
+
+    public static final long DEFAULT_AUTHORIZATION_SNAPSHOT_TIME_TO_LIVE = 60 * 1000L;
+
+    private static final String AUTHORIZATION_SNAPSHOT_CACHE_NAME =
+            ModularRealmAuthorizer.class.getName() + ".authorizationSnapshotCache";
 
     protected Collection<Realm> realms;
     protected PermissionResolver permissionResolver;
 
     protected RolePermissionResolver rolePermissionResolver;
 
+    private boolean authorizationSnapshotCachingEnabled;
+
+    private long authorizationSnapshotTimeToLive = DEFAULT_AUTHORIZATION_SNAPSHOT_TIME_TO_LIVE;
+
+    private int authorizationSnapshotMaxEntries = ExpiringMapCache.DEFAULT_MAX_ENTRIES;
+
+    private volatile Cache<Object, AuthorizationSnapshot> authorizationSnapshotCache;
+
     public ModularRealmAuthorizer() {
     }
 
@@ -33,6 +58,8 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
         this.realms = realms;
         applyPermissionResolverToRealms();
         applyRolePermissionResolverToRealms();
+        applyAuthorizationCacheListenerToRealms();
+        clearCachedAuthorizationSnapshots();
     }
 
     public PermissionResolver getPermissionResolver() {
@@ -42,6 +69,7 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
     public void setPermissionResolver(PermissionResolver permissionResolver) {
         this.permissionResolver = permissionResolver;
         applyPermissionResolverToRealms();
+        clearCachedAuthorizationSnapshots();
     }
 
     protected void applyPermissionResolverToRealms() {
@@ -63,6 +91,7 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
     public void setRolePermissionResolver(RolePermissionResolver rolePermissionResolver) {
         this.rolePermissionResolver = rolePermissionResolver;
         applyRolePermissionResolverToRealms();
+        clearCachedAuthorizationSnapshots();
     }
 
     protected void applyRolePermissionResolverToRealms() {
@@ -77,6 +106,152 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
         }
     }
 
+    protected void applyAuthorizationCacheListenerToRealms() {
+        Collection<Realm> realms = getRealms();
+        if (realms != null) {
+            for (Realm realm : realms) {
+                if (realm instanceof AuthorizingRealm) {
+                    ((AuthorizingRealm) realm).addAuthorizationCacheListener(this);
+                }
+            }
+        }
+    }
+
+    public boolean isAuthorizationSnapshotCachingEnabled() {
+        return authorizationSnapshotCachingEnabled;
+    }
+
+    /**
+     * Enables caching one merged {@link AuthorizationSnapshot} per subject instead of asking every realm on each
+     * check.  Only takes effect when all authorizing realms are {@link AuthorizingRealm}s that do not override the
+     * permission or role checks themselves, and resolve permission strings the same way.
+     */
+    public void setAuthorizationSnapshotCachingEnabled(boolean authorizationSnapshotCachingEnabled) {
+        this.authorizationSnapshotCachingEnabled = authorizationSnapshotCachingEnabled;
+        if (!authorizationSnapshotCachingEnabled) {
+            this.authorizationSnapshotCache = null;
+        }
+    }
+
+    public long getAuthorizationSnapshotTimeToLive() {
+        return authorizationSnapshotTimeToLive;
+    }
+
+    public void setAuthorizationSnapshotTimeToLive(long authorizationSnapshotTimeToLive) {
+        this.authorizationSnapshotTimeToLive = authorizationSnapshotTimeToLive;
+        this.authorizationSnapshotCache = null;
+    }
+
+    public int getAuthorizationSnapshotMaxEntries() {
+        return authorizationSnapshotMaxEntries;
+    }
+
+    public void setAuthorizationSnapshotMaxEntries(int authorizationSnapshotMaxEntries) {
+        this.authorizationSnapshotMaxEntries = authorizationSnapshotMaxEntries;
+        this.authorizationSnapshotCache = null;
+    }
+
+    public Cache<Object, AuthorizationSnapshot> getAuthorizationSnapshotCache() {
+        return authorizationSnapshotCache;
+    }
+
+    public void setAuthorizationSnapshotCache(Cache<Object, AuthorizationSnapshot> authorizationSnapshotCache) {
+        this.authorizationSnapshotCache = authorizationSnapshotCache;
+    }
+
+    private Cache<Object, AuthorizationSnapshot> getAuthorizationSnapshotCacheLazy() {
+        Cache<Object, AuthorizationSnapshot> cache = this.authorizationSnapshotCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = this.authorizationSnapshotCache;
+                if (cache == null) {
+                    cache = new ExpiringMapCache<Object, AuthorizationSnapshot>(AUTHORIZATION_SNAPSHOT_CACHE_NAME,
+                            authorizationSnapshotMaxEntries, authorizationSnapshotTimeToLive);
+                    this.authorizationSnapshotCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the cached merged snapshot for the given principals, building it from the realms on a miss, or
+     * {@code null} if snapshots are disabled or the configured realms cannot be merged.
+     */
+    protected AuthorizationSnapshot getAuthorizationSnapshot(PrincipalCollection principals) {
+        if (!authorizationSnapshotCachingEnabled || principals == null || principals.isEmpty()) {
+            return null;
+        }
+        PermissionResolver resolver = getSnapshotPermissionResolver();
+        if (resolver == null) {
+            return null;
+        }
+        Cache<Object, AuthorizationSnapshot> cache = getAuthorizationSnapshotCacheLazy();
+        AuthorizationSnapshot snapshot = cache.get(principals);
+        if (snapshot == null) {
+            snapshot = buildAuthorizationSnapshot(principals, resolver);
+            cache.put(principals, snapshot);
+        }
+        return snapshot;
+    }
+
+    private PermissionResolver getSnapshotPermissionResolver() {
+        PermissionResolver resolver = null;
+        for (Realm realm : getRealms()) {
+            if (!(realm instanceof Authorizer)) continue;
+            if (!(realm instanceof AuthorizingRealm)) {
+                return null;
+            }
+            PermissionResolver realmResolver = ((AuthorizingRealm) realm).getPermissionResolver();
+            if (realmResolver == null) {
+                return null;
+            }
+            if (resolver == null) {
+                resolver = realmResolver;
+            } else if (resolver != realmResolver && resolver.getClass() != realmResolver.getClass()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Realms resolve permissions differently; authorization snapshots are not used.");
+                }
+                return null;
+            }
+        }
+        return resolver;
+    }
+
+    protected AuthorizationSnapshot buildAuthorizationSnapshot(PrincipalCollection principals,
+                                                               PermissionResolver resolver) {
+        Set<String> roles = new HashSet<String>();
+        Set<Permission> permissions = new LinkedHashSet<Permission>();
+        for (Realm realm : getRealms()) {
+            if (!(realm instanceof AuthorizingRealm)) continue;
+            AuthorizationSnapshot realmSnapshot = ((AuthorizingRealm) realm).getAuthorizationSnapshot(principals);
+            roles.addAll(realmSnapshot.getRoles());
+            permissions.addAll(realmSnapshot.getPermissions());
+        }
+        return new AuthorizationSnapshot(roles, permissions, resolver);
+    }
+
+    public void clearCachedAuthorizationSnapshot(PrincipalCollection principals) {
+        Cache<Object, AuthorizationSnapshot> cache = this.authorizationSnapshotCache;
+        if (cache != null && principals != null) {
+            cache.remove(principals);
+        }
+    }
+
+    public void clearCachedAuthorizationSnapshots() {
+        Cache<Object, AuthorizationSnapshot> cache = this.authorizationSnapshotCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    public void onLogout(PrincipalCollection principals) {
+        clearCachedAuthorizationSnapshot(principals);
+    }
+
+    public void onAuthorizationCacheCleared(PrincipalCollection principals) {
+        clearCachedAuthorizationSnapshot(principals);
+    }
 
     protected void assertRealmsConfigured() throws IllegalStateException {
         Collection<Realm> realms = getRealms();
@@ -89,6 +264,10 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
 
     public boolean isPermitted(PrincipalCollection principals, String permission) {
         assertRealmsConfigured();
+        AuthorizationSnapshot snapshot = getAuthorizationSnapshot(principals);
+        if (snapshot != null) {
+            return snapshot.isPermitted(permission);
+        }
         for (Realm realm : getRealms()) {
             if (!(realm instanceof Authorizer)) continue;
             if (((Authorizer) realm).isPermitted(principals, permission)) {
@@ -100,6 +279,10 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
 
     public boolean isPermitted(PrincipalCollection principals, Permission permission) {
         assertRealmsConfigured();
+        AuthorizationSnapshot snapshot = getAuthorizationSnapshot(principals);
+        if (snapshot != null) {
+            return snapshot.isPermitted(permission);
+        }
         for (Realm realm : getRealms()) {
             if (!(realm instanceof Authorizer)) continue;
             if (((Authorizer) realm).isPermitted(principals, permission)) {
@@ -111,6 +294,10 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
 
     public boolean[] isPermitted(PrincipalCollection principals, String... permissions) {
         assertRealmsConfigured();
+        AuthorizationSnapshot snapshot = getAuthorizationSnapshot(principals);
+        if (snapshot != null) {
+            return snapshot.isPermitted(permissions);
+        }
         if (permissions != null && permissions.length > 0) {
             boolean[] isPermitted = new boolean[permissions.length];
             for (int i = 0; i < permissions.length; i++) {
@@ -123,6 +310,10 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
 
     public boolean[] isPermitted(PrincipalCollection principals, List<Permission> permissions) {
         assertRealmsConfigured();
+        AuthorizationSnapshot snapshot = getAuthorizationSnapshot(principals);
+        if (snapshot != null) {
+            return snapshot.isPermitted(permissions);
+        }
         if (permissions != null && !permissions.isEmpty()) {
             boolean[] isPermitted = new boolean[permissions.size()];
             int i = 0;
@@ -195,6 +386,10 @@ public class ModularRealmAuthorizer implements Authorizer, PermissionResolverAwa
 
     public boolean hasRole(PrincipalCollection principals, String roleIdentifier) {
         assertRealmsConfigured();
+        AuthorizationSnapshot snapshot = getAuthorizationSnapshot(principals);
+        if (snapshot != null) {
+            return snapshot.hasRole(roleIdentifier);
+        }
         for (Realm realm : getRealms()) {
             if (!(realm instanceof Authorizer)) continue;
             if (((Authorizer) realm).hasRole(principals, roleIdentifier)) {
@@ -1,11 +1,46 @@
 package com.hwlcn.security.crypto;
 
+import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.ShortBufferException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractSymmetricCipherService extends JcaCipherService {
 
+    private static final int DEFAULT_CHANNEL_BUFFER_SIZE = 128 * 1024;
+
+    /**
+     * Room for the padding block, or the authentication tag, that {@code doFinal} adds to the last chunk.
+     */
+    private static final int CHANNEL_BUFFER_OUTPUT_MARGIN = 64;
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    private static final int BITS_PER_BYTE = 8;
+
+    private int channelBufferSize = DEFAULT_CHANNEL_BUFFER_SIZE;
+
+    private boolean directChannelBuffers = true;
+
+    private int maxPooledChannelBuffers = Runtime.getRuntime().availableProcessors();
+
+    private final Queue<ByteBuffer[]> channelBuffers = new ConcurrentLinkedQueue<ByteBuffer[]>();
+
+    private final AtomicInteger pooledChannelBuffers = new AtomicInteger();
+
     protected AbstractSymmetricCipherService(String algorithmName) {
         super(algorithmName);
     }
@@ -27,4 +62,273 @@ public abstract class AbstractSymmetricCipherService extends JcaCipherService {
         return kg.generateKey();
     }
 
+    public int getChannelBufferSize() {
+        return channelBufferSize;
+    }
+
+    /**
+     * Size in bytes of the chunks read from a channel and handed to the cipher, 128 KB by default.
+     */
+    public void setChannelBufferSize(int channelBufferSize) {
+        if (channelBufferSize <= 0) {
+            throw new IllegalArgumentException("channelBufferSize must be greater than zero.");
+        }
+        this.channelBufferSize = channelBufferSize;
+        this.channelBuffers.clear();
+        this.pooledChannelBuffers.set(0);
+    }
+
+    public boolean isDirectChannelBuffers() {
+        return directChannelBuffers;
+    }
+
+    /**
+     * Whether channel buffers are allocated outside the heap, which saves a copy on every {@link FileChannel} read and
+     * write.  Defaults to {@code true}.
+     */
+    public void setDirectChannelBuffers(boolean directChannelBuffers) {
+        this.directChannelBuffers = directChannelBuffers;
+        this.channelBuffers.clear();
+        this.pooledChannelBuffers.set(0);
+    }
+
+    public int getMaxPooledChannelBuffers() {
+        return maxPooledChannelBuffers;
+    }
+
+    /**
+     * How many buffer pairs are kept for reuse once a channel operation completes; concurrent operations beyond this
+     * allocate their own.  Defaults to the number of processors.
+     */
+    public void setMaxPooledChannelBuffers(int maxPooledChannelBuffers) {
+        this.maxPooledChannelBuffers = maxPooledChannelBuffers;
+    }
+
+    /**
+     * Encrypts everything readable from {@code in} and writes it to {@code out} in the same format as
+     * {@link #encrypt(java.io.InputStream, java.io.OutputStream, byte[])}, so either API can decrypt the result.
+     * Neither channel is closed.
+     *
+     * @return the number of bytes written to {@code out}, initialization vector included
+     */
+    public long encrypt(ReadableByteChannel in, WritableByteChannel out, byte[] key) throws CryptoException {
+        assertChannels(in, out, key);
+        long written = 0;
+        byte[] iv = null;
+        if (isGenerateInitializationVectors(true)) {
+            iv = generateInitializationVector(true);
+            if (iv == null || iv.length == 0) {
+                throw new IllegalStateException("Initialization vector generation is enabled - generated vector" +
+                        "cannot be null or empty.");
+            }
+            try {
+                written += writeFully(out, ByteBuffer.wrap(iv));
+            } catch (IOException e) {
+                throw new CryptoException(e);
+            }
+        }
+        return written + crypt(in, out, key, iv, Cipher.ENCRYPT_MODE);
+    }
+
+    /**
+     * Decrypts a channel written by {@link #encrypt(ReadableByteChannel, WritableByteChannel, byte[])} or by the
+     * stream API.  Neither channel is closed.
+     * <p/>
+     * With an authenticated mode such as GCM the JCA provider releases no plaintext until the whole message has been
+     * read and its tag verified, so decryption holds the complete plaintext in memory once.
+     *
+     * @return the number of plaintext bytes written to {@code out}
+     */
+    public long decrypt(ReadableByteChannel in, WritableByteChannel out, byte[] key) throws CryptoException {
+        assertChannels(in, out, key);
+        byte[] iv = null;
+        if (isGenerateInitializationVectors(true)) {
+            ByteBuffer ivBuffer = ByteBuffer.allocate(getInitializationVectorSize() / BITS_PER_BYTE);
+            try {
+                while (ivBuffer.hasRemaining() && in.read(ivBuffer) != -1) {
+                    // keep reading until the vector is complete or the channel is exhausted
+                }
+            } catch (IOException e) {
+                String msg = "Unable to correctly read the Initialization Vector from the channel.";
+                throw new CryptoException(msg, e);
+            }
+            if (ivBuffer.hasRemaining()) {
+                throw new CryptoException("Unable to read initialization vector bytes from the channel.  " +
+                        "This is required when initialization vectors are autogenerated during an encryption " +
+                        "operation.");
+            }
+            iv = ivBuffer.array();
+        }
+        return crypt(in, out, key, iv, Cipher.DECRYPT_MODE);
+    }
+
+    /**
+     * Encrypts {@code source} into {@code target}, replacing any existing content.
+     */
+    public long encrypt(File source, File target, byte[] key) throws CryptoException {
+        return crypt(source, target, key, true);
+    }
+
+    /**
+     * Decrypts {@code source} into {@code target}, replacing any existing content.
+     */
+    public long decrypt(File source, File target, byte[] key) throws CryptoException {
+        return crypt(source, target, key, false);
+    }
+
+    private long crypt(File source, File target, byte[] key, boolean encrypt) throws CryptoException {
+        FileInputStream fis = null;
+        FileOutputStream fos = null;
+        try {
+            fis = new FileInputStream(source);
+            fos = new FileOutputStream(target);
+            FileChannel in = fis.getChannel();
+            FileChannel out = fos.getChannel();
+            return encrypt ? encrypt(in, out, key) : decrypt(in, out, key);
+        } catch (IOException e) {
+            String msg = "Unable to " + (encrypt ? "encrypt" : "decrypt") + " file [" + source + "] into [" +
+                    target + "].";
+            throw new CryptoException(msg, e);
+        } finally {
+            close(fis);
+            close(fos);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void assertChannels(ReadableByteChannel in, WritableByteChannel out, byte[] key) {
+        if (in == null) {
+            throw new NullPointerException("ReadableByteChannel argument cannot be null.");
+        }
+        if (out == null) {
+            throw new NullPointerException("WritableByteChannel argument cannot be null.");
+        }
+        if (key == null || key.length == 0) {
+            throw new IllegalArgumentException("key argument cannot be null or empty.");
+        }
+    }
+
+    private long crypt(ReadableByteChannel in, WritableByteChannel out, byte[] key, byte[] iv, int mode)
+            throws CryptoException {
+        Cipher cipher = initNewCipher(mode, key, iv, true);
+        ByteBuffer[] buffers = acquireChannelBuffers();
+        ByteBuffer src = buffers[0];
+        ByteBuffer dst = buffers[1];
+        long written = 0;
+        try {
+            src.clear();
+            while (in.read(src) != -1) {
+                src.flip();
+                written += cipherChunk(cipher, src, dst, out, false);
+                src.clear();
+            }
+            src.flip();
+            written += cipherChunk(cipher, src, dst, out, true);
+            releaseChannelBuffers(buffers);
+            return written;
+        } catch (IOException e) {
+            releaseChannelBuffers(buffers);
+            throw new CryptoException(e);
+        } catch (CryptoException e) {
+            releaseChannelBuffers(buffers);
+            throw e;
+        }
+    }
+
+    private int cipherChunk(Cipher cipher, ByteBuffer src, ByteBuffer dst, WritableByteChannel out, boolean last)
+            throws IOException, CryptoException {
+        ByteBuffer target = dst;
+        target.clear();
+        try {
+            if (last) {
+                // doFinal of a GCM decryption releases the whole plaintext at once, so size a buffer only for it:
+                int required = cipher.getOutputSize(src.remaining());
+                if (required > dst.capacity()) {
+                    target = ByteBuffer.allocate(required);
+                }
+                cipher.doFinal(src, target);
+            } else {
+                // update never emits more than the input plus a block, and nothing at all for a GCM decryption,
+                // even though getOutputSize() counts all of the input buffered so far:
+                update(cipher, src, target);
+            }
+        } catch (Exception e) {
+            String msg = "Unable to execute '" + (last ? "doFinal" : "update") + "' with cipher instance [" +
+                    cipher + "].";
+            throw new CryptoException(msg, e);
+        }
+        target.flip();
+        int written = writeFully(out, target);
+        if (target != dst) {
+            wipe(target);
+        }
+        return written;
+    }
+
+    private static void update(Cipher cipher, ByteBuffer src, ByteBuffer dst) throws Exception {
+        int position = src.position();
+        try {
+            cipher.update(src, dst);
+        } catch (ShortBufferException e) {
+            // some providers demand room for everything buffered before they will accept more input:
+            src.position(position);
+            ByteBuffer target = ByteBuffer.allocate(cipher.getOutputSize(src.remaining()));
+            cipher.update(src, target);
+            target.flip();
+            dst.put(target);
+            wipe(target);
+        }
+    }
+
+    private static void wipe(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+        }
+        buffer.clear();
+    }
+
+    private static int writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            total += out.write(buffer);
+        }
+        return total;
+    }
+
+    private ByteBuffer[] acquireChannelBuffers() {
+        ByteBuffer[] buffers = channelBuffers.poll();
+        if (buffers != null) {
+            pooledChannelBuffers.decrementAndGet();
+            return buffers;
+        }
+        int size = getChannelBufferSize();
+        int outputSize = size + CHANNEL_BUFFER_OUTPUT_MARGIN;
+        if (isDirectChannelBuffers()) {
+            return new ByteBuffer[]{ByteBuffer.allocateDirect(size), ByteBuffer.allocateDirect(outputSize)};
+        }
+        return new ByteBuffer[]{ByteBuffer.allocate(size), ByteBuffer.allocate(outputSize)};
+    }
+
+    private void releaseChannelBuffers(ByteBuffer[] buffers) {
+        // one of the two buffers held plaintext, whichever the direction:
+        wipe(buffers[0]);
+        wipe(buffers[1]);
+        if (buffers[0].capacity() != getChannelBufferSize() || buffers[0].isDirect() != isDirectChannelBuffers()) {
+            return;
+        }
+        if (pooledChannelBuffers.incrementAndGet() <= getMaxPooledChannelBuffers()) {
+            channelBuffers.offer(buffers);
+        } else {
+            pooledChannelBuffers.decrementAndGet();
+        }
+    }
 }
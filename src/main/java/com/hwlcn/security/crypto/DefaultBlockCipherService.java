@@ -3,6 +3,9 @@ package com.hwlcn.security.crypto;
 
 import com.hwlcn.security.util.StringUtils;
 
+import java.lang.reflect.Constructor;
+import java.security.spec.AlgorithmParameterSpec;
+
 
 public class DefaultBlockCipherService extends AbstractSymmetricCipherService {
 
@@ -11,6 +14,9 @@ public class DefaultBlockCipherService extends AbstractSymmetricCipherService {
     private static final String TRANSFORMATION_STRING_DELIMITER = "/";
     private static final int DEFAULT_STREAMING_BLOCK_SIZE = 8; //8 bits (1 byte)
 
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final String GCM_PARAMETER_SPEC_CLASS_NAME = "javax.crypto.spec.GCMParameterSpec";
+
     private String modeName;
     private int blockSize;
     private String paddingSchemeName;
@@ -189,4 +195,26 @@ public class DefaultBlockCipherService extends AbstractSymmetricCipherService {
         }
         return super.generateInitializationVector(streaming);
     }
+
+    @Override
+    protected AlgorithmParameterSpec createParameterSpec(byte[] iv, boolean streaming) {
+        String mode = streaming ? getStreamingModeName() : getModeName();
+        if (OperationMode.GCM.name().equalsIgnoreCase(mode)) {
+            return createGcmParameterSpec(iv);
+        }
+        return super.createParameterSpec(iv, streaming);
+    }
+
+    // GCMParameterSpec only exists from Java 7 on; this class still has to load on Java 6
+    private AlgorithmParameterSpec createGcmParameterSpec(byte[] iv) {
+        try {
+            Class<?> clazz = Class.forName(GCM_PARAMETER_SPEC_CLASS_NAME);
+            Constructor<?> ctor = clazz.getConstructor(int.class, byte[].class);
+            return (AlgorithmParameterSpec) ctor.newInstance(GCM_TAG_LENGTH, iv);
+        } catch (Exception e) {
+            String msg = "GCM mode requires " + GCM_PARAMETER_SPEC_CLASS_NAME + ", which is not available on " +
+                    "the current JVM (Java 7 or later is required).";
+            throw new CryptoException(msg, e);
+        }
+    }
 }
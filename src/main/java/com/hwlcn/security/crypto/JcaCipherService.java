@@ -28,7 +28,6 @@ public abstract class JcaCipherService implements CipherService {
 
     private static final int BITS_PER_BYTE = 8;
 
-    private static final String RANDOM_NUM_GENERATOR_ALGORITHM_NAME = "SHA1PRNG";
 
     private String algorithmName;
 
@@ -115,15 +114,7 @@ public abstract class JcaCipherService implements CipherService {
     }
 
     protected static SecureRandom getDefaultSecureRandom() {
-        try {
-            return SecureRandom.getInstance(RANDOM_NUM_GENERATOR_ALGORITHM_NAME);
-        } catch (java.security.NoSuchAlgorithmException e) {
-            if (log.isDebugEnabled()) {
-                log.debug("The SecureRandom SHA1PRNG algorithm is not available on the current platform.  Using the " +
-                        "platform's default SecureRandom algorithm.", e);
-            }
-            return new SecureRandom();
-        }
+        return StripedSecureRandom.getShared();
     }
 
     protected SecureRandom ensureSecureRandom() {
@@ -376,18 +367,26 @@ public abstract class JcaCipherService implements CipherService {
         }
     }
 
-    private javax.crypto.Cipher initNewCipher(int jcaCipherMode, byte[] key, byte[] iv, boolean streaming)
+    protected javax.crypto.Cipher initNewCipher(int jcaCipherMode, byte[] key, byte[] iv, boolean streaming)
             throws CryptoException {
 
         javax.crypto.Cipher cipher = newCipherInstance(streaming);
         Key jdkKey = new SecretKeySpec(key, getAlgorithmName());
-        IvParameterSpec ivSpec = null;
+        AlgorithmParameterSpec spec = null;
         if (iv != null && iv.length > 0) {
-            ivSpec = new IvParameterSpec(iv);
+            spec = createParameterSpec(iv, streaming);
         }
 
-        init(cipher, jcaCipherMode, jdkKey, ivSpec, getSecureRandom());
+        init(cipher, jcaCipherMode, jdkKey, spec, ensureSecureRandom());
 
         return cipher;
     }
+
+    /**
+     * Wraps the initialization vector for {@code Cipher.init}.  Subclasses override this for modes that do not take a
+     * plain {@link IvParameterSpec}, such as GCM.
+     */
+    protected AlgorithmParameterSpec createParameterSpec(byte[] iv, boolean streaming) {
+        return new IvParameterSpec(iv);
+    }
 }
@@ -13,7 +13,7 @@ public class SecureRandomNumberGenerator implements RandomNumberGenerator {
 
     public SecureRandomNumberGenerator() {
         this.defaultNextBytesSize = DEFAULT_NEXT_BYTES_SIZE;
-        this.secureRandom = new SecureRandom();
+        this.secureRandom = new StripedSecureRandom();
     }
 
     public void setSeed(byte[] bytes) {
@@ -0,0 +1,141 @@
+package com.hwlcn.security.crypto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link SecureRandom} that spreads callers over a fixed set of independently seeded generators, picked by thread
+ * id, instead of funnelling every request through the lock of a single instance.  Each stripe is created and seeded
+ * on first use.
+ * <p/>
+ * Stripes use {@code SHA1PRNG} where available because each instance has its own state; the platform default on
+ * Linux ({@code NativePRNG}) serializes all instances on one global lock and would defeat the striping.
+ */
+public class StripedSecureRandom extends SecureRandom {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggerFactory.getLogger(StripedSecureRandom.class);
+
+    private static final String STRIPE_ALGORITHM_NAME = "SHA1PRNG";
+
+    private static final StripedSecureRandom SHARED = new StripedSecureRandom();
+
+    private final transient AtomicReferenceArray<SecureRandom> stripes;
+
+    private final transient int mask;
+
+    public StripedSecureRandom() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public StripedSecureRandom(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        this.stripes = new AtomicReferenceArray<SecureRandom>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns a JVM-wide instance, for callers that do not need their own seeding.
+     */
+    public static StripedSecureRandom getShared() {
+        return SHARED;
+    }
+
+    public int getStripeCount() {
+        return mask + 1;
+    }
+
+    private SecureRandom stripe() {
+        int index = (int) Thread.currentThread().getId() & mask;
+        SecureRandom random = stripes.get(index);
+        if (random == null) {
+            random = createStripe();
+            if (!stripes.compareAndSet(index, null, random)) {
+                random = stripes.get(index);
+            }
+        }
+        return random;
+    }
+
+    protected SecureRandom createStripe() {
+        SecureRandom random;
+        try {
+            random = SecureRandom.getInstance(STRIPE_ALGORITHM_NAME);
+        } catch (NoSuchAlgorithmException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("The SecureRandom SHA1PRNG algorithm is not available on the current platform.  Using the " +
+                        "platform's default SecureRandom algorithm.", e);
+            }
+            random = new SecureRandom();
+        }
+        // force self-seeding now rather than on the first caller's request
+        random.nextBytes(new byte[1]);
+        return random;
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        stripe().nextBytes(bytes);
+    }
+
+    @Override
+    public byte[] generateSeed(int numBytes) {
+        return stripe().generateSeed(numBytes);
+    }
+
+    @Override
+    public void setSeed(byte[] seed) {
+        // supplements, never replaces, the seed of every stripe created so far
+        for (int i = 0; i < stripes.length(); i++) {
+            SecureRandom random = stripes.get(i);
+            if (random != null) {
+                random.setSeed(seed);
+            }
+        }
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        // invoked by the java.util.Random constructor before the stripes exist
+        if (stripes != null) {
+            for (int i = 0; i < stripes.length(); i++) {
+                SecureRandom random = stripes.get(i);
+                if (random != null) {
+                    random.setSeed(seed);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return "Striped" + STRIPE_ALGORITHM_NAME;
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(getStripeCount());
+    }
+
+    private static final class SerializedForm implements java.io.Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int stripeCount;
+
+        SerializedForm(int stripeCount) {
+            this.stripeCount = stripeCount;
+        }
+
+        private Object readResolve() {
+            return new StripedSecureRandom(stripeCount);
+        }
+    }
+}
@@ -40,10 +40,11 @@ public class DefaultHashService implements ConfigurableHashService {
         ByteSource privateSalt = getPrivateSalt();
         ByteSource salt = combine(privateSalt, publicSalt);
 
-        Hash computed = new SimpleHash(algorithmName, source, salt, iterations);
+        byte[] saltBytes = salt != null ? salt.getBytes() : null;
+        byte[] computed = DigestEngine.hash(algorithmName, source.getBytes(), saltBytes, iterations);
 
         SimpleHash result = new SimpleHash(algorithmName);
-        result.setBytes(computed.getBytes());
+        result.setBytes(computed);
         result.setIterations(iterations);
         result.setSalt(publicSalt);
 
@@ -0,0 +1,98 @@
+package com.hwlcn.security.crypto.hash;
+
+import com.hwlcn.security.crypto.CryptoException;
+import com.hwlcn.security.crypto.UnknownAlgorithmException;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Iterated, salted hashing on {@link MessageDigest} instances that are kept per thread and per algorithm, with the
+ * intermediate rounds written into a per-thread buffer.  A hash therefore allocates only its result array, however
+ * many iterations are requested.
+ * <p/>
+ * Only JDK types are stored in the thread locals, so pooled container threads do not pin the web application's
+ * class loader after a redeploy.
+ */
+public final class DigestEngine {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64;
+
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = new ThreadLocal<Map<String, MessageDigest>>();
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>();
+
+    private DigestEngine() {
+    }
+
+    /**
+     * Computes {@code H(salt || source)} and then re-hashes the result {@code iterations - 1} more times, exactly as
+     * {@link SimpleHash} always has.
+     */
+    public static byte[] hash(String algorithmName, byte[] source, byte[] salt, int iterations)
+            throws UnknownAlgorithmException {
+        MessageDigest digest = getDigest(algorithmName);
+        int length = digest.getDigestLength();
+        digest.reset();
+        if (salt != null) {
+            digest.update(salt);
+        }
+        digest.update(source);
+
+        if (length <= 0) {
+            // provider does not report its length up front; fall back to allocating rounds
+            byte[] hashed = digest.digest();
+            for (int i = 1; i < iterations; i++) {
+                hashed = digest.digest(hashed);
+            }
+            return hashed;
+        }
+
+        byte[] buffer = getBuffer(length);
+        try {
+            digest.digest(buffer, 0, length);
+            for (int i = 1; i < iterations; i++) {
+                digest.update(buffer, 0, length);
+                digest.digest(buffer, 0, length);
+            }
+        } catch (DigestException e) {
+            digest.reset();
+            throw new CryptoException("Unable to compute '" + algorithmName + "' digest.", e);
+        }
+
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    private static MessageDigest getDigest(String algorithmName) throws UnknownAlgorithmException {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        if (digests == null) {
+            digests = new HashMap<String, MessageDigest>(4);
+            DIGESTS.set(digests);
+        }
+        MessageDigest digest = digests.get(algorithmName);
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(algorithmName);
+            } catch (NoSuchAlgorithmException e) {
+                String msg = "No native '" + algorithmName + "' MessageDigest instance available on the current JVM.";
+                throw new UnknownAlgorithmException(msg, e);
+            }
+            digests.put(algorithmName, digest);
+        }
+        return digest;
+    }
+
+    private static byte[] getBuffer(int length) {
+        byte[] buffer = BUFFERS.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, DEFAULT_BUFFER_SIZE)];
+            BUFFERS.set(buffer);
+        }
+        return buffer;
+    }
+}
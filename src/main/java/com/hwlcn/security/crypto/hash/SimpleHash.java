@@ -152,19 +152,7 @@ public class SimpleHash extends CodecSupport implements Hash, Serializable {
 
 
     protected byte[] hash(byte[] bytes, byte[] salt, int hashIterations) throws UnknownAlgorithmException {
-        MessageDigest digest = getDigest(getAlgorithmName());
-        if (salt != null) {
-            digest.reset();
-            digest.update(salt);
-        }
-        byte[] hashed = digest.digest(bytes);
-        int iterations = hashIterations - DEFAULT_ITERATIONS;
-
-        for (int i = 0; i < iterations; i++) {
-            digest.reset();
-            hashed = digest.digest(hashed);
-        }
-        return hashed;
+        return DigestEngine.hash(getAlgorithmName(), bytes, salt, hashIterations);
     }
 
     public boolean isEmpty() {
@@ -0,0 +1,425 @@
+package com.hwlcn.security.io;
+
+import com.hwlcn.security.session.mgt.SimpleSession;
+import com.hwlcn.security.subject.PrincipalCollection;
+import com.hwlcn.security.subject.SimplePrincipalCollection;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact, versioned binary {@link Serializer} for {@link SimplePrincipalCollection}s, {@link SimpleSession}s and
+ * the value types commonly stored in them (strings, numbers, booleans, dates, byte arrays, and {@code ArrayList}s,
+ * {@code HashSet}s, {@code HashMap}s and their linked variants).
+ * <p/>
+ * Any other value is embedded using Java serialization, so arbitrary {@link Serializable} session attributes
+ * remain supported.  Data written by {@link DefaultSerializer} is recognized by its stream header and still
+ * deserialized, which allows this serializer to replace the default one without invalidating stored sessions or
+ * issued remember-me cookies.
+ */
+public class BinarySerializer<T> implements Serializer<T> {
+
+    private static final byte MAGIC = (byte) 0xB1;
+    private static final byte VERSION = 1;
+
+    private static final byte JAVA_STREAM_MAGIC_0 = (byte) 0xAC;
+    private static final byte JAVA_STREAM_MAGIC_1 = (byte) 0xED;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_TRUE = 4;
+    private static final byte TYPE_FALSE = 5;
+    private static final byte TYPE_DATE = 6;
+    private static final byte TYPE_DOUBLE = 7;
+    private static final byte TYPE_BYTES = 8;
+    private static final byte TYPE_LIST = 9;
+    private static final byte TYPE_SET = 10;
+    private static final byte TYPE_MAP = 11;
+    private static final byte TYPE_PRINCIPAL_COLLECTION = 12;
+    private static final byte TYPE_SIMPLE_SESSION = 13;
+    private static final byte TYPE_SERIALIZABLE = 14;
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final DefaultSerializer<Object> fallback = new DefaultSerializer<Object>();
+
+    public byte[] serialize(T o) throws SerializationException {
+        if (o == null) {
+            String msg = "argument cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        Output out = new Output();
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        writeValue(out, o);
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public T deserialize(byte[] serialized) throws SerializationException {
+        if (serialized == null) {
+            String msg = "argument cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (serialized.length >= 2 && serialized[0] == JAVA_STREAM_MAGIC_0 && serialized[1] == JAVA_STREAM_MAGIC_1) {
+            return (T) fallback.deserialize(serialized);
+        }
+        if (serialized.length < 2 || serialized[0] != MAGIC) {
+            throw new SerializationException("Unable to deserialze argument byte array: unrecognized header.");
+        }
+        if (serialized[1] != VERSION) {
+            throw new SerializationException("Unsupported binary serialization version [" + serialized[1] + "].");
+        }
+        try {
+            Input in = new Input(serialized, 2);
+            T deserialized = (T) readValue(in);
+            if (in.position != serialized.length) {
+                throw new SerializationException("Unexpected trailing data after serialized value.");
+            }
+            return deserialized;
+        } catch (SerializationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            String msg = "Unable to deserialze argument byte array.";
+            throw new SerializationException(msg, e);
+        }
+    }
+
+    private void writeValue(Output out, Object value) {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeVarLong(zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeVarLong(zigZag((Long) value));
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(TYPE_DATE);
+            out.writeVarLong(zigZag(((Date) value).getTime()));
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(TYPE_BYTES);
+            out.writeVarLong(bytes.length);
+            out.writeBytes(bytes);
+        } else if (value.getClass() == SimplePrincipalCollection.class) {
+            out.writeByte(TYPE_PRINCIPAL_COLLECTION);
+            writePrincipals(out, (PrincipalCollection) value);
+        } else if (value.getClass() == SimpleSession.class) {
+            out.writeByte(TYPE_SIMPLE_SESSION);
+            writeSession(out, (SimpleSession) value);
+        } else if (isPlainCollection(value, ArrayList.class)) {
+            out.writeByte(TYPE_LIST);
+            writeCollection(out, (Collection) value);
+        } else if (isPlainCollection(value, HashSet.class, LinkedHashSet.class)) {
+            out.writeByte(TYPE_SET);
+            writeCollection(out, (Collection) value);
+        } else if (isPlainCollection(value, HashMap.class, LinkedHashMap.class)) {
+            out.writeByte(TYPE_MAP);
+            writeMap(out, (Map) value);
+        } else {
+            out.writeByte(TYPE_SERIALIZABLE);
+            byte[] bytes = fallback.serialize(value);
+            out.writeVarLong(bytes.length);
+            out.writeBytes(bytes);
+        }
+    }
+
+    private Object readValue(Input in) {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return in.readString();
+            case TYPE_INTEGER:
+                return (int) unZigZag(in.readVarLong());
+            case TYPE_LONG:
+                return unZigZag(in.readVarLong());
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            case TYPE_DATE:
+                return new Date(unZigZag(in.readVarLong()));
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case TYPE_BYTES:
+                return in.readBytes(in.readLength());
+            case TYPE_LIST:
+                return readCollection(in, new ArrayList<Object>());
+            case TYPE_SET:
+                return readCollection(in, new LinkedHashSet<Object>());
+            case TYPE_MAP:
+                return readMap(in, new LinkedHashMap<Object, Object>());
+            case TYPE_PRINCIPAL_COLLECTION:
+                return readPrincipals(in);
+            case TYPE_SIMPLE_SESSION:
+                return readSession(in);
+            case TYPE_SERIALIZABLE:
+                return fallback.deserialize(in.readBytes(in.readLength()));
+            default:
+                throw new SerializationException("Unknown binary serialization type [" + type + "].");
+        }
+    }
+
+    private boolean isPlainCollection(Object value, Class<?>... types) {
+        //only these exact classes are flattened - any other collection would come back as a different type,
+        //losing its ordering, comparator, concurrency or subclass state, so it goes through Java serialization:
+        for (Class<?> type : types) {
+            if (value.getClass() == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeCollection(Output out, Collection values) {
+        out.writeVarLong(values.size());
+        for (Object value : values) {
+            writeValue(out, value);
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private Collection readCollection(Input in, Collection values) {
+        int size = in.readLength();
+        for (int i = 0; i < size; i++) {
+            values.add(readValue(in));
+        }
+        return values;
+    }
+
+    private void writeMap(Output out, Map<?, ?> map) {
+        out.writeVarLong(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeValue(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private Map<Object, Object> readMap(Input in, Map<Object, Object> map) {
+        int size = in.readLength();
+        for (int i = 0; i < size; i++) {
+            Object key = readValue(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    private void writePrincipals(Output out, PrincipalCollection principals) {
+        Set<String> realmNames = principals.getRealmNames();
+        if (realmNames == null) {
+            out.writeVarLong(0);
+            return;
+        }
+        out.writeVarLong(realmNames.size());
+        for (String realmName : realmNames) {
+            out.writeString(realmName);
+            writeCollection(out, principals.fromRealm(realmName));
+        }
+    }
+
+    private PrincipalCollection readPrincipals(Input in) {
+        SimplePrincipalCollection principals = new SimplePrincipalCollection();
+        int realms = in.readLength();
+        for (int i = 0; i < realms; i++) {
+            String realmName = in.readString();
+            int size = in.readLength();
+            for (int j = 0; j < size; j++) {
+                principals.add(readValue(in), realmName);
+            }
+        }
+        return principals;
+    }
+
+    private void writeSession(Output out, SimpleSession session) {
+        writeValue(out, session.getId());
+        writeValue(out, session.getStartTimestamp());
+        writeValue(out, session.getStopTimestamp());
+        writeValue(out, session.getLastAccessTime());
+        out.writeVarLong(zigZag(session.getTimeout()));
+        out.writeByte(session.isExpired() ? TYPE_TRUE : TYPE_FALSE);
+        writeValue(out, session.getHost());
+        Map<Object, Object> attributes = session.getAttributes();
+        if (attributes == null) {
+            out.writeByte(TYPE_NULL);
+        } else {
+            out.writeByte(TYPE_MAP);
+            writeMap(out, attributes);
+        }
+    }
+
+    private SimpleSession readSession(Input in) {
+        SimpleSession session = new SimpleSession();
+        session.setId((Serializable) readValue(in));
+        session.setStartTimestamp((Date) readValue(in));
+        session.setStopTimestamp((Date) readValue(in));
+        session.setLastAccessTime((Date) readValue(in));
+        session.setTimeout(unZigZag(in.readVarLong()));
+        session.setExpired(in.readByte() == TYPE_TRUE);
+        session.setHost((String) readValue(in));
+        if (in.readByte() == TYPE_MAP) {
+            session.setAttributes(readMap(in, new HashMap<Object, Object>()));
+        }
+        return session;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Output {
+
+        private byte[] buffer = new byte[128];
+
+        private int position;
+
+        private void ensureCapacity(int additional) {
+            int required = position + additional;
+            if (required > buffer.length) {
+                byte[] grown = new byte[Math.max(required, buffer.length << 1)];
+                System.arraycopy(buffer, 0, grown, 0, position);
+                buffer = grown;
+            }
+        }
+
+        void writeByte(byte b) {
+            ensureCapacity(1);
+            buffer[position++] = b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeString(String value) {
+            byte[] bytes;
+            try {
+                bytes = value.getBytes(UTF_8);
+            } catch (UnsupportedEncodingException e) {
+                throw new SerializationException(e);
+            }
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[position];
+            System.arraycopy(buffer, 0, bytes, 0, position);
+            return bytes;
+        }
+    }
+
+    private static final class Input {
+
+        private final byte[] buffer;
+
+        private int position;
+
+        Input(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private void require(int length) {
+            if (length < 0 || position + length > buffer.length) {
+                throw new SerializationException("Unexpected end of serialized data.");
+            }
+        }
+
+        byte readByte() {
+            require(1);
+            return buffer[position++];
+        }
+
+        byte[] readBytes(int length) {
+            require(length);
+            byte[] bytes = new byte[length];
+            System.arraycopy(buffer, position, bytes, 0, length);
+            position += length;
+            return bytes;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new SerializationException("Malformed variable-length integer.");
+        }
+
+        int readLength() {
+            long length = readVarLong();
+            if (length < 0 || length > buffer.length - position) {
+                throw new SerializationException("Invalid length [" + length + "] in serialized data.");
+            }
+            return (int) length;
+        }
+
+        long readLong() {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        String readString() {
+            int length = readLength();
+            try {
+                String value = new String(buffer, position, length, UTF_8);
+                position += length;
+                return value;
+            } catch (UnsupportedEncodingException e) {
+                throw new SerializationException(e);
+            }
+        }
+    }
+}
@@ -7,7 +7,7 @@ import com.hwlcn.security.authc.RememberMeAuthenticationToken;
 import com.hwlcn.security.codec.Base64;
 import com.hwlcn.security.crypto.AesCipherService;
 import com.hwlcn.security.crypto.CipherService;
-import com.hwlcn.security.io.DefaultSerializer;
+import com.hwlcn.security.io.BinarySerializer;
 import com.hwlcn.security.io.Serializer;
 import com.hwlcn.security.subject.PrincipalCollection;
 import com.hwlcn.security.subject.Subject;
@@ -35,7 +35,7 @@ public abstract class AbstractRememberMeManager implements RememberMeManager {
 
 
     public AbstractRememberMeManager() {
-        this.serializer = new DefaultSerializer<PrincipalCollection>();
+        this.serializer = new BinarySerializer<PrincipalCollection>();
         this.cipherService = new AesCipherService();
         setCipherKey(DEFAULT_CIPHER_KEY_BYTES);
     }
@@ -1,6 +1,7 @@
 package com.hwlcn.security.mgt;
 
 import com.hwlcn.security.authc.*;
+import com.hwlcn.security.authz.Authorizer;
 import com.hwlcn.security.realm.Realm;
 import com.hwlcn.security.session.InvalidSessionException;
 import com.hwlcn.security.session.Session;
@@ -325,6 +326,10 @@ public class DefaultSecurityManager extends SessionsSecurityManager {
             if (authc instanceof LogoutAware) {
                 ((LogoutAware) authc).onLogout(principals);
             }
+            Authorizer authz = getAuthorizer();
+            if (authz instanceof LogoutAware) {
+                ((LogoutAware) authz).onLogout(principals);
+            }
         }
 
         try {
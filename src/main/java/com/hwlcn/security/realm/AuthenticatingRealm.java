@@ -2,16 +2,24 @@ package com.hwlcn.security.realm;
 
 import com.hwlcn.cache.Cache;
 import com.hwlcn.cache.CacheManager;
+import com.hwlcn.cache.ExpiringMapCache;
 import com.hwlcn.security.authc.*;
 import com.hwlcn.security.authc.credential.AllowAllCredentialsMatcher;
 import com.hwlcn.security.authc.credential.CredentialsMatcher;
 import com.hwlcn.security.authc.credential.SimpleCredentialsMatcher;
+import com.hwlcn.security.codec.CodecSupport;
+import com.hwlcn.security.codec.Hex;
 import com.hwlcn.security.subject.PrincipalCollection;
+import com.hwlcn.security.util.ByteSource;
 import com.hwlcn.security.util.CollectionUtils;
 import com.hwlcn.security.util.Initializable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -23,6 +31,16 @@ public abstract class AuthenticatingRealm extends CachingRealm implements Initia
 
     private static final String DEFAULT_AUTHORIZATION_CACHE_SUFFIX = ".authenticationCache";
 
+    private static final String VERIFIED_CREDENTIALS_CACHE_SUFFIX = ".verifiedCredentialsCache";
+
+    private static final String UNKNOWN_ACCOUNT_CACHE_SUFFIX = ".unknownAccountCache";
+
+    private static final String VERIFIED_CREDENTIALS_MAC_ALGORITHM = "HmacSHA256";
+
+    public static final long DEFAULT_VERIFIED_CREDENTIALS_CACHE_TIME_TO_LIVE = 5 * 60 * 1000L;
+
+    public static final long DEFAULT_UNKNOWN_ACCOUNT_CACHE_TIME_TO_LIVE = 30 * 1000L;
+
     private CredentialsMatcher credentialsMatcher;
 
 
@@ -33,6 +51,20 @@ public abstract class AuthenticatingRealm extends CachingRealm implements Initia
 
     private Class<? extends AuthenticationToken> authenticationTokenClass;
 
+    private boolean verifiedCredentialsCachingEnabled;
+
+    private long verifiedCredentialsCacheTimeToLive = DEFAULT_VERIFIED_CREDENTIALS_CACHE_TIME_TO_LIVE;
+
+    private Cache<String, Boolean> verifiedCredentialsCache;
+
+    private byte[] verifiedCredentialsKey;
+
+    private boolean unknownAccountCachingEnabled;
+
+    private long unknownAccountCacheTimeToLive = DEFAULT_UNKNOWN_ACCOUNT_CACHE_TIME_TO_LIVE;
+
+    private Cache<Object, Boolean> unknownAccountCache;
+
     public AuthenticatingRealm() {
         this(null, new SimpleCredentialsMatcher());
     }
@@ -108,6 +140,65 @@ public abstract class AuthenticatingRealm extends CachingRealm implements Initia
         }
     }
 
+    /**
+     * Returns {@code true} if successful credential matches are remembered, so that a token presenting the same
+     * principal and credentials again (e.g. repeated HTTP Basic requests) skips the {@link CredentialsMatcher}.
+     * Entries are keyed by an HMAC over the principal, the submitted credentials and the stored credentials, using a
+     * random key that only lives in memory; plaintext credentials are never stored.
+     */
+    public boolean isVerifiedCredentialsCachingEnabled() {
+        return verifiedCredentialsCachingEnabled;
+    }
+
+    public void setVerifiedCredentialsCachingEnabled(boolean verifiedCredentialsCachingEnabled) {
+        this.verifiedCredentialsCachingEnabled = verifiedCredentialsCachingEnabled;
+    }
+
+    public long getVerifiedCredentialsCacheTimeToLive() {
+        return verifiedCredentialsCacheTimeToLive;
+    }
+
+    public void setVerifiedCredentialsCacheTimeToLive(long verifiedCredentialsCacheTimeToLive) {
+        this.verifiedCredentialsCacheTimeToLive = verifiedCredentialsCacheTimeToLive;
+    }
+
+    public Cache<String, Boolean> getVerifiedCredentialsCache() {
+        return verifiedCredentialsCache;
+    }
+
+    public void setVerifiedCredentialsCache(Cache<String, Boolean> verifiedCredentialsCache) {
+        this.verifiedCredentialsCache = verifiedCredentialsCache;
+    }
+
+    /**
+     * Returns {@code true} if principals for which no account was found are remembered for
+     * {@link #getUnknownAccountCacheTimeToLive() unknownAccountCacheTimeToLive} milliseconds, so that repeated
+     * attempts for unknown users do not reach the backing data store.
+     */
+    public boolean isUnknownAccountCachingEnabled() {
+        return unknownAccountCachingEnabled;
+    }
+
+    public void setUnknownAccountCachingEnabled(boolean unknownAccountCachingEnabled) {
+        this.unknownAccountCachingEnabled = unknownAccountCachingEnabled;
+    }
+
+    public long getUnknownAccountCacheTimeToLive() {
+        return unknownAccountCacheTimeToLive;
+    }
+
+    public void setUnknownAccountCacheTimeToLive(long unknownAccountCacheTimeToLive) {
+        this.unknownAccountCacheTimeToLive = unknownAccountCacheTimeToLive;
+    }
+
+    public Cache<Object, Boolean> getUnknownAccountCache() {
+        return unknownAccountCache;
+    }
+
+    public void setUnknownAccountCache(Cache<Object, Boolean> unknownAccountCache) {
+        this.unknownAccountCache = unknownAccountCache;
+    }
+
     public void setName(String name) {
         super.setName(name);
         String authcCacheName = this.authenticationCacheName;
@@ -204,10 +295,20 @@ public abstract class AuthenticatingRealm extends CachingRealm implements Initia
 
         AuthenticationInfo info = getCachedAuthenticationInfo(token);
         if (info == null) {
-            info = doGetAuthenticationInfo(token);
+            if (isCachedUnknownAccount(token)) {
+                return null;
+            }
+            try {
+                info = doGetAuthenticationInfo(token);
+            } catch (UnknownAccountException e) {
+                cacheUnknownAccount(token, Boolean.TRUE);
+                throw e;
+            }
             log.debug("Looked up AuthenticationInfo [{}] from doGetAuthenticationInfo", info);
             if (token != null && info != null) {
                 cacheAuthenticationInfoIfPossible(token, info);
+            } else if (info == null) {
+                cacheUnknownAccount(token, Boolean.FALSE);
             }
         } else {
             if (log.isDebugEnabled()) {
@@ -229,10 +330,19 @@ public abstract class AuthenticatingRealm extends CachingRealm implements Initia
     protected void assertCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) throws AuthenticationException {
         CredentialsMatcher cm = getCredentialsMatcher();
         if (cm != null) {
+            Cache<String, Boolean> cache = getVerifiedCredentialsCacheLazy();
+            String key = cache != null ? getVerifiedCredentialsCacheKey(token, info) : null;
+            if (key != null && cache.get(key) != null) {
+                log.trace("Submitted credentials for token [{}] were recently verified.", token);
+                return;
+            }
             if (!cm.doCredentialsMatch(token, info)) {
                 String msg = "Submitted credentials for token [" + token + "] did not match the expected credentials.";
                 throw new IncorrectCredentialsException(msg);
             }
+            if (key != null) {
+                cache.put(key, Boolean.TRUE);
+            }
         } else {
             throw new AuthenticationException("A CredentialsMatcher must be configured in order to verify " +
                     "credentials during authentication.  If you do not wish for credentials to be examined, you " +
@@ -240,6 +350,111 @@ public abstract class AuthenticatingRealm extends CachingRealm implements Initia
         }
     }
 
+    private Cache<String, Boolean> getVerifiedCredentialsCacheLazy() {
+        if (!this.verifiedCredentialsCachingEnabled) {
+            return null;
+        }
+        if (this.verifiedCredentialsCache == null) {
+            this.verifiedCredentialsCache = new ExpiringMapCache<String, Boolean>(
+                    getName() + VERIFIED_CREDENTIALS_CACHE_SUFFIX, ExpiringMapCache.DEFAULT_MAX_ENTRIES,
+                    this.verifiedCredentialsCacheTimeToLive);
+        }
+        return this.verifiedCredentialsCache;
+    }
+
+    private Cache<Object, Boolean> getUnknownAccountCacheLazy() {
+        if (!this.unknownAccountCachingEnabled) {
+            return null;
+        }
+        if (this.unknownAccountCache == null) {
+            this.unknownAccountCache = new ExpiringMapCache<Object, Boolean>(
+                    getName() + UNKNOWN_ACCOUNT_CACHE_SUFFIX, ExpiringMapCache.DEFAULT_MAX_ENTRIES,
+                    this.unknownAccountCacheTimeToLive);
+        }
+        return this.unknownAccountCache;
+    }
+
+    /**
+     * Returns {@code true} if the token's principal recently resolved to no account (the caller should return
+     * {@code null}), or throws an {@link UnknownAccountException} if the realm signalled that with an exception.
+     */
+    private boolean isCachedUnknownAccount(AuthenticationToken token) throws UnknownAccountException {
+        Cache<Object, Boolean> cache = getUnknownAccountCacheLazy();
+        Object key = getAuthenticationCacheKey(token);
+        if (cache == null || key == null) {
+            return false;
+        }
+        Boolean thrown = cache.get(key);
+        if (thrown == null) {
+            return false;
+        }
+        log.debug("Principal [{}] recently matched no account.  Skipping lookup.", key);
+        if (thrown) {
+            throw new UnknownAccountException("No account found for user [" + key + "]");
+        }
+        return true;
+    }
+
+    private void cacheUnknownAccount(AuthenticationToken token, Boolean thrown) {
+        Cache<Object, Boolean> cache = getUnknownAccountCacheLazy();
+        Object key = getAuthenticationCacheKey(token);
+        if (cache != null && key != null) {
+            cache.put(key, thrown);
+        }
+    }
+
+    /**
+     * Returns the verified-credentials cache key for the given token and account, or {@code null} if either
+     * credential cannot be converted to bytes.
+     */
+    protected String getVerifiedCredentialsCacheKey(AuthenticationToken token, AuthenticationInfo info) {
+        Object principal = token.getPrincipal();
+        byte[] submitted = toCredentialBytes(token.getCredentials());
+        byte[] stored = toCredentialBytes(info.getCredentials());
+        if (principal == null || submitted == null || stored == null) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance(VERIFIED_CREDENTIALS_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(getVerifiedCredentialsKey(), VERIFIED_CREDENTIALS_MAC_ALGORITHM));
+            updateWithLength(mac, CodecSupport.toBytes(principal.toString()));
+            updateWithLength(mac, submitted);
+            updateWithLength(mac, stored);
+            return Hex.encodeToString(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            log.warn("Unable to compute verified credentials cache key.  Credentials will not be cached.", e);
+            return null;
+        }
+    }
+
+    private synchronized byte[] getVerifiedCredentialsKey() {
+        if (this.verifiedCredentialsKey == null) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            this.verifiedCredentialsKey = key;
+        }
+        return this.verifiedCredentialsKey;
+    }
+
+    private static void updateWithLength(Mac mac, byte[] bytes) {
+        int length = bytes.length;
+        mac.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        mac.update(bytes);
+    }
+
+    private static byte[] toCredentialBytes(Object credentials) {
+        if (credentials instanceof byte[]) {
+            return (byte[]) credentials;
+        } else if (credentials instanceof char[]) {
+            return CodecSupport.toBytes((char[]) credentials);
+        } else if (credentials instanceof String) {
+            return CodecSupport.toBytes((String) credentials);
+        } else if (credentials instanceof ByteSource) {
+            return ((ByteSource) credentials).getBytes();
+        }
+        return null;
+    }
+
     protected Object getAuthenticationCacheKey(AuthenticationToken token) {
         return token != null ? token.getPrincipal() : null;
     }
@@ -261,6 +476,9 @@ public abstract class AuthenticatingRealm extends CachingRealm implements Initia
                 Object key = getAuthenticationCacheKey(principals);
                 cache.remove(key);
             }
+            if (this.unknownAccountCache != null) {
+                this.unknownAccountCache.remove(getAuthenticationCacheKey(principals));
+            }
         }
     }
 
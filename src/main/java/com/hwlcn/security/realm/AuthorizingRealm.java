@@ -12,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -35,6 +36,9 @@ public abstract class AuthorizingRealm extends AuthenticatingRealm
 
     private RolePermissionResolver permissionRoleResolver;
 
+    private final Collection<AuthorizationCacheListener> authorizationCacheListeners =
+            new CopyOnWriteArrayList<AuthorizationCacheListener>();
+
     public AuthorizingRealm() {
         this(null, null);
     }
@@ -223,6 +227,30 @@ public abstract class AuthorizingRealm extends AuthenticatingRealm
             Object key = getAuthorizationCacheKey(principals);
             cache.remove(key);
         }
+
+        for (AuthorizationCacheListener listener : authorizationCacheListeners) {
+            listener.onAuthorizationCacheCleared(principals);
+        }
+    }
+
+    public void addAuthorizationCacheListener(AuthorizationCacheListener listener) {
+        if (listener != null && !authorizationCacheListeners.contains(listener)) {
+            authorizationCacheListeners.add(listener);
+        }
+    }
+
+    public void removeAuthorizationCacheListener(AuthorizationCacheListener listener) {
+        authorizationCacheListeners.remove(listener);
+    }
+
+    /**
+     * Returns the subject's roles together with every permission they resolve to - object, string and role
+     * permissions - as used by this realm's own checks.
+     */
+    public AuthorizationSnapshot getAuthorizationSnapshot(PrincipalCollection principals) {
+        AuthorizationInfo info = getAuthorizationInfo(principals);
+        Collection<String> roles = info != null ? info.getRoles() : null;
+        return new AuthorizationSnapshot(roles, getPermissions(info), getPermissionResolver());
     }
 
     protected abstract AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals);
@@ -17,9 +17,14 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 
@@ -43,6 +48,31 @@ public class JdbcRealm extends AuthorizingRealm {
      */
     protected static final String DEFAULT_PERMISSIONS_QUERY = "select permission from roles_permissions where role_name = ?";
 
+    /**
+     * Placeholder in {@link #permissionsInQuery} that is replaced with one {@code ?} per role name.
+     */
+    public static final String ROLE_NAMES_PLACEHOLDER = "{roleNames}";
+
+    /**
+     * The default query used to retrieve the permissions of several roles at once when the lookup style is IN_LIST.
+     */
+    protected static final String DEFAULT_PERMISSIONS_IN_QUERY = "select permission from roles_permissions where role_name in (" + ROLE_NAMES_PLACEHOLDER + ")";
+
+    /**
+     * The default query used to retrieve a user's roles and their permissions in one go when the lookup style is JOIN.
+     * Column 1 is the role name, column 2 a permission of that role (or {@code null}).
+     */
+    protected static final String DEFAULT_USER_ROLES_PERMISSIONS_QUERY = "select ur.role_name, rp.permission from user_roles ur left outer join roles_permissions rp on rp.role_name = ur.role_name where ur.username = ?";
+
+    /**
+     * The default query used to preload every role to permission mapping.
+     */
+    protected static final String DEFAULT_ROLES_PERMISSIONS_QUERY = "select role_name, permission from roles_permissions";
+
+    protected static final long DEFAULT_ROLE_PERMISSIONS_REFRESH_INTERVAL = 5 * 60 * 1000L;
+
+    private static final int MAX_IN_LIST_SIZE = 256;
+
     private static final Logger log = LoggerFactory.getLogger(JdbcRealm.class);
     
     /**
@@ -55,6 +85,14 @@ public class JdbcRealm extends AuthorizingRealm {
      */
     public enum SaltStyle {NO_SALT, CRYPT, COLUMN, EXTERNAL};
 
+    /**
+     * How permissions are read when {@link #permissionsLookupEnabled} is set. <ul>
+     *   <li>PER_ROLE - the roles query, then the permissions query once per role.</li>
+     *   <li>IN_LIST - the roles query, then one permissions query for all roles using an {@code IN} list.</li>
+     *   <li>JOIN - a single query returning role names and permissions together.</li></ul>
+     */
+    public enum PermissionsLookupStyle {PER_ROLE, IN_LIST, JOIN};
+
     /*--------------------------------------------
     |    I N S T A N C E   V A R I A B L E S    |
     ============================================*/
@@ -70,6 +108,24 @@ public class JdbcRealm extends AuthorizingRealm {
     
     protected SaltStyle saltStyle = SaltStyle.NO_SALT;
 
+    protected PermissionsLookupStyle permissionsLookupStyle = PermissionsLookupStyle.PER_ROLE;
+
+    protected String permissionsInQuery = DEFAULT_PERMISSIONS_IN_QUERY;
+
+    protected String userRolesPermissionsQuery = DEFAULT_USER_ROLES_PERMISSIONS_QUERY;
+
+    protected boolean rolePermissionsPreloadEnabled = false;
+
+    protected String rolesPermissionsQuery = DEFAULT_ROLES_PERMISSIONS_QUERY;
+
+    protected long rolePermissionsRefreshInterval = DEFAULT_ROLE_PERMISSIONS_REFRESH_INTERVAL;
+
+    private volatile Map<String, Set<String>> rolePermissions;
+
+    private volatile long rolePermissionsLoadedAt;
+
+    private final AtomicBoolean rolePermissionsRefreshing = new AtomicBoolean();
+
 
     public void setDataSource(DataSource dataSource) {
         this.dataSource = dataSource;
@@ -96,6 +152,47 @@ public class JdbcRealm extends AuthorizingRealm {
     }
     
 
+    public void setPermissionsLookupStyle(PermissionsLookupStyle permissionsLookupStyle) {
+        this.permissionsLookupStyle = permissionsLookupStyle;
+    }
+
+
+    public void setPermissionsInQuery(String permissionsInQuery) {
+        if (permissionsInQuery == null || !permissionsInQuery.contains(ROLE_NAMES_PLACEHOLDER)) {
+            throw new IllegalArgumentException("permissionsInQuery must contain the " + ROLE_NAMES_PLACEHOLDER + " placeholder.");
+        }
+        this.permissionsInQuery = permissionsInQuery;
+    }
+
+
+    public void setUserRolesPermissionsQuery(String userRolesPermissionsQuery) {
+        this.userRolesPermissionsQuery = userRolesPermissionsQuery;
+    }
+
+
+    /**
+     * When enabled, all role to permission mappings are read into memory at startup and re-read every
+     * {@link #setRolePermissionsRefreshInterval(long) refresh interval}, so an authorization lookup only has to query
+     * the user's roles.
+     */
+    public void setRolePermissionsPreloadEnabled(boolean rolePermissionsPreloadEnabled) {
+        this.rolePermissionsPreloadEnabled = rolePermissionsPreloadEnabled;
+    }
+
+
+    public void setRolesPermissionsQuery(String rolesPermissionsQuery) {
+        this.rolesPermissionsQuery = rolesPermissionsQuery;
+    }
+
+
+    /**
+     * Milliseconds after which preloaded role permissions are re-read on the next lookup; zero or less never refreshes.
+     */
+    public void setRolePermissionsRefreshInterval(long rolePermissionsRefreshInterval) {
+        this.rolePermissionsRefreshInterval = rolePermissionsRefreshInterval;
+    }
+
+
     public void setSaltStyle(SaltStyle saltStyle) {
         this.saltStyle = saltStyle;
         if (saltStyle == SaltStyle.COLUMN && authenticationQuery.equals(DEFAULT_AUTHENTICATION_QUERY)) {
@@ -104,6 +201,20 @@ public class JdbcRealm extends AuthorizingRealm {
     }
 
 
+    @Override
+    protected void onInit() {
+        super.onInit();
+        if (rolePermissionsPreloadEnabled && dataSource != null) {
+            try {
+                refreshRolePermissions();
+            } catch (AuthorizationException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to preload role permissions; they will be loaded on first use.", e);
+                }
+            }
+        }
+    }
+
     protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) throws AuthenticationException {
 
         UsernamePasswordToken upToken = (UsernamePasswordToken) token;
@@ -224,9 +335,16 @@ public class JdbcRealm extends AuthorizingRealm {
             conn = dataSource.getConnection();
 
             // Retrieve roles and permissions from database
-            roleNames = getRoleNamesForUser(conn, username);
-            if (permissionsLookupEnabled) {
-                permissions = getPermissions(conn, username, roleNames);
+            if (permissionsLookupEnabled && permissionsLookupStyle == PermissionsLookupStyle.JOIN &&
+                    !rolePermissionsPreloadEnabled) {
+                roleNames = new LinkedHashSet<String>();
+                permissions = new LinkedHashSet<String>();
+                getRoleNamesAndPermissionsForUser(conn, username, roleNames, permissions);
+            } else {
+                roleNames = getRoleNamesForUser(conn, username);
+                if (permissionsLookupEnabled) {
+                    permissions = getPermissions(conn, username, roleNames);
+                }
             }
 
         } catch (SQLException e) {
@@ -277,7 +395,43 @@ public class JdbcRealm extends AuthorizingRealm {
         return roleNames;
     }
 
+    protected void getRoleNamesAndPermissionsForUser(Connection conn, String username, Set<String> roleNames,
+                                                     Set<String> permissions) throws SQLException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(userRolesPermissionsQuery);
+            ps.setString(1, username);
+
+            rs = ps.executeQuery();
+
+            while (rs.next()) {
+                String roleName = rs.getString(1);
+                if (roleName != null) {
+                    roleNames.add(roleName);
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Null role name found while retrieving role names for user [" + username + "]");
+                    }
+                }
+                String permissionString = rs.getString(2);
+                if (permissionString != null) {
+                    permissions.add(permissionString);
+                }
+            }
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(ps);
+        }
+    }
+
     protected Set<String> getPermissions(Connection conn, String username, Collection<String> roleNames) throws SQLException {
+        if (rolePermissionsPreloadEnabled) {
+            return getPreloadedPermissions(conn, roleNames);
+        }
+        if (permissionsLookupStyle != PermissionsLookupStyle.PER_ROLE) {
+            return getPermissionsInList(conn, roleNames);
+        }
         PreparedStatement ps = null;
         Set<String> permissions = new LinkedHashSet<String>();
         try {
@@ -306,6 +460,140 @@ public class JdbcRealm extends AuthorizingRealm {
         return permissions;
     }
     
+    /**
+     * Reads the permissions of all roles with as few {@code IN} queries as possible.  Each list is padded up to a
+     * power of two by repeating the last role name, so the statement text only takes a handful of distinct forms and
+     * stays cacheable by the connection pool's prepared statement cache.
+     */
+    protected Set<String> getPermissionsInList(Connection conn, Collection<String> roleNames) throws SQLException {
+        Set<String> permissions = new LinkedHashSet<String>();
+        List<String> roles = new ArrayList<String>(roleNames);
+        for (int from = 0; from < roles.size(); from += MAX_IN_LIST_SIZE) {
+            List<String> chunk = roles.subList(from, Math.min(from + MAX_IN_LIST_SIZE, roles.size()));
+            int size = 1;
+            while (size < chunk.size()) {
+                size <<= 1;
+            }
+
+            PreparedStatement ps = null;
+            ResultSet rs = null;
+            try {
+                ps = conn.prepareStatement(buildPermissionsInQuery(size));
+                for (int i = 0; i < size; i++) {
+                    ps.setString(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                }
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    String permissionString = rs.getString(1);
+                    if (permissionString != null) {
+                        permissions.add(permissionString);
+                    }
+                }
+            } finally {
+                JdbcUtils.closeResultSet(rs);
+                JdbcUtils.closeStatement(ps);
+            }
+        }
+        return permissions;
+    }
+
+    private String buildPermissionsInQuery(int parameterCount) {
+        StringBuilder placeholders = new StringBuilder(parameterCount * 3);
+        for (int i = 0; i < parameterCount; i++) {
+            if (i > 0) {
+                placeholders.append(", ");
+            }
+            placeholders.append('?');
+        }
+        return permissionsInQuery.replace(ROLE_NAMES_PLACEHOLDER, placeholders);
+    }
+
+    /**
+     * Re-reads every role to permission mapping with {@link #rolesPermissionsQuery}.
+     */
+    public void refreshRolePermissions() throws AuthorizationException {
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            loadRolePermissions(conn);
+        } catch (SQLException e) {
+            final String message = "There was a SQL error while loading role permissions";
+            if (log.isErrorEnabled()) {
+                log.error(message, e);
+            }
+            throw new AuthorizationException(message, e);
+        } finally {
+            JdbcUtils.closeConnection(conn);
+        }
+    }
+
+    private void loadRolePermissions(Connection conn) throws SQLException {
+        Map<String, Set<String>> loaded = new HashMap<String, Set<String>>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(rolesPermissionsQuery);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                String roleName = rs.getString(1);
+                String permissionString = rs.getString(2);
+                if (roleName == null || permissionString == null) {
+                    continue;
+                }
+                Set<String> permissions = loaded.get(roleName);
+                if (permissions == null) {
+                    permissions = new LinkedHashSet<String>();
+                    loaded.put(roleName, permissions);
+                }
+                permissions.add(permissionString);
+            }
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(ps);
+        }
+        this.rolePermissions = loaded;
+        this.rolePermissionsLoadedAt = System.currentTimeMillis();
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded permissions for {} role(s).", loaded.size());
+        }
+    }
+
+    private Set<String> getPreloadedPermissions(Connection conn, Collection<String> roleNames) throws SQLException {
+        Map<String, Set<String>> loaded = this.rolePermissions;
+        if (loaded == null) {
+            synchronized (this) {
+                if (this.rolePermissions == null) {
+                    loadRolePermissions(conn);
+                }
+            }
+            loaded = this.rolePermissions;
+        } else if (rolePermissionsRefreshInterval > 0 &&
+                System.currentTimeMillis() - rolePermissionsLoadedAt > rolePermissionsRefreshInterval &&
+                rolePermissionsRefreshing.compareAndSet(false, true)) {
+            // one caller refreshes while the others keep using the previous mappings
+            try {
+                loadRolePermissions(conn);
+                loaded = this.rolePermissions;
+            } catch (SQLException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to refresh role permissions; keeping the previously loaded ones.", e);
+                }
+                rolePermissionsLoadedAt = System.currentTimeMillis();
+            } finally {
+                rolePermissionsRefreshing.set(false);
+            }
+        }
+
+        Set<String> permissions = new LinkedHashSet<String>();
+        for (String roleName : roleNames) {
+            Set<String> rolePerms = loaded.get(roleName);
+            if (rolePerms != null) {
+                permissions.addAll(rolePerms);
+            }
+        }
+        return permissions;
+    }
+
     protected String getSaltForUser(String username) {
         return username;
     }
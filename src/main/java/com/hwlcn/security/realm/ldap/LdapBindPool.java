@@ -0,0 +1,248 @@
+package com.hwlcn.security.realm.ldap;
+
+import com.hwlcn.ldap.ldap.sdk.InternalSDKHelper;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnection;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnectionPool;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.ldap.ldap.sdk.LDAPURL;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.security.config.ConfigurationException;
+import com.hwlcn.security.util.Destroyable;
+import com.hwlcn.security.util.Initializable;
+import com.hwlcn.security.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of unauthenticated connections used only to verify user passwords.  Each login is a simple bind on whichever
+ * connection is free, so unlike
+ * {@link LDAPConnectionPool#bindAndRevertAuthentication(String, String, com.hwlcn.ldap.ldap.sdk.Control...)} no
+ * service-account credentials are involved.  Concurrent logins are spread over the pool's connections.  Bind latency
+ * and failure counts are exposed as metrics.
+ * <p/>
+ * Each login costs exactly one bind.  A connection goes back to the pool still authenticated as the last user, which
+ * is harmless because the next login binds again before using it.  A connection also remembers its last successful
+ * bind request, password included, for auto-reconnect and referral following.  That reference is cleared after a
+ * successful login so that no user's password stays in memory; new pool connections are created from the pool's own
+ * unauthenticated template and never replay it.
+ */
+public class LdapBindPool implements Initializable, Destroyable {
+
+    private static final Logger log = LoggerFactory.getLogger(LdapBindPool.class);
+
+    private String url;
+    private int initialConnections = 1;
+    private int maxConnections = 10;
+    private long maxWaitTimeMillis = 5000L;
+
+    private volatile LDAPConnectionPool connectionPool;
+    private boolean connectionPoolCreated;
+
+    private final AtomicLong bindCount = new AtomicLong();
+    private final AtomicLong invalidCredentialsCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong totalBindNanos = new AtomicLong();
+    private final AtomicLong maxBindNanos = new AtomicLong();
+
+    public LdapBindPool() {
+    }
+
+    public LdapBindPool(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public int getInitialConnections() {
+        return initialConnections;
+    }
+
+    public void setInitialConnections(int initialConnections) {
+        this.initialConnections = initialConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public long getMaxWaitTimeMillis() {
+        return maxWaitTimeMillis;
+    }
+
+    /**
+     * How long a login may wait for a free connection when all of them are busy and the pool is at its maximum size.
+     */
+    public void setMaxWaitTimeMillis(long maxWaitTimeMillis) {
+        this.maxWaitTimeMillis = maxWaitTimeMillis;
+    }
+
+    public LDAPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Uses an existing pool.  Its connections must not be needed for anything but binds.
+     */
+    public void setConnectionPool(LDAPConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+        this.connectionPoolCreated = false;
+    }
+
+    public void init() {
+        ensureConnectionPool();
+    }
+
+    private LDAPConnectionPool ensureConnectionPool() {
+        LDAPConnectionPool pool = this.connectionPool;
+        if (pool != null) {
+            return pool;
+        }
+        return createConnectionPoolIfNecessary();
+    }
+
+    private synchronized LDAPConnectionPool createConnectionPoolIfNecessary() {
+        if (this.connectionPool == null) {
+            if (!StringUtils.hasText(url)) {
+                throw new ConfigurationException("Either the connectionPool or the url property must be set.");
+            }
+            try {
+                this.connectionPool = createConnectionPool();
+                this.connectionPoolCreated = true;
+            } catch (LDAPException e) {
+                String msg = "Unable to create the LDAP bind pool for [" + url + "].";
+                throw new ConfigurationException(msg, e);
+            }
+        }
+        return this.connectionPool;
+    }
+
+    protected LDAPConnectionPool createConnectionPool() throws LDAPException {
+        LDAPURL ldapUrl = new LDAPURL(url);
+        LDAPConnection connection;
+        if ("ldaps".equalsIgnoreCase(ldapUrl.getScheme())) {
+            connection = new LDAPConnection(SSLSocketFactory.getDefault());
+        } else {
+            connection = new LDAPConnection();
+        }
+        connection.connect(ldapUrl.getHost(), ldapUrl.getPort());
+        log.debug("Creating LDAP bind pool for {} with up to {} connection(s).", url, maxConnections);
+        LDAPConnectionPool pool = new LDAPConnectionPool(connection, initialConnections, maxConnections);
+        pool.setConnectionPoolName("bind:" + url);
+        pool.setMaxWaitTimeMillis(maxWaitTimeMillis);
+        return pool;
+    }
+
+    /**
+     * Performs a simple bind as the given user.
+     *
+     * @throws LDAPException if the bind fails; an invalid password is reported with
+     *                       {@link ResultCode#INVALID_CREDENTIALS}.
+     */
+    public void bind(String bindDN, String password) throws LDAPException {
+        LDAPConnectionPool pool = ensureConnectionPool();
+        long start = System.nanoTime();
+        LDAPConnection connection = pool.getConnection();
+        try {
+            connection.bind(bindDN, password);
+            recordBind(System.nanoTime() - start);
+        } catch (LDAPException e) {
+            recordBind(System.nanoTime() - start);
+            if (ResultCode.INVALID_CREDENTIALS.equals(e.getResultCode())) {
+                invalidCredentialsCount.incrementAndGet();
+                pool.releaseConnection(connection);
+            } else {
+                errorCount.incrementAndGet();
+                pool.releaseConnectionAfterException(connection, e);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            errorCount.incrementAndGet();
+            pool.releaseDefunctConnection(connection);
+            throw e;
+        }
+        // The connection stays authenticated as the user; only the remembered bind request is dropped.
+        InternalSDKHelper.clearLastBindRequest(connection);
+        pool.releaseConnection(connection);
+    }
+
+    private void recordBind(long nanos) {
+        bindCount.incrementAndGet();
+        totalBindNanos.addAndGet(nanos);
+        long max = maxBindNanos.get();
+        while (nanos > max && !maxBindNanos.compareAndSet(max, nanos)) {
+            max = maxBindNanos.get();
+        }
+    }
+
+    public long getBindCount() {
+        return bindCount.get();
+    }
+
+    public long getInvalidCredentialsCount() {
+        return invalidCredentialsCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * The share of binds that failed for any reason other than a wrong password, between 0 and 1.
+     */
+    public double getFailureRate() {
+        long binds = bindCount.get();
+        return binds > 0 ? (double) errorCount.get() / binds : 0d;
+    }
+
+    public long getAverageBindTimeNanos() {
+        long binds = bindCount.get();
+        return binds > 0 ? totalBindNanos.get() / binds : 0L;
+    }
+
+    public long getMaxBindTimeNanos() {
+        return maxBindNanos.get();
+    }
+
+    public int getAvailableConnections() {
+        LDAPConnectionPool pool = this.connectionPool;
+        return pool != null ? pool.getCurrentAvailableConnections() : 0;
+    }
+
+    public void destroy() throws Exception {
+        LDAPConnectionPool pool;
+        synchronized (this) {
+            pool = connectionPoolCreated ? this.connectionPool : null;
+            if (pool != null) {
+                this.connectionPool = null;
+                this.connectionPoolCreated = false;
+            }
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName())
+                .append(" [url=").append(url)
+                .append(", binds=").append(getBindCount())
+                .append(", invalidCredentials=").append(getInvalidCredentialsCount())
+                .append(", errors=").append(getErrorCount())
+                .append(", avgBindMicros=").append(getAverageBindTimeNanos() / 1000)
+                .append("]")
+                .toString();
+    }
+}
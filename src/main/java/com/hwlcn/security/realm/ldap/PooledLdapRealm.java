@@ -0,0 +1,470 @@
+package com.hwlcn.security.realm.ldap;
+
+import com.hwlcn.cache.Cache;
+import com.hwlcn.cache.ExpiringMapCache;
+import com.hwlcn.ldap.ldap.sdk.Filter;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnection;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnectionPool;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.ldap.ldap.sdk.LDAPURL;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.ldap.ldap.sdk.SearchRequest;
+import com.hwlcn.ldap.ldap.sdk.SearchResult;
+import com.hwlcn.ldap.ldap.sdk.SearchResultEntry;
+import com.hwlcn.ldap.ldap.sdk.SearchScope;
+import com.hwlcn.security.authc.AuthenticationException;
+import com.hwlcn.security.authc.AuthenticationInfo;
+import com.hwlcn.security.authc.AuthenticationToken;
+import com.hwlcn.security.authc.IncorrectCredentialsException;
+import com.hwlcn.security.authc.SimpleAuthenticationInfo;
+import com.hwlcn.security.authc.UnknownAccountException;
+import com.hwlcn.security.authc.UsernamePasswordToken;
+import com.hwlcn.security.authc.credential.AllowAllCredentialsMatcher;
+import com.hwlcn.security.authz.AuthorizationException;
+import com.hwlcn.security.authz.AuthorizationInfo;
+import com.hwlcn.security.authz.SimpleAuthorizationInfo;
+import com.hwlcn.security.config.ConfigurationException;
+import com.hwlcn.security.realm.AuthorizingRealm;
+import com.hwlcn.security.subject.PrincipalCollection;
+import com.hwlcn.security.util.Destroyable;
+import com.hwlcn.security.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An LDAP realm built on the bundled {@link LDAPConnectionPool} instead of JNDI.  Users are authenticated with
+ * {@link LDAPConnectionPool#bindAndRevertAuthentication(String, String, com.hwlcn.ldap.ldap.sdk.Control...)} on a
+ * shared pool of service-account connections, group membership is read with a single search and cached per username,
+ * so that a cached authorization lookup needs no LDAP round trip at all.
+ * <p/>
+ * The user DN is either built from {@link #setUserDnTemplate(String) userDnTemplate} or found with
+ * {@link #setUserSearchFilter(String) userSearchFilter}.  Groups come from a group search when
+ * {@link #setGroupSearchFilter(String) groupSearchFilter} is set, otherwise from the user entry's
+ * {@link #setMemberOfAttribute(String) memberOf attribute}.
+ */
+public class PooledLdapRealm extends AuthorizingRealm implements Destroyable {
+
+    private static final Logger log = LoggerFactory.getLogger(PooledLdapRealm.class);
+
+    private static final String SUBSTITUTION_TOKEN = "{0}";
+
+    private static final String ROLE_NAMES_DELIMETER = ",";
+
+    private static final String GROUP_CACHE_SUFFIX = ".groupCache";
+
+    public static final long DEFAULT_GROUP_CACHE_TIME_TO_LIVE = 5 * 60 * 1000L;
+
+    private String url;
+    private String systemUsername;
+    private String systemPassword;
+    private int initialConnections = 1;
+    private int maxConnections = 10;
+
+    private String userDnTemplate;
+    private String searchBase;
+    private String userSearchFilter = "(uid={0})";
+
+    private String groupSearchBase;
+    private String groupSearchFilter;
+    private String groupNameAttribute = "cn";
+    private String memberOfAttribute = "memberOf";
+    private Map<String, String> groupRolesMap;
+
+    private boolean groupCachingEnabled = true;
+    private long groupCacheTimeToLive = DEFAULT_GROUP_CACHE_TIME_TO_LIVE;
+    private Cache<String, Set<String>> groupCache;
+
+    private volatile LDAPConnectionPool connectionPool;
+    private boolean connectionPoolCreated;
+
+    private boolean bindPoolEnabled;
+    private int bindPoolMaxConnections = 10;
+    private volatile LdapBindPool bindPool;
+    private boolean bindPoolCreated;
+
+    public PooledLdapRealm() {
+        setCredentialsMatcher(new AllowAllCredentialsMatcher());
+        setAuthenticationTokenClass(UsernamePasswordToken.class);
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public void setSystemUsername(String systemUsername) {
+        this.systemUsername = systemUsername;
+    }
+
+    public void setSystemPassword(String systemPassword) {
+        this.systemPassword = systemPassword;
+    }
+
+    public void setInitialConnections(int initialConnections) {
+        this.initialConnections = initialConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setUserDnTemplate(String userDnTemplate) {
+        if (userDnTemplate != null && !userDnTemplate.contains(SUBSTITUTION_TOKEN)) {
+            String msg = "User DN template must contain the '" + SUBSTITUTION_TOKEN + "' replacement token.";
+            throw new IllegalArgumentException(msg);
+        }
+        this.userDnTemplate = userDnTemplate;
+    }
+
+    public void setSearchBase(String searchBase) {
+        this.searchBase = searchBase;
+    }
+
+    public void setUserSearchFilter(String userSearchFilter) {
+        this.userSearchFilter = userSearchFilter;
+    }
+
+    public void setGroupSearchBase(String groupSearchBase) {
+        this.groupSearchBase = groupSearchBase;
+    }
+
+    /**
+     * Filter locating the groups of a user, with {@code {0}} replaced by the user DN, e.g. {@code (member={0})}.
+     */
+    public void setGroupSearchFilter(String groupSearchFilter) {
+        this.groupSearchFilter = groupSearchFilter;
+    }
+
+    public void setGroupNameAttribute(String groupNameAttribute) {
+        this.groupNameAttribute = groupNameAttribute;
+    }
+
+    public void setMemberOfAttribute(String memberOfAttribute) {
+        this.memberOfAttribute = memberOfAttribute;
+    }
+
+    /**
+     * Maps group names to comma separated role names.  When not set, group names are used as role names.
+     */
+    public void setGroupRolesMap(Map<String, String> groupRolesMap) {
+        this.groupRolesMap = groupRolesMap;
+    }
+
+    public void setGroupCachingEnabled(boolean groupCachingEnabled) {
+        this.groupCachingEnabled = groupCachingEnabled;
+    }
+
+    public void setGroupCacheTimeToLive(long groupCacheTimeToLive) {
+        this.groupCacheTimeToLive = groupCacheTimeToLive;
+    }
+
+    public Cache<String, Set<String>> getGroupCache() {
+        return groupCache;
+    }
+
+    public void setGroupCache(Cache<String, Set<String>> groupCache) {
+        this.groupCache = groupCache;
+    }
+
+    public LDAPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void setConnectionPool(LDAPConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+        this.connectionPoolCreated = false;
+    }
+
+    /**
+     * When enabled, passwords are verified on a separate {@link LdapBindPool} of connections to {@link #setUrl(String)
+     * url} that are never bound to the service account, saving the second bind per login.
+     */
+    public void setBindPoolEnabled(boolean bindPoolEnabled) {
+        this.bindPoolEnabled = bindPoolEnabled;
+    }
+
+    public void setBindPoolMaxConnections(int bindPoolMaxConnections) {
+        this.bindPoolMaxConnections = bindPoolMaxConnections;
+    }
+
+    public LdapBindPool getBindPool() {
+        return bindPool;
+    }
+
+    public void setBindPool(LdapBindPool bindPool) {
+        this.bindPool = bindPool;
+        this.bindPoolCreated = false;
+    }
+
+    @Override
+    protected void onInit() {
+        super.onInit();
+        ensureConnectionPool();
+        ensureBindPool();
+    }
+
+    private LdapBindPool ensureBindPool() {
+        LdapBindPool pool = this.bindPool;
+        if (pool == null && bindPoolEnabled) {
+            synchronized (this) {
+                pool = this.bindPool;
+                if (pool == null) {
+                    pool = new LdapBindPool(url);
+                    pool.setMaxConnections(bindPoolMaxConnections);
+                    pool.init();
+                    this.bindPool = pool;
+                    this.bindPoolCreated = true;
+                }
+            }
+        }
+        return pool;
+    }
+
+    protected LDAPConnectionPool ensureConnectionPool() {
+        LDAPConnectionPool pool = this.connectionPool;
+        if (pool != null) {
+            return pool;
+        }
+        return createConnectionPoolIfNecessary();
+    }
+
+    private synchronized LDAPConnectionPool createConnectionPoolIfNecessary() {
+        if (this.connectionPool == null) {
+            if (!StringUtils.hasText(url)) {
+                throw new ConfigurationException("Either the connectionPool or the url property must be set.");
+            }
+            try {
+                this.connectionPool = createConnectionPool();
+                this.connectionPoolCreated = true;
+            } catch (LDAPException e) {
+                String msg = "Unable to create the LDAP connection pool for [" + url + "].";
+                throw new ConfigurationException(msg, e);
+            }
+        }
+        return this.connectionPool;
+    }
+
+    protected LDAPConnectionPool createConnectionPool() throws LDAPException {
+        LDAPURL ldapUrl = new LDAPURL(url);
+        LDAPConnection connection;
+        if ("ldaps".equalsIgnoreCase(ldapUrl.getScheme())) {
+            connection = new LDAPConnection(SSLSocketFactory.getDefault());
+        } else {
+            connection = new LDAPConnection();
+        }
+        connection.connect(ldapUrl.getHost(), ldapUrl.getPort());
+        if (systemUsername != null) {
+            connection.bind(systemUsername, systemPassword);
+        }
+        if (searchBase == null && ldapUrl.baseDNProvided()) {
+            searchBase = ldapUrl.getBaseDN().toString();
+        }
+        LDAPConnectionPool pool = new LDAPConnectionPool(connection, initialConnections, maxConnections);
+        pool.setConnectionPoolName(getName());
+        return pool;
+    }
+
+    private Cache<String, Set<String>> getGroupCacheLazy() {
+        if (!groupCachingEnabled) {
+            return null;
+        }
+        if (this.groupCache == null) {
+            this.groupCache = new ExpiringMapCache<String, Set<String>>(getName() + GROUP_CACHE_SUFFIX,
+                    ExpiringMapCache.DEFAULT_MAX_ENTRIES, groupCacheTimeToLive);
+        }
+        return this.groupCache;
+    }
+
+    public void clearCachedGroups() {
+        Cache<String, Set<String>> cache = this.groupCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) throws AuthenticationException {
+        UsernamePasswordToken upToken = (UsernamePasswordToken) token;
+        String username = upToken.getUsername();
+        char[] password = upToken.getPassword();
+        if (!StringUtils.hasText(username)) {
+            throw new UnknownAccountException("Empty usernames are not allowed by this realm.");
+        }
+        if (password == null || password.length == 0) {
+            // an empty simple bind is an anonymous bind and would always succeed
+            throw new IncorrectCredentialsException("Empty passwords are not allowed by this realm.");
+        }
+
+        try {
+            String userDn = getUserDn(username);
+            if (userDn == null) {
+                throw new UnknownAccountException("No LDAP entry found for user [" + username + "]");
+            }
+            bind(userDn, new String(password));
+            return createAuthenticationInfo(upToken, userDn);
+        } catch (LDAPException e) {
+            if (ResultCode.INVALID_CREDENTIALS.equals(e.getResultCode())) {
+                throw new IncorrectCredentialsException("LDAP authentication failed.", e);
+            }
+            String msg = "LDAP error while attempting to authenticate user [" + username + "].";
+            throw new AuthenticationException(msg, e);
+        }
+    }
+
+    /**
+     * Verifies the user's password with a simple bind.
+     */
+    protected void bind(String userDn, String password) throws LDAPException {
+        LdapBindPool pool = ensureBindPool();
+        if (pool != null) {
+            pool.bind(userDn, password);
+        } else {
+            ensureConnectionPool().bindAndRevertAuthentication(userDn, password);
+        }
+    }
+
+    protected AuthenticationInfo createAuthenticationInfo(UsernamePasswordToken token, String userDn) {
+        return new SimpleAuthenticationInfo(token.getUsername(), token.getCredentials(), getName());
+    }
+
+    protected String getUserDn(String username) throws LDAPException {
+        if (userDnTemplate != null) {
+            return userDnTemplate.replace(SUBSTITUTION_TOKEN, escapeDnValue(username));
+        }
+        SearchResultEntry entry = ensureConnectionPool().searchForEntry(searchBase, SearchScope.SUB,
+                substitute(userSearchFilter, username), SearchRequest.NO_ATTRIBUTES);
+        return entry != null ? entry.getDN() : null;
+    }
+
+    protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
+        String username = (String) getAvailablePrincipal(principals);
+        try {
+            Set<String> groupNames = getGroupNames(username);
+            return new SimpleAuthorizationInfo(new LinkedHashSet<String>(getRoleNamesForGroups(groupNames)));
+        } catch (LDAPException e) {
+            String msg = "LDAP error while attempting to retrieve authorization for user [" + username + "].";
+            throw new AuthorizationException(msg, e);
+        }
+    }
+
+    /**
+     * Returns the names of the user's groups.  The cache is keyed by username and consulted before the user DN is
+     * resolved, so the DN search only runs when the groups have to be read from the directory.
+     */
+    protected Set<String> getGroupNames(String username) throws LDAPException {
+        Cache<String, Set<String>> cache = getGroupCacheLazy();
+        Set<String> groupNames = cache != null ? cache.get(username) : null;
+        if (groupNames == null) {
+            String userDn = getUserDn(username);
+            if (userDn != null) {
+                groupNames = Collections.unmodifiableSet(queryGroupNames(userDn));
+            } else {
+                groupNames = Collections.emptySet();
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Groups found for user [" + username + "] (" + userDn + "): " + groupNames);
+            }
+            if (cache != null) {
+                cache.put(username, groupNames);
+            }
+        }
+        return groupNames;
+    }
+
+    private Set<String> queryGroupNames(String userDn) throws LDAPException {
+        Set<String> groupNames = new LinkedHashSet<String>();
+        LDAPConnectionPool pool = ensureConnectionPool();
+        if (groupSearchFilter != null) {
+            String base = groupSearchBase != null ? groupSearchBase : searchBase;
+            SearchResult result = pool.search(base, SearchScope.SUB, substitute(groupSearchFilter, userDn),
+                    groupNameAttribute);
+            for (SearchResultEntry entry : result.getSearchEntries()) {
+                String name = entry.getAttributeValue(groupNameAttribute);
+                groupNames.add(name != null ? name : entry.getDN());
+            }
+        } else {
+            SearchResultEntry entry = pool.getEntry(userDn, memberOfAttribute);
+            String[] values = entry != null ? entry.getAttributeValues(memberOfAttribute) : null;
+            if (values != null) {
+                Collections.addAll(groupNames, values);
+            }
+        }
+        return groupNames;
+    }
+
+    protected Collection<String> getRoleNamesForGroups(Collection<String> groupNames) {
+        if (groupRolesMap == null) {
+            return new LinkedHashSet<String>(groupNames);
+        }
+        Set<String> roleNames = new LinkedHashSet<String>(groupNames.size());
+        for (String groupName : groupNames) {
+            String strRoleNames = groupRolesMap.get(groupName);
+            if (strRoleNames != null) {
+                for (String roleName : strRoleNames.split(ROLE_NAMES_DELIMETER)) {
+                    roleNames.add(roleName.trim());
+                }
+            }
+        }
+        return roleNames;
+    }
+
+    private static String substitute(String filterTemplate, String value) {
+        return filterTemplate.replace(SUBSTITUTION_TOKEN, Filter.encodeValue(value));
+    }
+
+    private static String escapeDnValue(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case ',':
+                case '+':
+                case '"':
+                case '\\':
+                case '<':
+                case '>':
+                case ';':
+                case '=':
+                    sb.append('\\');
+                    break;
+                default:
+                    if ((i == 0 && (c == ' ' || c == '#')) || (i == value.length() - 1 && c == ' ')) {
+                        sb.append('\\');
+                    }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public void destroy() throws Exception {
+        LdapBindPool createdBindPool;
+        synchronized (this) {
+            createdBindPool = bindPoolCreated ? this.bindPool : null;
+            if (createdBindPool != null) {
+                this.bindPool = null;
+                this.bindPoolCreated = false;
+            }
+        }
+        if (createdBindPool != null) {
+            createdBindPool.destroy();
+        }
+
+        LDAPConnectionPool pool;
+        synchronized (this) {
+            pool = connectionPoolCreated ? this.connectionPool : null;
+            if (pool != null) {
+                this.connectionPool = null;
+                this.connectionPoolCreated = false;
+            }
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
+}
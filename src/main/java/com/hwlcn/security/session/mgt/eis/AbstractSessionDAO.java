@@ -12,7 +12,7 @@ public abstract class AbstractSessionDAO implements SessionDAO {
     private SessionIdGenerator sessionIdGenerator;
 
     public AbstractSessionDAO() {
-        this.sessionIdGenerator = new JavaUuidSessionIdGenerator();
+        this.sessionIdGenerator = new SecureRandomSessionIdGenerator();
     }
 
     public SessionIdGenerator getSessionIdGenerator() {
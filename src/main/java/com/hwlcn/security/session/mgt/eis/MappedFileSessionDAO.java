@@ -0,0 +1,544 @@
+package com.hwlcn.security.session.mgt.eis;
+
+import com.hwlcn.HwlcnException;
+import com.hwlcn.security.io.BinarySerializer;
+import com.hwlcn.security.io.Serializer;
+import com.hwlcn.security.session.InvalidSessionException;
+import com.hwlcn.security.session.Session;
+import com.hwlcn.security.session.SessionException;
+import com.hwlcn.security.session.UnknownSessionException;
+import com.hwlcn.security.session.mgt.ValidatingSession;
+import com.hwlcn.security.util.CollectionUtils;
+import com.hwlcn.security.util.Destroyable;
+import com.hwlcn.security.util.Initializable;
+import com.hwlcn.security.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * {@link SessionDAO} that keeps active sessions in memory and appends every change to a log of
+ * memory-mapped segment files, so that sessions survive an application restart.
+ * <p/>
+ * Each record is written as {@code [length][crc32][type][payload]}; the length is written last, so a record
+ * torn by a crash is either invisible or fails its checksum and is discarded on recovery.  When the ratio of
+ * obsolete bytes in the log exceeds {@link #getCompactionRatio() compactionRatio}, the live sessions are
+ * rewritten into a fresh segment bracketed by snapshot markers and the older segments are deleted.
+ */
+public class MappedFileSessionDAO extends AbstractSessionDAO implements Initializable, Destroyable {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedFileSessionDAO.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5d;
+
+    private static final String SEGMENT_PREFIX = "sessions-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_SNAPSHOT_BEGIN = 3;
+    private static final byte RECORD_SNAPSHOT_END = 4;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private final ConcurrentMap<Serializable, Session> sessions;
+
+    private final Map<Serializable, Integer> recordSizes;
+
+    private final LinkedList<Segment> segments;
+
+    private final Object lock = new Object();
+
+    private final Serializer<Serializable> idSerializer = new BinarySerializer<Serializable>();
+
+    private Serializer<Session> serializer = new BinarySerializer<Session>();
+
+    private String directory;
+
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    private boolean syncOnWrite;
+
+    private volatile boolean open;
+
+    private Segment current;
+
+    private long totalBytes;
+
+    private long liveBytes;
+
+    public MappedFileSessionDAO() {
+        this.sessions = new ConcurrentHashMap<Serializable, Session>();
+        this.recordSizes = new HashMap<Serializable, Integer>();
+        this.segments = new LinkedList<Segment>();
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be greater than " + RECORD_HEADER_SIZE + ".");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public double getCompactionRatio() {
+        return compactionRatio;
+    }
+
+    public void setCompactionRatio(double compactionRatio) {
+        if (compactionRatio <= 0d || compactionRatio >= 1d) {
+            throw new IllegalArgumentException("compactionRatio must be between 0 and 1 (exclusive).");
+        }
+        this.compactionRatio = compactionRatio;
+    }
+
+    /**
+     * Returns {@code true} if every record is forced to the storage device before the write returns.  When
+     * {@code false} (the default) records survive a process crash but may be lost on an operating system crash.
+     */
+    public boolean isSyncOnWrite() {
+        return syncOnWrite;
+    }
+
+    public void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    public Serializer<Session> getSerializer() {
+        return serializer;
+    }
+
+    public void setSerializer(Serializer<Session> serializer) {
+        if (serializer == null) {
+            throw new IllegalArgumentException("serializer argument cannot be null.");
+        }
+        this.serializer = serializer;
+    }
+
+    public void init() throws HwlcnException {
+        ensureOpen();
+    }
+
+    public void destroy() throws Exception {
+        synchronized (lock) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+            sessions.clear();
+            recordSizes.clear();
+            current = null;
+            totalBytes = 0;
+            liveBytes = 0;
+            open = false;
+        }
+    }
+
+    protected Serializable doCreate(Session session) {
+        Serializable sessionId = generateSessionId(session);
+        assignSessionId(session, sessionId);
+        storeSession(sessionId, session);
+        return sessionId;
+    }
+
+    protected Session doReadSession(Serializable sessionId) {
+        ensureOpen();
+        return sessions.get(sessionId);
+    }
+
+    public void update(Session session) throws UnknownSessionException {
+        storeSession(session.getId(), session);
+    }
+
+    public void delete(Session session) {
+        if (session == null) {
+            throw new NullPointerException("session argument cannot be null.");
+        }
+        Serializable id = session.getId();
+        if (id == null) {
+            return;
+        }
+        ensureOpen();
+        byte[] payload = idSerializer.serialize(id);
+        synchronized (lock) {
+            if (sessions.remove(id) == null) {
+                return;
+            }
+            Integer size = recordSizes.remove(id);
+            if (size != null) {
+                liveBytes -= size;
+            }
+            append(RECORD_DELETE, payload);
+            compactIfNecessary();
+        }
+    }
+
+    public Collection<Session> getActiveSessions() {
+        ensureOpen();
+        Collection<Session> values = sessions.values();
+        if (CollectionUtils.isEmpty(values)) {
+            return Collections.emptySet();
+        } else {
+            return Collections.unmodifiableCollection(values);
+        }
+    }
+
+    protected void storeSession(Serializable id, Session session) {
+        if (id == null) {
+            throw new NullPointerException("id argument cannot be null.");
+        }
+        ensureOpen();
+        synchronized (lock) {
+            //serialized under the lock so that records for the same session are appended in update order:
+            byte[] payload = serializer.serialize(session);
+            int size = append(RECORD_PUT, payload);
+            sessions.put(id, session);
+            Integer previous = recordSizes.put(id, size);
+            liveBytes += previous != null ? size - previous : size;
+            compactIfNecessary();
+        }
+    }
+
+    private void ensureOpen() {
+        if (open) {
+            return;
+        }
+        synchronized (lock) {
+            if (!open) {
+                recover();
+                open = true;
+            }
+        }
+    }
+
+    private File getDirectoryFile() {
+        if (!StringUtils.hasText(directory)) {
+            throw new IllegalStateException("directory attribute has not been configured.");
+        }
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new SessionException("Unable to create session store directory [" + dir + "].");
+        }
+        return dir;
+    }
+
+    private void recover() {
+        File dir = getDirectoryFile();
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+
+        long start = System.currentTimeMillis();
+        List<Segment> opened = new ArrayList<Segment>(files.length);
+        Map<Serializable, Session> state = new HashMap<Serializable, Session>();
+        Map<Serializable, Integer> sizes = new HashMap<Serializable, Integer>();
+        Map<Serializable, Session> snapshotState = null;
+        Map<Serializable, Integer> snapshotSizes = null;
+        int snapshotIndex = -1;
+        int lastSnapshotIndex = 0;
+
+        for (File file : files) {
+            if (file.length() == 0) {
+                deleteFile(file);
+                continue;
+            }
+            Segment segment = Segment.open(file, parseSequence(file), file.length());
+            opened.add(segment);
+            MappedByteBuffer buffer = segment.buffer;
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int position = buffer.position();
+                int length = buffer.getInt(position);
+                if (length <= 0) {
+                    break;
+                }
+                if (length > buffer.remaining() - RECORD_HEADER_SIZE || !isIntact(buffer, position, length)) {
+                    log.warn("Discarding torn record at offset {} of session segment [{}].", position, file);
+                    wipe(buffer, position);
+                    break;
+                }
+                byte type = buffer.get(position + RECORD_HEADER_SIZE);
+                byte[] payload = new byte[length - 1];
+                ByteBuffer body = buffer.duplicate();
+                body.position(position + RECORD_HEADER_SIZE + 1);
+                body.get(payload);
+                buffer.position(position + RECORD_HEADER_SIZE + length);
+
+                Map<Serializable, Session> target = snapshotState != null ? snapshotState : state;
+                Map<Serializable, Integer> targetSizes = snapshotSizes != null ? snapshotSizes : sizes;
+                if (type == RECORD_PUT) {
+                    Session session = serializer.deserialize(payload);
+                    target.put(session.getId(), session);
+                    targetSizes.put(session.getId(), RECORD_HEADER_SIZE + length);
+                } else if (type == RECORD_DELETE) {
+                    Serializable id = idSerializer.deserialize(payload);
+                    target.remove(id);
+                    targetSizes.remove(id);
+                } else if (type == RECORD_SNAPSHOT_BEGIN) {
+                    snapshotState = new HashMap<Serializable, Session>();
+                    snapshotSizes = new HashMap<Serializable, Integer>();
+                    snapshotIndex = opened.size() - 1;
+                } else if (type == RECORD_SNAPSHOT_END && snapshotState != null) {
+                    state = snapshotState;
+                    sizes = snapshotSizes;
+                    snapshotState = null;
+                    snapshotSizes = null;
+                    lastSnapshotIndex = snapshotIndex;
+                }
+            }
+        }
+
+        if (snapshotState != null) {
+            //a compaction was interrupted - the segments it wrote hold nothing the older segments don't:
+            log.warn("Discarding incomplete session snapshot starting at segment [{}].", opened.get(snapshotIndex).file);
+            while (opened.size() > snapshotIndex) {
+                opened.remove(opened.size() - 1).delete();
+            }
+        }
+        for (int i = 0; i < lastSnapshotIndex; i++) {
+            opened.remove(0).delete();
+        }
+
+        for (Iterator<Map.Entry<Serializable, Session>> i = state.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Serializable, Session> entry = i.next();
+            Session session = entry.getValue();
+            if (session instanceof ValidatingSession) {
+                try {
+                    //validate() also applies the idle timeout, which may have passed while the store was closed:
+                    ((ValidatingSession) session).validate();
+                } catch (InvalidSessionException e) {
+                    i.remove();
+                    sizes.remove(entry.getKey());
+                }
+            }
+        }
+
+        segments.addAll(opened);
+        current = segments.isEmpty() ? null : segments.getLast();
+        sessions.putAll(state);
+        recordSizes.putAll(sizes);
+        totalBytes = 0;
+        for (Segment segment : segments) {
+            totalBytes += segment.buffer.position();
+        }
+        liveBytes = 0;
+        for (Integer size : recordSizes.values()) {
+            liveBytes += size;
+        }
+
+        if (log.isInfoEnabled()) {
+            log.info("Recovered {} sessions from {} segment(s) in [{}] in {} ms.",
+                    new Object[]{sessions.size(), segments.size(), dir, System.currentTimeMillis() - start});
+        }
+    }
+
+    private boolean isIntact(MappedByteBuffer buffer, int position, int length) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + RECORD_HEADER_SIZE);
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    private void wipe(MappedByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.position(from);
+    }
+
+    /**
+     * Appends a record to the current segment, rolling to a new segment if it does not fit, and returns the
+     * number of bytes the record occupies.  Must be called while holding {@link #lock}.
+     */
+    private int append(byte type, byte[] payload) {
+        int length = payload.length + 1;
+        int size = RECORD_HEADER_SIZE + length;
+        if (current == null || current.buffer.remaining() < size) {
+            roll(size);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+
+        MappedByteBuffer buffer = current.buffer;
+        int position = buffer.position();
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(type);
+        buffer.put(payload);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        //written last: a record only becomes visible to recovery once it is complete
+        buffer.putInt(position, length);
+        if (syncOnWrite) {
+            buffer.force();
+        }
+        totalBytes += size;
+        return size;
+    }
+
+    private void roll(int minimumSize) {
+        long sequence = 0;
+        if (current != null) {
+            current.buffer.force();
+            sequence = current.sequence + 1;
+        }
+        File file = new File(getDirectoryFile(), segmentName(sequence));
+        current = Segment.open(file, sequence, Math.max(segmentSize, minimumSize));
+        segments.add(current);
+    }
+
+    private void compactIfNecessary() {
+        if (segments.size() < 2 || totalBytes < segmentSize) {
+            return;
+        }
+        if (totalBytes - liveBytes > totalBytes * compactionRatio) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites all live sessions into fresh segments and deletes the older ones.  Must be called while holding
+     * {@link #lock}.
+     */
+    protected void compact() {
+        long start = System.currentTimeMillis();
+        List<Segment> obsolete = new ArrayList<Segment>(segments);
+        long obsoleteBytes = totalBytes;
+
+        roll(0);
+        totalBytes = 0;
+        liveBytes = 0;
+        append(RECORD_SNAPSHOT_BEGIN, EMPTY_PAYLOAD);
+        for (Map.Entry<Serializable, Session> entry : sessions.entrySet()) {
+            int size = append(RECORD_PUT, serializer.serialize(entry.getValue()));
+            recordSizes.put(entry.getKey(), size);
+            liveBytes += size;
+        }
+        append(RECORD_SNAPSHOT_END, EMPTY_PAYLOAD);
+        for (Segment segment : segments) {
+            if (!obsolete.contains(segment)) {
+                segment.buffer.force();
+            }
+        }
+
+        for (Segment segment : obsolete) {
+            segments.remove(segment);
+            segment.delete();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Compacted session store from {} to {} bytes in {} ms.",
+                    new Object[]{obsoleteBytes, totalBytes, System.currentTimeMillis() - start});
+        }
+    }
+
+    private static String segmentName(long sequence) {
+        return SEGMENT_PREFIX + String.format("%019d", sequence) + SEGMENT_SUFFIX;
+    }
+
+    private static long parseSequence(File file) {
+        String name = file.getName();
+        String digits = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            throw new SessionException("Invalid session segment file name [" + file + "].", e);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warn("Unable to delete session segment [{}].", file);
+        }
+    }
+
+    private static final class Segment {
+
+        private final File file;
+
+        private final long sequence;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        private Segment(File file, long sequence, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private static Segment open(File file, long sequence, long size) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+                return new Segment(file, sequence, channel, buffer);
+            } catch (IOException e) {
+                throw new SessionException("Unable to map session segment [" + file + "].", e);
+            }
+        }
+
+        private void close() {
+            buffer.force();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close session segment [" + file + "].", e);
+            }
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close session segment [" + file + "].", e);
+            }
+            deleteFile(file);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.hwlcn.security.session.mgt.eis;
+
+import com.hwlcn.security.crypto.StripedSecureRandom;
+import com.hwlcn.security.session.Session;
+
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generates random (version 4) UUID session ids, in the same format as {@link JavaUuidSessionIdGenerator}, from a
+ * {@link StripedSecureRandom} instead of the single JVM-wide generator behind {@link UUID#randomUUID()}, which every
+ * request thread would otherwise contend on.
+ */
+public class SecureRandomSessionIdGenerator implements SessionIdGenerator {
+
+    private SecureRandom secureRandom;
+
+    public SecureRandomSessionIdGenerator() {
+        this.secureRandom = StripedSecureRandom.getShared();
+    }
+
+    public SecureRandom getSecureRandom() {
+        return secureRandom;
+    }
+
+    public void setSecureRandom(SecureRandom secureRandom) {
+        if (secureRandom == null) {
+            throw new NullPointerException("SecureRandom argument cannot be null.");
+        }
+        this.secureRandom = secureRandom;
+    }
+
+    public Serializable generateId(Session session) {
+        byte[] bytes = new byte[16];
+        secureRandom.nextBytes(bytes);
+        bytes[6] = (byte) ((bytes[6] & 0x0f) | 0x40);
+        bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80);
+
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 8; i++) {
+            msb = (msb << 8) | (bytes[i] & 0xff);
+        }
+        for (int i = 8; i < 16; i++) {
+            lsb = (lsb << 8) | (bytes[i] & 0xff);
+        }
+        return new UUID(msb, lsb).toString();
+    }
+}
@@ -10,6 +10,7 @@ import com.hwlcn.security.web.filter.AccessControlFilter;
 import com.hwlcn.security.web.filter.authc.AuthenticationFilter;
 import com.hwlcn.security.web.filter.authc.LogoutFilter;
 import com.hwlcn.security.web.filter.authz.AuthorizationFilter;
+import com.hwlcn.security.web.filter.mgt.DefaultFilter;
 import com.hwlcn.security.web.filter.mgt.DefaultFilterChainManager;
 import com.hwlcn.security.web.filter.mgt.FilterChainManager;
 import com.hwlcn.security.web.filter.mgt.FilterChainResolver;
@@ -25,7 +26,9 @@ import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 
 import javax.servlet.Filter;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -43,6 +46,7 @@ public class SecurityFilterFactoryBean implements FactoryBean, BeanPostProcessor
     private String successUrl;
     private String unauthorizedUrl;
     private String logoutRedirectUrl;
+    private boolean lazyAnonymousSubjectEnabled;
     private AbstractSecurityFilter instance;
 
     public SecurityFilterFactoryBean() {
@@ -180,7 +184,28 @@ public class SecurityFilterFactoryBean implements FactoryBean, BeanPostProcessor
         PathMatchingFilterChainResolver chainResolver = new PathMatchingFilterChainResolver();
         chainResolver.setFilterChainManager(manager);
 
-        return new SpringSecurityFilter((WebSecurityManager) securityManager, chainResolver);
+        SpringSecurityFilter filter = new SpringSecurityFilter((WebSecurityManager) securityManager, chainResolver);
+        if (isLazyAnonymousSubjectEnabled()) {
+            filter.setLazySubjectPaths(getAnonymousChainUrls());
+        }
+        return filter;
+    }
+
+    private List<String> getAnonymousChainUrls() {
+        List<String> urls = new ArrayList<String>();
+        Map<String, String> chains = getFilterChainDefinitionMap();
+        if (!CollectionUtils.isEmpty(chains)) {
+            for (Map.Entry<String, String> entry : chains.entrySet()) {
+                String chainDefinition = entry.getValue();
+                if (chainDefinition != null && DefaultFilter.anon.name().equals(chainDefinition.trim())) {
+                    urls.add(entry.getKey());
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Deferring subject creation for anonymous chains {}", urls);
+        }
+        return urls;
     }
 
     private void applyLoginUrlIfNecessary(Filter filter) {
@@ -277,4 +302,16 @@ public class SecurityFilterFactoryBean implements FactoryBean, BeanPostProcessor
     public void setLogoutRedirectUrl(String logoutRedirectUrl) {
         this.logoutRedirectUrl = logoutRedirectUrl;
     }
+
+    public boolean isLazyAnonymousSubjectEnabled() {
+        return lazyAnonymousSubjectEnabled;
+    }
+
+    /**
+     * When enabled, every chain defined as plain {@code anon} (e.g. {@code /resource/** = anon}) gets a lazily built
+     * subject, so static resources are served without any session or remember-me lookup.
+     */
+    public void setLazyAnonymousSubjectEnabled(boolean lazyAnonymousSubjectEnabled) {
+        this.lazyAnonymousSubjectEnabled = lazyAnonymousSubjectEnabled;
+    }
 }
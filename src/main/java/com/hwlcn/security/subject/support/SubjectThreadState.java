@@ -1,17 +1,14 @@
 package com.hwlcn.security.subject.support;
 
-import com.hwlcn.security.util.CollectionUtils;
 import com.hwlcn.security.util.ThreadContext;
 import com.hwlcn.security.mgt.SecurityManager;
 import com.hwlcn.security.subject.Subject;
 import com.hwlcn.security.util.ThreadState;
 
-import java.util.Map;
-
 
 public class SubjectThreadState implements ThreadState {
 
-    private Map<Object, Object> originalResources;
+    private ThreadContext.Bindings originalResources;
 
     private final Subject subject;
     private transient SecurityManager securityManager;
@@ -41,20 +38,12 @@ public class SubjectThreadState implements ThreadState {
         if ( securityManager == null ) {
             securityManager = ThreadContext.getSecurityManager();
         }
-        this.originalResources = ThreadContext.getResources();
-        ThreadContext.remove();
-
-        ThreadContext.bind(this.subject);
-        if (securityManager != null) {
-            ThreadContext.bind(securityManager);
-        }
+        this.originalResources = ThreadContext.bind(this.subject, securityManager);
     }
 
     public void restore() {
-        ThreadContext.remove();
-        if (!CollectionUtils.isEmpty(this.originalResources)) {
-            ThreadContext.setResources(this.originalResources);
-        }
+        ThreadContext.restore(this.originalResources);
+        this.originalResources = null;
     }
 
     public void clear() {
@@ -1,13 +1,39 @@
 package com.hwlcn.security.util;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 public class AntPathMatcher implements PatternMatcher {
 
     public static final String DEFAULT_PATH_SEPARATOR = "/";
 
+    private static final int CACHE_TURNOFF_THRESHOLD = 65536;
+
     private String pathSeparator = DEFAULT_PATH_SEPARATOR;
 
+    private final ConcurrentMap<String, CompiledPattern> compiledPatterns =
+            new ConcurrentHashMap<String, CompiledPattern>();
+
+    private volatile boolean cachePatterns = true;
+
     public void setPathSeparator(String pathSeparator) {
         this.pathSeparator = (pathSeparator != null ? pathSeparator : DEFAULT_PATH_SEPARATOR);
+        compiledPatterns.clear();
+    }
+
+    public boolean isCachePatterns() {
+        return cachePatterns;
+    }
+
+    /**
+     * Sets whether compiled patterns are cached.  Caching is switched off automatically if more than
+     * 65536 distinct patterns are seen, as that indicates patterns are built from request data.
+     */
+    public void setCachePatterns(boolean cachePatterns) {
+        this.cachePatterns = cachePatterns;
+        if (!cachePatterns) {
+            compiledPatterns.clear();
+        }
     }
 
 
@@ -29,24 +55,49 @@ public class AntPathMatcher implements PatternMatcher {
 
 
     protected boolean doMatch(String pattern, String path, boolean fullMatch) {
-        if (path.startsWith(this.pathSeparator) != pattern.startsWith(this.pathSeparator)) {
+        return doMatch(getCompiledPattern(pattern), path, fullMatch);
+    }
+
+    private CompiledPattern getCompiledPattern(String pattern) {
+        CompiledPattern compiled = compiledPatterns.get(pattern);
+        if (compiled == null) {
+            compiled = new CompiledPattern(pattern, this.pathSeparator);
+            if (this.cachePatterns) {
+                if (compiledPatterns.size() >= CACHE_TURNOFF_THRESHOLD) {
+                    //patterns are evidently not a fixed configured set - stop caching rather than grow unbounded:
+                    this.cachePatterns = false;
+                    compiledPatterns.clear();
+                } else {
+                    CompiledPattern existing = compiledPatterns.putIfAbsent(pattern, compiled);
+                    if (existing != null) {
+                        compiled = existing;
+                    }
+                }
+            }
+        }
+        return compiled;
+    }
+
+    private boolean doMatch(CompiledPattern pattern, String path, boolean fullMatch) {
+        if (path.startsWith(this.pathSeparator) != pattern.startsWithSeparator) {
             return false;
         }
 
-        String[] pattDirs = StringUtils.tokenizeToStringArray(pattern, this.pathSeparator);
-        String[] pathDirs = StringUtils.tokenizeToStringArray(path, this.pathSeparator);
+        //allocated per call - a thread-local holder would pin this class, and so the webapp class loader,
+        //to the container's worker threads:
+        PathSegments segments = new PathSegments();
+        segments.split(path, this.pathSeparator);
 
         int pattIdxStart = 0;
-        int pattIdxEnd = pattDirs.length - 1;
+        int pattIdxEnd = pattern.size - 1;
         int pathIdxStart = 0;
-        int pathIdxEnd = pathDirs.length - 1;
+        int pathIdxEnd = segments.count - 1;
 
         while (pattIdxStart <= pattIdxEnd && pathIdxStart <= pathIdxEnd) {
-            String patDir = pattDirs[pattIdxStart];
-            if ("**".equals(patDir)) {
+            if (pattern.doubleStar[pattIdxStart]) {
                 break;
             }
-            if (!matchStrings(patDir, pathDirs[pathIdxStart])) {
+            if (!matchSegment(pattern, pattIdxStart, segments, pathIdxStart)) {
                 return false;
             }
             pattIdxStart++;
@@ -55,34 +106,33 @@ public class AntPathMatcher implements PatternMatcher {
 
         if (pathIdxStart > pathIdxEnd) {
             if (pattIdxStart > pattIdxEnd) {
-                return (pattern.endsWith(this.pathSeparator) ?
+                return (pattern.endsWithSeparator ?
                         path.endsWith(this.pathSeparator) : !path.endsWith(this.pathSeparator));
             }
             if (!fullMatch) {
                 return true;
             }
-            if (pattIdxStart == pattIdxEnd && pattDirs[pattIdxStart].equals("*") &&
+            if (pattIdxStart == pattIdxEnd && pattern.singleStar[pattIdxStart] &&
                     path.endsWith(this.pathSeparator)) {
                 return true;
             }
             for (int i = pattIdxStart; i <= pattIdxEnd; i++) {
-                if (!pattDirs[i].equals("**")) {
+                if (!pattern.doubleStar[i]) {
                     return false;
                 }
             }
             return true;
         } else if (pattIdxStart > pattIdxEnd) {
             return false;
-        } else if (!fullMatch && "**".equals(pattDirs[pattIdxStart])) {
+        } else if (!fullMatch && pattern.doubleStar[pattIdxStart]) {
             return true;
         }
 
         while (pattIdxStart <= pattIdxEnd && pathIdxStart <= pathIdxEnd) {
-            String patDir = pattDirs[pattIdxEnd];
-            if (patDir.equals("**")) {
+            if (pattern.doubleStar[pattIdxEnd]) {
                 break;
             }
-            if (!matchStrings(patDir, pathDirs[pathIdxEnd])) {
+            if (!matchSegment(pattern, pattIdxEnd, segments, pathIdxEnd)) {
                 return false;
             }
             pattIdxEnd--;
@@ -90,7 +140,7 @@ public class AntPathMatcher implements PatternMatcher {
         }
         if (pathIdxStart > pathIdxEnd) {
             for (int i = pattIdxStart; i <= pattIdxEnd; i++) {
-                if (!pattDirs[i].equals("**")) {
+                if (!pattern.doubleStar[i]) {
                     return false;
                 }
             }
@@ -100,7 +150,7 @@ public class AntPathMatcher implements PatternMatcher {
         while (pattIdxStart != pattIdxEnd && pathIdxStart <= pathIdxEnd) {
             int patIdxTmp = -1;
             for (int i = pattIdxStart + 1; i <= pattIdxEnd; i++) {
-                if (pattDirs[i].equals("**")) {
+                if (pattern.doubleStar[i]) {
                     patIdxTmp = i;
                     break;
                 }
@@ -116,9 +166,7 @@ public class AntPathMatcher implements PatternMatcher {
             strLoop:
             for (int i = 0; i <= strLength - patLength; i++) {
                 for (int j = 0; j < patLength; j++) {
-                    String subPat = (String) pattDirs[pattIdxStart + j + 1];
-                    String subStr = (String) pathDirs[pathIdxStart + i + j];
-                    if (!matchStrings(subPat, subStr)) {
+                    if (!matchSegment(pattern, pattIdxStart + j + 1, segments, pathIdxStart + i + j)) {
                         continue strLoop;
                     }
                 }
@@ -135,7 +183,7 @@ public class AntPathMatcher implements PatternMatcher {
         }
 
         for (int i = pattIdxStart; i <= pattIdxEnd; i++) {
-            if (!pattDirs[i].equals("**")) {
+            if (!pattern.doubleStar[i]) {
                 return false;
             }
         }
@@ -143,31 +191,29 @@ public class AntPathMatcher implements PatternMatcher {
         return true;
     }
 
-    private boolean matchStrings(String pattern, String str) {
-        char[] patArr = pattern.toCharArray();
-        char[] strArr = str.toCharArray();
+    private boolean matchSegment(CompiledPattern pattern, int patternIndex, PathSegments segments, int pathIndex) {
+        return matchStrings(pattern.dirs[patternIndex], pattern.containsStar[patternIndex],
+                segments.path, segments.starts[pathIndex], segments.ends[pathIndex]);
+    }
+
+    /**
+     * Matches the pattern segment against {@code str.substring(start, end)} without creating the substring.
+     */
+    private boolean matchStrings(char[] patArr, boolean containsStar, String str, int start, int end) {
         int patIdxStart = 0;
         int patIdxEnd = patArr.length - 1;
-        int strIdxStart = 0;
-        int strIdxEnd = strArr.length - 1;
+        int strIdxStart = start;
+        int strIdxEnd = end - 1;
         char ch;
 
-        boolean containsStar = false;
-        for (char aPatArr : patArr) {
-            if (aPatArr == '*') {
-                containsStar = true;
-                break;
-            }
-        }
-
         if (!containsStar) {
-            if (patIdxEnd != strIdxEnd) {
+            if (patIdxEnd != strIdxEnd - strIdxStart) {
                 return false;
             }
             for (int i = 0; i <= patIdxEnd; i++) {
                 ch = patArr[i];
                 if (ch != '?') {
-                    if (ch != strArr[i]) {
+                    if (ch != str.charAt(strIdxStart + i)) {
                         return false;
                     }
                 }
@@ -182,7 +228,7 @@ public class AntPathMatcher implements PatternMatcher {
 
         while ((ch = patArr[patIdxStart]) != '*' && strIdxStart <= strIdxEnd) {
             if (ch != '?') {
-                if (ch != strArr[strIdxStart]) {
+                if (ch != str.charAt(strIdxStart)) {
                     return false;
                 }
             }
@@ -200,7 +246,7 @@ public class AntPathMatcher implements PatternMatcher {
 
         while ((ch = patArr[patIdxEnd]) != '*' && strIdxStart <= strIdxEnd) {
             if (ch != '?') {
-                if (ch != strArr[strIdxEnd]) {
+                if (ch != str.charAt(strIdxEnd)) {
                     return false;
                 }
             }
@@ -236,7 +282,7 @@ public class AntPathMatcher implements PatternMatcher {
                 for (int j = 0; j < patLength; j++) {
                     ch = patArr[patIdxStart + j + 1];
                     if (ch != '?') {
-                        if (ch != strArr[strIdxStart + i + j]) {
+                        if (ch != str.charAt(strIdxStart + i + j)) {
                             continue strLoop;
                         }
                     }
@@ -292,4 +338,95 @@ public class AntPathMatcher implements PatternMatcher {
         return buffer.toString();
     }
 
+    /**
+     * A pattern split into its path segments once, so that matching does not re-tokenize it per call.
+     */
+    private static final class CompiledPattern {
+
+        private final boolean startsWithSeparator;
+
+        private final boolean endsWithSeparator;
+
+        private final int size;
+
+        private final char[][] dirs;
+
+        private final boolean[] doubleStar;
+
+        private final boolean[] singleStar;
+
+        private final boolean[] containsStar;
+
+        private CompiledPattern(String pattern, String pathSeparator) {
+            this.startsWithSeparator = pattern.startsWith(pathSeparator);
+            this.endsWithSeparator = pattern.endsWith(pathSeparator);
+            String[] tokens = StringUtils.tokenizeToStringArray(pattern, pathSeparator);
+            this.size = tokens.length;
+            this.dirs = new char[size][];
+            this.doubleStar = new boolean[size];
+            this.singleStar = new boolean[size];
+            this.containsStar = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                dirs[i] = tokens[i].toCharArray();
+                doubleStar[i] = "**".equals(tokens[i]);
+                singleStar[i] = "*".equals(tokens[i]);
+                containsStar[i] = tokens[i].indexOf('*') != -1;
+            }
+        }
+    }
+
+    /**
+     * Holder of the segment boundaries of the path being matched, produced with the same
+     * trimming and empty-token rules as {@link StringUtils#tokenizeToStringArray(String, String)}.
+     */
+    private static final class PathSegments {
+
+        private String path;
+
+        private int count;
+
+        private int[] starts = new int[16];
+
+        private int[] ends = new int[16];
+
+        private void split(String path, String delimiters) {
+            this.path = path;
+            this.count = 0;
+            int length = path.length();
+            int i = 0;
+            while (i < length) {
+                while (i < length && delimiters.indexOf(path.charAt(i)) != -1) {
+                    i++;
+                }
+                int start = i;
+                while (i < length && delimiters.indexOf(path.charAt(i)) == -1) {
+                    i++;
+                }
+                int end = i;
+                while (start < end && path.charAt(start) <= ' ') {
+                    start++;
+                }
+                while (end > start && path.charAt(end - 1) <= ' ') {
+                    end--;
+                }
+                if (end > start) {
+                    add(start, end);
+                }
+            }
+        }
+
+        private void add(int start, int end) {
+            if (count == starts.length) {
+                int[] grownStarts = new int[count << 1];
+                int[] grownEnds = new int[count << 1];
+                System.arraycopy(starts, 0, grownStarts, 0, count);
+                System.arraycopy(ends, 0, grownEnds, 0, count);
+                starts = grownStarts;
+                ends = grownEnds;
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+    }
 }
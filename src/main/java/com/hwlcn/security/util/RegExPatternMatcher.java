@@ -1,17 +1,54 @@
 package com.hwlcn.security.util;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 public class RegExPatternMatcher implements PatternMatcher {
 
+    private static final int CACHE_TURNOFF_THRESHOLD = 65536;
+
+    private final ConcurrentMap<String, Pattern> compiledPatterns = new ConcurrentHashMap<String, Pattern>();
+
+    private volatile boolean cachePatterns = true;
+
+    public boolean isCachePatterns() {
+        return cachePatterns;
+    }
+
+    public void setCachePatterns(boolean cachePatterns) {
+        this.cachePatterns = cachePatterns;
+        if (!cachePatterns) {
+            compiledPatterns.clear();
+        }
+    }
 
     public boolean matches(String pattern, String source) {
         if (pattern == null) {
             throw new IllegalArgumentException("pattern argument cannot be null.");
         }
-        Pattern p = Pattern.compile(pattern);
+        Pattern p = getCompiledPattern(pattern);
         Matcher m = p.matcher(source);
         return m.matches();
     }
+
+    private Pattern getCompiledPattern(String pattern) {
+        Pattern compiled = compiledPatterns.get(pattern);
+        if (compiled == null) {
+            compiled = Pattern.compile(pattern);
+            if (this.cachePatterns) {
+                if (compiledPatterns.size() >= CACHE_TURNOFF_THRESHOLD) {
+                    this.cachePatterns = false;
+                    compiledPatterns.clear();
+                } else {
+                    Pattern existing = compiledPatterns.putIfAbsent(pattern, compiled);
+                    if (existing != null) {
+                        compiled = existing;
+                    }
+                }
+            }
+        }
+        return compiled;
+    }
 }
@@ -15,13 +15,13 @@ public abstract class ThreadContext {
     public static final String SECURITY_MANAGER_KEY = ThreadContext.class.getName() + "_SECURITY_MANAGER_KEY";
     public static final String SUBJECT_KEY = ThreadContext.class.getName() + "_SUBJECT_KEY";
 
-    private static final ThreadLocal<Map<Object, Object>> resources = new InheritableThreadLocalMap<Map<Object, Object>>();
+    private static final ThreadLocal<Bindings> resources = new InheritableThreadLocalBindings();
 
     protected ThreadContext() {
     }
 
     public static Map<Object, Object> getResources() {
-        return resources != null ? new HashMap<Object, Object>(resources.get()) : null;
+        return resources.get().toMap();
     }
 
 
@@ -29,8 +29,33 @@ public abstract class ThreadContext {
         if (CollectionUtils.isEmpty(newResources)) {
             return;
         }
-        resources.get().clear();
-        resources.get().putAll(newResources);
+        Bindings bindings = resources.get();
+        bindings.clear();
+        for (Map.Entry<Object, Object> entry : newResources.entrySet()) {
+            bindings.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Detaches everything bound to the current thread and binds only the given subject and security manager.
+     * The returned {@link Bindings} must later be handed to {@link #restore(Bindings)}; unlike
+     * {@link #getResources()} nothing is copied, the previous bindings are simply swapped out.
+     */
+    public static Bindings bind(Subject subject, SecurityManager securityManager) {
+        Bindings previous = resources.get();
+        resources.set(new Bindings(subject, securityManager));
+        return previous;
+    }
+
+    /**
+     * Reinstates bindings previously returned by {@link #bind(Subject, SecurityManager)}.
+     */
+    public static void restore(Bindings previous) {
+        if (previous == null || previous.isEmpty()) {
+            resources.remove();
+        } else {
+            resources.set(previous);
+        }
     }
 
     private static Object getValue(Object key) {
@@ -88,13 +113,13 @@ public abstract class ThreadContext {
     }
 
     public static SecurityManager getSecurityManager() {
-        return (SecurityManager) get(SECURITY_MANAGER_KEY);
+        return resources.get().securityManager;
     }
 
 
     public static void bind(SecurityManager securityManager) {
         if (securityManager != null) {
-            put(SECURITY_MANAGER_KEY, securityManager);
+            resources.get().securityManager = securityManager;
         }
     }
 
@@ -105,13 +130,13 @@ public abstract class ThreadContext {
 
     //从线程环境中获取用户对象
     public static Subject getSubject() {
-        return (Subject) get(SUBJECT_KEY);
+        return resources.get().subject;
     }
 
 
     public static void bind(Subject subject) {
         if (subject != null) {
-            put(SUBJECT_KEY, subject);
+            resources.get().subject = subject;
         }
     }
 
@@ -120,19 +145,113 @@ public abstract class ThreadContext {
         return (Subject) remove(SUBJECT_KEY);
     }
 
-    private static final class InheritableThreadLocalMap<T extends Map<Object, Object>> extends InheritableThreadLocal<Map<Object, Object>> {
-        protected Map<Object, Object> initialValue() {
-            return new HashMap<Object, Object>();
+    /**
+     * The values bound to a single thread.  The subject and security manager, which are read on nearly every call,
+     * live in dedicated fields; any other key goes to a map that is only created when first needed.
+     */
+    public static final class Bindings {
+
+        private Subject subject;
+        private SecurityManager securityManager;
+        private Map<Object, Object> others;
+
+        private Bindings() {
+        }
+
+        private Bindings(Subject subject, SecurityManager securityManager) {
+            this.subject = subject;
+            this.securityManager = securityManager;
+        }
+
+        private Bindings(Bindings source) {
+            this.subject = source.subject;
+            this.securityManager = source.securityManager;
+            if (source.others != null) {
+                this.others = new HashMap<Object, Object>(source.others);
+            }
+        }
+
+        private Object get(Object key) {
+            if (subject != null && SUBJECT_KEY.equals(key)) {
+                return subject;
+            }
+            if (securityManager != null && SECURITY_MANAGER_KEY.equals(key)) {
+                return securityManager;
+            }
+            return others != null ? others.get(key) : null;
+        }
+
+        private void put(Object key, Object value) {
+            //values of any other type may be bound under the well-known keys as before, in the generic map:
+            if (SUBJECT_KEY.equals(key) && value instanceof Subject) {
+                subject = (Subject) value;
+                removeOther(key);
+            } else if (SECURITY_MANAGER_KEY.equals(key) && value instanceof SecurityManager) {
+                securityManager = (SecurityManager) value;
+                removeOther(key);
+            } else {
+                if (SUBJECT_KEY.equals(key)) {
+                    subject = null;
+                } else if (SECURITY_MANAGER_KEY.equals(key)) {
+                    securityManager = null;
+                }
+                if (others == null) {
+                    others = new HashMap<Object, Object>();
+                }
+                others.put(key, value);
+            }
+        }
+
+        private Object remove(Object key) {
+            Object value = removeOther(key);
+            if (SUBJECT_KEY.equals(key) && subject != null) {
+                value = subject;
+                subject = null;
+            } else if (SECURITY_MANAGER_KEY.equals(key) && securityManager != null) {
+                value = securityManager;
+                securityManager = null;
+            }
+            return value;
+        }
+
+        private Object removeOther(Object key) {
+            return others != null ? others.remove(key) : null;
+        }
+
+        private void clear() {
+            subject = null;
+            securityManager = null;
+            others = null;
+        }
+
+        private boolean isEmpty() {
+            return subject == null && securityManager == null && CollectionUtils.isEmpty(others);
+        }
+
+        private Map<Object, Object> toMap() {
+            Map<Object, Object> map = others != null ?
+                    new HashMap<Object, Object>(others) : new HashMap<Object, Object>();
+            if (subject != null) {
+                map.put(SUBJECT_KEY, subject);
+            }
+            if (securityManager != null) {
+                map.put(SECURITY_MANAGER_KEY, securityManager);
+            }
+            return map;
+        }
+    }
+
+    private static final class InheritableThreadLocalBindings extends InheritableThreadLocal<Bindings> {
+        protected Bindings initialValue() {
+            return new Bindings();
         }
 
-        @SuppressWarnings({"unchecked"})
-        protected Map<Object, Object> childValue(Map<Object, Object> parentValue) {
+        protected Bindings childValue(Bindings parentValue) {
             if (parentValue != null) {
-                return (Map<Object, Object>) ((HashMap<Object, Object>) parentValue).clone();
+                return new Bindings(parentValue);
             } else {
                 return null;
             }
         }
     }
 }
-
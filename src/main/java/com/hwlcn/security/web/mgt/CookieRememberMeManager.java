@@ -1,7 +1,12 @@
 package com.hwlcn.security.web.mgt;
 
+import com.hwlcn.cache.Cache;
+import com.hwlcn.cache.ExpiringMapCache;
 import com.hwlcn.security.codec.Base64;
+import com.hwlcn.security.crypto.hash.Sha256Hash;
 import com.hwlcn.security.mgt.AbstractRememberMeManager;
+import com.hwlcn.security.subject.PrincipalCollection;
+import com.hwlcn.security.subject.SimplePrincipalCollection;
 import com.hwlcn.security.subject.Subject;
 import com.hwlcn.security.subject.SubjectContext;
 import com.hwlcn.security.web.servlet.Cookie;
@@ -22,8 +27,18 @@ public class CookieRememberMeManager extends AbstractRememberMeManager {
 
     public static final String DEFAULT_REMEMBER_ME_COOKIE_NAME = "rememberMe";
 
+    public static final String IDENTITY_CACHE_NAME = "security-rememberedIdentityCache";
+
     private Cookie cookie;
 
+    private boolean identityCacheEnabled = true;
+
+    private int identityCacheMaxEntries = ExpiringMapCache.DEFAULT_MAX_ENTRIES;
+
+    private long identityCacheTimeToLive = ExpiringMapCache.DEFAULT_TIME_TO_LIVE;
+
+    private Cache<String, PrincipalCollection> identityCache;
+
     public CookieRememberMeManager() {
         Cookie cookie = new SimpleCookie(DEFAULT_REMEMBER_ME_COOKIE_NAME);
         cookie.setHttpOnly(true);
@@ -39,6 +54,91 @@ public class CookieRememberMeManager extends AbstractRememberMeManager {
         this.cookie = cookie;
     }
 
+    /**
+     * Returns {@code true} if principals decoded from a remember-me cookie are cached, keyed by a SHA-256 hash of the
+     * cookie value, so that repeated requests carrying the same cookie skip decryption and deserialization.
+     */
+    public boolean isIdentityCacheEnabled() {
+        return identityCacheEnabled;
+    }
+
+    public void setIdentityCacheEnabled(boolean identityCacheEnabled) {
+        this.identityCacheEnabled = identityCacheEnabled;
+    }
+
+    public int getIdentityCacheMaxEntries() {
+        return identityCacheMaxEntries;
+    }
+
+    public void setIdentityCacheMaxEntries(int identityCacheMaxEntries) {
+        this.identityCacheMaxEntries = identityCacheMaxEntries;
+    }
+
+    public long getIdentityCacheTimeToLive() {
+        return identityCacheTimeToLive;
+    }
+
+    public void setIdentityCacheTimeToLive(long identityCacheTimeToLive) {
+        this.identityCacheTimeToLive = identityCacheTimeToLive;
+    }
+
+    public Cache<String, PrincipalCollection> getIdentityCache() {
+        return identityCache;
+    }
+
+    public void setIdentityCache(Cache<String, PrincipalCollection> identityCache) {
+        this.identityCache = identityCache;
+    }
+
+    private Cache<String, PrincipalCollection> getIdentityCacheLazy() {
+        if (!identityCacheEnabled) {
+            return null;
+        }
+        if (this.identityCache == null) {
+            this.identityCache = new ExpiringMapCache<String, PrincipalCollection>(IDENTITY_CACHE_NAME,
+                    identityCacheMaxEntries, identityCacheTimeToLive);
+        }
+        return this.identityCache;
+    }
+
+    @Override
+    public void setDecryptionCipherKey(byte[] decryptionCipherKey) {
+        super.setDecryptionCipherKey(decryptionCipherKey);
+        //identities decoded with the previous key must not outlive it:
+        if (this.identityCache != null) {
+            this.identityCache.clear();
+        }
+    }
+
+    @Override
+    public PrincipalCollection getRememberedPrincipals(SubjectContext subjectContext) {
+        Cache<String, PrincipalCollection> cache = getIdentityCacheLazy();
+        if (cache == null) {
+            return super.getRememberedPrincipals(subjectContext);
+        }
+        String cookieValue = getRememberedCookieValue(subjectContext);
+        if (cookieValue == null) {
+            return null;
+        }
+        String key = getIdentityCacheKey(cookieValue);
+        PrincipalCollection cached = cache.get(key);
+        if (cached != null) {
+            if (log.isTraceEnabled()) {
+                log.trace("Using cached remembered identity for cookie hash [" + key + "]");
+            }
+            return new SimplePrincipalCollection(cached);
+        }
+        PrincipalCollection principals = super.getRememberedPrincipals(subjectContext);
+        if (principals != null && !principals.isEmpty()) {
+            cache.put(key, new SimplePrincipalCollection(principals));
+        }
+        return principals;
+    }
+
+    protected String getIdentityCacheKey(String cookieValue) {
+        return new Sha256Hash(cookieValue).toHex();
+    }
+
 
     protected void rememberSerializedIdentity(Subject subject, byte[] serialized) {
 
@@ -72,6 +172,23 @@ public class CookieRememberMeManager extends AbstractRememberMeManager {
 
 
     protected byte[] getRememberedSerializedIdentity(SubjectContext subjectContext) {
+        String base64 = getRememberedCookieValue(subjectContext);
+        if (base64 != null) {
+            base64 = ensurePadding(base64);
+            if (log.isTraceEnabled()) {
+                log.trace("Acquired Base64 encoded identity [" + base64 + "]");
+            }
+            byte[] decoded = Base64.decode(base64);
+            if (log.isTraceEnabled()) {
+                log.trace("Base64 decoded byte array length: " + (decoded != null ? decoded.length : 0) + " bytes.");
+            }
+            return decoded;
+        } else {
+            return null;
+        }
+    }
+
+    private String getRememberedCookieValue(SubjectContext subjectContext) {
 
         if (!WebUtils.isHttp(subjectContext)) {
             if (log.isDebugEnabled()) {
@@ -95,19 +212,7 @@ public class CookieRememberMeManager extends AbstractRememberMeManager {
 
         if (Cookie.DELETED_COOKIE_VALUE.equals(base64)) return null;
 
-        if (base64 != null) {
-            base64 = ensurePadding(base64);
-            if (log.isTraceEnabled()) {
-                log.trace("Acquired Base64 encoded identity [" + base64 + "]");
-            }
-            byte[] decoded = Base64.decode(base64);
-            if (log.isTraceEnabled()) {
-                log.trace("Base64 decoded byte array length: " + (decoded != null ? decoded.length : 0) + " bytes.");
-            }
-            return decoded;
-        } else {
-            return null;
-        }
+        return base64;
     }
 
     private String ensurePadding(String base64) {
@@ -139,6 +244,12 @@ public class CookieRememberMeManager extends AbstractRememberMeManager {
     }
 
     private void forgetIdentity(HttpServletRequest request, HttpServletResponse response) {
+        if (this.identityCache != null) {
+            String cookieValue = getCookie().readValue(request, response);
+            if (cookieValue != null && !Cookie.DELETED_COOKIE_VALUE.equals(cookieValue)) {
+                this.identityCache.remove(getIdentityCacheKey(cookieValue));
+            }
+        }
         getCookie().removeFrom(request, response);
     }
 }
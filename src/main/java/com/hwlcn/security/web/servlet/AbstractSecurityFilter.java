@@ -4,11 +4,16 @@ import com.hwlcn.security.SecurityUtils;
 import com.hwlcn.security.session.Session;
 import com.hwlcn.security.subject.ExecutionException;
 import com.hwlcn.security.subject.Subject;
+import com.hwlcn.security.util.AntPathMatcher;
+import com.hwlcn.security.util.PatternMatcher;
+import com.hwlcn.security.util.ThreadContext;
 import com.hwlcn.security.web.filter.mgt.FilterChainResolver;
 import com.hwlcn.security.web.mgt.DefaultWebSecurityManager;
 import com.hwlcn.security.web.mgt.WebSecurityManager;
 import com.hwlcn.security.web.subject.WebSubject;
 import com.hwlcn.security.web.subject.WebSubjectBuilder;
+import com.hwlcn.security.web.subject.support.LazyWebSubject;
+import com.hwlcn.security.web.util.WebUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +24,9 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 public abstract class AbstractSecurityFilter extends OncePerRequestFilter {
@@ -33,8 +41,14 @@ public abstract class AbstractSecurityFilter extends OncePerRequestFilter {
 
     private boolean staticSecurityManagerEnabled;
 
+    private List<String> lazySubjectPaths;
+
+    private PatternMatcher pathMatcher;
+
     protected AbstractSecurityFilter() {
         this.staticSecurityManagerEnabled = false;
+        this.lazySubjectPaths = new ArrayList<String>();
+        this.pathMatcher = new AntPathMatcher();
     }
 
     public WebSecurityManager getSecurityManager() {
@@ -61,6 +75,27 @@ public abstract class AbstractSecurityFilter extends OncePerRequestFilter {
         this.staticSecurityManagerEnabled = staticSecurityManagerEnabled;
     }
 
+    public List<String> getLazySubjectPaths() {
+        return lazySubjectPaths;
+    }
+
+    /**
+     * Ant-style paths (e.g. {@code /resource/**}) for which the subject is only built when application code first
+     * uses it.  Intended for anonymous URLs; the session is not touched unless the subject is actually resolved.
+     */
+    public void setLazySubjectPaths(Collection<String> lazySubjectPaths) {
+        this.lazySubjectPaths = lazySubjectPaths != null ?
+                new ArrayList<String>(lazySubjectPaths) : new ArrayList<String>();
+    }
+
+    public PatternMatcher getPathMatcher() {
+        return pathMatcher;
+    }
+
+    public void setPathMatcher(PatternMatcher pathMatcher) {
+        this.pathMatcher = pathMatcher;
+    }
+
     protected final void onFilterConfigSet() throws Exception {
 
         applyStaticSecurityManagerEnabledConfig();
@@ -134,6 +169,28 @@ public abstract class AbstractSecurityFilter extends OncePerRequestFilter {
     }
 
 
+    protected boolean isLazySubjectRequest(ServletRequest request) {
+        List<String> paths = getLazySubjectPaths();
+        if (paths == null || paths.isEmpty() || !(request instanceof HttpServletRequest)) {
+            return false;
+        }
+        String requestURI = WebUtils.getPathWithinApplication((HttpServletRequest) request);
+        for (String path : paths) {
+            if (pathMatcher.matches(path, requestURI)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected LazyWebSubject createLazySubject(ServletRequest request, ServletResponse response) {
+        return new LazyWebSubject(request, response) {
+            protected WebSubject createDelegate(ServletRequest request, ServletResponse response) {
+                return createSubject(request, response);
+            }
+        };
+    }
+
     @SuppressWarnings({"UnusedDeclaration"})
     protected void updateSessionLastAccessTime(ServletRequest request, ServletResponse response) {
         if (!isHttpSessions()) {
@@ -171,6 +228,11 @@ public abstract class AbstractSecurityFilter extends OncePerRequestFilter {
             //处理标准请求
             final ServletResponse response = prepareServletResponse(request, servletResponse, chain);
 
+            if (isLazySubjectRequest(request)) {
+                executeLazily(request, response, chain);
+                return;
+            }
+
             final Subject subject = createSubject(request, response);
 
             subject.execute(new Callable() {
@@ -199,6 +261,20 @@ public abstract class AbstractSecurityFilter extends OncePerRequestFilter {
     }
 
 
+    private void executeLazily(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        LazyWebSubject subject = createLazySubject(request, response);
+        ThreadContext.Bindings previous = ThreadContext.bind(subject, getSecurityManager());
+        try {
+            executeChain(request, response, chain);
+            if (subject.isResolved()) {
+                updateSessionLastAccessTime(request, response);
+            }
+        } finally {
+            ThreadContext.restore(previous);
+        }
+    }
+
     protected FilterChain getExecutionChain(ServletRequest request, ServletResponse response, FilterChain origChain) {
         FilterChain chain = origChain;
 
@@ -0,0 +1,194 @@
+package com.hwlcn.security.web.subject.support;
+
+import com.hwlcn.security.authc.AuthenticationException;
+import com.hwlcn.security.authc.AuthenticationToken;
+import com.hwlcn.security.authz.AuthorizationException;
+import com.hwlcn.security.authz.Permission;
+import com.hwlcn.security.session.Session;
+import com.hwlcn.security.subject.ExecutionException;
+import com.hwlcn.security.subject.PrincipalCollection;
+import com.hwlcn.security.web.subject.WebSubject;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * A {@link WebSubject} placeholder that defers building the real subject - and with it the session lookup and
+ * remember-me decoding - until one of the {@code Subject} methods is first invoked.  Requests that never look at
+ * the subject, such as anonymous static resources, therefore cost no security-layer I/O at all.
+ */
+public abstract class LazyWebSubject implements WebSubject {
+
+    private final ServletRequest request;
+    private final ServletResponse response;
+
+    private volatile WebSubject delegate;
+
+    protected LazyWebSubject(ServletRequest request, ServletResponse response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    protected abstract WebSubject createDelegate(ServletRequest request, ServletResponse response);
+
+    public boolean isResolved() {
+        return delegate != null;
+    }
+
+    protected WebSubject getDelegate() {
+        WebSubject subject = this.delegate;
+        if (subject == null) {
+            synchronized (this) {
+                subject = this.delegate;
+                if (subject == null) {
+                    subject = createDelegate(request, response);
+                    if (subject == null) {
+                        String msg = "createDelegate implementation returned a null Subject.";
+                        throw new IllegalStateException(msg);
+                    }
+                    this.delegate = subject;
+                }
+            }
+        }
+        return subject;
+    }
+
+    public ServletRequest getServletRequest() {
+        return request;
+    }
+
+    public ServletResponse getServletResponse() {
+        return response;
+    }
+
+    public Object getPrincipal() {
+        return getDelegate().getPrincipal();
+    }
+
+    public PrincipalCollection getPrincipals() {
+        return getDelegate().getPrincipals();
+    }
+
+    public boolean isPermitted(String permission) {
+        return getDelegate().isPermitted(permission);
+    }
+
+    public boolean isPermitted(Permission permission) {
+        return getDelegate().isPermitted(permission);
+    }
+
+    public boolean[] isPermitted(String... permissions) {
+        return getDelegate().isPermitted(permissions);
+    }
+
+    public boolean[] isPermitted(List<Permission> permissions) {
+        return getDelegate().isPermitted(permissions);
+    }
+
+    public boolean isPermittedAll(String... permissions) {
+        return getDelegate().isPermittedAll(permissions);
+    }
+
+    public boolean isPermittedAll(Collection<Permission> permissions) {
+        return getDelegate().isPermittedAll(permissions);
+    }
+
+    public void checkPermission(String permission) throws AuthorizationException {
+        getDelegate().checkPermission(permission);
+    }
+
+    public void checkPermission(Permission permission) throws AuthorizationException {
+        getDelegate().checkPermission(permission);
+    }
+
+    public void checkPermissions(String... permissions) throws AuthorizationException {
+        getDelegate().checkPermissions(permissions);
+    }
+
+    public void checkPermissions(Collection<Permission> permissions) throws AuthorizationException {
+        getDelegate().checkPermissions(permissions);
+    }
+
+    public boolean hasRole(String roleIdentifier) {
+        return getDelegate().hasRole(roleIdentifier);
+    }
+
+    public boolean[] hasRoles(List<String> roleIdentifiers) {
+        return getDelegate().hasRoles(roleIdentifiers);
+    }
+
+    public boolean hasAllRoles(Collection<String> roleIdentifiers) {
+        return getDelegate().hasAllRoles(roleIdentifiers);
+    }
+
+    public void checkRole(String roleIdentifier) throws AuthorizationException {
+        getDelegate().checkRole(roleIdentifier);
+    }
+
+    public void checkRoles(Collection<String> roleIdentifiers) throws AuthorizationException {
+        getDelegate().checkRoles(roleIdentifiers);
+    }
+
+    public void checkRoles(String... roleIdentifiers) throws AuthorizationException {
+        getDelegate().checkRoles(roleIdentifiers);
+    }
+
+    public void login(AuthenticationToken token) throws AuthenticationException {
+        getDelegate().login(token);
+    }
+
+    public boolean isAuthenticated() {
+        return getDelegate().isAuthenticated();
+    }
+
+    public boolean isRemembered() {
+        return getDelegate().isRemembered();
+    }
+
+    public Session getSession() {
+        return getDelegate().getSession();
+    }
+
+    public Session getSession(boolean create) {
+        return getDelegate().getSession(create);
+    }
+
+    public void logout() {
+        getDelegate().logout();
+    }
+
+    public <V> V execute(Callable<V> callable) throws ExecutionException {
+        return getDelegate().execute(callable);
+    }
+
+    public void execute(Runnable runnable) {
+        getDelegate().execute(runnable);
+    }
+
+    public <V> Callable<V> associateWith(Callable<V> callable) {
+        return getDelegate().associateWith(callable);
+    }
+
+    public Runnable associateWith(Runnable runnable) {
+        return getDelegate().associateWith(runnable);
+    }
+
+    public void runAs(PrincipalCollection principals) throws NullPointerException, IllegalStateException {
+        getDelegate().runAs(principals);
+    }
+
+    public boolean isRunAs() {
+        return getDelegate().isRunAs();
+    }
+
+    public PrincipalCollection getPreviousPrincipals() {
+        return getDelegate().getPreviousPrincipals();
+    }
+
+    public PrincipalCollection releaseRunAs() {
+        return getDelegate().releaseRunAs();
+    }
+}
@@ -1,5 +1,11 @@
 package com.hwlcn.web.admin.controllers;
 
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.web.domain.LdapTreePage;
+import com.hwlcn.web.services.ILdapTreeService;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -19,6 +25,9 @@ import javax.servlet.http.HttpServletResponse;
 @RequestMapping("/admin")
 public class OuController {
 
+    @Autowired
+    private ILdapTreeService ldapTreeService;
+
     /**
      * 创建单元
      *
@@ -36,6 +45,7 @@ public class OuController {
     @RequestMapping(value = "/createdOu.html", method = RequestMethod.POST)
     @ResponseBody
     public String createdOu(HttpServletRequest request, HttpServletResponse response, Model model) {
+        refreshTree(request);
         return "";
     }
 
@@ -55,6 +65,7 @@ public class OuController {
     @RequestMapping(value = "/editOu.html", method = RequestMethod.POST)
     @ResponseBody
     public String editedOu(HttpServletRequest request, HttpServletResponse response, Model model) {
+        refreshTree(request);
         return "";
     }
 
@@ -68,7 +79,62 @@ public class OuController {
      */
     @RequestMapping(value = "/deleteOu.html", method = RequestMethod.GET)
     public String deletedOu(HttpServletRequest request, HttpServletResponse response, Model model) {
+        refreshTree(request);
         return "";
     }
-}
 
+    /**
+     * 组织单元变化后丢弃目录树中相关的游标，参数dn为变化的节点
+     *
+     * @param request
+     */
+    private void refreshTree(HttpServletRequest request) {
+        String dn = request.getParameter("dn");
+        if (dn == null || dn.length() == 0) {
+            return;
+        }
+        try {
+            ldapTreeService.invalidate(dn);
+        } catch (LDAPException e) {
+            //DN格式错误时没有对应的游标
+        }
+    }
+
+    /**
+     * 分页加载子节点，参数dn为父节点，page为页码(从0开始)；
+     * 给出startsWith时定位到名称不小于该值的第一个节点所在的页
+     *
+     * @param request
+     * @param response
+     * @param model
+     * @return
+     */
+    @RequestMapping(value = "/ouChildren.html", method = RequestMethod.GET)
+    @ResponseBody
+    public String ouChildren(HttpServletRequest request, HttpServletResponse response, Model model) {
+        String dn = request.getParameter("dn");
+        String startsWith = request.getParameter("startsWith");
+        int page = 0;
+        try {
+            if (request.getParameter("page") != null) {
+                page = Integer.parseInt(request.getParameter("page"));
+            }
+        } catch (NumberFormatException e) {
+            page = 0;
+        }
+
+        try {
+            LdapTreePage result;
+            if (startsWith != null && startsWith.length() > 0) {
+                result = ldapTreeService.findChildren(dn, startsWith);
+            } else {
+                result = ldapTreeService.getChildren(dn, page);
+            }
+            return JSON.toJSONString(result);
+        } catch (LDAPException e) {
+            JSONObject error = new JSONObject();
+            error.put("error", e.getMessage());
+            return error.toJSONString();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.hwlcn.web.domain;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 目录树的一页子节点
+ * User: HuangWeili
+ * Date: 13-6-23
+ * Time: 下午6:12
+ */
+public class LdapTreePage implements Serializable {
+
+    private List<LdapTreeNode> nodes; //本页节点
+
+    private int page; //页码，从0开始
+
+    private int pageCount; //总页数
+
+    private int totalCount; //子节点总数
+
+
+    public List<LdapTreeNode> getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(List<LdapTreeNode> nodes) {
+        this.nodes = nodes;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public void setPage(int page) {
+        this.page = page;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public void setPageCount(int pageCount) {
+        this.pageCount = pageCount;
+    }
+
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    public void setTotalCount(int totalCount) {
+        this.totalCount = totalCount;
+    }
+}
@@ -0,0 +1,42 @@
+package com.hwlcn.web.services;
+
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.web.domain.LdapTreePage;
+
+/**
+ * 目录树分页加载
+ * User: HuangWeili
+ * Date: 13-6-23
+ * Time: 下午6:15
+ */
+public interface ILdapTreeService {
+
+    /**
+     * 取得某个节点下的一页子节点
+     *
+     * @param parentDn 父节点DN
+     * @param page     页码，从0开始
+     * @return
+     * @throws LDAPException
+     */
+    public LdapTreePage getChildren(String parentDn, int page) throws LDAPException;
+
+    /**
+     * 定位到名称不小于给定值的第一个子节点所在的页
+     *
+     * @param parentDn   父节点DN
+     * @param startsWith 名称前缀
+     * @return
+     * @throws LDAPException
+     */
+    public LdapTreePage findChildren(String parentDn, String startsWith) throws LDAPException;
+
+    /**
+     * 组织单元变化后丢弃该节点及其父节点的游标，下次加载时重新读取
+     *
+     * @param dn 新增、修改或删除的节点DN
+     * @throws LDAPException
+     */
+    public void invalidate(String dn) throws LDAPException;
+
+}
@@ -0,0 +1,314 @@
+package com.hwlcn.web.services.impl;
+
+import com.hwlcn.ldap.ldap.sdk.DN;
+import com.hwlcn.ldap.ldap.sdk.Filter;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnection;
+import com.hwlcn.ldap.ldap.sdk.LDAPConnectionPool;
+import com.hwlcn.ldap.ldap.sdk.LDAPException;
+import com.hwlcn.ldap.ldap.sdk.RDN;
+import com.hwlcn.ldap.ldap.sdk.ResultCode;
+import com.hwlcn.ldap.ldap.sdk.SearchRequest;
+import com.hwlcn.ldap.ldap.sdk.SearchResultEntry;
+import com.hwlcn.ldap.ldap.sdk.SearchScope;
+import com.hwlcn.ldap.ldap.sdk.VirtualListViewCursor;
+import com.hwlcn.ldap.ldap.sdk.controls.SortKey;
+import com.hwlcn.web.domain.LdapTreeNode;
+import com.hwlcn.web.domain.LdapTreePage;
+import com.hwlcn.web.services.ILdapTreeService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 目录树分页加载
+ * 使用虚拟列表视图(VLV)和服务端排序按页读取子节点，每次请求只返回固定数量的节点，
+ * 与组织单元下的条目数量无关。每个父节点对应一个游标，游标会缓存相邻的页。
+ * VLV的contextID只在发出它的连接上有效，所以每个游标独占连接池中的一个连接，
+ * 游标被淘汰、过期或失效时归还连接；连接池的最大连接数应大于maxCursors。
+ * User: HuangWeili
+ * Date: 13-6-23
+ * Time: 下午6:20
+ */
+@Service(value = "ldapTreeService")
+public class LdapTreeServiceImpl implements ILdapTreeService {
+
+    @Autowired
+    private LDAPConnectionPool connectionPool;
+
+    private int pageSize = 50; //每页节点数
+
+    private String sortAttribute = "cn"; //排序属性
+
+    private int maxCursors = 16; //最多保留的游标数，即最多占用的连接数
+
+    private long cursorTimeout = 60000L; //游标创建后的有效时间(毫秒)，过期后重新读取
+
+    //父节点DN -> 游标，按访问顺序淘汰
+    private final LinkedHashMap<String, CursorHolder> cursors =
+            new LinkedHashMap<String, CursorHolder>(16, 0.75f, true);
+
+
+    public LdapTreePage getChildren(String parentDn, int page) throws LDAPException {
+        return load(parentDn, null, Math.max(page, 0));
+    }
+
+
+    public LdapTreePage findChildren(String parentDn, String startsWith) throws LDAPException {
+        return load(parentDn, startsWith, 0);
+    }
+
+
+    public void invalidate(String dn) throws LDAPException {
+        DN parsed = new DN(dn);
+        List<CursorHolder> removed = new ArrayList<CursorHolder>(2);
+        synchronized (cursors) {
+            CursorHolder holder = cursors.remove(parsed.toNormalizedString());
+            if (holder != null) {
+                removed.add(holder);
+            }
+
+            DN parent = parsed.getParent();
+            if (parent != null) {
+                holder = cursors.remove(parent.toNormalizedString());
+                if (holder != null) {
+                    removed.add(holder);
+                }
+            }
+        }
+
+        for (CursorHolder holder : removed) {
+            holder.close(false);
+        }
+    }
+
+
+    /**
+     * 在父节点的游标上读取一页，startsWith不为空时先定位页码
+     *
+     * @param parentDn
+     * @param startsWith
+     * @param page
+     * @return
+     * @throws LDAPException
+     */
+    private LdapTreePage load(String parentDn, String startsWith, int page) throws LDAPException {
+        String key = new DN(parentDn).toNormalizedString();
+        while (true) {
+            CursorHolder holder = getCursor(key, parentDn);
+            synchronized (holder) {
+                //取得游标后可能已被其他线程淘汰
+                if (holder.closed) {
+                    continue;
+                }
+
+                try {
+                    VirtualListViewCursor cursor = holder.cursor;
+                    if (startsWith != null) {
+                        page = cursor.findPage(startsWith);
+                    }
+                    return toPage(cursor, page);
+                } catch (LDAPException e) {
+                    if (!ResultCode.isConnectionUsable(e.getResultCode())) {
+                        synchronized (cursors) {
+                            if (cursors.get(key) == holder) {
+                                cursors.remove(key);
+                            }
+                        }
+                        holder.close(true);
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 取得父节点对应的游标，不存在或已过期时创建；同时淘汰过期和多余的游标
+     *
+     * @param key      规范化后的父节点DN
+     * @param parentDn 父节点DN
+     * @return
+     * @throws LDAPException
+     */
+    private CursorHolder getCursor(String key, String parentDn) throws LDAPException {
+        List<CursorHolder> removed = new ArrayList<CursorHolder>();
+        try {
+            synchronized (cursors) {
+                long now = System.currentTimeMillis();
+                Iterator<CursorHolder> iterator = cursors.values().iterator();
+                while (iterator.hasNext()) {
+                    CursorHolder holder = iterator.next();
+                    if (now - holder.createTime > cursorTimeout) {
+                        iterator.remove();
+                        removed.add(holder);
+                    }
+                }
+
+                CursorHolder holder = cursors.get(key);
+                if (holder != null) {
+                    return holder;
+                }
+            }
+
+            //在锁外建立连接，服务器响应慢或不可用时不阻塞其他父节点的请求
+            SearchRequest request = new SearchRequest(parentDn, SearchScope.ONE,
+                    Filter.createPresenceFilter("objectClass"), "objectClass", sortAttribute);
+            LDAPConnection connection = connectionPool.getConnection();
+            CursorHolder created;
+            try {
+                created = new CursorHolder(connection,
+                        new VirtualListViewCursor(connection, request, pageSize, new SortKey(sortAttribute)));
+            } catch (LDAPException e) {
+                connectionPool.releaseConnection(connection);
+                throw e;
+            }
+
+            synchronized (cursors) {
+                CursorHolder holder = cursors.get(key);
+                if (holder != null) {
+                    //其他线程已创建了游标，归还本次取得的连接
+                    removed.add(created);
+                    return holder;
+                }
+                cursors.put(key, created);
+
+                Iterator<CursorHolder> iterator = cursors.values().iterator();
+                while (cursors.size() > maxCursors && iterator.hasNext()) {
+                    CursorHolder eldest = iterator.next();
+                    if (eldest != created) {
+                        iterator.remove();
+                        removed.add(eldest);
+                    }
+                }
+                return created;
+            }
+        } finally {
+            //在锁外归还连接，正在使用游标的请求完成后才会归还
+            for (CursorHolder holder : removed) {
+                holder.close(false);
+            }
+        }
+    }
+
+
+    private LdapTreePage toPage(VirtualListViewCursor cursor, int page) throws LDAPException {
+        List<SearchResultEntry> entries = cursor.getPage(page);
+
+        List<LdapTreeNode> nodes = new ArrayList<LdapTreeNode>(entries.size());
+        for (SearchResultEntry entry : entries) {
+            nodes.add(toNode(entry));
+        }
+
+        LdapTreePage result = new LdapTreePage();
+        result.setNodes(nodes);
+        result.setPage(page);
+        result.setPageCount(Math.max(cursor.getPageCount(), 0));
+        result.setTotalCount(Math.max(cursor.getContentCount(), 0));
+        return result;
+    }
+
+
+    private LdapTreeNode toNode(SearchResultEntry entry) throws LDAPException {
+        RDN rdn = entry.getParsedDN().getRDN();
+
+        LdapTreeNode node = new LdapTreeNode();
+        node.setId(entry.getDN());
+        node.setDn(entry.getDN());
+        node.setName(rdn == null ? entry.getDN() : rdn.getAttributeValues()[0]);
+        node.setOpen(Boolean.FALSE);
+
+        if (entry.hasObjectClass("organizationalUnit")) {
+            node.setType("ou");
+        } else if (entry.hasObjectClass("groupOfNames") || entry.hasObjectClass("groupOfUniqueNames")
+                || entry.hasObjectClass("group")) {
+            node.setType("group");
+        } else {
+            node.setType("user");
+        }
+        return node;
+    }
+
+
+    public LDAPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void setConnectionPool(LDAPConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public String getSortAttribute() {
+        return sortAttribute;
+    }
+
+    public void setSortAttribute(String sortAttribute) {
+        this.sortAttribute = sortAttribute;
+    }
+
+    public int getMaxCursors() {
+        return maxCursors;
+    }
+
+    public void setMaxCursors(int maxCursors) {
+        this.maxCursors = maxCursors;
+    }
+
+    public long getCursorTimeout() {
+        return cursorTimeout;
+    }
+
+    public void setCursorTimeout(long cursorTimeout) {
+        this.cursorTimeout = cursorTimeout;
+    }
+
+
+    /**
+     * 游标及其独占的连接
+     */
+    private class CursorHolder {
+
+        private final LDAPConnection connection;
+
+        private final VirtualListViewCursor cursor;
+
+        private final long createTime = System.currentTimeMillis();
+
+        private boolean closed;
+
+        private CursorHolder(LDAPConnection connection, VirtualListViewCursor cursor) {
+            this.connection = connection;
+            this.cursor = cursor;
+        }
+
+        /**
+         * 归还连接，defunct为true时连接已不可用
+         *
+         * @param defunct
+         */
+        private synchronized void close(boolean defunct) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (defunct) {
+                connectionPool.releaseDefunctConnection(connection);
+            } else {
+                connectionPool.releaseConnection(connection);
+            }
+        }
+    }
+}